@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact file format for recorded accelerometer traces.
+ *
+ * A trace is a header followed by records. Each record starts with a tag
+ * byte and the time since the previous record in microseconds, as a
+ * variable-length integer. Samples then carry x and y as shorts in units of
+ * 1/256 m/s^2; rotation records carry the new display rotation. A typical
+ * sample at sensor rates takes 7 bytes.
+ */
+final class AccelTrace {
+    private static final int MAGIC = 0x4c4c4154; // "LLAT"
+    private static final int VERSION = 1;
+
+    /** Record tags */
+    public static final int RECORD_SAMPLE = 0;
+    public static final int RECORD_ROTATION = 1;
+
+    private static final float UNITS_PER_MS2 = 256f;
+
+    private AccelTrace() {
+    }
+
+    /**
+     * Appends records to a trace file. Not thread-safe; the sensor callback
+     * is the only writer.
+     */
+    static final class Writer {
+        private final DataOutputStream mOut;
+        private long mLastTime;
+        private boolean mStarted;
+
+        public Writer(File file) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 8192));
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+        }
+
+        /**
+         * @param now sample time in nanoseconds, from any monotonic clock
+         */
+        public void writeSample(long now, float x, float y) throws IOException {
+            writeHeader(RECORD_SAMPLE, now);
+            mOut.writeShort(quantize(x));
+            mOut.writeShort(quantize(y));
+        }
+
+        /**
+         * @param rotation one of the SensorPipeline.ROTATION_* constants
+         */
+        public void writeRotation(long now, int rotation) throws IOException {
+            writeHeader(RECORD_ROTATION, now);
+            mOut.writeByte(rotation);
+        }
+
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeHeader(int tag, long now) throws IOException {
+            long delta = mStarted ? (now - mLastTime) / 1000 : 0;
+            if (delta < 0) delta = 0;
+            mLastTime = mStarted ? mLastTime + delta * 1000 : now;
+            mStarted = true;
+
+            mOut.writeByte(tag);
+            while ((delta & ~0x7fL) != 0) {
+                mOut.writeByte((int) (delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            mOut.writeByte((int) delta);
+        }
+
+        private static short quantize(float v) {
+            float q = v * UNITS_PER_MS2;
+            if (q > Short.MAX_VALUE) return Short.MAX_VALUE;
+            if (q < Short.MIN_VALUE) return Short.MIN_VALUE;
+            return (short) Math.round(q);
+        }
+    }
+
+    /**
+     * Reads a trace back one record at a time. After next() returns true the
+     * accessors describe the current record.
+     */
+    static final class Reader {
+        private final DataInputStream mIn;
+        private int mTag;
+        private long mTime;
+        private float mX;
+        private float mY;
+        private int mRotation;
+
+        public Reader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 8192));
+            if (mIn.readInt() != MAGIC || mIn.readByte() != VERSION) {
+                mIn.close();
+                throw new IOException("Not an accelerometer trace: " + file);
+            }
+        }
+
+        /**
+         * @return false at the end of the trace
+         */
+        public boolean next() throws IOException {
+            int tag = mIn.read();
+            if (tag < 0) return false;
+            try {
+                long delta = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = mIn.readUnsignedByte();
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                mTime += delta * 1000;
+
+                mTag = tag;
+                if (tag == RECORD_SAMPLE) {
+                    mX = mIn.readShort() / UNITS_PER_MS2;
+                    mY = mIn.readShort() / UNITS_PER_MS2;
+                } else if (tag == RECORD_ROTATION) {
+                    mRotation = mIn.readUnsignedByte();
+                } else {
+                    throw new IOException("Bad record tag " + tag);
+                }
+            } catch (EOFException e) {
+                // a recording cut short by the process dying ends here
+                return false;
+            }
+            return true;
+        }
+
+        /** One of the RECORD_* constants. */
+        public int getTag() {
+            return mTag;
+        }
+
+        /** Nanoseconds since the first record. */
+        public long getTime() {
+            return mTime;
+        }
+
+        public float getX() {
+            return mX;
+        }
+
+        public float getY() {
+            return mY;
+        }
+
+        public int getRotation() {
+            return mRotation;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
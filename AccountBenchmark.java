@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Times the account refresh with stand-in accounts on a desktop JVM: the
+ * old clear-and-rebuild with a linear authenticator scan and a resource
+ * lookup per account, against the indexed, cached and diffed refresh.
+ *
+ * Usage: AccountBenchmark [accounts] [types] [lookupMicros]
+ */
+public class AccountBenchmark {
+    /** Stand-in for AuthenticatorDescription. */
+    private static final class Authenticator {
+        final String type;
+        final String packageName;
+        final int labelId;
+
+        Authenticator(String type, String packageName, int labelId) {
+            this.type = type;
+            this.packageName = packageName;
+            this.labelId = labelId;
+        }
+    }
+
+    /** Stand-in for AccountData. */
+    private static final class Entry implements AccountListDiff.Keyed {
+        final String name;
+        final String type;
+        final CharSequence label;
+
+        Entry(String name, String type, CharSequence label) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+        }
+
+        public String getKey() {
+            return AccountListDiff.key(name, type);
+        }
+    }
+
+    private static long sLookupNanos;
+    private static volatile long sSink;
+
+    /** Stand-in for a PackageManager call into another process. */
+    private static CharSequence slowLookup(String packageName, int resId) {
+        long end = System.nanoTime() + sLookupNanos;
+        long h = resId;
+        while (System.nanoTime() < end)
+            h = h * 31 + packageName.hashCode();
+        sSink = h;
+        return packageName + "#" + resId;
+    }
+
+    private static Authenticator linearScan(String type, Authenticator[] dictionary) {
+        for (int i = 0; i < dictionary.length; i++) {
+            if (dictionary[i].type.equals(type)) return dictionary[i];
+        }
+        throw new RuntimeException("Unable to find matching authenticator");
+    }
+
+    private static void rebuild(List<Entry> list, String[] names, String[] types,
+            Authenticator[] auths) {
+        list.clear();
+        for (int i = 0; i < names.length; i++) {
+            Authenticator a = linearScan(types[i], auths);
+            list.add(new Entry(names[i], a.type, slowLookup(a.packageName, a.labelId)));
+        }
+    }
+
+    private static void refresh(List<Entry> list, String[] names, String[] types,
+            Authenticator[] auths, final ResourceCache<CharSequence> labels) {
+        final HashMap<String, Authenticator> index = new HashMap<String, Authenticator>();
+        for (Authenticator a : auths)
+            index.put(a.type, a);
+        HashSet<String> shown = new HashSet<String>();
+        for (Entry e : list)
+            shown.add(e.getKey());
+        AccountListDiff<Entry> diff = AccountListDiff.compute(shown, names, types,
+                new AccountListDiff.Factory<Entry>() {
+                    public Entry create(String name, String type) throws Exception {
+                        Authenticator a = index.get(type);
+                        return new Entry(name, type, labels.get(a.packageName, a.labelId));
+                    }
+                });
+        diff.applyTo(list);
+    }
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int typeCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        sLookupNanos = (args.length > 2 ? Long.parseLong(args[2]) : 20) * 1000;
+
+        Authenticator[] auths = new Authenticator[typeCount];
+        for (int i = 0; i < typeCount; i++)
+            auths[i] = new Authenticator("com.example.type" + i, "com.example.pkg" + i, i + 1);
+
+        String[] names = new String[accounts];
+        String[] types = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            names[i] = "user" + i + "@example.com";
+            types[i] = auths[i % typeCount].type;
+        }
+
+        // the same list with 1% of the accounts replaced
+        String[] names2 = names.clone();
+        for (int i = 0; i < accounts; i += 100)
+            names2[i] = "new" + i + "@example.com";
+
+        // the first rounds only warm up the JIT
+        for (int round = 0; round < 10; round++) {
+            List<Entry> old = new ArrayList<Entry>();
+            long t0 = System.nanoTime();
+            rebuild(old, names, types, auths);
+            long t1 = System.nanoTime();
+            rebuild(old, names2, types, auths);
+            long t2 = System.nanoTime();
+
+            ResourceCache<CharSequence> labels = new ResourceCache<CharSequence>(
+                    new ResourceCache.Loader<CharSequence>() {
+                        public CharSequence load(String packageName, int resId) {
+                            return slowLookup(packageName, resId);
+                        }
+                    });
+            List<Entry> fresh = new ArrayList<Entry>();
+            long t3 = System.nanoTime();
+            refresh(fresh, names, types, auths, labels);
+            long t4 = System.nanoTime();
+            refresh(fresh, names2, types, auths, labels);
+            long t5 = System.nanoTime();
+
+            if (old.size() != fresh.size())
+                throw new AssertionError(old.size() + " != " + fresh.size());
+            if (round < 9) continue;
+            System.out.printf("%d accounts, %d types, %dus per lookup%n",
+                    accounts, typeCount, sLookupNanos / 1000);
+            System.out.printf("rebuild: initial %.1fms, 1%% change %.1fms%n",
+                    (t1 - t0) / 1e6, (t2 - t1) / 1e6);
+            System.out.printf("diffed:  initial %.1fms, 1%% change %.1fms (%d cached labels)%n",
+                    (t4 - t3) / 1e6, (t5 - t4) / 1e6, labels.size());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The difference between the accounts currently shown and a fresh account
+ * list: which entries went away and which new ones have to be added.
+ *
+ * compute() only builds entries for accounts that are actually new, and
+ * can run on a background thread against a snapshot of the current keys.
+ * applyTo() then patches the live list in place on the UI thread. A failure
+ * building one entry is counted and skips that account only.
+ */
+final class AccountListDiff<E extends AccountListDiff.Keyed> {
+    /**
+     * An entry that knows which account it stands for.
+     */
+    interface Keyed {
+        /** @see AccountListDiff#key(String, String) */
+        String getKey();
+    }
+
+    /**
+     * Builds the entry for a newly seen account.
+     */
+    interface Factory<E> {
+        E create(String name, String type) throws Exception;
+    }
+
+    private final Set<String> mRemovedKeys = new HashSet<String>();
+    private final List<E> mAdded = new ArrayList<E>();
+    private final List<String> mFailedKeys = new ArrayList<String>();
+
+    private AccountListDiff() {
+    }
+
+    /**
+     * Identity of an account: the same name may exist under several types.
+     */
+    public static String key(String name, String type) {
+        return type + '/' + name;
+    }
+
+    /**
+     * Works out what changed between the accounts currently shown and the
+     * given fresh list.
+     *
+     * @param currentKeys keys of the entries currently shown
+     * @param names fresh account names
+     * @param types fresh account types, parallel to names
+     * @param factory builds entries for new accounts
+     */
+    public static <E extends Keyed> AccountListDiff<E> compute(
+            Collection<String> currentKeys, String[] names, String[] types,
+            Factory<E> factory) {
+        AccountListDiff<E> diff = new AccountListDiff<E>();
+        Set<String> fresh = new HashSet<String>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            String key = key(names[i], types[i]);
+            if (!fresh.add(key) || currentKeys.contains(key)) continue;
+            try {
+                diff.mAdded.add(factory.create(names[i], types[i]));
+            } catch (Exception e) {
+                diff.mFailedKeys.add(key);
+            }
+        }
+        for (String key : currentKeys) {
+            if (!fresh.contains(key)) diff.mRemovedKeys.add(key);
+        }
+        return diff;
+    }
+
+    /**
+     * Patches the list in place: removes vanished accounts and appends new
+     * ones, leaving the entries of unchanged accounts where they are.
+     *
+     * @return true if the list changed
+     */
+    public boolean applyTo(List<E> list) {
+        boolean changed = false;
+        Set<String> present = new HashSet<String>(list.size() * 2);
+        for (int i = list.size() - 1; i >= 0; i--) {
+            String key = list.get(i).getKey();
+            if (mRemovedKeys.contains(key)) {
+                list.remove(i);
+                changed = true;
+            } else {
+                present.add(key);
+            }
+        }
+        for (E entry : mAdded) {
+            if (present.add(entry.getKey())) {
+                list.add(entry);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    public List<E> getAdded() {
+        return mAdded;
+    }
+
+    public Set<String> getRemovedKeys() {
+        return mRemovedKeys;
+    }
+
+    /** Keys of new accounts whose entries could not be built. */
+    public List<String> getFailedKeys() {
+        return mFailedKeys;
+    }
+}
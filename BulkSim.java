@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Flies games in bulk, as doStart() and updatePhysics() would with a
+ * simple pilot at the controls, into a ResultStore, then queries it:
+ * outcomes by difficulty, and percentiles of touchdown speed, angle and
+ * fuel. Runs on a desktop JVM.
+ *
+ * Game i is started from seed + i at difficulty i % 3. The pilot is
+ * Sweep's burn pilot: it falls freely, brakes as late as full thrust
+ * allows to its own touchdown speed, different every game, and steers to
+ * the pad, but for a twitch now and then.
+ *
+ * Usage: BulkSim --dir DIR [options]
+ * <ul>
+ * <li>--runs N: games to fly, default 300000; 0 only queries DIR
+ * <li>--threads N: default the number of processors
+ * <li>--seed N: default 1
+ * <li>--max-heap-mb M: fail (exit 1) if the heap in use after the query
+ * exceeds this, default 64
+ * </ul>
+ */
+public class BulkSim {
+    private static final double FRAME = 1 / 60.0;
+
+    /** Longest game, in frames, before it is given up on. */
+    private static final int MAX_FRAMES = 60 * 60;
+
+    /** Chance per frame that the pilot turns at random. */
+    private static final double TWITCH_CHANCE = 0.03;
+
+    private static final int DIFFICULTIES = 3;
+    private static final int OUTCOMES = LanderPhysics.OUTCOME_TOO_FAST + 1;
+
+    /*
+     * Histogram bins for percentiles
+     */
+    private static final double SPEED_BIN = 0.25;
+    private static final int SPEED_BINS = 4000;
+    private static final double ANGLE_BIN = 0.1;
+    private static final int ANGLE_BINS = 1800;
+    private static final double FUEL_BIN = 0.1;
+    private static final int FUEL_BINS = LanderPhysics.PHYS_FUEL_MAX * 10 + 1;
+
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    /**
+     * Counts by difficulty and outcome, and histograms of speed, angle and
+     * fuel by difficulty.
+     */
+    private static final class Summary extends ResultStore.Aggregate {
+        final long[][] counts = new long[DIFFICULTIES][OUTCOMES];
+        final long[][] speed = new long[DIFFICULTIES][SPEED_BINS];
+        final long[][] angle = new long[DIFFICULTIES][ANGLE_BINS];
+        final long[][] fuel = new long[DIFFICULTIES][FUEL_BINS];
+
+        @Override
+        public ResultStore.Aggregate newInstance() {
+            return new Summary();
+        }
+
+        @Override
+        public void scan(ResultStore.Window w) {
+            for (int i = 0; i < w.rows; i++) {
+                int d = w.difficulty(i);
+                counts[d][w.outcome(i)]++;
+                speed[d][bin(w.speed(i), SPEED_BIN, SPEED_BINS)]++;
+                angle[d][bin(w.angle(i), ANGLE_BIN, ANGLE_BINS)]++;
+                fuel[d][bin(w.fuel(i), FUEL_BIN, FUEL_BINS)]++;
+            }
+        }
+
+        @Override
+        public void merge(ResultStore.Aggregate other) {
+            Summary s = (Summary) other;
+            for (int d = 0; d < DIFFICULTIES; d++) {
+                add(counts[d], s.counts[d]);
+                add(speed[d], s.speed[d]);
+                add(angle[d], s.angle[d]);
+                add(fuel[d], s.fuel[d]);
+            }
+        }
+
+        private static void add(long[] into, long[] from) {
+            for (int i = 0; i < into.length; i++)
+                into[i] += from[i];
+        }
+
+        private static int bin(float v, double width, int bins) {
+            return (int) Math.max(0, Math.min(bins - 1, v / width));
+        }
+    }
+
+    /**
+     * The value below which the given fraction of a histogram lies, to
+     * within a bin.
+     */
+    private static double percentile(long[] histogram, double width, double fraction) {
+        long total = 0;
+        for (long n : histogram)
+            total += n;
+        long want = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= want && seen > 0) return (i + 1) * width;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Flies games first, first + stride, ... below runs into a writer.
+     */
+    private static long fly(ResultStore.Writer writer, long seed, long first, long stride,
+            long runs) throws IOException {
+        LanderState s = new LanderState();
+        s.landerWidth = Headless.LANDER_WIDTH;
+        s.landerHeight = Headless.LANDER_HEIGHT;
+        Random random = new Random();
+        long steps = 0;
+        for (long i = first; i < runs; i += stride) {
+            int difficulty = (int) (i % DIFFICULTIES);
+            random.setSeed(seed + i);
+            LanderPhysics.start(s, difficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                    random);
+            double descent = -s.goalSpeed * (0.3 + 1.2 * random.nextDouble());
+            int outcome = LanderPhysics.OUTCOME_FLYING;
+            int frames = 0;
+            while (outcome == LanderPhysics.OUTCOME_FLYING && frames < MAX_FRAMES) {
+                s.engineFiring = s.dy < descent && Headless.mustBrake(s, descent, FRAME)
+                        && s.fuel > 0;
+                if (random.nextDouble() < TWITCH_CHANCE) s.rotating = random.nextInt(3) - 1;
+                else Headless.steer(s);
+                outcome = LanderPhysics.step(s, FRAME);
+                frames++;
+            }
+            steps += frames;
+            if (outcome == LanderPhysics.OUTCOME_FLYING) continue;
+            double off = Math.min(s.heading, 360 - s.heading);
+            writer.append(seed + i, difficulty, outcome, (float) Math.hypot(s.dx, s.dy),
+                    (float) off, (float) s.fuel);
+        }
+        return steps;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException,
+            ExecutionException {
+        File dir = null;
+        long runs = 300000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 1;
+        double maxHeapMb = 64;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--dir".equals(opt)) dir = new File(val);
+            else if ("--runs".equals(opt)) runs = Long.parseLong(val);
+            else if ("--threads".equals(opt)) threads = Integer.parseInt(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-heap-mb".equals(opt)) maxHeapMb = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || dir == null || runs < 0 || threads < 1) {
+            System.err.println("usage: BulkSim --dir DIR [--runs N] [--threads N] [--seed N] "
+                    + "[--max-heap-mb M]");
+            System.exit(2);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        if (runs > 0) {
+            final ResultStore.Writer[] writers = ResultStore.create(dir, threads);
+            final long base = seed;
+            final long total = runs;
+            final long stride = threads;
+            long start = System.nanoTime();
+            List<Future<Long>> parts = new ArrayList<Future<Long>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                parts.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return fly(writers[first], base, first, stride, total);
+                    }
+                }));
+            }
+            long steps = 0;
+            long rows = 0;
+            for (int t = 0; t < threads; t++) {
+                steps += parts.get(t).get();
+                rows += writers[t].getRows();
+                writers[t].close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("flew %d games, %d steps, in %.1f s: %d rows written%n", runs,
+                    steps, seconds, rows);
+        }
+
+        ResultStore store = new ResultStore(dir);
+        long start = System.nanoTime();
+        Summary summary = (Summary) store.scan(pool, threads, new Summary());
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        System.out.printf("scanned %d rows in %.2f s on %d threads, %.0f rows/s%n",
+                store.getRows(), seconds, threads, store.getRows() / seconds);
+
+        System.out.printf("%-7s %9s %9s %9s %9s %9s %9s%n", "", "games", "landed", "hyper",
+                "off pad", "angle", "too fast");
+        for (int d = 0; d < DIFFICULTIES; d++) {
+            long[] c = summary.counts[d];
+            long games = 0;
+            for (long n : c)
+                games += n;
+            System.out.printf("%-7s %9d %9d %9d %9d %9d %9d%n", Headless.difficultyName(d),
+                    games, c[LanderPhysics.OUTCOME_LANDED], c[LanderPhysics.OUTCOME_HYPERSPACE],
+                    c[LanderPhysics.OUTCOME_OFF_PAD], c[LanderPhysics.OUTCOME_BAD_ANGLE],
+                    c[LanderPhysics.OUTCOME_TOO_FAST]);
+        }
+        for (int d = 0; d < DIFFICULTIES; d++) {
+            StringBuilder line = new StringBuilder(String.format("%-7s",
+                    Headless.difficultyName(d)));
+            for (double p : PERCENTILES) {
+                line.append(String.format(" p%.0f speed %.2f angle %.1f fuel %.1f;", p * 100,
+                        percentile(summary.speed[d], SPEED_BIN, p),
+                        percentile(summary.angle[d], ANGLE_BIN, p),
+                        percentile(summary.fuel[d], FUEL_BIN, p)));
+            }
+            System.out.println(line);
+        }
+
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        double heapMb = (rt.totalMemory() - rt.freeMemory()) / 1048576.0;
+        System.out.printf("heap in use %.1f MB%n", heapMb);
+        boolean ok = heapMb <= maxHeapMb;
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Ground for a world many screens wide, generated from a seed in chunks of
+ * CHUNK_WIDTH px as the lander gets near them.
+ *
+ * Each chunk is a Terrain of its own, made by Terrain.chunk(), and an image
+ * of it made by a Renderer. Both are made on a background thread, ahead of
+ * the lander in the direction it is drifting, and kept in an LRU cache
+ * capped in bytes, so memory stays the same however wide the world is.
+ * Nothing is made on the game thread while drawing: a chunk whose image is
+ * not ready yet is simply not drawn that frame. Collision can't wait,
+ * though, so a chunk the physics needs before the background thread got to
+ * it is generated on the spot, without its image; that takes a few
+ * microseconds and is counted in getSyncMisses().
+ *
+ * Chunks are generated from the seed and their index alone, so a chunk
+ * evicted and made again is the same chunk. The images of evicted chunks
+ * are handed back to the Renderer by releaseEvicted() and close(), which
+ * the caller runs where no frame is being drawn, so none is released
+ * while it is on screen.
+ */
+final class ChunkedTerrain<I> implements Ground {
+    /** Width of one chunk, in px. */
+    public static final int CHUNK_WIDTH = 256;
+
+    /** Chunks made ahead of the lander, past the visible ones. */
+    private static final int AHEAD = 2;
+
+    /**
+     * Draws a chunk's ground.
+     */
+    interface Renderer<I> {
+        /**
+         * Called on the background thread.
+         *
+         * @param chunk the ground, in coordinates local to the chunk
+         */
+        I render(Terrain chunk);
+
+        /** @return memory held by the image, in bytes */
+        int sizeOf(I image);
+
+        /**
+         * Frees an image that will not be drawn again. Called from
+         * releaseEvicted() and close(), never while a frame is drawn.
+         */
+        void release(I image);
+    }
+
+    /**
+     * A cached chunk. The image is null until it has been rendered.
+     */
+    private static final class Chunk<I> {
+        final Terrain ground;
+        final I image;
+        final int bytes;
+
+        Chunk(Terrain ground, I image, int bytes) {
+            this.ground = ground;
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long mSeed;
+    private final int mChunks;
+    private final int mCanvasHeight;
+    private final int mGoalX;
+    private final int mGoalWidth;
+    private final int mPadWidth;
+    private final int mDetail;
+    private final long mMaxBytes;
+    private final Renderer<I> mRenderer;
+
+    /** Chunks by index, least recently used first. Guards itself. */
+    private final LinkedHashMap<Integer, Chunk<I>> mCache =
+            new LinkedHashMap<Integer, Chunk<I>>(16, 0.75f, true);
+
+    /** Bytes held by mCache. */
+    private long mBytes;
+
+    /** Chunks queued for the background thread. Guarded by mCache. */
+    private final HashSet<Integer> mRequested = new HashSet<Integer>();
+
+    /** Images of evicted chunks, not yet released. Guarded by mCache. */
+    private final ArrayList<I> mEvicted = new ArrayList<I>();
+
+    /** Images being released. Only releaseEvicted() touches it. */
+    private final ArrayList<I> mReleasing = new ArrayList<I>();
+
+    private final LinkedBlockingQueue<Integer> mRequests = new LinkedBlockingQueue<Integer>();
+    private final Thread mWorker;
+
+    /*
+     * Statistics
+     */
+    private volatile long mGenerated;
+    private volatile long mSyncMisses;
+    private volatile long mImageMisses;
+    private volatile long mEvictions;
+
+    /**
+     * Starts the background thread; nothing is generated until asked for.
+     *
+     * @param seed picks the heights and the pads
+     * @param chunks width of the world, in chunks
+     * @param goalX left edge of the goal pad, in world coordinates
+     * @param goalWidth width of the goal pad
+     * @param padWidth width of the other pads
+     * @param detail narrowest segment in px, as for Terrain
+     * @param maxBytes memory the cache may hold; should fit a few more
+     *        chunks than are visible at once
+     * @param renderer draws the chunks, or null for collision only
+     */
+    public ChunkedTerrain(long seed, int chunks, int canvasHeight, int goalX, int goalWidth,
+            int padWidth, int detail, long maxBytes, Renderer<I> renderer) {
+        mSeed = seed;
+        mChunks = chunks;
+        mCanvasHeight = canvasHeight;
+        mGoalX = goalX;
+        mGoalWidth = goalWidth;
+        mPadWidth = padWidth;
+        mDetail = detail;
+        mMaxBytes = maxBytes;
+        mRenderer = renderer;
+        mWorker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true)
+                        make(mRequests.take());
+                } catch (InterruptedException e) {
+                    // closed
+                }
+            }
+        }, "TerrainChunks");
+        mWorker.setDaemon(true);
+        mWorker.setPriority(Thread.MIN_PRIORITY);
+        mWorker.start();
+    }
+
+    /** Width of the world, in px. */
+    public int getWidth() {
+        return mChunks * CHUNK_WIDTH;
+    }
+
+    public int getChunks() {
+        return mChunks;
+    }
+
+    /**
+     * @return the chunk holding world x, clamped to the world
+     */
+    public int chunkAt(double x) {
+        int i = (int) Math.floor(x / CHUNK_WIDTH);
+        return i < 0 ? 0 : (i >= mChunks ? mChunks - 1 : i);
+    }
+
+    public double heightUnder(double left, double right) {
+        int a = chunkAt(left);
+        int b = chunkAt(right);
+        double h = 0;
+        for (int i = a; i <= b; i++) {
+            double x = (double) i * CHUNK_WIDTH;
+            h = Math.max(h, ground(i).heightUnder(left - x, right - x));
+        }
+        return h;
+    }
+
+    /**
+     * Pads other than the goal lie inside one chunk; the goal may cross
+     * from one into the next, and counts as under the span if the span
+     * lies within it.
+     */
+    public boolean hasPadUnder(double left, double right) {
+        if (mGoalX <= left && right <= mGoalX + mGoalWidth) return true;
+        int i = chunkAt(left);
+        if (i != chunkAt(right)) return false;
+        double x = (double) i * CHUNK_WIDTH;
+        return ground(i).hasPadUnder(left - x, right - x);
+    }
+
+    /**
+     * Asks the background thread for the chunks covering a span of the
+     * world, then for those just beyond it in the direction of travel.
+     * Cheap when they are cached already; call it every frame.
+     *
+     * @param left left edge of the view, in world coordinates
+     * @param right right edge of the view
+     * @param dx the lander's horizontal velocity
+     */
+    public void prefetch(double left, double right, double dx) {
+        int a = chunkAt(left);
+        int b = chunkAt(right);
+        for (int i = a; i <= b; i++)
+            request(i);
+        for (int k = 1; k <= AHEAD; k++) {
+            if (dx >= 0 && b + k < mChunks) request(b + k);
+            if (dx <= 0 && a - k >= 0) request(a - k);
+        }
+    }
+
+    /**
+     * The image of a chunk, for drawing. Never blocks or generates.
+     *
+     * @return the image, or null if it is not ready yet
+     */
+    public I getImage(int index) {
+        Chunk<I> c;
+        synchronized (mCache) {
+            c = mCache.get(index);
+        }
+        if (c != null && c.image != null) return c.image;
+        mImageMisses++;
+        request(index);
+        return null;
+    }
+
+    /** Chunks generated so far, counting ones made again after eviction. */
+    public long getGenerated() {
+        return mGenerated;
+    }
+
+    /** Chunks the physics needed before the background thread made them. */
+    public long getSyncMisses() {
+        return mSyncMisses;
+    }
+
+    /** Times a chunk could not be drawn because its image wasn't ready. */
+    public long getImageMisses() {
+        return mImageMisses;
+    }
+
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    /** Memory held by the cache, in bytes. */
+    public long getCachedBytes() {
+        synchronized (mCache) {
+            return mBytes;
+        }
+    }
+
+    public int getCachedChunks() {
+        synchronized (mCache) {
+            return mCache.size();
+        }
+    }
+
+    /**
+     * Releases the images of chunks evicted since the last call. Call on
+     * the thread that draws, before getImage(), while no image from an
+     * earlier frame is still being drawn.
+     */
+    public void releaseEvicted() {
+        synchronized (mCache) {
+            if (mEvicted.isEmpty()) return;
+            mReleasing.addAll(mEvicted);
+            mEvicted.clear();
+        }
+        for (int i = 0; i < mReleasing.size(); i++)
+            mRenderer.release(mReleasing.get(i));
+        mReleasing.clear();
+    }
+
+    /**
+     * Stops the background thread, empties the cache and releases every
+     * image. Call where no frame is being drawn, like releaseEvicted().
+     * Collision still works afterwards, generating chunks as it needs them.
+     */
+    public void close() {
+        mWorker.interrupt();
+        try {
+            // at most one chunk is being rendered
+            mWorker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mCache) {
+            for (Chunk<I> c : mCache.values()) {
+                if (c.image != null) mEvicted.add(c.image);
+            }
+            mCache.clear();
+            mRequested.clear();
+            mBytes = 0;
+        }
+        releaseEvicted();
+    }
+
+    /**
+     * The ground of a chunk, generated here and now if need be.
+     */
+    private Terrain ground(int index) {
+        Chunk<I> c;
+        synchronized (mCache) {
+            c = mCache.get(index);
+        }
+        if (c != null) return c.ground;
+        Terrain t = generate(index);
+        mSyncMisses++;
+        put(index, new Chunk<I>(t, null, t.estimateBytes()));
+        // the background thread draws it
+        request(index);
+        return t;
+    }
+
+    private Terrain generate(int index) {
+        synchronized (mCache) {
+            mGenerated++;
+        }
+        int x = index * CHUNK_WIDTH;
+        return Terrain.chunk(mSeed, index, CHUNK_WIDTH, mCanvasHeight, mGoalX - x, mGoalWidth,
+                mPadWidth, mDetail);
+    }
+
+    private void request(int index) {
+        synchronized (mCache) {
+            Chunk<I> c = mCache.get(index);
+            if (c != null && (c.image != null || mRenderer == null)) return;
+            if (!mRequested.add(index)) return;
+        }
+        mRequests.add(index);
+    }
+
+    /**
+     * Background thread: generates and renders a requested chunk, unless
+     * it is ready already.
+     */
+    private void make(int index) {
+        Chunk<I> c;
+        synchronized (mCache) {
+            c = mCache.get(index);
+        }
+        if (c == null || (c.image == null && mRenderer != null)) {
+            Terrain t = c != null ? c.ground : generate(index);
+            I image = mRenderer != null ? mRenderer.render(t) : null;
+            int bytes = t.estimateBytes() + (image != null ? mRenderer.sizeOf(image) : 0);
+            put(index, new Chunk<I>(t, image, bytes));
+        }
+        synchronized (mCache) {
+            mRequested.remove(index);
+        }
+    }
+
+    /**
+     * Caches a chunk, then evicts the least recently used ones until the
+     * cache is within its cap again. The new chunk itself is never evicted.
+     */
+    private void put(int index, Chunk<I> c) {
+        synchronized (mCache) {
+            Chunk<I> old = mCache.put(index, c);
+            mBytes += c.bytes - (old != null ? old.bytes : 0);
+            if (old != null && old.image != null && old.image != c.image)
+                mEvicted.add(old.image);
+            Iterator<Map.Entry<Integer, Chunk<I>>> it = mCache.entrySet().iterator();
+            while (mBytes > mMaxBytes && mCache.size() > 1) {
+                Map.Entry<Integer, Chunk<I>> eldest = it.next();
+                if (eldest.getKey() == index) continue;
+                mBytes -= eldest.getValue().bytes;
+                if (eldest.getValue().image != null) mEvicted.add(eldest.getValue().image);
+                it.remove();
+                mEvictions++;
+            }
+        }
+    }
+}
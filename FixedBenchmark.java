@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * Flies the same flights through LanderPhysics and FixedPhysics, with the
+ * same random controls, and compares paths, outcomes and cost. Prints a
+ * checksum of every fixed point state along the way, which is the same on
+ * every JVM if FixedPhysics is deterministic. Runs on a desktop JVM.
+ *
+ * Usage: FixedBenchmark [options]
+ * <ul>
+ * <li>--flights N: default 2000
+ * <li>--frame-ms F: frame time, default 16.667, rounded to 1/65536 s
+ * <li>--difficulty easy|medium|hard, --seed N
+ * <li>--max-error PX: fail (exit 1) if the paths ever part by more than
+ * this, default 0.5
+ * <li>--expect HASH: fail if the checksum isn't this, in hex, as printed
+ * by another machine
+ * </ul>
+ */
+public class FixedBenchmark {
+    /** Longest flight, in frames, before it is cut short. */
+    private static final int MAX_FRAMES = 60 * 60;
+
+    /** Chance per frame that the pilot changes the controls. */
+    private static final double CHANGE_CHANCE = 0.08;
+
+    public static void main(String[] args) {
+        int flights = 2000;
+        double frameMs = 1000 / 60.0;
+        int difficulty = LanderPhysics.DIFFICULTY_MEDIUM;
+        long seed = 1;
+        double maxError = 0.5;
+        String expect = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--flights".equals(opt)) flights = Integer.parseInt(val);
+            else if ("--frame-ms".equals(opt)) frameMs = Double.parseDouble(val);
+            else if ("--difficulty".equals(opt)) difficulty = Headless.parseDifficulty(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-error".equals(opt)) maxError = Double.parseDouble(val);
+            else if ("--expect".equals(opt)) expect = val;
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        int frame = FixedLander.toFixed(frameMs / 1000);
+        if (args.length % 2 != 0 || flights < 1 || frame < 1) {
+            System.err.println("usage: FixedBenchmark [--flights N] [--frame-ms F] "
+                    + "[--difficulty easy|medium|hard] [--seed N] [--max-error PX] "
+                    + "[--expect HASH]");
+            System.exit(2);
+        }
+        // the double path steps by exactly the same time
+        double elapsed = FixedLander.toDouble(frame);
+
+        LanderState start = new LanderState();
+        start.landerWidth = Headless.LANDER_WIDTH;
+        start.landerHeight = Headless.LANDER_HEIGHT;
+        LanderState d = new LanderState();
+        FixedLander f = new FixedLander();
+        LanderState check = new LanderState();
+        // controls for every frame of a flight, so both paths get the same
+        int[] controls = new int[MAX_FRAMES];
+        Random random = new Random(seed);
+
+        long hash = 0xcbf29ce484222325L;
+        long steps = 0;
+        long doubleNanos = 0;
+        long fixedNanos = 0;
+        int agreed = 0;
+        double worst = 0;
+        int[] outcomes = new int[LanderPhysics.OUTCOME_TOO_FAST + 1];
+        for (int flight = 0; flight < flights; flight++) {
+            LanderPhysics.start(start, difficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                    random);
+            int c = 0;
+            for (int i = 0; i < MAX_FRAMES; i++) {
+                if (random.nextDouble() < CHANGE_CHANCE) c = random.nextInt(6);
+                controls[i] = c;
+            }
+
+            // each path on its own, timed
+            d.set(start);
+            int frames = 0;
+            int outcomeDouble = LanderPhysics.OUTCOME_FLYING;
+            long t0 = System.nanoTime();
+            while (outcomeDouble == LanderPhysics.OUTCOME_FLYING && frames < MAX_FRAMES) {
+                d.engineFiring = controls[frames] % 2 == 1 && d.fuel > 0;
+                d.rotating = controls[frames] / 2 - 1;
+                outcomeDouble = LanderPhysics.step(d, elapsed);
+                frames++;
+            }
+            long t1 = System.nanoTime();
+            f.set(start);
+            int fixedFrames = 0;
+            int outcomeFixed = LanderPhysics.OUTCOME_FLYING;
+            while (outcomeFixed == LanderPhysics.OUTCOME_FLYING && fixedFrames < MAX_FRAMES) {
+                f.engineFiring = controls[fixedFrames] % 2 == 1 && f.fuel > 0;
+                f.rotating = controls[fixedFrames] / 2 - 1;
+                outcomeFixed = FixedPhysics.step(f, frame);
+                fixedFrames++;
+            }
+            long t2 = System.nanoTime();
+            doubleNanos += t1 - t0;
+            fixedNanos += t2 - t1;
+            steps += frames;
+            if (outcomeDouble == outcomeFixed && frames == fixedFrames) agreed++;
+            outcomes[outcomeFixed]++;
+
+            // then side by side, for the distance between them
+            d.set(start);
+            f.set(start);
+            for (int i = 0; i < Math.max(frames, fixedFrames); i++) {
+                d.engineFiring = controls[i] % 2 == 1 && d.fuel > 0;
+                d.rotating = controls[i] / 2 - 1;
+                f.engineFiring = controls[i] % 2 == 1 && f.fuel > 0;
+                f.rotating = controls[i] / 2 - 1;
+                if (i < frames) LanderPhysics.step(d, elapsed);
+                if (i < fixedFrames) {
+                    FixedPhysics.step(f, frame);
+                    hash = f.checksum(hash);
+                }
+                f.get(check);
+                worst = Math.max(worst, Math.hypot(d.x - check.x, d.y - check.y));
+            }
+        }
+
+        String checksum = Long.toHexString(hash);
+        System.out.printf("%d flights, %d steps: double %.1f ns/step, fixed %.1f ns/step%n",
+                flights, steps, (double) doubleNanos / steps, (double) fixedNanos / steps);
+        System.out.printf("outcomes agree on %d of %d flights, paths part by at most %.5f px%n",
+                agreed, flights, worst);
+        System.out.printf("fixed outcomes: landed %d, hyperspace %d, off pad %d, bad angle %d, "
+                + "too fast %d, still flying %d%n", outcomes[LanderPhysics.OUTCOME_LANDED],
+                outcomes[LanderPhysics.OUTCOME_HYPERSPACE], outcomes[LanderPhysics.OUTCOME_OFF_PAD],
+                outcomes[LanderPhysics.OUTCOME_BAD_ANGLE], outcomes[LanderPhysics.OUTCOME_TOO_FAST],
+                outcomes[LanderPhysics.OUTCOME_FLYING]);
+        System.out.println("checksum " + checksum);
+        boolean ok = worst <= maxError && (expect == null || expect.equalsIgnoreCase(checksum));
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
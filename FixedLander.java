@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * A lander for FixedPhysics: the fields of LanderState that the original
+ * game uses, in Q16.16 fixed point, as ints holding the value times 65536.
+ * Coordinates are those of LanderState.
+ *
+ * Plain fields, like LanderState.
+ */
+final class FixedLander {
+    /** One, in Q16.16. */
+    public static final int ONE = 1 << 16;
+
+    /** X and y of lander center. */
+    public int x;
+    public int y;
+
+    /** Velocity, in px/s. */
+    public int dx;
+    public int dy;
+
+    /** Heading in degrees, 0 up, 90 right, kept in 0..360. */
+    public int heading;
+
+    public int fuel;
+
+    public boolean engineFiring;
+
+    /** Fraction of full thrust, 0..ONE. */
+    public int throttle = ONE;
+
+    /** Currently rotating, -1 left, 0 none, 1 right. */
+    public int rotating;
+
+    /** Fraction of the full slew rate, 0..ONE. */
+    public int rotateAmount = ONE;
+
+    /*
+     * The goal and the lander's size, in whole px as in LanderState
+     */
+    public int goalX;
+    public int goalWidth;
+    public int goalSpeed;
+    public int goalAngle;
+    public int landerWidth;
+    public int landerHeight;
+
+    /**
+     * Copies a LanderState, rounding to the nearest fixed point value.
+     * Terrain, pads, gravity and wind are not carried over: FixedPhysics
+     * plays on the original flat ground.
+     */
+    public void set(LanderState s) {
+        x = toFixed(s.x);
+        y = toFixed(s.y);
+        dx = toFixed(s.dx);
+        dy = toFixed(s.dy);
+        heading = toFixed(s.heading);
+        fuel = toFixed(s.fuel);
+        engineFiring = s.engineFiring;
+        throttle = toFixed(s.throttle);
+        rotating = s.rotating;
+        rotateAmount = toFixed(s.rotateAmount);
+        goalX = s.goalX;
+        goalWidth = s.goalWidth;
+        goalSpeed = s.goalSpeed;
+        goalAngle = s.goalAngle;
+        landerWidth = s.landerWidth;
+        landerHeight = s.landerHeight;
+    }
+
+    /**
+     * Copies every field of another fixed lander into this one.
+     */
+    public void set(FixedLander other) {
+        x = other.x;
+        y = other.y;
+        dx = other.dx;
+        dy = other.dy;
+        heading = other.heading;
+        fuel = other.fuel;
+        engineFiring = other.engineFiring;
+        throttle = other.throttle;
+        rotating = other.rotating;
+        rotateAmount = other.rotateAmount;
+        goalX = other.goalX;
+        goalWidth = other.goalWidth;
+        goalSpeed = other.goalSpeed;
+        goalAngle = other.goalAngle;
+        landerWidth = other.landerWidth;
+        landerHeight = other.landerHeight;
+    }
+
+    /**
+     * Copies this lander into a LanderState, for drawing and scoring.
+     * Leaves the state's terrain, pads, gravity and wind alone.
+     */
+    public void get(LanderState s) {
+        s.x = toDouble(x);
+        s.y = toDouble(y);
+        s.dx = toDouble(dx);
+        s.dy = toDouble(dy);
+        s.heading = toDouble(heading);
+        s.fuel = toDouble(fuel);
+        s.engineFiring = engineFiring;
+        s.throttle = toDouble(throttle);
+        s.rotating = rotating;
+        s.rotateAmount = toDouble(rotateAmount);
+        s.goalX = goalX;
+        s.goalWidth = goalWidth;
+        s.goalSpeed = goalSpeed;
+        s.goalAngle = goalAngle;
+        s.landerWidth = landerWidth;
+        s.landerHeight = landerHeight;
+    }
+
+    /**
+     * Hash of the position, motion, heading, fuel and controls, for
+     * comparing runs on different machines.
+     */
+    public long checksum(long h) {
+        h = mix(h, x);
+        h = mix(h, y);
+        h = mix(h, dx);
+        h = mix(h, dy);
+        h = mix(h, heading);
+        h = mix(h, fuel);
+        h = mix(h, (engineFiring ? 1 : 0) + 2 * (rotating + 1));
+        return h;
+    }
+
+    public static int toFixed(double v) {
+        return (int) Math.round(v * ONE);
+    }
+
+    public static double toDouble(int v) {
+        return v / (double) ONE;
+    }
+
+    private static long mix(long h, long v) {
+        return (h ^ v) * 0x100000001b3L;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * The original lander rules of LanderPhysics, on the original flat ground,
+ * in Q16.16 fixed point: every value an int holding it times 65536, every
+ * product and quotient worked out in long and shifted back. Integer
+ * arithmetic is the same on every JVM, so two machines stepping the same
+ * FixedLander with the same controls and frame times end up with the same
+ * bits, which floating point doesn't promise across devices and JITs.
+ *
+ * Sine and cosine come from a table of quarter-degree steps, interpolated
+ * linearly. It is filled with StrictMath, whose results are specified to
+ * the bit, and rounded to fixed point, so the table is the same everywhere
+ * too. The step is the trapezoid scheme of Integrators.TRAPEZOID, with the
+ * touchdown found by bisection on the time of impact, to 1/65536 s.
+ *
+ * Each step rounds to 1/65536 px, and the table is off by up to 5e-6 of
+ * the thrust, so paths drift from LanderPhysics slowly: by a fifth of a
+ * px or so over a whole flight. A touchdown on the very edge of a limit
+ * may be judged the other way.
+ */
+final class FixedPhysics {
+    private static final int ONE = FixedLander.ONE;
+
+    /*
+     * The constants of LanderPhysics, in fixed point
+     */
+    private static final int DOWN_ACCEL = LanderPhysics.PHYS_DOWN_ACCEL_SEC * ONE;
+    private static final int FIRE_ACCEL = LanderPhysics.PHYS_FIRE_ACCEL_SEC * ONE;
+    private static final int FUEL_RATE = LanderPhysics.PHYS_FUEL_SEC * ONE;
+    private static final int SLEW_RATE = LanderPhysics.PHYS_SLEW_SEC * ONE;
+    private static final int FULL_TURN = 360 * ONE;
+    private static final int HALF_TURN = 180 * ONE;
+    private static final int QUARTER_TURN = 90 * ONE;
+
+    /** Sine table entries per degree. */
+    private static final int STEPS_PER_DEGREE = 4;
+
+    /** sin() in Q16.16 at every step of a full turn, and one past it. */
+    private static final int[] SINE = new int[360 * STEPS_PER_DEGREE + 1];
+
+    static {
+        for (int i = 0; i < SINE.length; i++) {
+            SINE[i] = (int) StrictMath.round(
+                    StrictMath.sin(StrictMath.toRadians((double) i / STEPS_PER_DEGREE)) * ONE);
+        }
+    }
+
+    private FixedPhysics() {
+    }
+
+    /**
+     * Advances the lander by the given slice of time and evaluates the
+     * touchdown if it reached the ground, as LanderPhysics.step() does.
+     *
+     * @param elapsed seconds since the last step, in Q16.16
+     * @return one of the LanderPhysics.OUTCOME_* constants
+     */
+    public static int step(FixedLander s, int elapsed) {
+        int x0 = s.x;
+        int y0 = s.y;
+        int dxOld = s.dx;
+        int dyOld = s.dy;
+        int heading0 = s.heading;
+        int fuel0 = s.fuel;
+
+        // rotating -- update heading
+        if (s.rotating != 0) {
+            s.heading = wrap(s.heading + s.rotating * mul(mul(SLEW_RATE, s.rotateAmount), elapsed));
+        }
+
+        // Base accelerations -- 0 for x, gravity for y
+        int ddx = 0;
+        int ddy = -mul(DOWN_ACCEL, elapsed);
+
+        if (s.engineFiring) {
+            int elapsedFiring = elapsed;
+            int fuelUsed = mul(mul(elapsed, FUEL_RATE), s.throttle);
+
+            // tricky case where we run out of fuel partway through the
+            // elapsed
+            if (fuelUsed > s.fuel) {
+                elapsedFiring = (int) ((long) s.fuel * elapsed / fuelUsed);
+                fuelUsed = s.fuel;
+
+                // Oddball case where we adjust the "control" from here
+                s.engineFiring = false;
+            }
+
+            s.fuel -= fuelUsed;
+
+            // have this much acceleration from the engine
+            int accel = mul(mul(FIRE_ACCEL, s.throttle), elapsedFiring);
+            ddx += mul(sin(s.heading), accel);
+            ddy += mul(cos(s.heading), accel);
+        }
+
+        // figure speeds for the end of the period
+        s.dx += ddx;
+        s.dy += ddy;
+
+        // figure position based on average speed during the period
+        s.x += (int) ((long) elapsed * ((long) s.dx + dxOld) >> 17);
+        s.y += (int) ((long) elapsed * ((long) s.dy + dyOld) >> 17);
+
+        // Evaluate if we have landed: find the moment the gear met the
+        // ground, to within one unit, by bisection
+        int ground = groundY(s);
+        int hit = 0;
+        if (y0 > ground) {
+            if (elapsed <= 0) return LanderPhysics.OUTCOME_FLYING;
+            int above = 0;
+            int below = elapsed;
+            if (s.y > ground) {
+                // a hard burn can still have dipped through the ground and
+                // out again, around where dy crossed zero
+                if (dyOld >= 0 || s.dy <= 0) return LanderPhysics.OUTCOME_FLYING;
+                below = (int) ((long) -dyOld * elapsed / ((long) s.dy - dyOld));
+                if (along(y0, dyOld, s.dy, below, elapsed) > ground)
+                    return LanderPhysics.OUTCOME_FLYING;
+            }
+            while (below - above > 1) {
+                int mid = (above + below) >>> 1;
+                if (along(y0, dyOld, s.dy, mid, elapsed) > ground) above = mid;
+                else below = mid;
+            }
+            hit = below;
+        }
+        if (hit < elapsed) {
+            // back up to the moment of impact; the same constant
+            // accelerations give the same path
+            int dxAt = dxOld + (int) ((long) (s.dx - dxOld) * hit / elapsed);
+            s.x = x0 + (int) ((long) hit * ((long) dxOld + dxAt) >> 17);
+            s.dx = dxAt;
+            s.dy = dyOld + (int) ((long) (s.dy - dyOld) * hit / elapsed);
+            s.fuel = fuel0 + (int) ((long) (s.fuel - fuel0) * hit / elapsed);
+            if (s.rotating != 0) {
+                s.heading = wrap(heading0 + s.rotating * mul(mul(SLEW_RATE, s.rotateAmount), hit));
+            }
+        }
+        s.y = ground;
+        return evaluateTouchdown(s);
+    }
+
+    /**
+     * Judges a touchdown as LanderPhysics.evaluateTouchdown() does,
+     * against the lander's own goal.
+     */
+    public static int evaluateTouchdown(FixedLander s) {
+        long speed2 = (long) s.dx * s.dx + (long) s.dy * s.dy;
+        long left = (long) s.x - (s.landerWidth / 2 << 16);
+        long right = (long) s.x + (s.landerWidth / 2 << 16);
+        boolean onGoal = (long) s.goalX << 16 <= left
+                && right <= (long) (s.goalX + s.goalWidth) << 16;
+        int goalAngle = s.goalAngle * ONE;
+
+        // "Hyperspace" win -- upside down, going fast,
+        // puts you back at the top.
+        if (onGoal && Math.abs(s.heading - HALF_TURN) < goalAngle
+                && speed2 > square(LanderPhysics.PHYS_SPEED_HYPERSPACE)) {
+            return LanderPhysics.OUTCOME_HYPERSPACE;
+        } else if (!onGoal) {
+            return LanderPhysics.OUTCOME_OFF_PAD;
+        } else if (!(s.heading <= goalAngle || s.heading >= FULL_TURN - goalAngle)) {
+            return LanderPhysics.OUTCOME_BAD_ANGLE;
+        } else if (speed2 > square(s.goalSpeed)) {
+            return LanderPhysics.OUTCOME_TOO_FAST;
+        }
+        return LanderPhysics.OUTCOME_LANDED;
+    }
+
+    /**
+     * Y of the lander center when its gear rests on the flat ground.
+     */
+    public static int groundY(FixedLander s) {
+        // whole px, as LanderPhysics works it out in ints
+        return (LanderPhysics.TARGET_PAD_HEIGHT + s.landerHeight / 2
+                - LanderPhysics.TARGET_BOTTOM_PADDING) * ONE;
+    }
+
+    /**
+     * sin() of an angle in degrees, both in Q16.16.
+     */
+    public static int sin(int degrees) {
+        degrees = wrap(degrees);
+        // table position, in Q16.16
+        long at = (long) degrees * STEPS_PER_DEGREE;
+        int i = (int) (at >> 16);
+        int f = (int) (at & (ONE - 1));
+        return SINE[i] + (int) ((long) (SINE[i + 1] - SINE[i]) * f >> 16);
+    }
+
+    public static int cos(int degrees) {
+        return sin(degrees + QUARTER_TURN);
+    }
+
+    /**
+     * Product of two Q16.16 values.
+     */
+    public static int mul(int a, int b) {
+        return (int) ((long) a * b >> 16);
+    }
+
+    /**
+     * Y t into a step that went from y0 at velocity v0 to velocity v1 in
+     * elapsed, under constant acceleration.
+     */
+    private static long along(int y0, int v0, int v1, int t, int elapsed) {
+        long vt = v0 + (long) (v1 - v0) * t / elapsed;
+        return y0 + ((long) t * (v0 + vt) >> 17);
+    }
+
+    /** A speed in whole px/s, squared, in Q32.32. */
+    private static long square(int speed) {
+        long v = (long) speed << 16;
+        return v * v;
+    }
+
+    /**
+     * Brings a heading back into the range 0..360.
+     */
+    private static int wrap(int heading) {
+        heading %= FULL_TURN;
+        return heading < 0 ? heading + FULL_TURN : heading;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Told about every flight that ends on the ground, except flights that
+ * were rewound: those are practice, and the flight's result, if it had
+ * one, was reported before the rewind.
+ */
+interface FlightListener {
+    /**
+     * Called on the game thread with the surface lock held, so this must
+     * hand the result off rather than do any real work.
+     *
+     * @param difficulty one of the LanderPhysics.DIFFICULTY_* constants
+     * @param outcome one of the LanderPhysics.OUTCOME_* constants
+     * @param lander the lander at touchdown; only valid during the call
+     */
+    void onFlightEnded(int difficulty, int outcome, LanderState lander);
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What happens in the game, as typed events for profiles, telemetry,
+ * achievements and the like.
+ *
+ * The game thread publishes into a ring of preallocated slots; nothing is
+ * allocated and nothing is locked. Each consumer holds its own Reader and
+ * polls at its own pace, from any thread. The game never waits for a
+ * reader: one that falls more than a ring behind loses the oldest events,
+ * and is told how many.
+ *
+ * Each slot carries the sequence number of the event in it. The producer
+ * marks the slot as being written, fills it in and then stamps it; a
+ * reader copies the slot out and keeps the copy only if the stamp is the
+ * same before and after. Every word goes through an AtomicLongArray, whose
+ * accesses are ordered as volatile ones are, so a torn copy is always
+ * caught.
+ *
+ * Only one thread may publish.
+ */
+final class GameEvents {
+    /*
+     * Event types
+     */
+    /** A flight started; score is 0. */
+    public static final int TYPE_STARTED = 0;
+    public static final int TYPE_LANDED = 1;
+    /** Upside down and fast onto the pad; the flight starts over. */
+    public static final int TYPE_HYPERSPACE = 2;
+    public static final int TYPE_OFF_PAD = 3;
+    public static final int TYPE_BAD_ANGLE = 4;
+    public static final int TYPE_TOO_FAST = 5;
+    /** The tank ran dry in flight; score is 0. */
+    public static final int TYPE_OUT_OF_FUEL = 6;
+
+    /** Slots a ring holds by default. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /*
+     * Slot layout, in longs
+     */
+    private static final int STAMP = 0;
+    /** Type, difficulty and score. */
+    private static final int KIND = 1;
+    /** Flight time in ms. */
+    private static final int TIME = 2;
+    /** X and y, as float bits. */
+    private static final int POSITION = 3;
+    /** Speed and fuel, as float bits. */
+    private static final int MOTION = 4;
+    /** Heading, as float bits. */
+    private static final int HEADING = 5;
+    private static final int SLOT = 6;
+
+    /** Stamp of a slot being written. */
+    private static final long WRITING = -1;
+
+    /**
+     * One event, as copied out by a Reader. Reused from poll to poll.
+     */
+    static final class Event {
+        /** Position in the stream of events, from 0. */
+        public long seq;
+        /** One of the TYPE_* constants. */
+        public int type;
+        /** One of the LanderPhysics.DIFFICULTY_* constants. */
+        public int difficulty;
+        /** LanderPhysics.landingScore() of a flight's end. */
+        public int score;
+        /** Physics time since the flight started, in ms. */
+        public long flightMillis;
+        public float x;
+        public float y;
+        public float speed;
+        public float fuel;
+        public float heading;
+    }
+
+    /**
+     * A consumer's place in the stream. Used by one thread at a time.
+     */
+    final class Reader {
+        private long mNext;
+        private long mLost;
+
+        private Reader(long next) {
+            mNext = next;
+        }
+
+        /**
+         * Copies the next event into e.
+         *
+         * @return false if there is none yet
+         */
+        public boolean poll(Event e) {
+            while (true) {
+                long published = mPublished.get();
+                if (mNext >= published) return false;
+                // skip what has been written over, and the slot the
+                // producer may be writing next
+                long oldest = published - mCapacity + 1;
+                if (mNext < oldest) {
+                    mLost += oldest - mNext;
+                    mNext = oldest;
+                }
+                int base = (int) (mNext & mMask) * SLOT;
+                if (mSlots.get(base + STAMP) == mNext) {
+                    long kind = mSlots.get(base + KIND);
+                    long time = mSlots.get(base + TIME);
+                    long position = mSlots.get(base + POSITION);
+                    long motion = mSlots.get(base + MOTION);
+                    long heading = mSlots.get(base + HEADING);
+                    if (mSlots.get(base + STAMP) == mNext) {
+                        e.seq = mNext;
+                        e.type = (int) (kind & 0xff);
+                        e.difficulty = (int) (kind >>> 8 & 0xff);
+                        e.score = (int) (kind >> 32);
+                        e.flightMillis = time;
+                        e.x = Float.intBitsToFloat((int) (position >> 32));
+                        e.y = Float.intBitsToFloat((int) position);
+                        e.speed = Float.intBitsToFloat((int) (motion >> 32));
+                        e.fuel = Float.intBitsToFloat((int) motion);
+                        e.heading = Float.intBitsToFloat((int) heading);
+                        mNext++;
+                        return true;
+                    }
+                }
+                // lapped while reading
+                mLost++;
+                mNext++;
+            }
+        }
+
+        /** Events written over before this reader got to them. */
+        public long getLost() {
+            return mLost;
+        }
+
+        /** Events published but not yet polled, lost ones included. */
+        public long getBacklog() {
+            return Math.max(0, mPublished.get() - mNext);
+        }
+    }
+
+    private final int mCapacity;
+    private final long mMask;
+    private final AtomicLongArray mSlots;
+
+    /** Events published; the next one's sequence number. */
+    private final AtomicLong mPublished = new AtomicLong();
+
+    /**
+     * @param capacity slots in the ring, rounded up to a power of two of
+     *        at least 2
+     */
+    public GameEvents(int capacity) {
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mSlots = new AtomicLongArray(size * SLOT);
+        for (int i = 0; i < size; i++)
+            mSlots.set(i * SLOT + STAMP, WRITING);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Events published so far. */
+    public long getPublished() {
+        return mPublished.get();
+    }
+
+    /**
+     * A reader that sees the events published from now on. Readers hold
+     * nothing in the ring, so one no longer polled needs no closing.
+     */
+    public Reader newReader() {
+        return new Reader(mPublished.get());
+    }
+
+    /**
+     * Publishes an event about the lander. Game thread only.
+     *
+     * @param type one of the TYPE_* constants
+     * @param flightTime physics time since the flight started, in seconds
+     */
+    public void publish(int type, int difficulty, int score, double flightTime,
+            LanderState s) {
+        long seq = mPublished.get();
+        int base = (int) (seq & mMask) * SLOT;
+        mSlots.set(base + STAMP, WRITING);
+        mSlots.set(base + KIND, (long) score << 32 | (difficulty & 0xff) << 8 | (type & 0xff));
+        mSlots.set(base + TIME, Math.round(flightTime * 1000));
+        mSlots.set(base + POSITION, pack((float) s.x, (float) s.y));
+        mSlots.set(base + MOTION, pack((float) Math.hypot(s.dx, s.dy), (float) s.fuel));
+        mSlots.set(base + HEADING, Float.floatToRawIntBits((float) s.heading) & 0xffffffffL);
+        mSlots.set(base + STAMP, seq);
+        mPublished.set(seq + 1);
+    }
+
+    /**
+     * The event type a flight's end is published as.
+     *
+     * @param outcome one of the LanderPhysics.OUTCOME_* constants other
+     *        than OUTCOME_FLYING
+     */
+    public static int typeOf(int outcome) {
+        switch (outcome) {
+            case LanderPhysics.OUTCOME_HYPERSPACE: return TYPE_HYPERSPACE;
+            case LanderPhysics.OUTCOME_OFF_PAD: return TYPE_OFF_PAD;
+            case LanderPhysics.OUTCOME_BAD_ANGLE: return TYPE_BAD_ANGLE;
+            case LanderPhysics.OUTCOME_TOO_FAST: return TYPE_TOO_FAST;
+            default: return TYPE_LANDED;
+        }
+    }
+
+    private static long pack(float hi, float lo) {
+        return (long) Float.floatToRawIntBits(hi) << 32
+                | Float.floatToRawIntBits(lo) & 0xffffffffL;
+    }
+}
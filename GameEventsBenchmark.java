@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Publishes a stream of events into GameEvents from one thread while
+ * several readers poll it, one of them far too slowly to keep up. Reports
+ * what a publish costs and whether it allocates, and checks that every
+ * event a reader got is whole and in order. Runs on a desktop JVM.
+ *
+ * Usage: GameEventsBenchmark [options]
+ * <ul>
+ * <li>--events N: default 2000000
+ * <li>--readers N: readers that keep up as best they can, default 3; one
+ * slow reader is always added
+ * <li>--capacity N: ring slots, default GameEvents.DEFAULT_CAPACITY
+ * <li>--max-ns N: fail (exit 1) if a publish takes longer than this on
+ * average, default 1000
+ * </ul>
+ * Also fails if a reader sees a torn or out of order event, or if a
+ * publish allocates.
+ */
+public class GameEventsBenchmark {
+    /** Milliseconds the slow reader sleeps after each event. */
+    private static final int SLOW_READER_MS = 1;
+
+    /**
+     * Polls until the producer is done and the ring is drained.
+     */
+    private static final class Consumer extends Thread {
+        private final GameEvents.Reader mReader;
+        private final boolean mSlow;
+        private final GameEvents.Event mEvent = new GameEvents.Event();
+        volatile boolean mDone;
+        long mReceived;
+        long mBad;
+
+        Consumer(GameEvents events, boolean slow) {
+            mReader = events.newReader();
+            mSlow = slow;
+        }
+
+        @Override
+        public void run() {
+            long last = -1;
+            while (true) {
+                boolean done = mDone;
+                if (!mReader.poll(mEvent)) {
+                    if (done) return;
+                    Thread.yield();
+                    continue;
+                }
+                mReceived++;
+                if (mEvent.seq <= last || !whole(mEvent)) mBad++;
+                last = mEvent.seq;
+                if (mSlow) {
+                    try {
+                        Thread.sleep(SLOW_READER_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the given threads, or -1 if the
+     *         JVM can't tell; allocates nothing itself
+     */
+    private static long allocatedBytes(ThreadMXBean mx, long[] threads) {
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+        long sum = 0;
+        for (long id : threads)
+            sum += Math.max(0, sun.getThreadAllocatedBytes(id));
+        return sum;
+    }
+
+    /** Every field is made from the sequence number, see main(). */
+    private static boolean whole(GameEvents.Event e) {
+        return e.score == (int) e.seq && e.flightMillis == e.seq
+                && e.x == e.seq % 4096 && e.y == -(e.seq % 4096) && e.fuel == e.seq % 1000
+                && e.type == (int) (e.seq % 7) && e.heading == e.seq % 360;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = 2000000;
+        int readers = 3;
+        int capacity = GameEvents.DEFAULT_CAPACITY;
+        double maxNanos = 1000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--events".equals(opt)) count = Integer.parseInt(val);
+            else if ("--readers".equals(opt)) readers = Integer.parseInt(val);
+            else if ("--capacity".equals(opt)) capacity = Integer.parseInt(val);
+            else if ("--max-ns".equals(opt)) maxNanos = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || count < 1 || readers < 0 || capacity < 1) {
+            System.err.println("usage: GameEventsBenchmark [--events N] [--readers N] "
+                    + "[--capacity N] [--max-ns N]");
+            System.exit(2);
+        }
+
+        GameEvents events = new GameEvents(capacity);
+        Consumer[] consumers = new Consumer[readers + 1];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Consumer(events, i == readers);
+            consumers[i].start();
+        }
+
+        LanderState s = new LanderState();
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long[] self = { Thread.currentThread().getId() };
+        long allocated = -1;
+        long nanos = 0;
+        // the first half warms up, the second is measured
+        for (int pass = 0; pass < 2; pass++) {
+            long from = pass == 0 ? 0 : count / 2;
+            long to = pass == 0 ? count / 2 : count;
+            allocated = allocatedBytes(mx, self);
+            long start = System.nanoTime();
+            for (long seq = from; seq < to; seq++) {
+                s.x = seq % 4096;
+                s.y = -(seq % 4096);
+                s.fuel = seq % 1000;
+                s.heading = seq % 360;
+                events.publish((int) (seq % 7), 0, (int) seq, seq / 1000.0, s);
+            }
+            nanos = System.nanoTime() - start;
+            if (allocated >= 0) allocated = allocatedBytes(mx, self) - allocated;
+        }
+        long measured = count - count / 2;
+
+        boolean ok = true;
+        for (Consumer c : consumers) {
+            c.mDone = true;
+            c.join();
+        }
+        double perPublish = (double) nanos / measured;
+        System.out.printf("%d events into %d slots: %.1f ns per publish, %s bytes allocated%n",
+                count, events.getCapacity(), perPublish,
+                allocated < 0 ? "unknown" : Long.toString(allocated));
+        for (int i = 0; i < consumers.length; i++) {
+            Consumer c = consumers[i];
+            System.out.printf("reader %d%s: received %d, lost %d, bad %d%n", i,
+                    i == readers ? " (slow)" : "", c.mReceived, c.mReader.getLost(), c.mBad);
+            ok &= c.mBad == 0 && c.mReceived + c.mReader.getLost() == count;
+        }
+        ok &= perPublish <= maxNanos && allocated <= 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,676 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless, authoritative multiplayer server, see NetProtocol. Runs the
+ * lander physics for every joined player on one shared pad at a fixed tick
+ * rate and sends each player a delta-compressed snapshot every tick.
+ * Clients only send controls. Runs on a desktop JVM.
+ *
+ * Usage: GameServer [options]
+ * <ul>
+ * <li>--port P: UDP port, default 7777 (0 picks a free one)
+ * <li>--tick-hz T: physics and snapshot rate, default 30
+ * <li>--difficulty easy|medium|hard, --seed N
+ * <li>--seconds S: stop after S seconds, default forever (10 with --bots)
+ * <li>--bots N: also run N simulated players over loopback in this
+ * process, then check that they all decoded their snapshots; exit 1 if
+ * not
+ * <li>--spectator-port P: stream the game to spectators on TCP port P,
+ * see SpectatorRelay
+ * <li>--spectators N: also connect N spectators over loopback, a fraction
+ * --slow-spectators F (default 0.1) of which stop reading now and then;
+ * exit 1 unless they all followed the game
+ * </ul>
+ * Every few seconds it prints tick time and bandwidth per player.
+ */
+public class GameServer {
+    private static final long RESPAWN_DELAY_MS = 1000;
+    private static final long CLIENT_TIMEOUT_MS = 5000;
+    private static final long REPORT_INTERVAL_MS = 5000;
+
+    /** Distinct delta bases encoded per tick before falling back to full. */
+    private static final int ENCODINGS_PER_TICK = 4;
+
+    /**
+     * One connected player.
+     */
+    private static final class Player {
+        final int id;
+        final SocketAddress address;
+        final String name;
+        final LanderState lander = new LanderState();
+        int phase = NetProtocol.PHASE_WAITING;
+        int endedTick;
+        int inputFlags;
+        int lastSeq = -1;
+        int ackTick = NetProtocol.NO_BASE;
+        long lastHeard;
+
+        Player(int id, SocketAddress address, String name) {
+            this.id = id;
+            this.address = address;
+            this.name = name;
+            lander.landerWidth = Headless.LANDER_WIDTH;
+            lander.landerHeight = Headless.LANDER_HEIGHT;
+        }
+    }
+
+    private final int mTickHz;
+    private final int mDifficulty;
+    private final DatagramChannel mChannel;
+    private SpectatorRelay mRelay;
+    private final Random mRandom;
+    private final LanderState mPad = new LanderState();
+    private final Player[] mPlayers = new Player[NetProtocol.MAX_PLAYERS];
+    private final HashMap<SocketAddress, Player> mByAddress = new HashMap<SocketAddress, Player>();
+    private final NetProtocol.World[] mHistory = new NetProtocol.World[NetProtocol.HISTORY];
+    private int mTick;
+    private volatile boolean mRunning = true;
+
+    private final ByteBuffer mIn = ByteBuffer.allocateDirect(NetProtocol.MAX_PACKET);
+    private final ByteBuffer[] mEncoded = new ByteBuffer[ENCODINGS_PER_TICK + 1];
+    private final int[] mEncodedBase = new int[ENCODINGS_PER_TICK + 1];
+    private int mEncodings;
+
+    /*
+     * Statistics since the last report
+     */
+    private long mTicks;
+    private long mTickNanos;
+    private long mMaxTickNanos;
+    private long mBytesOut;
+    private long mBytesIn;
+    private long mFullBytes;
+    private long mPlayerTicks;
+    private long mRelayBytes;
+    private long mRelayFrames;
+    private long mRelayNanos;
+
+    public GameServer(int port, int tickHz, int difficulty, long seed) throws IOException {
+        mTickHz = tickHz;
+        mDifficulty = difficulty;
+        mRandom = new Random(seed);
+        for (int i = 0; i < mHistory.length; i++)
+            mHistory[i] = new NetProtocol.World();
+        for (int i = 0; i < mEncoded.length; i++)
+            mEncoded[i] = ByteBuffer.allocateDirect(NetProtocol.MAX_PACKET);
+
+        mPad.landerWidth = Headless.LANDER_WIDTH;
+        mPad.landerHeight = Headless.LANDER_HEIGHT;
+        LanderPhysics.start(mPad, difficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                mRandom);
+
+        mChannel = DatagramChannel.open();
+        mChannel.socket().bind(new InetSocketAddress(port));
+        mChannel.configureBlocking(false);
+    }
+
+    public int getPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Starts streaming the game to spectators.
+     *
+     * @param port TCP port, 0 for any
+     * @return the port spectators connect to
+     */
+    public int startSpectatorRelay(int port) throws IOException {
+        ByteBuffer welcome = ByteBuffer.allocate(32);
+        putWelcome(welcome, SpectatorRelay.SPECTATOR_ID);
+        welcome.flip();
+        mRelay = new SpectatorRelay(port, welcome);
+        return mRelay.getPort();
+    }
+
+    /**
+     * Runs ticks until the time is up or close() is called.
+     *
+     * @param seconds how long to run, or 0 for ever
+     */
+    public void run(double seconds) throws IOException {
+        long period = 1000000000L / mTickHz;
+        long start = System.nanoTime();
+        long end = seconds > 0 ? start + (long) (seconds * 1e9) : Long.MAX_VALUE;
+        long nextReport = start + REPORT_INTERVAL_MS * 1000000L;
+        long next = start;
+        while (mRunning && next < end) {
+            long t0 = System.nanoTime();
+            tick(t0);
+            long t1 = System.nanoTime();
+            mTicks++;
+            mTickNanos += t1 - t0;
+            if (t1 - t0 > mMaxTickNanos) mMaxTickNanos = t1 - t0;
+            if (t1 >= nextReport) {
+                report((t1 - nextReport + REPORT_INTERVAL_MS * 1000000L) / 1e9);
+                nextReport = t1 + REPORT_INTERVAL_MS * 1000000L;
+            }
+
+            next += period;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+        }
+        mChannel.close();
+        if (mRelay != null) mRelay.close();
+    }
+
+    public void close() {
+        mRunning = false;
+    }
+
+    /**
+     * Reads inputs, steps every player, and sends snapshots.
+     */
+    private void tick(long now) throws IOException {
+        receive(now);
+
+        double elapsed = 1.0 / mTickHz;
+        for (Player p : mPlayers) {
+            if (p == null) continue;
+            if (now - p.lastHeard > CLIENT_TIMEOUT_MS * 1000000L) {
+                remove(p);
+                continue;
+            }
+            boolean playing = (p.inputFlags & NetProtocol.INPUT_PLAYING) != 0;
+            if (p.phase != NetProtocol.PHASE_FLYING) {
+                // restart landed players who want to fly again
+                if (playing && (p.phase == NetProtocol.PHASE_WAITING
+                        || (mTick - p.endedTick) * 1000L / mTickHz >= RESPAWN_DELAY_MS)) {
+                    LanderPhysics.start(p.lander, mDifficulty, Headless.CANVAS_WIDTH,
+                            Headless.CANVAS_HEIGHT, mRandom);
+                    p.lander.goalX = mPad.goalX;
+                    p.phase = NetProtocol.PHASE_FLYING;
+                }
+                continue;
+            }
+            LanderState s = p.lander;
+            int flags = playing ? p.inputFlags : 0;
+            s.engineFiring = (flags & NetProtocol.INPUT_FIRING) != 0 && s.fuel > 0;
+            s.rotating = (flags & NetProtocol.INPUT_LEFT) != 0 ? -1
+                    : ((flags & NetProtocol.INPUT_RIGHT) != 0 ? 1 : 0);
+            int outcome = LanderPhysics.step(s, elapsed);
+            if (outcome != LanderPhysics.OUTCOME_FLYING) {
+                p.phase = outcome;
+                p.endedTick = mTick;
+                s.engineFiring = false;
+                s.rotating = 0;
+            }
+        }
+
+        NetProtocol.World w = mHistory[mTick % NetProtocol.HISTORY];
+        w.tick = mTick;
+        w.goalX = mPad.goalX;
+        w.goalWidth = mPad.goalWidth;
+        w.goalSpeed = mPad.goalSpeed;
+        w.goalAngle = mPad.goalAngle;
+        for (int i = 0; i < NetProtocol.MAX_PLAYERS; i++) {
+            Player p = mPlayers[i];
+            w.present[i] = p != null;
+            if (p != null) NetProtocol.quantize(p.lander, p.phase, w.fields[i]);
+        }
+        if (mRelay != null)
+            mRelay.publish(w, mTick > 0 ? mHistory[(mTick - 1) % NetProtocol.HISTORY] : null);
+
+        // most players ack the same recent tick, so encodings are shared
+        mEncodings = 0;
+        ByteBuffer full = encode(w, NetProtocol.NO_BASE);
+        for (Player p : mPlayers) {
+            if (p == null) continue;
+            ByteBuffer packet = full;
+            if (p.ackTick != NetProtocol.NO_BASE && mTick - p.ackTick < NetProtocol.HISTORY
+                    && mHistory[p.ackTick % NetProtocol.HISTORY].tick == p.ackTick) {
+                packet = encode(w, p.ackTick);
+            }
+            packet.rewind();
+            mBytesOut += packet.remaining();
+            mFullBytes += full.limit();
+            mChannel.send(packet, p.address);
+            mPlayerTicks++;
+        }
+        mTick++;
+    }
+
+    /**
+     * @return the snapshot of w relative to the given base, from the
+     *         per-tick cache if possible
+     */
+    private ByteBuffer encode(NetProtocol.World w, int baseTick) {
+        for (int i = 0; i < mEncodings; i++) {
+            if (mEncodedBase[i] == baseTick) return mEncoded[i];
+        }
+        int slot = mEncodings < mEncoded.length ? mEncodings++ : mEncoded.length - 1;
+        ByteBuffer out = mEncoded[slot];
+        out.clear();
+        NetProtocol.putSnapshot(out, w,
+                baseTick == NetProtocol.NO_BASE ? null : mHistory[baseTick % NetProtocol.HISTORY]);
+        out.flip();
+        mEncodedBase[slot] = baseTick;
+        return out;
+    }
+
+    private void receive(long now) throws IOException {
+        while (true) {
+            mIn.clear();
+            SocketAddress from = mChannel.receive(mIn);
+            if (from == null) return;
+            mBytesIn += mIn.position();
+            mIn.flip();
+            int type = NetProtocol.readHeader(mIn);
+            Player p = mByAddress.get(from);
+            if (type == NetProtocol.PACKET_HELLO) {
+                if (p == null) p = join(from, readName(mIn));
+                if (p != null) {
+                    p.lastHeard = now;
+                    welcome(p);
+                }
+            } else if (p != null && type == NetProtocol.PACKET_INPUT && mIn.remaining() >= 12) {
+                if ((mIn.get() & 0xff) != p.id) continue;
+                int seq = mIn.getInt();
+                int ack = mIn.getInt();
+                p.lastHeard = now;
+                if (seq <= p.lastSeq) continue; // reordered
+                p.lastSeq = seq;
+                if (ack > p.ackTick && ack < mTick) p.ackTick = ack;
+                p.inputFlags = mIn.get() & 0xff;
+                p.lander.throttle = (mIn.get() & 0xff) / 255.0;
+                p.lander.rotateAmount = (mIn.get() & 0xff) / 255.0;
+            } else if (p != null && type == NetProtocol.PACKET_BYE) {
+                remove(p);
+            }
+        }
+    }
+
+    private static String readName(ByteBuffer in) {
+        if (!in.hasRemaining()) return "";
+        int n = Math.min(in.get() & 0xff, in.remaining());
+        byte[] name = new byte[n];
+        in.get(name);
+        try {
+            return new String(name, "UTF-8");
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return the new player, or null if the game is full
+     */
+    private Player join(SocketAddress from, String name) {
+        for (int i = 0; i < mPlayers.length; i++) {
+            if (mPlayers[i] != null) continue;
+            Player p = new Player(i, from, name);
+            mPlayers[i] = p;
+            mByAddress.put(from, p);
+            System.out.println(name + " joined as player " + i + " from " + from);
+            return p;
+        }
+        return null;
+    }
+
+    private void remove(Player p) {
+        mPlayers[p.id] = null;
+        mByAddress.remove(p.address);
+        System.out.println(p.name + " left");
+    }
+
+    private void welcome(Player p) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(32);
+        putWelcome(out, p.id);
+        out.flip();
+        mBytesOut += out.remaining();
+        mChannel.send(out, p.address);
+    }
+
+    private void putWelcome(ByteBuffer out, int id) {
+        NetProtocol.putHeader(out, NetProtocol.PACKET_WELCOME);
+        out.put((byte) id);
+        out.putShort((short) mTickHz);
+        out.putShort((short) Headless.CANVAS_WIDTH);
+        out.putShort((short) Headless.CANVAS_HEIGHT);
+        out.putShort((short) Headless.LANDER_WIDTH);
+        out.putShort((short) Headless.LANDER_HEIGHT);
+        out.put((byte) mDifficulty);
+    }
+
+    private void report(double seconds) {
+        int players = 0;
+        for (Player p : mPlayers) {
+            if (p != null) players++;
+        }
+        double playerSeconds = mPlayerTicks / (double) mTickHz;
+        System.out.printf("tick %d: %d players, tick time mean %.1fus max %.1fus, "
+                + "per player out %.0f B/s in %.0f B/s, deltas %.0f%% of full%n",
+                mTick, players, mTicks == 0 ? 0 : mTickNanos / 1e3 / mTicks,
+                mMaxTickNanos / 1e3,
+                playerSeconds == 0 ? 0 : mBytesOut / playerSeconds,
+                playerSeconds == 0 ? 0 : mBytesIn / playerSeconds,
+                mFullBytes == 0 ? 0 : 100.0 * mBytesOut / mFullBytes);
+        mTicks = 0;
+        mTickNanos = 0;
+        mMaxTickNanos = 0;
+        mBytesOut = 0;
+        mBytesIn = 0;
+        mFullBytes = 0;
+        mPlayerTicks = 0;
+
+        if (mRelay == null) return;
+        long bytes = mRelay.getBytesOut();
+        long frames = mRelay.getFramesOut();
+        long nanos = mRelay.getRelayNanos();
+        System.out.printf("  %d spectators: out %.0f KB/s, relay %.1f%% of a core, "
+                + "%.2fus per spectator frame, %d catch-ups, relay behind %d times%n",
+                mRelay.getSpectators(), (bytes - mRelayBytes) / 1024.0 / seconds,
+                (nanos - mRelayNanos) / 1e7 / seconds,
+                frames == mRelayFrames ? 0 : (nanos - mRelayNanos) / 1e3 / (frames - mRelayFrames),
+                mRelay.getCatchUps(), mRelay.getRelayCatchUps());
+        mRelayBytes = bytes;
+        mRelayFrames = frames;
+        mRelayNanos = nanos;
+    }
+
+    /**
+     * A simulated player: a NetClient flown by a simple autopilot on its
+     * own thread at about 60 frames a second.
+     */
+    private static final class Bot implements Runnable {
+        final NetClient client;
+        final NetProtocol.World world = new NetProtocol.World();
+        final LanderState me = new LanderState();
+        final Random random;
+        volatile boolean running = true;
+
+        Bot(int port, int n) {
+            client = new NetClient("127.0.0.1", port, "bot" + n);
+            random = new Random(n);
+        }
+
+        public void run() {
+            while (running) {
+                int id = client.getPlayerId();
+                boolean firing = false;
+                int rotating = 0;
+                if (id >= 0 && client.copyWorld(world) >= 0 && world.present[id]) {
+                    NetProtocol.dequantize(world.fields[id], me);
+                    // brake late, wobble a little
+                    firing = me.dy < -15 - random.nextInt(20);
+                    rotating = random.nextInt(8) == 0 ? random.nextInt(3) - 1 : 0;
+                }
+                client.setInput(firing, rotating, 1, 1, true);
+                try {
+                    Thread.sleep(16);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Simulated spectators: many TCP connections to a SpectatorRelay, all
+     * read by one thread. Every spectator checks that each snapshot follows
+     * the one before it; some also decode them in full and check their
+     * hashes. Slow ones stop reading for a few seconds at a time.
+     */
+    private static final class Audience implements Runnable {
+        private static final int VERIFY_EVERY = 16;
+        private static final long SLOW_PERIOD_MS = 10000;
+        private static final long SLOW_PAUSE_MS = 6000;
+
+        final Selector selector;
+        final Viewer[] viewers;
+        volatile boolean running = true;
+
+        static final class Viewer {
+            final SocketChannel channel;
+            final SelectionKey key;
+            final boolean slow;
+            final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            NetProtocol.World world;
+            NetProtocol.World next;
+            int lastTick = -1;
+            int firstTick = -1;
+            long frames;
+            long catchUps;
+            long errors;
+
+            Viewer(SocketChannel channel, SelectionKey key, boolean slow, boolean verify) {
+                this.channel = channel;
+                this.key = key;
+                this.slow = slow;
+                if (verify) {
+                    world = new NetProtocol.World();
+                    next = new NetProtocol.World();
+                }
+            }
+        }
+
+        Audience(int port, int count, double slowFraction) throws IOException {
+            selector = Selector.open();
+            viewers = new Viewer[count];
+            int slowEvery = slowFraction > 0 ? (int) Math.max(1, Math.round(1 / slowFraction)) : 0;
+            for (int i = 0; i < count; i++) {
+                SocketChannel ch = SocketChannel.open();
+                // a small window, so a viewer that stops reading backs up soon
+                ch.socket().setReceiveBufferSize(4096);
+                ch.connect(new InetSocketAddress("127.0.0.1", port));
+                ch.configureBlocking(false);
+                SelectionKey k = ch.register(selector, SelectionKey.OP_READ);
+                viewers[i] = new Viewer(ch, k, slowEvery > 0 && i % slowEvery == slowEvery - 1,
+                        i % VERIFY_EVERY == 0);
+                k.attach(viewers[i]);
+            }
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                while (running) {
+                    // slow viewers stop reading for part of every period
+                    boolean paused = (System.currentTimeMillis() - start) % SLOW_PERIOD_MS
+                            >= SLOW_PERIOD_MS - SLOW_PAUSE_MS;
+                    for (Viewer v : viewers) {
+                        if (!v.slow || !v.key.isValid()) continue;
+                        int ops = paused ? 0 : SelectionKey.OP_READ;
+                        if (v.key.interestOps() != ops) v.key.interestOps(ops);
+                    }
+                    selector.select(50);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey k = keys.next();
+                        keys.remove();
+                        if (k.isValid() && k.isReadable()) read((Viewer) k.attachment());
+                    }
+                }
+                for (Viewer v : viewers)
+                    v.channel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("audience stopped: " + e);
+            }
+        }
+
+        private void read(Viewer v) throws IOException {
+            if (v.channel.read(v.in) < 0) {
+                v.key.cancel();
+                return;
+            }
+            v.in.flip();
+            while (v.in.remaining() >= 2) {
+                int length = v.in.getShort(v.in.position()) & 0xffff;
+                if (v.in.remaining() < 2 + length) break;
+                ByteBuffer packet = v.in.duplicate();
+                packet.position(v.in.position() + 2);
+                packet.limit(v.in.position() + 2 + length);
+                v.in.position(packet.limit());
+                if (NetProtocol.readHeader(packet) == NetProtocol.PACKET_SNAPSHOT)
+                    snapshot(v, packet);
+            }
+            v.in.compact();
+        }
+
+        private void snapshot(Viewer v, ByteBuffer packet) {
+            int tick = packet.getInt(packet.position());
+            int base = NetProtocol.peekBase(packet);
+            if (base == NetProtocol.NO_BASE) {
+                if (v.lastTick >= 0 && tick != v.lastTick + 1) v.catchUps++;
+            } else if (base != v.lastTick || tick != base + 1) {
+                v.errors++;
+            }
+            if (v.world != null) {
+                if (!NetProtocol.readSnapshot(packet, base == NetProtocol.NO_BASE ? null : v.world,
+                        v.next)) {
+                    v.errors++;
+                }
+                NetProtocol.World t = v.world;
+                v.world = v.next;
+                v.next = t;
+            }
+            if (v.firstTick < 0) v.firstTick = tick;
+            v.lastTick = tick;
+            v.frames++;
+        }
+
+        /**
+         * @return true if every viewer followed the game without errors,
+         *         the fast ones seeing nearly every tick and the slow ones
+         *         being caught up
+         */
+        boolean check() {
+            long fast = 0, fastFrames = 0, slowCatchUps = 0;
+            long minFraction = 100;
+            boolean ok = true;
+            for (Viewer v : viewers) {
+                if (v.errors > 0 || v.frames == 0) ok = false;
+                if (v.slow) {
+                    slowCatchUps += v.catchUps;
+                    continue;
+                }
+                fast++;
+                fastFrames += v.frames;
+                long span = v.lastTick - v.firstTick + 1;
+                minFraction = Math.min(minFraction, span <= 0 ? 0 : 100 * v.frames / span);
+            }
+            long errors = 0;
+            for (Viewer v : viewers)
+                errors += v.errors;
+            System.out.printf("audience: %d viewers, fast ones saw %.0f frames each (min %d%% of "
+                    + "ticks), slow ones caught up %d times, %d errors%n",
+                    viewers.length, fast == 0 ? 0.0 : (double) fastFrames / fast, minFraction,
+                    slowCatchUps, errors);
+            return ok && minFraction >= 90;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 7777;
+        int tickHz = 30;
+        int difficulty = LanderPhysics.DIFFICULTY_MEDIUM;
+        long seed = System.currentTimeMillis();
+        double seconds = -1;
+        int bots = 0;
+        int spectatorPort = -1;
+        int spectators = 0;
+        double slowSpectators = 0.1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--port".equals(opt)) port = Integer.parseInt(val);
+            else if ("--tick-hz".equals(opt)) tickHz = Integer.parseInt(val);
+            else if ("--difficulty".equals(opt)) difficulty = Headless.parseDifficulty(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--seconds".equals(opt)) seconds = Double.parseDouble(val);
+            else if ("--bots".equals(opt)) bots = Integer.parseInt(val);
+            else if ("--spectator-port".equals(opt)) spectatorPort = Integer.parseInt(val);
+            else if ("--spectators".equals(opt)) spectators = Integer.parseInt(val);
+            else if ("--slow-spectators".equals(opt)) slowSpectators = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0) {
+            System.err.println("usage: GameServer [--port P] [--tick-hz T] [--difficulty D] "
+                    + "[--seed N] [--seconds S] [--bots N] [--spectator-port P] "
+                    + "[--spectators N] [--slow-spectators F]");
+            System.exit(2);
+        }
+        if (seconds < 0) seconds = bots > 0 || spectators > 0 ? 10 : 0;
+
+        final GameServer server = new GameServer(bots > 0 && port == 7777 ? 0 : port,
+                tickHz, difficulty, seed);
+        System.out.println("serving on UDP port " + server.getPort() + " at " + tickHz + " Hz");
+
+        Bot[] botList = new Bot[Math.min(bots, NetProtocol.MAX_PLAYERS)];
+        for (int i = 0; i < botList.length; i++) {
+            botList[i] = new Bot(server.getPort(), i);
+            Thread t = new Thread(botList[i], "bot" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Audience audience = null;
+        Thread audienceThread = null;
+        if (spectatorPort >= 0 || spectators > 0) {
+            int relayPort = server.startSpectatorRelay(Math.max(0, spectatorPort));
+            System.out.println("spectators on TCP port " + relayPort);
+            if (spectators > 0) {
+                audience = new Audience(relayPort, spectators, slowSpectators);
+                audienceThread = new Thread(audience, "audience");
+                audienceThread.setDaemon(true);
+                audienceThread.start();
+            }
+        }
+
+        server.run(seconds);
+
+        boolean ok = true;
+        if (audience != null) {
+            audience.running = false;
+            audienceThread.join();
+            ok = audience.check();
+        }
+        if (botList.length == 0 && audience == null) return;
+        long expected = (long) (seconds * tickHz);
+        for (Bot b : botList) {
+            b.running = false;
+            b.client.close();
+            long got = b.client.getSnapshots();
+            boolean pass = got >= expected * 8 / 10 && b.client.getBadSnapshots() == 0;
+            ok &= pass;
+            if (!pass) {
+                System.out.printf("%s: %d of ~%d snapshots, %d bad%s%n",
+                        b.client.getPlayerId(), got, expected, b.client.getBadSnapshots(),
+                        b.client.getLastError() == null ? "" : ", " + b.client.getLastError());
+            }
+        }
+        System.out.println(ok ? "PASS: every bot and spectator decoded its snapshots" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
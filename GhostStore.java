@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Keeps the best recorded flight of every account for every difficulty
+ * and mode as a GhostTrack file. Files are written on a background thread.
+ */
+final class GhostStore {
+    private static final String TAG = "GhostStore";
+
+    private final File mDir;
+    private final ExecutorService mWriter;
+
+    public GhostStore(File dir) {
+        mDir = dir;
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Keeps the recorder's last flight if it is a win that beats the
+     * account's best for its difficulty and mode. Copies the track, so the
+     * recorder may start over as soon as this returns.
+     */
+    public void offer(String key, int difficulty, GhostTrack.Recorder recorder) {
+        if (!recorder.isComplete() || !LanderPhysics.isWin(recorder.getOutcome())) return;
+        final int score = recorder.getScore();
+        final byte[] track = recorder.toByteArray();
+        final File file = fileFor(key, difficulty, recorder.getMode());
+        mWriter.execute(new Runnable() {
+            public void run() {
+                if (GhostTrack.readScore(file) >= score) return;
+                File tmp = new File(file.getPath() + ".tmp");
+                try {
+                    mDir.mkdirs();
+                    FileOutputStream out = new FileOutputStream(tmp);
+                    try {
+                        out.write(track);
+                        out.getFD().sync();
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(file))
+                        throw new IOException("cannot replace " + file);
+                } catch (IOException e) {
+                    Log.w(TAG, "cannot save ghost " + file, e);
+                    tmp.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the account's best flight for a difficulty and mode. Does file
+     * I/O.
+     *
+     * @param mode GhostTrack.MODE_* flags
+     * @return the track, or null if there is none
+     */
+    public GhostTrack.Player openBest(String key, int difficulty, int mode)
+            throws IOException {
+        File file = fileFor(key, difficulty, mode);
+        if (!file.exists()) return null;
+        return new GhostTrack.Player(file);
+    }
+
+    /**
+     * Finishes queued writes.
+     */
+    public void close() {
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private File fileFor(String key, int difficulty, int mode) {
+        // account names may hold anything; keep file names to hex
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return new File(mDir, Long.toHexString(h) + "-" + difficulty + "-" + mode + ".ghost");
+    }
+}
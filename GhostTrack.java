@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact file format for recorded flights, raced against as ghosts.
+ *
+ * A track is a fixed header followed by fixed-size samples of the lander
+ * taken every SAMPLE_INTERVAL_MS of flight time, plus one final sample at
+ * touchdown. The header carries the seed, difficulty, canvas size and
+ * mode the flight was started with, so the same pad can be set up again. A
+ * sample is 10 bytes: x as an int and y as a short in units of 1/8 px, so x
+ * reaches across a wide world, the heading as an unsigned short in units
+ * of 360/65536 degrees, engine and throttle bytes. A minute of flight
+ * takes about 12 KB.
+ */
+final class GhostTrack {
+    private static final int MAGIC = 0x4c4c4754; // "LLGT"
+    private static final int VERSION = 2;
+
+    /** Flight time between samples. */
+    public static final int SAMPLE_INTERVAL_MS = 50;
+
+    /** Longest flight recorded, in samples: five minutes. */
+    public static final int MAX_SAMPLES = 5 * 60 * 1000 / SAMPLE_INTERVAL_MS;
+
+    /*
+     * Modes, or'ed together: the world options a flight was flown with.
+     * Flights are only compared with flights of the same mode.
+     */
+    public static final int MODE_WIDE_WORLD = 1;
+    public static final int MODE_MOONS = 2;
+    public static final int MODE_WIND = 4;
+
+    /*
+     * Header: magic, version, seed, difficulty, canvas width and height,
+     * sample count, duration in ms, outcome, score, mode.
+     */
+    private static final int HEADER = 48;
+    private static final int HEADER_SEED = 8;
+    private static final int HEADER_DIFFICULTY = 16;
+    private static final int HEADER_CANVAS_WIDTH = 20;
+    private static final int HEADER_CANVAS_HEIGHT = 24;
+    private static final int HEADER_COUNT = 28;
+    private static final int HEADER_DURATION = 32;
+    private static final int HEADER_OUTCOME = 36;
+    private static final int HEADER_SCORE = 40;
+    private static final int HEADER_MODE = 44;
+
+    private static final int SAMPLE = 10;
+    private static final float UNITS_PER_PX = 8f;
+    private static final float UNITS_PER_DEGREE = 65536f / 360f;
+
+    private GhostTrack() {
+    }
+
+    /**
+     * Reads the score of a track file without mapping it.
+     *
+     * @return the score, or -1 if the file is missing or not a track
+     */
+    public static int readScore(File file) {
+        if (!file.exists()) return -1;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < HEADER || raf.readInt() != MAGIC
+                        || raf.readInt() != VERSION) return -1;
+                raf.seek(HEADER_SCORE);
+                return raf.readInt();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Samples the current flight into a preallocated buffer. Lives on the
+     * game thread; add() costs a few multiplications per frame and never
+     * allocates.
+     */
+    static final class Recorder {
+        private final ByteBuffer mTrack = ByteBuffer.allocate(HEADER + MAX_SAMPLES * SAMPLE);
+        private int mCount;
+        private boolean mRecording;
+        private boolean mComplete;
+
+        /** Flight time of the last add(), in seconds. */
+        private double mTime;
+
+        /* the state at mTime, for interpolating the next sample */
+        private double mLastX;
+        private double mLastY;
+        private double mLastHeading;
+        private boolean mLastFiring;
+        private double mLastThrottle;
+
+        /**
+         * Starts a new track from the lander's starting state.
+         *
+         * @param mode MODE_* flags of the game
+         */
+        public void begin(long seed, int difficulty, int mode, int canvasWidth,
+                int canvasHeight, LanderState s) {
+            mTrack.clear();
+            mTrack.putInt(0, MAGIC);
+            mTrack.putInt(4, VERSION);
+            mTrack.putLong(HEADER_SEED, seed);
+            mTrack.putInt(HEADER_DIFFICULTY, difficulty);
+            mTrack.putInt(HEADER_CANVAS_WIDTH, canvasWidth);
+            mTrack.putInt(HEADER_CANVAS_HEIGHT, canvasHeight);
+            mTrack.putInt(HEADER_MODE, mode);
+            mCount = 0;
+            mTime = 0;
+            mRecording = true;
+            mComplete = false;
+            remember(s);
+            putSample(mLastX, mLastY, mLastHeading, mLastFiring, mLastThrottle);
+        }
+
+        /**
+         * Advances the flight time and writes a sample for every interval
+         * boundary passed, interpolated between the previous state and
+         * this one.
+         */
+        public void add(double elapsed, LanderState s) {
+            if (!mRecording || elapsed <= 0) return;
+            double end = mTime + elapsed;
+            double next = mCount * (SAMPLE_INTERVAL_MS / 1000.0);
+            while (next <= end && mRecording) {
+                double f = (next - mTime) / elapsed;
+                putSample(mLastX + (s.x - mLastX) * f, mLastY + (s.y - mLastY) * f,
+                        mLastHeading + headingDelta(mLastHeading, s.heading) * f,
+                        f < 0.5 ? mLastFiring : s.engineFiring,
+                        mLastThrottle + (s.throttle - mLastThrottle) * f);
+                next = mCount * (SAMPLE_INTERVAL_MS / 1000.0);
+            }
+            mTime = end;
+            remember(s);
+        }
+
+        /**
+         * Ends the track with the touchdown state.
+         *
+         * @param outcome the step outcome that ended the flight
+         */
+        public void finish(int outcome, LanderState s) {
+            if (!mRecording) return;
+            mRecording = false;
+            if (mCount >= MAX_SAMPLES) return;
+            putSample(s.x, s.y, s.heading, s.engineFiring, s.throttle);
+            mTrack.putInt(HEADER_COUNT, mCount);
+            mTrack.putInt(HEADER_DURATION, (int) Math.round(mTime * 1000));
+            mTrack.putInt(HEADER_OUTCOME, outcome);
+            mTrack.putInt(HEADER_SCORE, LanderPhysics.landingScore(s, outcome));
+            mComplete = true;
+        }
+
+        /**
+         * Drops the track being recorded, if any, and forgets the last one.
+         */
+        public void cancel() {
+            mRecording = false;
+            mComplete = false;
+        }
+
+        /** Has the last flight been recorded start to finish? */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        public int getOutcome() {
+            return mTrack.getInt(HEADER_OUTCOME);
+        }
+
+        public int getScore() {
+            return mTrack.getInt(HEADER_SCORE);
+        }
+
+        public int getMode() {
+            return mTrack.getInt(HEADER_MODE);
+        }
+
+        /**
+         * @return a copy of the finished track, ready to be written to a
+         *         file
+         */
+        public byte[] toByteArray() {
+            byte[] out = new byte[HEADER + mCount * SAMPLE];
+            System.arraycopy(mTrack.array(), 0, out, 0, out.length);
+            return out;
+        }
+
+        private void remember(LanderState s) {
+            mLastX = s.x;
+            mLastY = s.y;
+            mLastHeading = s.heading;
+            mLastFiring = s.engineFiring;
+            mLastThrottle = s.throttle;
+        }
+
+        private void putSample(double x, double y, double heading, boolean firing,
+                double throttle) {
+            if (mCount >= MAX_SAMPLES) {
+                // too long to be anyone's best run
+                mRecording = false;
+                return;
+            }
+            int at = HEADER + mCount * SAMPLE;
+            mTrack.putInt(at, (int) Math.round(x * UNITS_PER_PX));
+            mTrack.putShort(at + 4, quantize(y * UNITS_PER_PX));
+            double h = heading % 360;
+            if (h < 0) h += 360;
+            mTrack.putShort(at + 6, (short) (int) Math.round(h * UNITS_PER_DEGREE));
+            mTrack.put(at + 8, (byte) (firing ? 1 : 0));
+            mTrack.put(at + 9, (byte) Math.round(Math.max(0, Math.min(1, throttle)) * 255));
+            mCount++;
+        }
+
+        private static short quantize(double v) {
+            if (v > Short.MAX_VALUE) return Short.MAX_VALUE;
+            if (v < Short.MIN_VALUE) return Short.MIN_VALUE;
+            return (short) Math.round(v);
+        }
+    }
+
+    /**
+     * Plays a track back from a memory-mapped file. seek() decodes the two
+     * samples around the requested time straight from the mapping and
+     * interpolates between them, without allocating; the accessors then
+     * describe the ghost at that time.
+     */
+    static final class Player {
+        private final ByteBuffer mTrack;
+        private final int mCount;
+        private final int mDuration;
+
+        private float mX;
+        private float mY;
+        private float mHeading;
+        private boolean mFiring;
+
+        public Player(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // the mapping stays valid after the file is closed
+                mTrack = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (mTrack.capacity() < HEADER || mTrack.getInt(0) != MAGIC
+                    || mTrack.getInt(4) != VERSION)
+                throw new IOException("Not a ghost track: " + file);
+            mCount = mTrack.getInt(HEADER_COUNT);
+            mDuration = mTrack.getInt(HEADER_DURATION);
+            if (mCount < 1 || mTrack.capacity() < HEADER + (long) mCount * SAMPLE)
+                throw new IOException("Truncated ghost track: " + file);
+            seek(0);
+        }
+
+        public long getSeed() {
+            return mTrack.getLong(HEADER_SEED);
+        }
+
+        public int getDifficulty() {
+            return mTrack.getInt(HEADER_DIFFICULTY);
+        }
+
+        public int getCanvasWidth() {
+            return mTrack.getInt(HEADER_CANVAS_WIDTH);
+        }
+
+        public int getCanvasHeight() {
+            return mTrack.getInt(HEADER_CANVAS_HEIGHT);
+        }
+
+        public int getOutcome() {
+            return mTrack.getInt(HEADER_OUTCOME);
+        }
+
+        public int getScore() {
+            return mTrack.getInt(HEADER_SCORE);
+        }
+
+        public int getMode() {
+            return mTrack.getInt(HEADER_MODE);
+        }
+
+        /** Flight time of the whole track, in ms. */
+        public int getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * Moves the ghost to the given flight time. Past the end it rests
+         * where it touched down.
+         *
+         * @param millis flight time since the start of the track
+         * @return false once the ghost has touched down
+         */
+        public boolean seek(long millis) {
+            if (millis >= mDuration || mCount == 1) {
+                decode(mCount - 1, mCount - 1, 0);
+                return false;
+            }
+            if (millis < 0) millis = 0;
+            int i = (int) (millis / SAMPLE_INTERVAL_MS);
+            if (i >= mCount - 1) i = mCount - 2;
+            long t0 = (long) i * SAMPLE_INTERVAL_MS;
+            long t1 = i + 1 == mCount - 1 ? mDuration : t0 + SAMPLE_INTERVAL_MS;
+            decode(i, i + 1, t1 > t0 ? (float) (millis - t0) / (t1 - t0) : 0);
+            return true;
+        }
+
+        /** Ghost center, in the track's canvas coordinates (y up). */
+        public float getX() {
+            return mX;
+        }
+
+        public float getY() {
+            return mY;
+        }
+
+        /** Heading in degrees, 0..360. */
+        public float getHeading() {
+            return mHeading;
+        }
+
+        public boolean isFiring() {
+            return mFiring;
+        }
+
+        private void decode(int a, int b, float f) {
+            int at = HEADER + a * SAMPLE;
+            int bt = HEADER + b * SAMPLE;
+            float xa = mTrack.getInt(at) / UNITS_PER_PX;
+            float ya = mTrack.getShort(at + 4) / UNITS_PER_PX;
+            float ha = (mTrack.getShort(at + 6) & 0xffff) / UNITS_PER_DEGREE;
+            float xb = mTrack.getInt(bt) / UNITS_PER_PX;
+            float yb = mTrack.getShort(bt + 4) / UNITS_PER_PX;
+            float hb = (mTrack.getShort(bt + 6) & 0xffff) / UNITS_PER_DEGREE;
+            mX = xa + (xb - xa) * f;
+            mY = ya + (yb - ya) * f;
+            float h = ha + (float) headingDelta(ha, hb) * f;
+            mHeading = h < 0 ? h + 360 : (h >= 360 ? h - 360 : h);
+            mFiring = mTrack.get(f < 0.5f ? at + 8 : bt + 8) != 0;
+        }
+    }
+
+    /**
+     * @return the shortest turn from one heading to another, -180..180
+     */
+    private static double headingDelta(double from, double to) {
+        double d = (to - from) % 360;
+        if (d > 180) d -= 360;
+        else if (d < -180) d += 360;
+        return d;
+    }
+}
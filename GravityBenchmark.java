@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * Times GravityField's Barnes-Hut steps on clouds of free bodies of
+ * growing size, checks their accelerations against the direct sum, and
+ * checks that steps allocate nothing. Runs on a desktop JVM.
+ *
+ * Usage: GravityBenchmark [options]
+ * <ul>
+ * <li>--bodies N: largest cloud, default 10000; also runs N/8, N/4, N/2
+ * <li>--theta T: opening angle, default GravityField.DEFAULT_THETA
+ * <li>--threads T: threads per step, default one per core
+ * <li>--steps S: timed steps per cloud, default 20
+ * <li>--seed N
+ * <li>--max-error F: fail (exit 1) if the RMS relative error of the
+ * accelerations exceeds F, default 0.05; monopole cells at theta 0.5
+ * are typically within 2%
+ * </ul>
+ * Also fails if a step allocates once the field's arrays have grown.
+ */
+public class GravityBenchmark {
+    /** Side of the square the cloud starts in, in px. */
+    private static final int FIELD_SIZE = 4800;
+
+    /** Bodies checked against the direct sum, at most. */
+    private static final int CHECKED = 2000;
+
+    private static final double STEP_SECONDS = 1 / 60.0;
+
+    /**
+     * A rotating disc of bodies with random masses, denser at the middle.
+     */
+    private static GravityField cloud(int n, double theta, int threads, Random random) {
+        GravityField field = new GravityField(theta, threads);
+        double c = FIELD_SIZE / 2;
+        for (int i = 0; i < n; i++) {
+            double r = FIELD_SIZE / 2 * Math.sqrt(random.nextDouble()) * random.nextDouble();
+            double a = random.nextDouble() * 2 * Math.PI;
+            double v = 0.2 * r;
+            field.add(c + r * Math.cos(a), c + r * Math.sin(a), -v * Math.sin(a),
+                    v * Math.cos(a), 100 + random.nextDouble() * 900, false);
+        }
+        return field;
+    }
+
+    /**
+     * @return bytes allocated so far by the given threads, or -1 if the
+     *         JVM can't tell; allocates nothing itself
+     */
+    private static long allocatedBytes(ThreadMXBean mx, long[] threads) {
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+        long sum = 0;
+        for (long id : threads)
+            sum += Math.max(0, sun.getThreadAllocatedBytes(id));
+        return sum;
+    }
+
+    public static void main(String[] args) {
+        int bodies = 10000;
+        double theta = GravityField.DEFAULT_THETA;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int steps = 20;
+        long seed = 1;
+        double maxError = 0.05;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--bodies".equals(opt)) bodies = Integer.parseInt(val);
+            else if ("--theta".equals(opt)) theta = Double.parseDouble(val);
+            else if ("--threads".equals(opt)) threads = Integer.parseInt(val);
+            else if ("--steps".equals(opt)) steps = Integer.parseInt(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-error".equals(opt)) maxError = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || bodies < 8 || threads < 1 || steps < 1) {
+            System.err.println("usage: GravityBenchmark [--bodies N] [--theta T] [--threads T] "
+                    + "[--steps S] [--seed N] [--max-error F]");
+            System.exit(2);
+        }
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        // warm the compiler up on something small first
+        GravityField warm = cloud(2000, theta, threads, new Random(seed));
+        for (int s = 0; s < 50; s++)
+            warm.step(STEP_SECONDS);
+        warm.close();
+
+        boolean ok = true;
+        double[] direct = new double[2];
+        for (int n = bodies / 8; n <= bodies; n *= 2) {
+            GravityField field = cloud(n, theta, threads, new Random(seed));
+            // let the arrays grow to size
+            for (int s = 0; s < 3; s++)
+                field.step(STEP_SECONDS);
+
+            // the caller and the field's workers
+            long[] ids = mx.getAllThreadIds();
+            long allocated = allocatedBytes(mx, ids);
+            long start = System.nanoTime();
+            for (int s = 0; s < steps; s++)
+                field.step(STEP_SECONDS);
+            long nanos = (System.nanoTime() - start) / steps;
+            if (allocated >= 0) allocated = allocatedBytes(mx, ids) - allocated;
+
+            // the direct sum for a sample of the bodies
+            int checked = Math.min(n, CHECKED);
+            double sumSquares = 0;
+            double worst = 0;
+            long directStart = System.nanoTime();
+            for (int k = 0; k < checked; k++) {
+                int i = (int) ((long) k * n / checked);
+                field.accelerationDirect(field.getX(i), field.getY(i), i, direct);
+                double ex = field.getAccelX(i) - direct[0];
+                double ey = field.getAccelY(i) - direct[1];
+                double norm = Math.sqrt(direct[0] * direct[0] + direct[1] * direct[1]);
+                double err = norm > 0 ? Math.sqrt(ex * ex + ey * ey) / norm : 0;
+                sumSquares += err * err;
+                worst = Math.max(worst, err);
+            }
+            double directNanos = (double) (System.nanoTime() - directStart) / checked * n;
+            double rms = Math.sqrt(sumSquares / checked);
+            field.close();
+
+            System.out.printf("%6d bodies: %8.2f ms/step (%.1f ns per body per log2 n), "
+                    + "direct sum %8.2f ms, error rms %.4f max %.4f, %s%n",
+                    n, nanos / 1e6, nanos / (n * Math.log(n) / Math.log(2)), directNanos / 1e6,
+                    rms, worst, allocated < 0 ? "allocation unknown"
+                            : allocated / steps + " B allocated/step");
+            ok &= rms <= maxError && allocated <= 0;
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
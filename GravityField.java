@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moons, asteroids and other bodies pulling on each other and on landers as
+ * point masses. Coordinates are those of LanderState, in px, and a body's
+ * mass is G times its mass, in px^3/s^2.
+ *
+ * Forces come from a Barnes-Hut quadtree rebuilt every step: a cell far
+ * enough away, seen at an angle under theta, pulls as one point mass at its
+ * center of mass, so a step costs O(n log n) rather than O(n^2). The direct
+ * sum, accelerationDirect(), is kept as the reference to check it against.
+ *
+ * Bodies, tree and traversal stacks live in parallel arrays that only grow,
+ * so once the arrays are big enough a step allocates nothing. The force
+ * pass is split across worker threads, which wait between steps parked,
+ * not in a pool that would allocate a task per step. Not thread safe;
+ * owned by one thread, which calls step() and sample().
+ */
+final class GravityField {
+    /** Default opening angle; smaller is slower and more accurate. */
+    public static final double DEFAULT_THETA = 0.5;
+
+    /** Softening length, in px, so close passes don't fling bodies away. */
+    private static final double SOFTENING = 8;
+
+    /** Depth past which bodies share a leaf rather than split it. */
+    private static final int MAX_DEPTH = 32;
+
+    /** Traversal stack size: three siblings left over per level. */
+    private static final int STACK_SIZE = 3 * MAX_DEPTH + 8;
+
+    /*
+     * Bodies
+     */
+    private int mCount;
+    private double[] mX = new double[16];
+    private double[] mY = new double[16];
+    private double[] mVX = new double[16];
+    private double[] mVY = new double[16];
+    private double[] mMass = new double[16];
+    private boolean[] mFixed = new boolean[16];
+    private double[] mAX = new double[16];
+    private double[] mAY = new double[16];
+
+    /*
+     * The quadtree. Children of a node are four consecutive nodes starting
+     * at mChild; a leaf has mChild -1 and holds body mBody, or none (-1),
+     * or several that reached MAX_DEPTH (-2).
+     */
+    private int mNodes;
+    private double[] mNodeMass = new double[64];
+    private double[] mNodeX = new double[64];
+    private double[] mNodeY = new double[64];
+    private double[] mCenterX = new double[64];
+    private double[] mCenterY = new double[64];
+    private double[] mHalf = new double[64];
+    private int[] mChild = new int[64];
+    private int[] mBody = new int[64];
+    private boolean mTreeValid;
+
+    private final double mTheta2;
+
+    /*
+     * Workers; slice 0 of the force pass runs on the calling thread
+     */
+    private final Worker[] mWorkers;
+    private final int[] mStack = new int[STACK_SIZE];
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile Thread mCaller;
+    private volatile boolean mClosed;
+
+    /* result of sample(), by way of walk() */
+    private double mSampleX;
+    private double mSampleY;
+    private double mWalkX;
+    private double mWalkY;
+
+    /**
+     * One thread computing one slice of the bodies' accelerations.
+     */
+    private final class Worker extends Thread {
+        final int slice;
+        final int[] stack = new int[STACK_SIZE];
+        volatile int epoch;
+        int done;
+
+        Worker(int slice) {
+            super("Gravity" + slice);
+            this.slice = slice;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!mClosed) {
+                if (epoch == done) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                done = epoch;
+                accelerateSlice(slice, stack);
+                if (mPending.decrementAndGet() == 0) LockSupport.unpark(mCaller);
+            }
+        }
+    }
+
+    /**
+     * @param theta opening angle, see DEFAULT_THETA
+     * @param threads threads the force pass is split across, the calling
+     *        thread included
+     */
+    public GravityField(double theta, int threads) {
+        mTheta2 = theta * theta;
+        mWorkers = new Worker[Math.max(0, threads - 1)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i + 1);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * A scene of a few heavy moons fixed in the sky over the canvas, and
+     * asteroids on roughly circular orbits around them.
+     */
+    public static GravityField scene(Random random, int moons, int asteroids, int canvasWidth,
+            int canvasHeight, int threads) {
+        GravityField field = new GravityField(DEFAULT_THETA, threads);
+        for (int i = 0; i < moons; i++) {
+            double x = canvasWidth * (i + 0.5) / moons;
+            double y = canvasHeight * (0.45 + 0.3 * random.nextDouble());
+            // pulls about 10 px/s^2 from 150 px away
+            field.add(x, y, 0, 0, 150 * 150 * 10, true);
+        }
+        for (int i = 0; i < asteroids && moons > 0; i++) {
+            int moon = random.nextInt(moons);
+            double r = 30 + random.nextDouble() * 120;
+            double a = random.nextDouble() * 2 * Math.PI;
+            double v = Math.sqrt(field.mMass[moon] / r);
+            field.add(field.mX[moon] + r * Math.cos(a), field.mY[moon] + r * Math.sin(a),
+                    -v * Math.sin(a), v * Math.cos(a), 50 + random.nextDouble() * 200, false);
+        }
+        return field;
+    }
+
+    /**
+     * Adds a body.
+     *
+     * @param mass G times the mass, in px^3/s^2
+     * @param fixed does it stay put, pulling but never pulled?
+     * @return the body's index
+     */
+    public int add(double x, double y, double vx, double vy, double mass, boolean fixed) {
+        if (mCount == mX.length) growBodies(mCount * 2);
+        mX[mCount] = x;
+        mY[mCount] = y;
+        mVX[mCount] = vx;
+        mVY[mCount] = vy;
+        mMass[mCount] = mass;
+        mFixed[mCount] = fixed;
+        mTreeValid = false;
+        return mCount++;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public double getX(int i) {
+        return mX[i];
+    }
+
+    public double getY(int i) {
+        return mY[i];
+    }
+
+    public double getMass(int i) {
+        return mMass[i];
+    }
+
+    public boolean isFixed(int i) {
+        return mFixed[i];
+    }
+
+    /** Acceleration of body i found by the last step. */
+    public double getAccelX(int i) {
+        return mAX[i];
+    }
+
+    public double getAccelY(int i) {
+        return mAY[i];
+    }
+
+    /**
+     * Moves the bodies on by one leapfrog step, kick-drift-kick: half the
+     * old acceleration, the move, then half the new one.
+     */
+    public void step(double elapsed) {
+        if (!mTreeValid) accelerate();
+        double half = elapsed / 2;
+        for (int i = 0; i < mCount; i++) {
+            if (mFixed[i]) continue;
+            mVX[i] += mAX[i] * half;
+            mVY[i] += mAY[i] * half;
+            mX[i] += mVX[i] * elapsed;
+            mY[i] += mVY[i] * elapsed;
+        }
+        accelerate();
+        for (int i = 0; i < mCount; i++) {
+            if (mFixed[i]) continue;
+            mVX[i] += mAX[i] * half;
+            mVY[i] += mAY[i] * half;
+        }
+    }
+
+    /**
+     * Finds the pull of every body on a point through the tree, such as on
+     * a lander. Read the result with getSampleX() and getSampleY().
+     */
+    public void sample(double x, double y) {
+        if (!mTreeValid) accelerate();
+        walk(x, y, -1, mStack);
+        mSampleX = mWalkX;
+        mSampleY = mWalkY;
+    }
+
+    public double getSampleX() {
+        return mSampleX;
+    }
+
+    public double getSampleY() {
+        return mSampleY;
+    }
+
+    /**
+     * The reference: the pull of every body on a point summed one by one.
+     *
+     * @param skip a body to leave out, or -1
+     * @param out receives the x and y acceleration
+     */
+    public void accelerationDirect(double x, double y, int skip, double[] out) {
+        double ax = 0;
+        double ay = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (i == skip) continue;
+            double dx = mX[i] - x;
+            double dy = mY[i] - y;
+            double d2 = dx * dx + dy * dy + SOFTENING * SOFTENING;
+            double f = mMass[i] / (d2 * Math.sqrt(d2));
+            ax += dx * f;
+            ay += dy * f;
+        }
+        out[0] = ax;
+        out[1] = ay;
+    }
+
+    /**
+     * Potential energy per unit mass at a point, summed directly over the
+     * bodies, in px^2/s^2; the pull of accelerationDirect() is minus its
+     * gradient.
+     */
+    public double potential(double x, double y) {
+        double p = 0;
+        for (int i = 0; i < mCount; i++) {
+            double dx = mX[i] - x;
+            double dy = mY[i] - y;
+            p -= mMass[i] / Math.sqrt(dx * dx + dy * dy + SOFTENING * SOFTENING);
+        }
+        return p;
+    }
+
+    /**
+     * Parks the worker threads for good.
+     */
+    public void close() {
+        mClosed = true;
+        for (Worker w : mWorkers)
+            LockSupport.unpark(w);
+    }
+
+    /**
+     * Rebuilds the tree and finds every body's acceleration through it,
+     * split across the workers.
+     */
+    private void accelerate() {
+        build();
+        if (mWorkers.length == 0) {
+            accelerateSlice(0, mStack);
+            return;
+        }
+        mCaller = Thread.currentThread();
+        mPending.set(mWorkers.length);
+        for (Worker w : mWorkers) {
+            w.epoch++;
+            LockSupport.unpark(w);
+        }
+        accelerateSlice(0, mStack);
+        while (mPending.get() != 0)
+            LockSupport.park(this);
+    }
+
+    private void accelerateSlice(int slice, int[] stack) {
+        int slices = mWorkers.length + 1;
+        int from = (int) ((long) mCount * slice / slices);
+        int to = (int) ((long) mCount * (slice + 1) / slices);
+        for (int i = from; i < to; i++) {
+            if (mFixed[i]) {
+                mAX[i] = 0;
+                mAY[i] = 0;
+                continue;
+            }
+            // walk(), inlined so that each thread keeps its sums in locals
+            double x = mX[i];
+            double y = mY[i];
+            double ax = 0;
+            double ay = 0;
+            int top = 0;
+            if (mNodes > 0) stack[top++] = 0;
+            while (top > 0) {
+                int k = stack[--top];
+                double m = mNodeMass[k];
+                if (m == 0) continue;
+                double dx = mNodeX[k] - x;
+                double dy = mNodeY[k] - y;
+                double d2 = dx * dx + dy * dy;
+                int child = mChild[k];
+                if (child >= 0) {
+                    double size = 2 * mHalf[k];
+                    if (size * size >= mTheta2 * d2) {
+                        stack[top++] = child;
+                        stack[top++] = child + 1;
+                        stack[top++] = child + 2;
+                        stack[top++] = child + 3;
+                        continue;
+                    }
+                } else if (mBody[k] == i) {
+                    continue;
+                }
+                d2 += SOFTENING * SOFTENING;
+                double f = m / (d2 * Math.sqrt(d2));
+                ax += dx * f;
+                ay += dy * f;
+            }
+            mAX[i] = ax;
+            mAY[i] = ay;
+        }
+    }
+
+    /**
+     * The pull of the tree on a point, leaving out body skip, into mWalkX
+     * and mWalkY.
+     */
+    private void walk(double x, double y, int skip, int[] stack) {
+        double ax = 0;
+        double ay = 0;
+        int top = 0;
+        if (mNodes > 0) stack[top++] = 0;
+        while (top > 0) {
+            int k = stack[--top];
+            double m = mNodeMass[k];
+            if (m == 0) continue;
+            double dx = mNodeX[k] - x;
+            double dy = mNodeY[k] - y;
+            double d2 = dx * dx + dy * dy;
+            int child = mChild[k];
+            if (child >= 0) {
+                double size = 2 * mHalf[k];
+                if (size * size >= mTheta2 * d2) {
+                    stack[top++] = child;
+                    stack[top++] = child + 1;
+                    stack[top++] = child + 2;
+                    stack[top++] = child + 3;
+                    continue;
+                }
+            } else if (mBody[k] == skip) {
+                continue;
+            }
+            d2 += SOFTENING * SOFTENING;
+            double f = m / (d2 * Math.sqrt(d2));
+            ax += dx * f;
+            ay += dy * f;
+        }
+        mWalkX = ax;
+        mWalkY = ay;
+    }
+
+    /**
+     * Builds the quadtree over the bodies' current positions, with every
+     * node's mass and center of mass.
+     */
+    private void build() {
+        mNodes = 0;
+        mTreeValid = true;
+        if (mCount == 0) return;
+        double minX = mX[0];
+        double maxX = mX[0];
+        double minY = mY[0];
+        double maxY = mY[0];
+        for (int i = 1; i < mCount; i++) {
+            minX = Math.min(minX, mX[i]);
+            maxX = Math.max(maxX, mX[i]);
+            minY = Math.min(minY, mY[i]);
+            maxY = Math.max(maxY, mY[i]);
+        }
+        int root = newNode((minX + maxX) / 2, (minY + maxY) / 2,
+                Math.max(maxX - minX, maxY - minY) / 2 + 1);
+        for (int i = 0; i < mCount; i++)
+            insert(root, i);
+        // mass-weighted sums to centers of mass
+        for (int k = 0; k < mNodes; k++) {
+            if (mNodeMass[k] > 0) {
+                mNodeX[k] /= mNodeMass[k];
+                mNodeY[k] /= mNodeMass[k];
+            }
+        }
+    }
+
+    private void insert(int node, int body) {
+        double m = mMass[body];
+        double x = mX[body];
+        double y = mY[body];
+        int k = node;
+        for (int depth = 0;; depth++) {
+            mNodeMass[k] += m;
+            mNodeX[k] += m * x;
+            mNodeY[k] += m * y;
+            if (mChild[k] >= 0) {
+                k = mChild[k] + quadrant(k, x, y);
+                continue;
+            }
+            int held = mBody[k];
+            if (held == -1) {
+                // an empty leaf
+                mBody[k] = body;
+                return;
+            }
+            if (held < 0 || depth >= MAX_DEPTH) {
+                // already shared, or as deep as we go: share the leaf
+                mBody[k] = -2;
+                return;
+            }
+            // split, and move the resident body down a level
+            split(k);
+            int c = mChild[k] + quadrant(k, mX[held], mY[held]);
+            mNodeMass[c] += mMass[held];
+            mNodeX[c] += mMass[held] * mX[held];
+            mNodeY[c] += mMass[held] * mY[held];
+            mBody[c] = held;
+            mBody[k] = -1;
+            k = mChild[k] + quadrant(k, x, y);
+        }
+    }
+
+    private int quadrant(int k, double x, double y) {
+        return (x >= mCenterX[k] ? 1 : 0) + (y >= mCenterY[k] ? 2 : 0);
+    }
+
+    private void split(int k) {
+        double h = mHalf[k] / 2;
+        double cx = mCenterX[k];
+        double cy = mCenterY[k];
+        // newNode may grow the arrays; k stays valid, it's an index
+        int first = newNode(cx - h, cy - h, h);
+        newNode(cx + h, cy - h, h);
+        newNode(cx - h, cy + h, h);
+        newNode(cx + h, cy + h, h);
+        mChild[k] = first;
+    }
+
+    private int newNode(double cx, double cy, double half) {
+        if (mNodes == mChild.length) growNodes(mNodes * 2);
+        int k = mNodes++;
+        mNodeMass[k] = 0;
+        mNodeX[k] = 0;
+        mNodeY[k] = 0;
+        mCenterX[k] = cx;
+        mCenterY[k] = cy;
+        mHalf[k] = half;
+        mChild[k] = -1;
+        mBody[k] = -1;
+        return k;
+    }
+
+    private void growBodies(int n) {
+        mX = copyOf(mX, n);
+        mY = copyOf(mY, n);
+        mVX = copyOf(mVX, n);
+        mVY = copyOf(mVY, n);
+        mMass = copyOf(mMass, n);
+        mAX = copyOf(mAX, n);
+        mAY = copyOf(mAY, n);
+        boolean[] fixed = new boolean[n];
+        System.arraycopy(mFixed, 0, fixed, 0, mCount);
+        mFixed = fixed;
+    }
+
+    private void growNodes(int n) {
+        mNodeMass = copyOf(mNodeMass, n);
+        mNodeX = copyOf(mNodeX, n);
+        mNodeY = copyOf(mNodeY, n);
+        mCenterX = copyOf(mCenterX, n);
+        mCenterY = copyOf(mCenterY, n);
+        mHalf = copyOf(mHalf, n);
+        int[] child = new int[n];
+        System.arraycopy(mChild, 0, child, 0, mNodes);
+        mChild = child;
+        int[] body = new int[n];
+        System.arraycopy(mBody, 0, body, 0, mNodes);
+        mBody = body;
+    }
+
+    private static double[] copyOf(double[] a, int n) {
+        double[] b = new double[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+}
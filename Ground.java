@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * What LanderPhysics needs to know about the ground under a lander. Heights
+ * are measured like LanderState y, from the bottom of the canvas up.
+ */
+interface Ground {
+    /**
+     * Highest ground anywhere between two x, such as the edges of a
+     * lander's footprint.
+     */
+    double heightUnder(double left, double right);
+
+    /**
+     * Is there a landing pad wholly under the span?
+     */
+    boolean hasPadUnder(double left, double right);
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * What the desktop tools share when they run the game without a screen:
+ * the playing field they fly in, how they name difficulties, and how
+ * their pilots steer and brake.
+ */
+final class Headless {
+    /*
+     * Playing field, roughly a portrait phone
+     */
+    public static final int CANVAS_WIDTH = 480;
+    public static final int CANVAS_HEIGHT = 800;
+    public static final int LANDER_WIDTH = 48;
+    public static final int LANDER_HEIGHT = 48;
+
+    /*
+     * Steering
+     */
+    /** Most the pilots lean, in degrees. */
+    private static final double MAX_LEAN = 20;
+    /** Height above the ground under which they stay upright. */
+    private static final double FLARE_HEIGHT = 60;
+    /** Lean per px/s of sideways speed wanted. */
+    private static final double LEAN_GAIN = 1;
+    /** Sideways speed wanted per px off the pad, and the most wanted. */
+    private static final double CLOSE_GAIN = 0.5;
+    private static final double MAX_CLOSE_SPEED = 40;
+    /** Degrees off the wanted lean the pilots put up with. */
+    private static final double LEAN_SLACK = 2;
+
+    private Headless() {
+    }
+
+    /**
+     * @param name easy, medium or hard
+     * @return one of the LanderPhysics.DIFFICULTY_* constants
+     */
+    public static int parseDifficulty(String name) {
+        if ("easy".equals(name)) return LanderPhysics.DIFFICULTY_EASY;
+        if ("hard".equals(name)) return LanderPhysics.DIFFICULTY_HARD;
+        if ("medium".equals(name)) return LanderPhysics.DIFFICULTY_MEDIUM;
+        throw new IllegalArgumentException("Unknown difficulty " + name);
+    }
+
+    public static String difficultyName(int difficulty) {
+        switch (difficulty) {
+            case LanderPhysics.DIFFICULTY_EASY: return "easy";
+            case LanderPhysics.DIFFICULTY_HARD: return "hard";
+            default: return "medium";
+        }
+    }
+
+    /**
+     * Sets s.rotating to lean toward the pad, and upright near the ground.
+     */
+    public static void steer(LanderState s) {
+        double lean = 0;
+        if (height(s) > FLARE_HEIGHT) {
+            double pad = s.goalX + s.goalWidth / 2.0;
+            double want = clamp((pad - s.x) * CLOSE_GAIN, MAX_CLOSE_SPEED);
+            lean = clamp((want - s.dx) * LEAN_GAIN, MAX_LEAN);
+        }
+        double heading = s.heading > 180 ? s.heading - 360 : s.heading;
+        if (heading < lean - LEAN_SLACK) s.rotating = 1;
+        else if (heading > lean + LEAN_SLACK) s.rotating = -1;
+        else s.rotating = 0;
+    }
+
+    /**
+     * Is full thrust needed now to slow to the descent speed by the
+     * ground?
+     *
+     * @param descent the speed to touch down at, negative
+     * @param frame the time step the pilot flies with, in seconds
+     */
+    public static boolean mustBrake(LanderState s, double descent, double frame) {
+        double brake = LanderPhysics.PHYS_FIRE_ACCEL_SEC * s.throttle
+                * Math.cos(Math.toRadians(s.heading)) - LanderPhysics.PHYS_DOWN_ACCEL_SEC;
+        if (brake <= 0) return true;
+        double stopping = (s.dy * s.dy - descent * descent) / (2 * brake);
+        // a frame's fall of margin
+        return stopping >= height(s) + s.dy * frame;
+    }
+
+    /** @return the lander's height above the ground under it */
+    public static double height(LanderState s) {
+        return s.y - LanderPhysics.groundY(s);
+    }
+
+    private static double clamp(double v, double limit) {
+        return Math.max(-limit, Math.min(limit, v));
+    }
+}
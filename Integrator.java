@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Moves a lander through one step of LanderPhysics.step(). Implementations
+ * are in Integrators; they hold no state, so one may be shared by any
+ * number of landers and threads.
+ */
+interface Integrator {
+    /**
+     * Advances s.x, s.y, s.dx and s.dy by the given slice of time, under
+     * the accelerations LanderPhysics.acceleration() gives. Heading and
+     * fuel are those at the start of the step and must be left alone.
+     */
+    void integrate(LanderState s, double elapsed);
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Flies each of the Integrators at a range of frame times and measures how
+ * far it strays from an exact answer, and what a step costs. Runs on a
+ * desktop JVM.
+ *
+ * Two flights are flown:
+ * <ul>
+ * <li>a burn: the engine firing while the lander slowly turns, so the
+ * thrust changes direction through every step. Its path has a closed
+ * form, and the distance from it at the end is the position error.
+ * <li>an orbit: the lander coasting around a moon that hangs over the
+ * ground. Its energy, kinetic plus the ground's gravity plus the moon's,
+ * should stay what it was; the largest change, as a fraction of the
+ * kinetic energy it started with, is the energy drift.
+ * </ul>
+ * The cost is timed through LanderPhysics.stepAll() on a batch of orbiting
+ * landers.
+ *
+ * Usage: IntegratorHarness [options]
+ * <ul>
+ * <li>--integrator NAME: only this one, as named in the report
+ * <li>--seconds S: length of the orbit, default 5; the burn is 5 s. Much
+ * longer and the ground's pull stretches the orbit into close passes
+ * by the moon
+ * <li>--landers N: batch size for timing, default 1000
+ * <li>--max-error PX: fail (exit 1) if an integrator strays further than
+ * this from the burn's path at 60 Hz
+ * <li>--max-drift F: fail if an integrator's energy drift at 60 Hz exceeds
+ * F
+ * </ul>
+ */
+public class IntegratorHarness {
+    /** Frame times tried, in seconds. */
+    private static final double[] FRAMES = {
+            1 / 120.0, 1 / 60.0, 1 / 30.0, 1 / 10.0, 1 / 4.0
+    };
+
+    /** Index into FRAMES of the frame time the thresholds apply at. */
+    private static final int CHECKED_FRAME = 1;
+
+    /*
+     * The burn
+     */
+    private static final double BURN_SECONDS = 5;
+    private static final double BURN_X = 240;
+    private static final double BURN_Y = 300;
+    private static final double BURN_DX = 10;
+    private static final double BURN_DY = 0;
+    private static final double BURN_HEADING = 340;
+    private static final double BURN_ROTATE = 0.1;
+
+    /*
+     * The orbit: close around a heavy moon, which pulls on the lander
+     * many times harder than the ground does, so it stays bound
+     */
+    private static final double MOON_X = 240;
+    private static final double MOON_Y = 500;
+    private static final double MOON_MASS = 10000000;
+    private static final double ORBIT_RADIUS = 60;
+    private static final double ORBIT_X = MOON_X + ORBIT_RADIUS;
+    private static final double ORBIT_Y = MOON_Y;
+    private static final double ORBIT_DX = 0;
+    /** The circular speed, were the ground not pulling too. */
+    private static final double ORBIT_DY = Math.sqrt(MOON_MASS * ORBIT_RADIUS * ORBIT_RADIUS
+            / Math.pow(ORBIT_RADIUS * ORBIT_RADIUS + 64, 1.5));
+
+    /** Steps timed per lander of the batch. */
+    private static final int TIMED_STEPS = 200;
+
+    private static LanderState lander(Integrator integrator) {
+        LanderState s = new LanderState();
+        s.landerWidth = Headless.LANDER_WIDTH;
+        s.landerHeight = Headless.LANDER_HEIGHT;
+        s.fuel = LanderPhysics.PHYS_FUEL_MAX;
+        s.goalWidth = Headless.LANDER_WIDTH * 2;
+        s.goalSpeed = LanderPhysics.TARGET_SPEED;
+        s.goalAngle = LanderPhysics.TARGET_ANGLE;
+        s.integrator = integrator;
+        return s;
+    }
+
+    /**
+     * Flies the burn.
+     *
+     * @return distance from the exact path at the end, in px, or NaN if
+     *         the lander came down
+     */
+    static double burnError(Integrator integrator, double frame) {
+        LanderState s = lander(integrator);
+        s.x = BURN_X;
+        s.y = BURN_Y;
+        s.dx = BURN_DX;
+        s.dy = BURN_DY;
+        s.heading = BURN_HEADING;
+        s.rotating = 1;
+        s.rotateAmount = BURN_ROTATE;
+        s.engineFiring = true;
+        int steps = (int) Math.round(BURN_SECONDS / frame);
+        for (int i = 0; i < steps; i++) {
+            if (LanderPhysics.step(s, frame) != LanderPhysics.OUTCOME_FLYING) return Double.NaN;
+        }
+
+        // thrust A at heading h0 + w t, gravity g down
+        double t = steps * frame;
+        double a = LanderPhysics.PHYS_FIRE_ACCEL_SEC;
+        double g = LanderPhysics.PHYS_DOWN_ACCEL_SEC;
+        double w = Math.toRadians(LanderPhysics.PHYS_SLEW_SEC * BURN_ROTATE);
+        double h0 = Math.toRadians(BURN_HEADING);
+        double h1 = h0 + w * t;
+        double x = BURN_X + BURN_DX * t
+                + a / w * (t * Math.cos(h0) - (Math.sin(h1) - Math.sin(h0)) / w);
+        double y = BURN_Y + BURN_DY * t
+                + a / w * ((Math.cos(h0) - Math.cos(h1)) / w - t * Math.sin(h0)) - g * t * t / 2;
+        return Math.hypot(s.x - x, s.y - y);
+    }
+
+    private static GravityField moon() {
+        GravityField moon = new GravityField(GravityField.DEFAULT_THETA, 1);
+        moon.add(MOON_X, MOON_Y, 0, 0, MOON_MASS, true);
+        return moon;
+    }
+
+    private static void startOrbit(LanderState s, GravityField moon) {
+        s.x = ORBIT_X;
+        s.y = ORBIT_Y;
+        s.dx = ORBIT_DX;
+        s.dy = ORBIT_DY;
+        s.gravity = moon;
+    }
+
+    private static double energy(LanderState s, GravityField moon) {
+        return (s.dx * s.dx + s.dy * s.dy) / 2 + LanderPhysics.PHYS_DOWN_ACCEL_SEC * s.y
+                + moon.potential(s.x, s.y);
+    }
+
+    /**
+     * Flies the orbit.
+     *
+     * @return the energy drift, or NaN if the lander came down
+     */
+    static double orbitDrift(Integrator integrator, double frame, double seconds) {
+        GravityField moon = moon();
+        LanderState s = lander(integrator);
+        startOrbit(s, moon);
+        double e0 = energy(s, moon);
+        double scale = (ORBIT_DX * ORBIT_DX + ORBIT_DY * ORBIT_DY) / 2;
+        double worst = 0;
+        int steps = (int) Math.round(seconds / frame);
+        for (int i = 0; i < steps; i++) {
+            if (LanderPhysics.step(s, frame) != LanderPhysics.OUTCOME_FLYING) {
+                moon.close();
+                return Double.NaN;
+            }
+            worst = Math.max(worst, Math.abs(energy(s, moon) - e0));
+        }
+        moon.close();
+        return worst / scale;
+    }
+
+    /**
+     * @return nanoseconds per lander per step of a batch of orbits
+     */
+    static double timeBatch(Integrator integrator, double frame, int landers) {
+        GravityField moon = moon();
+        LanderState[] batch = new LanderState[landers];
+        int[] outcomes = new int[landers];
+        for (int i = 0; i < landers; i++) {
+            batch[i] = lander(integrator);
+            startOrbit(batch[i], moon);
+            batch[i].x += i % 20;
+        }
+        // once to warm up, once for the time
+        long nanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int step = 0; step < TIMED_STEPS; step++)
+                LanderPhysics.stepAll(batch, 0, landers, frame, outcomes);
+            nanos = System.nanoTime() - start;
+        }
+        moon.close();
+        return (double) nanos / TIMED_STEPS / landers;
+    }
+
+    public static void main(String[] args) {
+        Integrator only = null;
+        double seconds = 5;
+        int landers = 1000;
+        double maxError = Double.MAX_VALUE;
+        double maxDrift = Double.MAX_VALUE;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--integrator".equals(opt)) {
+                only = Integrators.forName(val);
+                if (only == null) throw new IllegalArgumentException("Unknown integrator " + val);
+            } else if ("--seconds".equals(opt)) seconds = Double.parseDouble(val);
+            else if ("--landers".equals(opt)) landers = Integer.parseInt(val);
+            else if ("--max-error".equals(opt)) maxError = Double.parseDouble(val);
+            else if ("--max-drift".equals(opt)) maxDrift = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || seconds <= 0 || landers < 1) {
+            System.err.println("usage: IntegratorHarness [--integrator NAME] [--seconds S] "
+                    + "[--landers N] [--max-error PX] [--max-drift F]");
+            System.exit(2);
+        }
+
+        boolean ok = true;
+        System.out.printf("%-10s %8s %12s %12s %10s%n", "", "frame ms", "burn err px",
+                "energy drift", "ns/step");
+        for (Integrator integrator : Integrators.ALL) {
+            if (only != null && integrator != only) continue;
+            for (int f = 0; f < FRAMES.length; f++) {
+                double frame = FRAMES[f];
+                double error = burnError(integrator, frame);
+                double drift = orbitDrift(integrator, frame, seconds);
+                double nanos = timeBatch(integrator, frame, landers);
+                System.out.printf("%-10s %8.2f %12s %12s %10.1f%n", integrator, frame * 1000,
+                        Double.isNaN(error) ? "came down" : String.format("%.4f", error),
+                        Double.isNaN(drift) ? "came down" : String.format("%.6f", drift),
+                        nanos);
+                if (f == CHECKED_FRAME) {
+                    // NaN fails too
+                    ok &= error <= maxError || maxError == Double.MAX_VALUE;
+                    ok &= drift <= maxDrift || maxDrift == Double.MAX_VALUE;
+                }
+            }
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
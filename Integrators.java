@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * The integrators a lander can be flown with. They differ in how often
+ * they look at the forces in a step and where:
+ * <ul>
+ * <li>TRAPEZOID, the original scheme: one look at the start, with the
+ * engine at the heading the step ends on, a velocity kick, and the
+ * position moved by the average of the old and new velocity. Exact for
+ * constant forces; wrong when the heading or the pull changes in a step.
+ * <li>SEMI_IMPLICIT_EULER: one look, the kick, then the position moved by
+ * the new velocity. First order, but keeps orbits' energy bounded.
+ * <li>VELOCITY_VERLET: two looks, at both ends of the step. Second order
+ * and symplectic.
+ * <li>RK4: four looks, classic fourth order Runge-Kutta.
+ * </ul>
+ */
+final class Integrators {
+    public static final Integrator TRAPEZOID = new Integrator() {
+        public void integrate(LanderState s, double elapsed) {
+            LanderPhysics.forces(s, s.x, s.y);
+            double ddx = s.ax * elapsed;
+            double ddy = s.ay * elapsed;
+            if (s.engineFiring) {
+                // tricky case where we run out of fuel partway through the
+                // elapsed
+                double elapsedFiring = Math.min(elapsed, LanderPhysics.burnTime(s));
+                double accel = LanderPhysics.PHYS_FIRE_ACCEL_SEC * s.throttle * elapsedFiring;
+                double radians = 2 * Math.PI * LanderPhysics.headingAt(s, elapsed) / 360;
+                ddx += Math.sin(radians) * accel;
+                ddy += Math.cos(radians) * accel;
+            }
+
+            double dxOld = s.dx;
+            double dyOld = s.dy;
+
+            // figure speeds for the end of the period
+            s.dx += ddx;
+            s.dy += ddy;
+
+            // figure position based on average speed during the period
+            s.x += elapsed * (s.dx + dxOld) / 2;
+            s.y += elapsed * (s.dy + dyOld) / 2;
+        }
+
+        @Override
+        public String toString() {
+            return "trapezoid";
+        }
+    };
+
+    public static final Integrator SEMI_IMPLICIT_EULER = new Integrator() {
+        public void integrate(LanderState s, double elapsed) {
+            LanderPhysics.acceleration(s, s.x, s.y, 0);
+            s.dx += s.ax * elapsed;
+            s.dy += s.ay * elapsed;
+            s.x += s.dx * elapsed;
+            s.y += s.dy * elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "euler";
+        }
+    };
+
+    public static final Integrator VELOCITY_VERLET = new Integrator() {
+        public void integrate(LanderState s, double elapsed) {
+            LanderPhysics.acceleration(s, s.x, s.y, 0);
+            double ax = s.ax;
+            double ay = s.ay;
+            s.x += (s.dx + ax * elapsed / 2) * elapsed;
+            s.y += (s.dy + ay * elapsed / 2) * elapsed;
+            LanderPhysics.acceleration(s, s.x, s.y, elapsed);
+            s.dx += (ax + s.ax) * elapsed / 2;
+            s.dy += (ay + s.ay) * elapsed / 2;
+        }
+
+        @Override
+        public String toString() {
+            return "verlet";
+        }
+    };
+
+    public static final Integrator RK4 = new Integrator() {
+        public void integrate(LanderState s, double elapsed) {
+            // the accelerations don't depend on velocity, so each stage's
+            // position slope is the previous stage's velocity
+            double h = elapsed;
+            double x = s.x;
+            double y = s.y;
+            double vx1 = s.dx;
+            double vy1 = s.dy;
+            LanderPhysics.acceleration(s, x, y, 0);
+            double ax1 = s.ax;
+            double ay1 = s.ay;
+
+            double vx2 = vx1 + ax1 * h / 2;
+            double vy2 = vy1 + ay1 * h / 2;
+            LanderPhysics.acceleration(s, x + vx1 * h / 2, y + vy1 * h / 2, h / 2);
+            double ax2 = s.ax;
+            double ay2 = s.ay;
+
+            double vx3 = vx1 + ax2 * h / 2;
+            double vy3 = vy1 + ay2 * h / 2;
+            LanderPhysics.acceleration(s, x + vx2 * h / 2, y + vy2 * h / 2, h / 2);
+            double ax3 = s.ax;
+            double ay3 = s.ay;
+
+            double vx4 = vx1 + ax3 * h;
+            double vy4 = vy1 + ay3 * h;
+            LanderPhysics.acceleration(s, x + vx3 * h, y + vy3 * h, h);
+            double ax4 = s.ax;
+            double ay4 = s.ay;
+
+            s.x = x + h / 6 * (vx1 + 2 * vx2 + 2 * vx3 + vx4);
+            s.y = y + h / 6 * (vy1 + 2 * vy2 + 2 * vy3 + vy4);
+            s.dx = vx1 + h / 6 * (ax1 + 2 * ax2 + 2 * ax3 + ax4);
+            s.dy = vy1 + h / 6 * (ay1 + 2 * ay2 + 2 * ay3 + ay4);
+        }
+
+        @Override
+        public String toString() {
+            return "rk4";
+        }
+    };
+
+    /** Every integrator, the original first. */
+    public static final Integrator[] ALL = {
+            TRAPEZOID, SEMI_IMPLICIT_EULER, VELOCITY_VERLET, RK4
+    };
+
+    private Integrators() {
+    }
+
+    /**
+     * @param name as given by the integrator's toString()
+     * @return the integrator, or null if there is none by that name
+     */
+    public static Integrator forName(String name) {
+        for (Integrator i : ALL) {
+            if (i.toString().equals(name)) return i;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * The lander rules, independent of any View or thread: how a game is set up
+ * for a difficulty and how a LanderState advances over a slice of time.
+ * LunarThread drives this from realtime; the replay and simulation tools
+ * drive it from their own clocks.
+ */
+final class LanderPhysics {
+    /*
+     * Difficulty setting constants
+     */
+    public static final int DIFFICULTY_EASY = 0;
+    public static final int DIFFICULTY_HARD = 1;
+    public static final int DIFFICULTY_MEDIUM = 2;
+    /*
+     * Physics constants
+     */
+    public static final int PHYS_DOWN_ACCEL_SEC = 35;
+    public static final int PHYS_FIRE_ACCEL_SEC = 80;
+    public static final int PHYS_FUEL_INIT = 60;
+    public static final int PHYS_FUEL_MAX = 100;
+    public static final int PHYS_FUEL_SEC = 10;
+    public static final int PHYS_SLEW_SEC = 120; // degrees/second rotate
+    public static final int PHYS_SPEED_HYPERSPACE = 180;
+    public static final int PHYS_SPEED_INIT = 30;
+    public static final int PHYS_SPEED_MAX = 120;
+    /*
+     * Goal condition constants
+     */
+    public static final int TARGET_ANGLE = 18; // > this angle means crash
+    public static final int TARGET_BOTTOM_PADDING = 17; // px below gear
+    public static final int TARGET_PAD_HEIGHT = 8; // how high above ground
+    public static final int TARGET_SPEED = 28; // > this speed means crash
+    public static final double TARGET_WIDTH = 1.6; // width of target
+    /*
+     * Swept collision constants
+     */
+    /** Most travel, in px, between two looks at the terrain in a step. */
+    private static final double SWEEP_PX = 2;
+    /** Time of impact is found to within this, in seconds. */
+    private static final double SWEEP_EPSILON = 1e-7;
+    /** Random goal positions tried before start() places it directly. */
+    private static final int GOAL_TRIES = 16;
+    /*
+     * Step outcomes
+     */
+    public static final int OUTCOME_FLYING = 0;
+    public static final int OUTCOME_LANDED = 1;
+    public static final int OUTCOME_HYPERSPACE = 2;
+    public static final int OUTCOME_OFF_PAD = 3;
+    public static final int OUTCOME_BAD_ANGLE = 4;
+    public static final int OUTCOME_TOO_FAST = 5;
+
+    private LanderPhysics() {
+    }
+
+    /**
+     * Sets up a new game for the given difficulty: fuel, goal limits, the
+     * starting position at the top of the canvas, a little random motion
+     * and a landing pad not too near the center.
+     *
+     * The lander size in the state must already be set.
+     *
+     * @param s the state to reset
+     * @param difficulty one of the DIFFICULTY_* constants
+     * @param canvasWidth width of the playing field
+     * @param canvasHeight height of the playing field
+     * @param random source of the initial motion and pad position
+     */
+    public static void start(LanderState s, int difficulty, int canvasWidth,
+            int canvasHeight, Random random) {
+        // First set the game for Medium difficulty
+        s.fuel = PHYS_FUEL_INIT;
+        s.engineFiring = false;
+        s.goalWidth = (int) (s.landerWidth * TARGET_WIDTH);
+        s.goalSpeed = TARGET_SPEED;
+        s.goalAngle = TARGET_ANGLE;
+        int speedInit = PHYS_SPEED_INIT;
+
+        // Adjust difficulty params for EASY/HARD
+        if (difficulty == DIFFICULTY_EASY) {
+            s.fuel = s.fuel * 3 / 2;
+            s.goalWidth = s.goalWidth * 4 / 3;
+            s.goalSpeed = s.goalSpeed * 3 / 2;
+            s.goalAngle = s.goalAngle * 4 / 3;
+            speedInit = speedInit * 3 / 4;
+        } else if (difficulty == DIFFICULTY_HARD) {
+            s.fuel = s.fuel * 7 / 8;
+            s.goalWidth = s.goalWidth * 3 / 4;
+            s.goalSpeed = s.goalSpeed * 7 / 8;
+            speedInit = speedInit * 4 / 3;
+        }
+
+        // pick a convenient initial location for the lander sprite
+        s.x = canvasWidth / 2;
+        s.y = canvasHeight - s.landerHeight / 2;
+
+        // start with a little random motion
+        s.dy = random.nextDouble() * -speedInit;
+        s.dx = random.nextDouble() * 2 * speedInit - speedInit;
+        s.heading = 0;
+
+        // Figure initial spot for landing, not too near center
+        double start = s.x - s.landerWidth / 2;
+        int near = canvasHeight / 6;
+        int range = canvasWidth - s.goalWidth;
+        for (int tries = 0; tries < GOAL_TRIES; tries++) {
+            s.goalX = (int) (random.nextDouble() * range);
+            if (Math.abs(s.goalX - start) > near) return;
+        }
+        // unlucky: draw once from the allowed spans on either side
+        int leftSpan = Math.max(0, (int) Math.ceil(start - near));
+        int rightFrom = (int) Math.floor(start + near) + 1;
+        int rightSpan = Math.max(0, range - rightFrom + 1);
+        if (leftSpan + rightSpan == 0) {
+            // the canvas is too narrow; take the far edge
+            s.goalX = start > range / 2 ? 0 : Math.max(0, range);
+            return;
+        }
+        int pick = (int) (random.nextDouble() * (leftSpan + rightSpan));
+        s.goalX = pick < leftSpan ? pick : rightFrom + (pick - leftSpan);
+    }
+
+    /**
+     * Advances the lander by the given slice of time and evaluates the
+     * touchdown if it reached the ground. On touchdown the lander is left
+     * resting on the ground with its velocity, heading and fuel at the
+     * moment of impact.
+     *
+     * The lander is moved by its integrator, which sees the heading and
+     * fuel as they were at the start of the step; they are brought up to
+     * date afterwards.
+     *
+     * Collision is swept: the lander's path through the step is taken as
+     * the parabola from where it started, with the velocity it started
+     * with, to where the integrator left it, and the first time along it
+     * that the gear meets the ground is found, however long the step and
+     * however fast the lander. Pad, speed and angle are judged at that
+     * instant, so big steps can't skip over a pad edge or through a hill.
+     *
+     * @param s the state to advance
+     * @param elapsed seconds since the last step
+     * @return one of the OUTCOME_* constants
+     */
+    public static int step(LanderState s, double elapsed) {
+        double x0 = s.x;
+        double y0 = s.y;
+        double dxOld = s.dx;
+        double dyOld = s.dy;
+        double heading0 = s.heading;
+        double fuel0 = s.fuel;
+
+        s.integrator.integrate(s, elapsed);
+
+        if (s.engineFiring) {
+            double fuelUsed = elapsed * PHYS_FUEL_SEC * s.throttle;
+            if (fuelUsed > s.fuel) {
+                // Oddball case where we adjust the "control" from here
+                fuelUsed = s.fuel;
+                s.engineFiring = false;
+            }
+            s.fuel -= fuelUsed;
+        }
+
+        // rotating -- update heading
+        if (s.rotating != 0) s.heading = wrap(headingAt(s, elapsed));
+
+        // the parabola through the step
+        double ax = 0;
+        double ay = 0;
+        if (elapsed > 0) {
+            ax = 2 * (s.x - x0 - dxOld * elapsed) / (elapsed * elapsed);
+            ay = 2 * (s.y - y0 - dyOld * elapsed) / (elapsed * elapsed);
+        }
+
+        // Evaluate if we have landed
+        double t = impactTime(s, x0, y0, dxOld, dyOld, ax, ay, elapsed);
+        if (t < 0) return OUTCOME_FLYING;
+        if (t < elapsed) {
+            // back up to the moment of impact
+            double f = elapsed > 0 ? t / elapsed : 0;
+            s.x = x0 + dxOld * t + ax * t * t / 2;
+            s.dx = dxOld + (s.dx - dxOld) * f;
+            s.dy = dyOld + (s.dy - dyOld) * f;
+            s.fuel = fuel0 + (s.fuel - fuel0) * f;
+            if (s.rotating != 0) {
+                s.heading = wrap(heading0 + s.rotating * (PHYS_SLEW_SEC * s.rotateAmount * t));
+            }
+        }
+        s.y = groundY(s);
+        return evaluateTouchdown(s);
+    }
+
+    /**
+     * Steps a batch of landers by the same slice of time, each with its
+     * own integrator.
+     *
+     * @param outcomes receives the OUTCOME_* of each lander, at the same
+     *        index
+     */
+    public static void stepAll(LanderState[] landers, int from, int to, double elapsed,
+            int[] outcomes) {
+        for (int i = from; i < to; i++)
+            outcomes[i] = step(landers[i], elapsed);
+    }
+
+    /**
+     * The lander's acceleration were it at (x, y), t seconds into the
+     * current step: gravity, the pull of any bodies, the wind and the
+     * engine. Left in s.ax and s.ay.
+     */
+    static void acceleration(LanderState s, double x, double y, double t) {
+        forces(s, x, y);
+        if (s.engineFiring && t < burnTime(s)) {
+            double accel = PHYS_FIRE_ACCEL_SEC * s.throttle;
+            double radians = 2 * Math.PI * headingAt(s, t) / 360;
+            s.ax += Math.sin(radians) * accel;
+            s.ay += Math.cos(radians) * accel;
+        }
+    }
+
+    /**
+     * The lander's acceleration at (x, y) from everything but the engine.
+     * Left in s.ax and s.ay.
+     */
+    static void forces(LanderState s, double x, double y) {
+        // Base accelerations -- 0 for x, gravity for y
+        double ax = 0.0;
+        double ay = -PHYS_DOWN_ACCEL_SEC;
+
+        // moons and asteroids pull on top of the ground's own gravity
+        if (s.gravity != null) {
+            s.gravity.sample(x, y);
+            ax += s.gravity.getSampleX();
+            ay += s.gravity.getSampleY();
+        }
+
+        // and the wind pushes
+        if (s.wind != null) {
+            ax += s.wind.accelX(x, y);
+            ay += s.wind.accelY(x, y);
+        }
+        s.ax = ax;
+        s.ay = ay;
+    }
+
+    /**
+     * Seconds the engine can burn, from the start of the step, on the fuel
+     * the lander had then.
+     */
+    static double burnTime(LanderState s) {
+        double rate = PHYS_FUEL_SEC * s.throttle;
+        return rate > 0 ? s.fuel / rate : Double.MAX_VALUE;
+    }
+
+    /**
+     * Heading t seconds into the current step, not brought back into
+     * 0..360.
+     */
+    static double headingAt(LanderState s, double t) {
+        return s.heading + s.rotating * (PHYS_SLEW_SEC * s.rotateAmount * t);
+    }
+
+    /**
+     * Brings a heading back into the range 0..360.
+     */
+    private static double wrap(double heading) {
+        if (heading < 0)
+            heading += 360;
+        else if (heading >= 360) heading -= 360;
+        return heading;
+    }
+
+    /**
+     * Finds when during a step the gear first touched the ground. The
+     * lander has already been moved to the end of the step; it left from
+     * (x0, y0) with velocity (dx0, dy0), under constant acceleration (ax,
+     * ay).
+     *
+     * Flat ground is a quadratic, solved exactly. Terrain is looked at
+     * every SWEEP_PX of travel, and the first crossing narrowed down by
+     * bisection.
+     *
+     * @return seconds into the step, or -1 if the lander is still flying
+     */
+    private static double impactTime(LanderState s, double x0, double y0, double dx0,
+            double dy0, double ax, double ay, double elapsed) {
+        if (y0 <= groundYAt(s, x0)) return 0;
+        if (elapsed <= 0) return -1;
+
+        if (s.terrain == null) {
+            // y0 + dy0 t + ay t^2 / 2 = ground
+            double a = ay / 2;
+            double b = dy0;
+            double c = y0 - groundYAt(s, x0);
+            double t = Double.MAX_VALUE;
+            if (a == 0) {
+                if (b < 0) t = -c / b;
+            } else {
+                double disc = b * b - 4 * a * c;
+                if (disc >= 0) {
+                    // the stable form of the two roots
+                    double q = -(b + (b < 0 ? -1 : 1) * Math.sqrt(disc)) / 2;
+                    double r1 = q / a;
+                    double r2 = q != 0 ? c / q : r1;
+                    if (r1 > 0) t = r1;
+                    if (r2 > 0 && r2 < t) t = r2;
+                }
+            }
+            return t <= elapsed ? t : -1;
+        }
+
+        double travel = Math.max(Math.abs(s.x - x0), Math.abs(s.y - y0))
+                + (Math.abs(ax) + Math.abs(ay)) * elapsed * elapsed / 8;
+        int samples = Math.max(1, (int) Math.ceil(travel / SWEEP_PX));
+        double before = 0;
+        for (int i = 1; i <= samples; i++) {
+            double t = elapsed * i / samples;
+            if (clearance(s, x0, y0, dx0, dy0, ax, ay, t) > 0) {
+                before = t;
+                continue;
+            }
+            // touched somewhere in (before, t]
+            double after = t;
+            while (after - before > SWEEP_EPSILON) {
+                double mid = (before + after) / 2;
+                if (clearance(s, x0, y0, dx0, dy0, ax, ay, mid) > 0) before = mid;
+                else after = mid;
+            }
+            return after;
+        }
+        return -1;
+    }
+
+    /**
+     * Height of the gear above the ground at time t into a step.
+     */
+    private static double clearance(LanderState s, double x0, double y0, double dx0,
+            double dy0, double ax, double ay, double t) {
+        double x = x0 + dx0 * t + ax * t * t / 2;
+        double y = y0 + dy0 * t + ay * t * t / 2;
+        return y - groundYAt(s, x);
+    }
+
+    /**
+     * Y of the lander center when its gear rests on the ground.
+     */
+    public static double groundY(LanderState s) {
+        return groundYAt(s, s.x);
+    }
+
+    /**
+     * Y of the lander center when its gear rests on the ground, were the
+     * lander centered on x.
+     */
+    private static double groundYAt(LanderState s, double x) {
+        double ground = TARGET_PAD_HEIGHT;
+        if (s.terrain != null) {
+            ground = s.terrain.heightUnder(x - s.landerWidth / 2, x + s.landerWidth / 2);
+        }
+        return ground + s.landerHeight / 2 - TARGET_BOTTOM_PADDING;
+    }
+
+    /**
+     * Is the lander horizontally within the landing pad, or within any
+     * pad of its level or terrain?
+     */
+    public static boolean isOnGoal(LanderState s) {
+        return isOnGoal(s, padUnder(s));
+    }
+
+    /**
+     * @param pad padUnder(s), looked up already
+     */
+    private static boolean isOnGoal(LanderState s, int pad) {
+        if (pad >= 0) return true;
+        double left = s.x - s.landerWidth / 2;
+        double right = s.x + s.landerWidth / 2;
+        if (s.goalX <= left && right <= s.goalX + s.goalWidth) return true;
+        // a terrain built on the level's PadIndex has no other pads
+        return s.pads == null && s.terrain != null && s.terrain.hasPadUnder(left, right);
+    }
+
+    /**
+     * @return the pad of the level's PadIndex under the lander, or -1 if
+     *         it has none or the lander is not over one
+     */
+    public static int padUnder(LanderState s) {
+        if (s.pads == null) return -1;
+        return s.pads.find(s.x - s.landerWidth / 2, s.x + s.landerWidth / 2);
+    }
+
+    /**
+     * Where the lander would come down if it coasted from here with the
+     * engine off, over ground as high as the ground under it now.
+     *
+     * @return x of the lander center at touchdown
+     */
+    public static double predictTouchdownX(LanderState s) {
+        double drop = Math.max(0, s.y - groundY(s));
+        // y + dy t - g t^2 / 2 = ground
+        double t = (s.dy + Math.sqrt(s.dy * s.dy + 2 * PHYS_DOWN_ACCEL_SEC * drop))
+                / PHYS_DOWN_ACCEL_SEC;
+        return s.x + s.dx * t;
+    }
+
+    /**
+     * Judges a touchdown at the lander's current position, speed and
+     * heading, against the limits of the pad it came down on.
+     *
+     * @return one of the OUTCOME_* constants other than OUTCOME_FLYING
+     */
+    public static int evaluateTouchdown(LanderState s) {
+        double speed = s.speed();
+        int pad = padUnder(s);
+        boolean onGoal = isOnGoal(s, pad);
+        int goalAngle = pad >= 0 ? s.pads.getAngle(pad) : s.goalAngle;
+        int goalSpeed = pad >= 0 ? s.pads.getSpeed(pad) : s.goalSpeed;
+
+        // "Hyperspace" win -- upside down, going fast,
+        // puts you back at the top.
+        if (onGoal && Math.abs(s.heading - 180) < goalAngle
+                && speed > PHYS_SPEED_HYPERSPACE) {
+            return OUTCOME_HYPERSPACE;
+        } else if (!onGoal) {
+            return OUTCOME_OFF_PAD;
+        } else if (!(s.heading <= goalAngle || s.heading >= 360 - goalAngle)) {
+            return OUTCOME_BAD_ANGLE;
+        } else if (speed > goalSpeed) {
+            return OUTCOME_TOO_FAST;
+        }
+        return OUTCOME_LANDED;
+    }
+
+    /**
+     * Scores a touchdown from 0 to 1000: up to 400 for speed below the goal
+     * speed, 300 for heading within the goal angle and 300 for fuel left.
+     * Crashes score 0; hyperspace wins get full speed credit and have their
+     * angle measured from upside down. A landing on a pad of the level's
+     * PadIndex is judged by that pad's limits and its score multiplied by
+     * the pad's multiplier.
+     *
+     * @param outcome the result of evaluateTouchdown() for this state
+     */
+    public static int landingScore(LanderState s, int outcome) {
+        if (!isWin(outcome)) return 0;
+
+        int pad = padUnder(s);
+        double goalAngle = pad >= 0 ? s.pads.getAngle(pad) : s.goalAngle;
+        double goalSpeed = pad >= 0 ? s.pads.getSpeed(pad) : s.goalSpeed;
+        double multiplier = pad >= 0 ? s.pads.getMultiplier(pad) : 1;
+        double angle = outcome == OUTCOME_HYPERSPACE
+                ? Math.abs(s.heading - 180)
+                : Math.min(s.heading, 360 - s.heading);
+        double speedMargin = outcome == OUTCOME_HYPERSPACE ? 1
+                : 1 - s.speed() / goalSpeed;
+        double angleMargin = 1 - angle / goalAngle;
+        double fuelMargin = s.fuel / PHYS_FUEL_MAX;
+        return (int) Math.round(multiplier * (400 * clamp(speedMargin)
+                + 300 * clamp(angleMargin) + 300 * clamp(fuelMargin)));
+    }
+
+    private static double clamp(double v) {
+        return v < 0 ? 0 : (v > 1 ? 1 : v);
+    }
+
+    /**
+     * Is this outcome a win?
+     */
+    public static boolean isWin(int outcome) {
+        return outcome == OUTCOME_LANDED || outcome == OUTCOME_HYPERSPACE;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Everything LanderPhysics needs to advance one lander: the ship itself, its
+ * controls, and the landing goal it is flying at. All x/y are measured with
+ * (0,0) at the lower left, as in LunarView.
+ *
+ * Plain fields, like android.graphics.RectF, since this is passed around the
+ * game loop and copied a lot.
+ */
+final class LanderState {
+    /** X of lander center. */
+    public double x;
+
+    /** Y of lander center. */
+    public double y;
+
+    /** Velocity dx. */
+    public double dx;
+
+    /** Velocity dy. */
+    public double dy;
+
+    /**
+     * Lander heading in degrees, with 0 up, 90 right. Kept in the range
+     * 0..360.
+     */
+    public double heading;
+
+    /** Fuel remaining */
+    public double fuel;
+
+    /** Is the engine burning? */
+    public boolean engineFiring;
+
+    /** Fraction of full thrust used while the engine burns, 0..1. */
+    public double throttle = 1.0;
+
+    /** Currently rotating, -1 left, 0 none, 1 right. */
+    public int rotating;
+
+    /** Fraction of the full slew rate used while rotating, 0..1. */
+    public double rotateAmount = 1.0;
+
+    /** X of the landing pad. */
+    public int goalX;
+
+    /** Width of the landing pad. */
+    public int goalWidth;
+
+    /** Allowed speed. */
+    public int goalSpeed;
+
+    /** Allowed angle. */
+    public int goalAngle;
+
+    /** Pixel width of lander image. */
+    public int landerWidth;
+
+    /** Pixel height of lander image. */
+    public int landerHeight;
+
+    /** Ground to land on, or null for the flat ground of the original game. */
+    public Ground terrain;
+
+    /** Pads of a multi-pad level, or null for just the goal pad. */
+    public PadIndex pads;
+
+    /** Bodies pulling on the lander besides the ground, or null. */
+    public GravityField gravity;
+
+    /** Wind pushing on the lander, or null for still air. */
+    public WindField wind;
+
+    /** Moves the lander through each step. */
+    public Integrator integrator = Integrators.TRAPEZOID;
+
+    /**
+     * Acceleration found by LanderPhysics.acceleration(), for the
+     * integrators; scratch, not part of the game.
+     */
+    public double ax;
+    public double ay;
+
+    /**
+     * Copies every field of another state into this one.
+     *
+     * @param other the state to copy
+     */
+    public void set(LanderState other) {
+        x = other.x;
+        y = other.y;
+        dx = other.dx;
+        dy = other.dy;
+        heading = other.heading;
+        fuel = other.fuel;
+        engineFiring = other.engineFiring;
+        throttle = other.throttle;
+        rotating = other.rotating;
+        rotateAmount = other.rotateAmount;
+        goalX = other.goalX;
+        goalWidth = other.goalWidth;
+        goalSpeed = other.goalSpeed;
+        goalAngle = other.goalAngle;
+        landerWidth = other.landerWidth;
+        landerHeight = other.landerHeight;
+        terrain = other.terrain;
+        pads = other.pads;
+        gravity = other.gravity;
+        wind = other.wind;
+        integrator = other.integrator;
+        ax = other.ax;
+        ay = other.ay;
+    }
+
+    /** Current speed, in pixels/second. */
+    public double speed() {
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
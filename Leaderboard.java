@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One ranking of players by their best score, highest first; ties go to
+ * whoever got there first.
+ *
+ * Players are spread over shards by key. Each shard is an order-statistic
+ * treap (every node knows its subtree size) behind its own read/write lock,
+ * so inserts for different players mostly proceed in parallel. A player's
+ * rank is the sum over shards of entries ranked above them, and the top K
+ * is merged from each shard's top K; both are O(shards * log n).
+ */
+final class Leaderboard {
+    /**
+     * One player's standing. Immutable.
+     */
+    static final class Entry {
+        public final String key;
+        public final long score;
+
+        /** Submission order, breaks ties in favour of the earlier. */
+        final long seq;
+
+        Entry(String key, long score, long seq) {
+            this.key = key;
+            this.score = score;
+            this.seq = seq;
+        }
+
+        /** Does this entry rank above the other one? */
+        boolean above(long otherScore, long otherSeq) {
+            return score > otherScore || (score == otherScore && seq < otherSeq);
+        }
+    }
+
+    private static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.above(b.score, b.seq)) return -1;
+            return b.above(a.score, a.seq) ? 1 : 0;
+        }
+    };
+
+    private final Shard[] mShards;
+    private final AtomicLong mSeq = new AtomicLong();
+
+    /**
+     * @param shards number of independently locked shards, typically the
+     *        number of cores
+     */
+    public Leaderboard(int shards) {
+        mShards = new Shard[Math.max(1, shards)];
+        for (int i = 0; i < mShards.length; i++)
+            mShards[i] = new Shard(i);
+    }
+
+    /**
+     * Records a score. Only improves the player's standing, never lowers it.
+     *
+     * @return true if this is the player's new best
+     */
+    public boolean submit(String key, long score) {
+        return shardOf(key).submit(key, score, mSeq);
+    }
+
+    /**
+     * @return the player's entry, or null if they have none
+     */
+    public Entry get(String key) {
+        return shardOf(key).get(key);
+    }
+
+    /**
+     * @return 1-based rank of the player, or 0 if they have no entry
+     */
+    public long rankOf(String key) {
+        Entry e = get(key);
+        if (e == null) return 0;
+        long above = 0;
+        for (Shard s : mShards)
+            above += s.countAbove(e.score, e.seq);
+        return above + 1;
+    }
+
+    /**
+     * @return the best k entries, best first
+     */
+    public List<Entry> top(int k) {
+        ArrayList<Entry> all = new ArrayList<Entry>(k * mShards.length);
+        for (Shard s : mShards)
+            s.top(k, all);
+        Entry[] sorted = all.toArray(new Entry[all.size()]);
+        Arrays.sort(sorted, RANKING);
+        return Arrays.asList(sorted).subList(0, Math.min(k, sorted.length));
+    }
+
+    public long size() {
+        long n = 0;
+        for (Shard s : mShards)
+            n += s.size();
+        return n;
+    }
+
+    /**
+     * Takes a consistent copy of the whole board, best first. All shards
+     * are read-locked together while copying, so concurrent submits wait
+     * for the copy but never see a torn view.
+     */
+    public Entry[] snapshot() {
+        for (Shard s : mShards)
+            s.mLock.readLock().lock();
+        Entry[] all;
+        try {
+            long n = 0;
+            for (Shard s : mShards)
+                n += sizeOf(s.mRoot);
+            all = new Entry[(int) n];
+            int at = 0;
+            for (Shard s : mShards)
+                at = collect(s.mRoot, all, at, all.length);
+        } finally {
+            for (int i = mShards.length - 1; i >= 0; i--)
+                mShards[i].mLock.readLock().unlock();
+        }
+        Arrays.sort(all, RANKING);
+        return all;
+    }
+
+    /**
+     * Writes a snapshot as a count followed by (rank, key, score) rows.
+     */
+    public void exportSnapshot(DataOutput out) throws IOException {
+        Entry[] all = snapshot();
+        out.writeInt(all.length);
+        for (int i = 0; i < all.length; i++) {
+            out.writeInt(i + 1);
+            out.writeUTF(all[i].key);
+            out.writeLong(all[i].score);
+        }
+    }
+
+    private Shard shardOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return mShards[(h & 0x7fffffff) % mShards.length];
+    }
+
+    /**
+     * Treap node, ordered by ranking, heap-ordered by priority.
+     */
+    private static final class Node {
+        final Entry entry;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(Entry entry, int priority) {
+            this.entry = entry;
+            this.priority = priority;
+        }
+    }
+
+    private static final class Shard {
+        final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+        final HashMap<String, Entry> mBest = new HashMap<String, Entry>();
+        final Random mRandom;
+        Node mRoot;
+
+        /* split() results, only touched with the write lock held */
+        Node mSplitLeft;
+        Node mSplitRight;
+
+        Shard(int seed) {
+            mRandom = new Random(seed);
+        }
+
+        boolean submit(String key, long score, AtomicLong seq) {
+            mLock.writeLock().lock();
+            try {
+                Entry old = mBest.get(key);
+                if (old != null && old.score >= score) return false;
+                Entry entry = new Entry(key, score, seq.incrementAndGet());
+                if (old != null) mRoot = remove(mRoot, old);
+                mRoot = insert(mRoot, new Node(entry, mRandom.nextInt()));
+                mBest.put(key, entry);
+                return true;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+
+        Entry get(String key) {
+            mLock.readLock().lock();
+            try {
+                return mBest.get(key);
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        long size() {
+            mLock.readLock().lock();
+            try {
+                return sizeOf(mRoot);
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        long countAbove(long score, long seq) {
+            mLock.readLock().lock();
+            try {
+                long n = 0;
+                Node t = mRoot;
+                while (t != null) {
+                    if (t.entry.above(score, seq)) {
+                        n += sizeOf(t.left) + 1;
+                        t = t.right;
+                    } else {
+                        t = t.left;
+                    }
+                }
+                return n;
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        void top(int k, List<Entry> out) {
+            mLock.readLock().lock();
+            try {
+                Entry[] buf = new Entry[Math.min(k, sizeOf(mRoot))];
+                collect(mRoot, buf, 0, buf.length);
+                out.addAll(Arrays.asList(buf));
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        private Node insert(Node t, Node n) {
+            if (t == null) return n;
+            if (n.priority > t.priority) {
+                split(t, n.entry);
+                n.left = mSplitLeft;
+                n.right = mSplitRight;
+                update(n);
+                return n;
+            }
+            if (n.entry.above(t.entry.score, t.entry.seq))
+                t.left = insert(t.left, n);
+            else
+                t.right = insert(t.right, n);
+            update(t);
+            return t;
+        }
+
+        /** Splits t into the nodes ranked above e and the rest. */
+        private void split(Node t, Entry e) {
+            if (t == null) {
+                mSplitLeft = mSplitRight = null;
+            } else if (t.entry.above(e.score, e.seq)) {
+                split(t.right, e);
+                t.right = mSplitLeft;
+                update(t);
+                mSplitLeft = t;
+            } else {
+                split(t.left, e);
+                t.left = mSplitRight;
+                update(t);
+                mSplitRight = t;
+            }
+        }
+
+        private Node remove(Node t, Entry e) {
+            if (t == null) return null;
+            if (t.entry == e) return merge(t.left, t.right);
+            if (t.entry.above(e.score, e.seq))
+                t.right = remove(t.right, e);
+            else
+                t.left = remove(t.left, e);
+            update(t);
+            return t;
+        }
+
+        private Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority > b.priority) {
+                a.right = merge(a.right, b);
+                update(a);
+                return a;
+            }
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static int sizeOf(Node t) {
+        return t == null ? 0 : t.size;
+    }
+
+    private static void update(Node t) {
+        t.size = sizeOf(t.left) + sizeOf(t.right) + 1;
+    }
+
+    /** In-order copy of up to limit entries into out, starting at at. */
+    private static int collect(Node t, Entry[] out, int at, int limit) {
+        while (t != null && at < limit) {
+            at = collect(t.left, out, at, limit);
+            if (at < limit) out[at++] = t.entry;
+            t = t.right;
+        }
+        return at;
+    }
+}
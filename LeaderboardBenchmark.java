@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded load test for Leaderboard on a desktop JVM. Preloads a
+ * board, then runs a mix of 80% submits, 15% rank queries and 5% top-10
+ * queries from 1, 2, 4, ... threads and reports throughput.
+ *
+ * Usage: LeaderboardBenchmark [players] [maxThreads] [seconds]
+ */
+public class LeaderboardBenchmark {
+    private static String key(int player) {
+        return "pilot" + player;
+    }
+
+    private static long run(final Leaderboard board, final int players, int threads,
+            final long nanos) throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long seed = t * 7919L + System.nanoTime();
+            new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long end = System.nanoTime() + nanos;
+                    long n = 0;
+                    long sink = 0;
+                    while ((n & 255) != 0 || System.nanoTime() < end) {
+                        String k = key(random.nextInt(players));
+                        int op = random.nextInt(100);
+                        if (op < 80) {
+                            board.submit(k, random.nextInt(1000000));
+                        } else if (op < 95) {
+                            sink += board.rankOf(k);
+                        } else {
+                            List<Leaderboard.Entry> top = board.top(10);
+                            sink += top.size();
+                        }
+                        n++;
+                    }
+                    ops.addAndGet(n + (sink == 42 ? 1 : 0));
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return ops.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 3;
+
+        Leaderboard board = new Leaderboard(Runtime.getRuntime().availableProcessors() * 2);
+        long t0 = System.nanoTime();
+        Random random = new Random(1);
+        for (int i = 0; i < players; i++)
+            board.submit(key(i), random.nextInt(1000000));
+        System.out.printf("preloaded %d players in %.0fms%n", board.size(),
+                (System.nanoTime() - t0) / 1e6);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long nanos = (long) (seconds * 1e9);
+            long ops = run(board, players, threads, nanos);
+            System.out.printf("%2d threads: %,.0f ops/s%n", threads, ops / seconds);
+        }
+
+        t0 = System.nanoTime();
+        Leaderboard.Entry[] all = board.snapshot();
+        long t1 = System.nanoTime();
+        for (int i = 1; i < all.length; i++) {
+            if (all[i].score > all[i - 1].score)
+                throw new AssertionError("snapshot out of order at " + i);
+        }
+        String probe = all[all.length / 2].key;
+        if (board.rankOf(probe) != all.length / 2 + 1)
+            throw new AssertionError("rank of " + probe + " is " + board.rankOf(probe));
+        System.out.printf("snapshot of %d entries in %.0fms, ranks consistent%n",
+                all.length, (t1 - t0) / 1e6);
+    }
+}
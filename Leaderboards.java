@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * The leaderboards of the game: best landing score and longest win streak,
+ * one of each per difficulty.
+ */
+final class Leaderboards {
+    /*
+     * Board kinds
+     */
+    public static final int BOARD_LANDING = 0;
+    public static final int BOARD_STREAK = 1;
+
+    private final Leaderboard[][] mBoards =
+            new Leaderboard[PilotProfile.DIFFICULTIES][2];
+
+    /**
+     * @param shards shards per board, see Leaderboard
+     */
+    public Leaderboards(int shards) {
+        for (int d = 0; d < PilotProfile.DIFFICULTIES; d++) {
+            mBoards[d][BOARD_LANDING] = new Leaderboard(shards);
+            mBoards[d][BOARD_STREAK] = new Leaderboard(shards);
+        }
+    }
+
+    /**
+     * Enters a finished flight into the boards of its difficulty.
+     *
+     * @param score see LanderPhysics.landingScore()
+     * @param streak the player's wins in a row, including this flight
+     */
+    public void submitFlight(String key, int difficulty, int score, int streak) {
+        if (score > 0) mBoards[difficulty][BOARD_LANDING].submit(key, score);
+        if (streak > 0) mBoards[difficulty][BOARD_STREAK].submit(key, streak);
+    }
+
+    /**
+     * @param difficulty one of the LanderPhysics.DIFFICULTY_* constants
+     * @param kind one of the BOARD_* constants
+     */
+    public Leaderboard get(int difficulty, int kind) {
+        return mBoards[difficulty][kind];
+    }
+}
@@ -16,7 +16,13 @@
 
 package com.example.android.lunarlander;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -26,10 +32,12 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Drawable.ConstantState;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
@@ -39,7 +47,6 @@ import android.view.LayoutInflater;
 //import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.Surface;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
@@ -71,8 +78,29 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
 	private WindowManager mWindowManager;
 	private Display mDisplay;
 	private WakeLock mWakeLock;
+	private SensorPipeline mSensorPipeline;
 	private ArrayList<AccountData> mAccounts;
 	private AccountAdapter mAccountAdapter;
+	private AccountLoadTask mAccountLoadTask;
+	private ProfileStore mProfileStore;
+	private ScoreSync mScoreSync;
+	private GhostStore mGhostStore;
+	private GhostLoadTask mGhostLoadTask;
+	private TelemetryRecorder mTelemetry;
+
+	private NetClient mNetClient;
+
+	/** Is a ghost being raced, or about to be? */
+	private boolean mRacingGhost;
+
+	/** Profile key of the account picked in the spinner. */
+	private volatile String mProfileKey;
+
+	/** Authenticator labels, shared by every account of a type. */
+	private static ResourceCache<CharSequence> sLabelCache;
+
+	/** Authenticator icons, shared by every account of a type. */
+	private static ResourceCache<ConstantState> sIconCache;
 
     private static final int MENU_EASY = 1;
 
@@ -88,6 +116,21 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
 
     private static final int MENU_STOP = 7;
 
+    private static final int MENU_RECORD = 8;
+
+    private static final int MENU_GHOST = 9;
+
+    private static final int MENU_JOIN = 10;
+
+    private static final int MENU_WIDE = 11;
+
+    private static final int MENU_MOONS = 12;
+
+    private static final int MENU_WIND = 13;
+
+    /** Flight recordings kept on the device. */
+    private static final int MAX_TELEMETRY_FLIGHTS = 2000;
+
     /** A handle to the thread that's actually running the animation. */
     private LunarThread mLunarThread;
 
@@ -125,6 +168,12 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
         menu.add(0, MENU_EASY, 0, R.string.menu_easy);
         menu.add(0, MENU_MEDIUM, 0, R.string.menu_medium);
         menu.add(0, MENU_HARD, 0, R.string.menu_hard);
+        menu.add(0, MENU_RECORD, 0, R.string.menu_record);
+        menu.add(0, MENU_GHOST, 0, R.string.menu_ghost);
+        menu.add(0, MENU_JOIN, 0, R.string.menu_join);
+        menu.add(0, MENU_WIDE, 0, R.string.menu_wide);
+        menu.add(0, MENU_MOONS, 0, R.string.menu_moons);
+        menu.add(0, MENU_WIND, 0, R.string.menu_wind);
 
         return true;
     }
@@ -180,6 +229,54 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
             case MENU_HARD:
                 mLunarThread.setDifficulty(LunarThread.DIFFICULTY_HARD);
                 return true;
+            case MENU_RECORD:
+                if (mSimulationView.isRecording()) {
+                    mSimulationView.stopRecording();
+                } else {
+                    File trace = new File(getExternalFilesDir(null),
+                            "accel-" + System.currentTimeMillis() + ".trace");
+                    mSimulationView.startRecording(trace);
+                }
+                return true;
+            case MENU_GHOST:
+                if (mGhostLoadTask != null)
+                    mGhostLoadTask.cancel(false);
+                mGhostLoadTask = null;
+                mRacingGhost = !mRacingGhost;
+                if (mRacingGhost && mProfileKey != null) {
+                    mGhostLoadTask = new GhostLoadTask(mLunarThread.getDifficulty(),
+                            mLunarThread.getGhostMode());
+                    mGhostLoadTask.execute(mProfileKey);
+                } else {
+                    mRacingGhost = false;
+                    mLunarThread.setGhost(null);
+                }
+                return true;
+            case MENU_JOIN:
+                if (mNetClient != null) {
+                    mLunarThread.setNetClient(null);
+                    mNetClient.close();
+                    mNetClient = null;
+                } else {
+                    mNetClient = newNetClient();
+                    if (mNetClient != null) {
+                        mRacingGhost = false;
+                        mLunarThread.setNetClient(mNetClient);
+                    }
+                }
+                return true;
+            case MENU_WIDE:
+                // takes effect from the next game
+                mLunarThread.setWideWorld(!mLunarThread.isWideWorld());
+                return true;
+            case MENU_MOONS:
+                // takes effect from the next game
+                mLunarThread.setMoons(!mLunarThread.hasMoons());
+                return true;
+            case MENU_WIND:
+                // takes effect from the next game
+                mLunarThread.setWind(!mLunarThread.hasWind());
+                return true;
         }
 
         return false;
@@ -236,10 +333,45 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
 		mWindowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
 		mDisplay = mWindowManager.getDefaultDisplay();
 		mWakeLock = mPowerManager.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, getClass().getName());
+		mSensorPipeline = new SensorPipeline();
+		mLunarThread.setSensorPipeline(mSensorPipeline);
 		mSimulationView = new SimulationView(this);
 		//setContentView(mSimulationView);
 
 		//Prepare model for account spinner
+		if (sLabelCache == null) {
+			// the application's PackageManager outlives this activity
+			final PackageManager pm = getApplicationContext().getPackageManager();
+			sLabelCache = new ResourceCache<CharSequence>(new ResourceCache.Loader<CharSequence>() {
+				public CharSequence load(String packageName, int resId) {
+					return pm.getText(packageName, resId, null);
+				}
+			});
+			sIconCache = new ResourceCache<ConstantState>(new ResourceCache.Loader<ConstantState>() {
+				public ConstantState load(String packageName, int resId) {
+					Drawable icon = pm.getDrawable(packageName, resId, null);
+					return icon == null ? null : icon.getConstantState();
+				}
+			});
+		}
+		mProfileStore = new ProfileStore(new File(getFilesDir(), "profiles"));
+		mScoreSync = new ScoreSync(new File(getFilesDir(), "sync"), getScoreSyncUrl());
+		mGhostStore = new GhostStore(new File(getFilesDir(), "ghosts"));
+		mTelemetry = new TelemetryRecorder(new File(getFilesDir(), "telemetry"),
+				MAX_TELEMETRY_FLIGHTS);
+		mLunarThread.setTelemetry(mTelemetry);
+		mLunarThread.setFlightListener(new FlightListener() {
+			public void onFlightEnded(int difficulty, int outcome, LanderState lander) {
+				String key = mProfileKey;
+				if (key == null)
+					return;
+				int score = LanderPhysics.landingScore(lander, outcome);
+				float fuel = (float) (lander.fuel / LanderPhysics.PHYS_FUEL_MAX);
+				mProfileStore.recordFlight(key, difficulty, outcome, score, fuel);
+				mScoreSync.submit(key, difficulty, outcome, score, fuel);
+				mGhostStore.offer(key, difficulty, mLunarThread.getLastTrack());
+			}
+		});
 		mAccounts = new ArrayList<AccountData>();
 		mAccountAdapter = new AccountAdapter(this, mAccounts);
 		mAccountSpinner.setAdapter(mAccountAdapter);
@@ -249,6 +381,7 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
             public void onItemSelected(AdapterView<?> parent, View view, int position, long i) {
 			AccountData data = (AccountData) mAccountSpinner.getSelectedItem();
 				mLunarThread.LunarName = data.toString();
+				mProfileKey = data.getKey();
             }
 
             public void onNothingSelected(AdapterView<?> parent) {
@@ -262,9 +395,57 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
     public void onDestroy() {
         // Remove AccountManager callback
         AccountManager.get(this).removeOnAccountsUpdatedListener(this);
+        if (mAccountLoadTask != null)
+            mAccountLoadTask.cancel(false);
+        mLunarThread.setFlightListener(null);
+        mProfileStore.close();
+        mScoreSync.close();
+        if (mGhostLoadTask != null)
+            mGhostLoadTask.cancel(false);
+        mGhostStore.close();
+        mLunarThread.setTelemetry(null);
+        mTelemetry.close();
+        if (mNetClient != null) {
+            mLunarThread.setNetClient(null);
+            mNetClient.close();
+        }
         super.onDestroy();
     }///surfaceDestroyed is next
 
+    /**
+     * @return the configured score server, or null to keep results on the
+     *         device
+     */
+    private URL getScoreSyncUrl() {
+        String url = getString(R.string.score_sync_url);
+        if (url.length() == 0)
+            return null;
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            Log.w("ScoreSync", "bad score_sync_url " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a client joining the configured multiplayer server, or null
+     *         if there is none
+     */
+    private NetClient newNetClient() {
+        String server = getString(R.string.multiplayer_server);
+        int colon = server.lastIndexOf(':');
+        if (colon <= 0)
+            return null;
+        try {
+            int port = Integer.parseInt(server.substring(colon + 1));
+            return new NetClient(server.substring(0, colon), port, mLunarThread.LunarName);
+        } catch (NumberFormatException e) {
+            Log.w("NetClient", "bad multiplayer_server " + server, e);
+            return null;
+        }
+    }
+
     @Override
     protected void onResume() {///after onCreate, after onRestart
     	super.onResume();
@@ -370,54 +551,143 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
 
     public void onAccountsUpdated(Account[] a) {
     	Log.w(this.getClass().getName(), "Account list update detected");
-    	try {
-			// Clear out any old data to prevent duplicates
-            mAccounts.clear();
-            // Get account data from system
-            AuthenticatorDescription[] accountTypes = AccountManager.get(this).getAuthenticatorTypes();
-
-            for (int i = 0; i < a.length/**1**/; i++) {
-				String systemAccountType = a[i].type;///"com.android.email";
-                AuthenticatorDescription ad = getAuthenticatorDescription(systemAccountType,
-                    accountTypes);
-                AccountData data = new AccountData(a[i].name/**"abc"**/, ad);
-                mAccounts.add(data);
-/*
-                systemAccountType = "com.android.exchange";
-                ad = getAuthenticatorDescription(systemAccountType,
-					accountTypes);
-                data = new AccountData("xyz", ad);
-                mAccounts.add(data);
-*/    		}
-    	} catch (Exception e) {//IllegalArgumentException
-   		 Log.w(this.getClass().getName(), "catch");
-    	}
-		try {
-			// Update the account spinner
-            mAccountAdapter.notifyDataSetChanged();
-		} catch (Exception e) {//IllegalArgumentException
-			Log.w(this.getClass().getName(), "catch");
-		}
+    	// Resolving labels and icons means calls into other packages, so the
+    	// refresh runs in the background and only the result is applied here
+    	if (mAccountLoadTask != null)
+    		mAccountLoadTask.cancel(false);
+    	HashSet<String> shown = new HashSet<String>();
+    	for (AccountData data : mAccounts)
+    		shown.add(data.getKey());
+    	mAccountLoadTask = new AccountLoadTask(shown);
+    	mAccountLoadTask.execute(a);
 	}///surfaceCreated is next
 
-    private static AuthenticatorDescription getAuthenticatorDescription(String type,
-            AuthenticatorDescription[] dictionary) {
-        for (int i = 0; i < dictionary.length; i++) {
-            if (dictionary[i].type.equals(type)) {
-                return dictionary[i];
+    /**
+     * Works out the account list changes off the UI thread, building
+     * AccountData only for accounts that are new.
+     */
+    private class AccountLoadTask extends AsyncTask<Account[], Void, AccountListDiff<AccountData>>
+            implements AccountListDiff.Factory<AccountData> {
+        private final HashSet<String> mShown;
+        private HashMap<String, AuthenticatorDescription> mAuthenticators;
+
+        AccountLoadTask(HashSet<String> shown) {
+            mShown = shown;
+        }
+
+        @Override
+        protected AccountListDiff<AccountData> doInBackground(Account[]... params) {
+            Account[] a = params[0];
+            // Get account data from system, indexed by type
+            AuthenticatorDescription[] accountTypes = AccountManager.get(LunarLander.this)
+                    .getAuthenticatorTypes();
+            mAuthenticators = new HashMap<String, AuthenticatorDescription>(accountTypes.length * 2);
+            for (AuthenticatorDescription ad : accountTypes)
+                mAuthenticators.put(ad.type, ad);
+
+            String[] names = new String[a.length];
+            String[] types = new String[a.length];
+            for (int i = 0; i < a.length; i++) {
+                names[i] = a[i].name;
+                types[i] = a[i].type;
+            }
+            return AccountListDiff.compute(mShown, names, types, this);
+        }
+
+        public AccountData create(String name, String type) throws Exception {
+            AuthenticatorDescription description = mAuthenticators.get(type);
+            if (description == null) {
+                // No match found, show the account without a label
+                Log.w(LunarLander.class.getName(), "No authenticator for " + type);
+                return new AccountData(name, type, "", null);
+            }
+
+            // The type string is stored in a resource, so we need to convert it into something
+            // human readable.
+            String packageName = description.packageName;
+            CharSequence typeLabel = "";
+            if (description.labelId != 0) {
+                typeLabel = sLabelCache.get(packageName, description.labelId);
+                if (typeLabel == null) {
+                    throw new IllegalArgumentException("LabelID provided, but label not found");
+                }
+            }
+
+            Drawable icon;
+            if (description.iconId != 0) {
+                ConstantState state = sIconCache.get(packageName, description.iconId);
+                if (state == null) {
+                    throw new IllegalArgumentException("IconID provided, but drawable not " +
+                            "found");
+                }
+                icon = state.newDrawable();
+            } else {
+                icon = getResources().getDrawable(android.R.drawable.sym_def_app_icon);
+            }
+            return new AccountData(name, description.type, typeLabel, icon);
+        }
+
+        @Override
+        protected void onPostExecute(AccountListDiff<AccountData> diff) {
+            for (String key : diff.getFailedKeys())
+                Log.w(LunarLander.class.getName(), "Could not load account " + key);
+            if (diff.applyTo(mAccounts)) {
+                // Update the account spinner
+                mAccountAdapter.notifyDataSetChanged();
+            }
+            if (mAccountLoadTask == this)
+                mAccountLoadTask = null;
+        }
+    }
+
+    /**
+     * Opens the best run of an account off the UI thread and hands it to
+     * the game thread to race.
+     */
+    private class GhostLoadTask extends AsyncTask<String, Void, GhostTrack.Player> {
+        private final int mDifficulty;
+        private final int mMode;
+
+        GhostLoadTask(int difficulty, int mode) {
+            mDifficulty = difficulty;
+            mMode = mode;
+        }
+
+        @Override
+        protected GhostTrack.Player doInBackground(String... params) {
+            try {
+                return mGhostStore.openBest(params[0], mDifficulty, mMode);
+            } catch (IOException e) {
+                Log.w(LunarLander.class.getName(), "Could not open ghost", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(GhostTrack.Player ghost) {
+            if (mGhostLoadTask != this)
+                return;
+            mGhostLoadTask = null;
+            if (ghost == null) {
+                // nothing recorded yet; fly alone
+                mRacingGhost = false;
+                return;
             }
+            mLunarThread.setGhost(ghost);
         }
-        // No match found
-        throw new RuntimeException("Unable to find matching authenticator");
     }
 
     class SimulationView extends View implements SensorEventListener {
 		private Sensor mAccelerometer;
 		public float accelerating[] = new float[2];
 
+		/** Where raw samples are being recorded to, or null. */
+		private AccelTrace.Writer mTraceWriter;
+
 		public SimulationView(Context context) {
 			super(context);
             mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            mSensorPipeline.setDisplayRotation(mDisplay.getRotation());
             mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_UI);
         }
 
@@ -426,111 +696,83 @@ public class LunarLander extends Activity implements OnAccountsUpdateListener, O
 			if (event.sensor.getType() != Sensor.TYPE_ACCELEROMETER)
                 return;
 
-            switch (mDisplay.getRotation()) {
-            		case Surface.ROTATION_0:
-            			if      (event.values[0] < -2)//0)
-            				mRotating = -1;
-            			else if (event.values[0] >  2)//0)
-            				mRotating =  1;
-            			else
-            				mRotating =  0;
-            			if      (event.values[1] > 0)
-            				mEngineFiring = true;
-            			else
-            				mEngineFiring = false;
-            			break;
-            		case Surface.ROTATION_90:
-            			if      (event.values[0] > 0)
-            				mEngineFiring = true;
-            			else
-            				mEngineFiring = false;
-            			if      (event.values[1] < 0)
-            				mRotating = -1;
-            			else if (event.values[1] > 0)
-            				mRotating =  1;
-            			else
-            				mRotating =  0;
-                		break;
-            		case Surface.ROTATION_180:
-            			if      (event.values[0] < -2)//0)
-            				mRotating = -1;
-            			else if (event.values[0] >  2)//0)
-            				mRotating =  1;
-            			else
-            				mRotating =  0;
-            			if      (event.values[1] > 0)
-            				mEngineFiring = true;
-            			else
-            				mEngineFiring = false;
-            			break;
-            		case Surface.ROTATION_270:
-            			if      (event.values[0] > 0)
-            				mEngineFiring = false;
-            			else
-            				mEngineFiring = true;
-            			if      (event.values[1] < 0)
-            				mRotating = -1;
-            			else if (event.values[1] > 0)
-            				mRotating =  1;
-            			else
-            				mRotating =  0;
-            			break;
+			// the game thread picks the result up on its next frame
+			long now = System.nanoTime();
+			mSensorPipeline.onSample(event.values[0], event.values[1], now);
+			if (mTraceWriter != null) {
+				try {
+					mTraceWriter.writeSample(now, event.values[0], event.values[1]);
+				} catch (IOException e) {
+					Log.w(this.getClass().getName(), "trace write failed", e);
+					stopRecording();
 				}
-				accelerating[0] =	event.values[0];
-				accelerating[1] =	event.values[1];
-				mLunarThread.setRotating(mRotating);
-				mLunarThread.setFiring(mEngineFiring);
-            }
+			}
+			accelerating[0] =	event.values[0];
+			accelerating[1] =	event.values[1];
+        }
 
         @Override
         public void onAccuracyChanged(Sensor sensor, int accuracy) {
         }
 
         public void register() {
+			// rotation only changes across activity restarts, so look it up here
+			// rather than on every sensor event
+			mSensorPipeline.setDisplayRotation(mDisplay.getRotation());
 			mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_UI);
         }
         public void unregister() {
 			mSensorManager.unregisterListener(this);
         }
+
+        /**
+         * Starts dumping raw samples and the display rotation to a trace file,
+         * for replay with ReplayHarness.
+         */
+        public void startRecording(File file) {
+			try {
+				AccelTrace.Writer writer = new AccelTrace.Writer(file);
+				writer.writeRotation(System.nanoTime(), mDisplay.getRotation());
+				mTraceWriter = writer;
+				Log.w(this.getClass().getName(), "recording to " + file);
+			} catch (IOException e) {
+				Log.w(this.getClass().getName(), "cannot record to " + file, e);
+			}
+        }
+
+        public void stopRecording() {
+			if (mTraceWriter == null)
+				return;
+			try {
+				mTraceWriter.close();
+			} catch (IOException e) {
+				Log.w(this.getClass().getName(), "trace close failed", e);
+			}
+			mTraceWriter = null;
+        }
+
+        public boolean isRecording() {
+			return mTraceWriter != null;
+        }
     }
 
-    private class AccountData {
+    private class AccountData implements AccountListDiff.Keyed {
         private String mName;
         private String mType;
         private CharSequence mTypeLabel;
         private Drawable mIcon;
 
-		public AccountData(String name, AuthenticatorDescription description) {
+		public AccountData(String name, String type, CharSequence typeLabel, Drawable icon) {
             mName = name;
-            if (description != null) {
-                mType = description.type;
-
-                // The type string is stored in a resource, so we need to convert it into something
-                // human readable.
-                String packageName = description.packageName;
-                PackageManager pm = getPackageManager();
-
-                if (description.labelId != 0) {
-                    mTypeLabel = pm.getText(packageName, description.labelId, null);
-                    if (mTypeLabel == null) {
-                        throw new IllegalArgumentException("LabelID provided, but label not found");
-                    }
-                } else {
-                    mTypeLabel = "";
-                }
-
-                if (description.iconId != 0) {
-                    mIcon = pm.getDrawable(packageName, description.iconId, null);
-                    if (mIcon == null) {
-                        throw new IllegalArgumentException("IconID provided, but drawable not " +
-                                "found");
-                    }
-                } else {
-                    mIcon = getResources().getDrawable(android.R.drawable.sym_def_app_icon);
-                }
-            }
+            mType = type;
+            mTypeLabel = typeLabel;
+            mIcon = icon;
 		}
 
+        public String getKey() {
+            return AccountListDiff.key(mName, mType);
+        }
+
         public String getName() {
             return mName;
         }
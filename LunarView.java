@@ -22,18 +22,22 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.widget.TextView;
 
+import java.util.Random;
+
 ///import java.util.Timer;
 ///import java.util.TimerTask;
 
@@ -49,23 +53,23 @@ import android.widget.TextView;
 class LunarView extends SurfaceView implements SurfaceHolder.Callback {
     class LunarThread extends Thread {
         /*
-         * Difficulty setting constants
+         * Difficulty setting constants, see LanderPhysics
          */
-        public static final int DIFFICULTY_EASY = 0;
-        public static final int DIFFICULTY_HARD = 1;
-        public static final int DIFFICULTY_MEDIUM = 2;
+        public static final int DIFFICULTY_EASY = LanderPhysics.DIFFICULTY_EASY;
+        public static final int DIFFICULTY_HARD = LanderPhysics.DIFFICULTY_HARD;
+        public static final int DIFFICULTY_MEDIUM = LanderPhysics.DIFFICULTY_MEDIUM;
         /*
-         * Physics constants
-         */
-        public static final int PHYS_DOWN_ACCEL_SEC = 35;
-        public static final int PHYS_FIRE_ACCEL_SEC = 80;
-        public static final int PHYS_FUEL_INIT = 60;
-        public static final int PHYS_FUEL_MAX = 100;
-        public static final int PHYS_FUEL_SEC = 10;
-        public static final int PHYS_SLEW_SEC = 120; // degrees/second rotate
-        public static final int PHYS_SPEED_HYPERSPACE = 180;
-        public static final int PHYS_SPEED_INIT = 30;
-        public static final int PHYS_SPEED_MAX = 120;
+         * Physics constants, see LanderPhysics
+         */
+        public static final int PHYS_DOWN_ACCEL_SEC = LanderPhysics.PHYS_DOWN_ACCEL_SEC;
+        public static final int PHYS_FIRE_ACCEL_SEC = LanderPhysics.PHYS_FIRE_ACCEL_SEC;
+        public static final int PHYS_FUEL_INIT = LanderPhysics.PHYS_FUEL_INIT;
+        public static final int PHYS_FUEL_MAX = LanderPhysics.PHYS_FUEL_MAX;
+        public static final int PHYS_FUEL_SEC = LanderPhysics.PHYS_FUEL_SEC;
+        public static final int PHYS_SLEW_SEC = LanderPhysics.PHYS_SLEW_SEC;
+        public static final int PHYS_SPEED_HYPERSPACE = LanderPhysics.PHYS_SPEED_HYPERSPACE;
+        public static final int PHYS_SPEED_INIT = LanderPhysics.PHYS_SPEED_INIT;
+        public static final int PHYS_SPEED_MAX = LanderPhysics.PHYS_SPEED_MAX;
         /*
          * State-tracking constants
          */
@@ -76,13 +80,13 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         public static final int STATE_WIN = 5;
 
         /*
-         * Goal condition constants
+         * Goal condition constants, see LanderPhysics
          */
-        public static final int TARGET_ANGLE = 18; // > this angle means crash
-        public static final int TARGET_BOTTOM_PADDING = 17; // px below gear
-        public static final int TARGET_PAD_HEIGHT = 8; // how high above ground
-        public static final int TARGET_SPEED = 28; // > this speed means crash
-        public static final double TARGET_WIDTH = 1.6; // width of target
+        public static final int TARGET_ANGLE = LanderPhysics.TARGET_ANGLE;
+        public static final int TARGET_BOTTOM_PADDING = LanderPhysics.TARGET_BOTTOM_PADDING;
+        public static final int TARGET_PAD_HEIGHT = LanderPhysics.TARGET_PAD_HEIGHT;
+        public static final int TARGET_SPEED = LanderPhysics.TARGET_SPEED;
+        public static final double TARGET_WIDTH = LanderPhysics.TARGET_WIDTH;
         /*
          * UI constants (i.e. the speed & fuel bars)
          */
@@ -101,6 +105,11 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         private static final String KEY_HEADING = "mHeading";
         private static final String KEY_LANDER_HEIGHT = "mLanderHeight";
         private static final String KEY_LANDER_WIDTH = "mLanderWidth";
+        private static final String KEY_SEED = "mSeed";
+        private static final String KEY_WIDE_WORLD = "mWideWorld";
+        private static final String KEY_MOONS = "mMoons";
+        private static final String KEY_REWOUND = "mRewound";
+        private static final String KEY_WIND = "mWindy";
         private static final String KEY_WINS = "mWinsInARow";
 
         private static final String KEY_X = "mX";
@@ -135,65 +144,144 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         private int mDifficulty;
 
-        /** Velocity dx. */
-        private double mDX;
-
-        /** Velocity dy. */
-        private double mDY;
-
-        /** Is the engine burning? */
-        private boolean mEngineFiring;
-
         /** What to draw for the Lander when the engine is firing */
         private Drawable mFiringImage;
 
-        /** Fuel remaining */
-        private double mFuel;
-
-        /** Allowed angle. */
-        private int mGoalAngle;
-
-        /** Allowed speed. */
-        private int mGoalSpeed;
-
-        /** Width of the landing pad. */
-        private int mGoalWidth;
-
-        /** X of the landing pad. */
-        private int mGoalX;
-
         /** Message handler used by thread to interact with TextView */
         private Handler mHandler;
 
-        /**
-         * Lander heading in degrees, with 0 up, 90 right. Kept in the range
-         * 0..360.
-         */
-        private double mHeading;
-
-        /** Pixel height of lander image. */
-        private int mLanderHeight;
-
         /** What to draw for the Lander in its normal state */
         private Drawable mLanderImage;
 
-        /** Pixel width of lander image. */
-        private int mLanderWidth;
-
-        /** Used to figure out elapsed time between frames */
+        /** Used to figure out elapsed time between frames, in mClock ns */
         private long mLastTime;
 
+        /** What the game loop tells the time by. */
+        private SimClock mClock = SimClocks.REAL;
+
+        /** Time from start or resume to the first physics step. */
+        private static final long START_DELAY_NANOS = 100 * 1000000L;
+
         /** Paint to draw the lines on screen. */
         private Paint mLinePaint;
 
         /** "Bad" speed-too-high variant of the line color. */
         private Paint mLinePaintBad;
 
+        /** Fill of the ground below the terrain outline. */
+        private Paint mTerrainPaint;
+
+        /** Labels of the pad the lander is headed for. */
+        private Paint mHudPaint;
+
+        /** Pad mHudLabel describes, or -1. */
+        private int mHudPad = -1;
+
+        /** Multiplier and limits of mHudPad. */
+        private String mHudLabel;
+
+        /** Pads in a single screen level, the goal included. */
+        private static final int LEVEL_PADS = 4;
+
+        /** Are single screen games played under moons? */
+        private boolean mMoons;
+
+        /** The moons and asteroids of the current game, or null. */
+        private GravityField mGravity;
+
+        /** Fill of moons and asteroids. */
+        private Paint mBodyPaint;
+
+        /*
+         * The moon scene
+         */
+        private static final int MOONS = 3;
+        private static final int ASTEROIDS = 200;
+        private static final float MOON_RADIUS = 14;
+        private static final float ASTEROID_RADIUS = 2;
+
+        /** Are single screen games played in wind? */
+        private boolean mWindy;
+
+        /** The wind of the current game, or null. */
+        private WindField mWind;
+
+        /** Length of the wind streak per px/s^2 of push. */
+        private static final float WIND_STREAK = 1.5f;
+
+        /** Ground of the current game, or null for the flat original. */
+        private Terrain mTerrain;
+
+        /** mTerrain's outline in canvas coordinates, built once per game. */
+        private Path mTerrainPath;
+
+        /** Rebuild the terrain from mSeed once the canvas size is known. */
+        private boolean mTerrainPending;
+
+        /** Are games played on a world many screens wide? */
+        private boolean mWideWorld;
+
+        /** Ground of the current game if it is wide, else null. */
+        private ChunkedTerrain<Bitmap> mWorld;
+
+        /** World x of the left edge of the canvas. */
+        private int mScrollX;
+
+        /** Width of a wide world, in chunks. */
+        private static final int WIDE_WORLD_CHUNKS = 64;
+
+        /** Memory the chunks of a wide world may hold. */
+        private static final int CHUNK_CACHE_BYTES = 4 * 1024 * 1024;
+
+        /** Draws wide world chunks, on the world's background thread. */
+        private final ChunkedTerrain.Renderer<Bitmap> mChunkRenderer =
+                new ChunkedTerrain.Renderer<Bitmap>() {
+            public Bitmap render(Terrain chunk) {
+                double top = 0;
+                for (int i = 0; i < chunk.getPointCount(); i++)
+                    top = Math.max(top, chunk.getY(i));
+                int h = (int) Math.ceil(top) + 2;
+                Bitmap image = Bitmap.createBitmap(chunk.getWidth(), h, Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(image);
+                Path path = new Path();
+                path.moveTo(0, h);
+                for (int i = 0; i < chunk.getPointCount(); i++)
+                    path.lineTo((float) chunk.getX(i), h - (float) chunk.getY(i));
+                path.lineTo(chunk.getWidth(), h);
+                path.close();
+                canvas.drawPath(path, mTerrainPaint);
+                for (int i = 0; i < chunk.getPadCount(); i++) {
+                    float y = 1 + h - (float) chunk.getPadHeight(i);
+                    canvas.drawLine(chunk.getPadX(i), y,
+                            chunk.getPadX(i) + chunk.getPadWidth(i), y, mLinePaint);
+                }
+                return image;
+            }
+
+            public int sizeOf(Bitmap image) {
+                return image.getRowBytes() * image.getHeight();
+            }
+
+            public void release(Bitmap image) {
+                // pixels live outside the Java heap before Honeycomb
+                image.recycle();
+            }
+        };
+
         /** The state of the game. One of READY, RUNNING, PAUSE, LOSE, or WIN */
         private int mMode;
 
-        /** Currently rotating, -1 left, 0 none, 1 right. */
-        private int mRotating;
+        /** Accelerometer controls, polled once per frame; may be null. */
+        private SensorPipeline mSensorPipeline;
+
+        /** Told about every flight that ends; may be null. */
+        private FlightListener mFlightListener;
+
+        /** Records every flight to disk; may be null. */
+        private TelemetryRecorder mTelemetry;
+
+        /** Starts, ends and empty tanks, for whoever reads them. */
+        private final GameEvents mEvents = new GameEvents(GameEvents.DEFAULT_CAPACITY);
 
         /** Indicate whether the surface has been created & is ready to draw */
         private boolean mRun = false;
@@ -206,14 +294,67 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         /** Handle to the surface manager object we interact with */
         private SurfaceHolder mSurfaceHolder;
 
-        /** Number of wins in a row. */
-        private int mWinsInARow;
+        /** The ship, its controls and the current landing goal. */
+        private final LanderState mLander = new LanderState();
+
+        /** Source of the seed of each game. */
+        private Random mRandom = new Random();
+
+        /** Seed of the current game's initial motion and pad position. */
+        private long mSeed;
+
+        /** Replays mSeed; reseeded for every game. */
+        private final Random mSeededRandom = new Random();
 
-        /** X of lander center. */
-        private double mX;
+        /** Seconds of physics time since the current game started. */
+        private double mFlightTime;
 
-        /** Y of lander center. */
-        private double mY;
+        /** Samples every flight, see getLastTrack(). */
+        private final GhostTrack.Recorder mRecorder = new GhostTrack.Recorder();
+
+        /** The ghost to race, or null. */
+        private GhostTrack.Player mGhost;
+
+        /** Is the current game set up from mGhost's seed? */
+        private boolean mRacing;
+
+        /** Alpha the ghost's sprites are drawn with. */
+        private static final int GHOST_ALPHA = 80;
+
+        /*
+         * Rewind: every step of the last REWIND_SECONDS is kept, at up to
+         * REWIND_STEPS_PER_SECOND, and each press of left or right while
+         * paused or after a crash scrubs by REWIND_SCRUB_SECONDS; holding
+         * the key scrubs continuously at the key repeat rate
+         */
+        private static final int REWIND_SECONDS = 30;
+        private static final int REWIND_STEPS_PER_SECOND = 120;
+        private static final double REWIND_SCRUB_SECONDS = 0.1;
+
+        /** The steps of the current flight, for rewinding. */
+        private final RewindBuffer mRewind =
+                new RewindBuffer(REWIND_SECONDS, REWIND_STEPS_PER_SECOND);
+
+        /**
+         * Has the current flight been rewound? Its end is then practice,
+         * not a result, and the FlightListener isn't told about it.
+         */
+        private boolean mRewound;
+
+        /** The multiplayer server connection, or null to play alone. */
+        private NetClient mNetClient;
+
+        /** The newest state of the multiplayer game. */
+        private final NetProtocol.World mNetWorld = new NetProtocol.World();
+
+        /** Flight phase of our lander in the last snapshot. */
+        private int mNetPhase = NetProtocol.PHASE_WAITING;
+
+        /** Scratch state for drawing other players. */
+        private final LanderState mNetOther = new LanderState();
+
+        /** Number of wins in a row. */
+        private int mWinsInARow;
 
         ///public int mTimerLimit;
         //private String mTimerValue = "0:05";
@@ -246,8 +387,8 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     R.drawable.earthrise);
 
             // Use the regular lander image as the model size for all sprites
-            mLanderWidth = mLanderImage.getIntrinsicWidth();
-            mLanderHeight = mLanderImage.getIntrinsicHeight();
+            mLander.landerWidth = mLanderImage.getIntrinsicWidth();
+            mLander.landerHeight = mLanderImage.getIntrinsicHeight();
 
             // Initialize paints for speedometer
             mLinePaint = new Paint();
@@ -258,19 +399,33 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             mLinePaintBad.setAntiAlias(true);
             mLinePaintBad.setARGB(255, 0,0,255);//120, 180, 0);//yellow?
 
+            mTerrainPaint = new Paint();
+            mTerrainPaint.setAntiAlias(true);
+            mTerrainPaint.setStyle(Paint.Style.FILL);
+            mTerrainPaint.setARGB(255, 90, 90, 96);
+
+            mBodyPaint = new Paint();
+            mBodyPaint.setAntiAlias(true);
+            mBodyPaint.setARGB(255, 200, 200, 180);
+
+            mHudPaint = new Paint();
+            mHudPaint.setAntiAlias(true);
+            mHudPaint.setTextSize(14);
+            mHudPaint.setARGB(255, 255, 255, 255);
+
             mScratchRect = new RectF(0, 0, 0, 0);
 
             mWinsInARow = 0;
             mDifficulty = DIFFICULTY_HARD;//DIFFICULTY_MEDIUM;//change this!
 
             // initial show-up of lander (not yet playing)
-            mX = mLanderWidth;
-            mY = mLanderHeight * 2;
-            mFuel = PHYS_FUEL_INIT;
-            mDX = 0;
-            mDY = 0;
-            mHeading = 0;
-            mEngineFiring = true;
+            mLander.x = mLander.landerWidth;
+            mLander.y = mLander.landerHeight * 2;
+            mLander.fuel = PHYS_FUEL_INIT;
+            mLander.dx = 0;
+            mLander.dy = 0;
+            mLander.heading = 0;
+            mLander.engineFiring = true;
 
             LunarName = "Player One";
         }
@@ -280,47 +435,38 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void doStart() {
             synchronized (mSurfaceHolder) {
+                if (mNetClient != null) {
+                    // the server starts the flight once it hears we're playing
+                    setState(STATE_RUNNING);
+                    return;
+                }
                 ///mTimerLimit = 5;
                 ///mTimer = new Timer();
-            	// First set the game for Medium difficulty
-                mFuel = PHYS_FUEL_INIT;
-                mEngineFiring = false;
-                mGoalWidth = (int) (mLanderWidth * TARGET_WIDTH);
-                mGoalSpeed = TARGET_SPEED;
-                mGoalAngle = TARGET_ANGLE;
-                int speedInit = PHYS_SPEED_INIT;
-
-                // Adjust difficulty params for EASY/HARD
-                if (mDifficulty == DIFFICULTY_EASY) {
-                    mFuel = mFuel * 3 / 2;
-                    mGoalWidth = mGoalWidth * 4 / 3;
-                    mGoalSpeed = mGoalSpeed * 3 / 2;
-                    mGoalAngle = mGoalAngle * 4 / 3;
-                    speedInit = speedInit * 3 / 4;
-                } else if (mDifficulty == DIFFICULTY_HARD) {
-                    mFuel = mFuel * 7 / 8;
-                    mGoalWidth = mGoalWidth * 3 / 4;
-                    mGoalSpeed = mGoalSpeed * 7 / 8;
-                    speedInit = speedInit * 4 / 3;
+                // racing a ghost means flying its game: same pad, same start
+                mRacing = mGhost != null && mGhost.getDifficulty() == mDifficulty
+                        && mGhost.getMode() == getGhostMode();
+                mSeed = mRacing ? mGhost.getSeed() : mRandom.nextLong();
+                mSeededRandom.setSeed(mSeed);
+                LanderPhysics.start(mLander, mDifficulty, mCanvasWidth,
+                        mCanvasHeight, mSeededRandom);
+                if (mWideWorld) {
+                    // the same start, moved to the middle of the world
+                    int origin = WIDE_WORLD_CHUNKS / 2 * ChunkedTerrain.CHUNK_WIDTH
+                            - mCanvasWidth / 2;
+                    mLander.x += origin;
+                    mLander.goalX += origin;
                 }
-                //speedInit =0;
-                // pick a convenient initial location for the lander sprite
-                mX = mCanvasWidth / 2;
-                mY = mCanvasHeight - mLanderHeight / 2;
-
-                // start with a little random motion
-                mDY = Math.random() * -speedInit;
-                mDX = Math.random() * 2 * speedInit - speedInit;
-                mHeading = 0;
-
-                // Figure initial spot for landing, not too near center
-                while (true) {
-                    mGoalX = (int) (Math.random() * (mCanvasWidth - mGoalWidth));
-                    if (Math.abs(mGoalX - (mX - mLanderWidth / 2)) > mCanvasHeight / 6)
-                        break;
-                }
-
-                mLastTime = System.currentTimeMillis() + 100;
+                buildTerrain();
+                mFlightTime = 0;
+                mRecorder.begin(mSeed, mDifficulty, getGhostMode(), mCanvasWidth,
+                        mCanvasHeight, mLander);
+                mRewind.clear();
+                mRewind.capture(0, mLander);
+                mRewound = false;
+                mEvents.publish(GameEvents.TYPE_STARTED, mDifficulty, 0, 0, mLander);
+                if (mTelemetry != null) mTelemetry.begin(mSeed, mDifficulty, mLander);
+
+                mLastTime = mClock.nanoTime() + START_DELAY_NANOS;
                 setState(STATE_RUNNING);
             }
         }
@@ -369,24 +515,33 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         public synchronized void restoreState(Bundle savedState) {
             synchronized (mSurfaceHolder) {
                 setState(STATE_PAUSE);
-                mRotating = 0;
-                mEngineFiring = false;
+                mLander.rotating = 0;
+                mLander.engineFiring = false;
+                // the steps that led here are gone
+                mRewind.clear();
 
                 mDifficulty = savedState.getInt(KEY_DIFFICULTY);
-                mX = savedState.getDouble(KEY_X);
-                mY = savedState.getDouble(KEY_Y);
-                mDX = savedState.getDouble(KEY_DX);
-                mDY = savedState.getDouble(KEY_DY);
-                mHeading = savedState.getDouble(KEY_HEADING);
-
-                mLanderWidth = savedState.getInt(KEY_LANDER_WIDTH);
-                mLanderHeight = savedState.getInt(KEY_LANDER_HEIGHT);
-                mGoalX = savedState.getInt(KEY_GOAL_X);
-                mGoalSpeed = savedState.getInt(KEY_GOAL_SPEED);
-                mGoalAngle = savedState.getInt(KEY_GOAL_ANGLE);
-                mGoalWidth = savedState.getInt(KEY_GOAL_WIDTH);
+                mLander.x = savedState.getDouble(KEY_X);
+                mLander.y = savedState.getDouble(KEY_Y);
+                mLander.dx = savedState.getDouble(KEY_DX);
+                mLander.dy = savedState.getDouble(KEY_DY);
+                mLander.heading = savedState.getDouble(KEY_HEADING);
+
+                mLander.landerWidth = savedState.getInt(KEY_LANDER_WIDTH);
+                mLander.landerHeight = savedState.getInt(KEY_LANDER_HEIGHT);
+                mLander.goalX = savedState.getInt(KEY_GOAL_X);
+                mLander.goalSpeed = savedState.getInt(KEY_GOAL_SPEED);
+                mLander.goalAngle = savedState.getInt(KEY_GOAL_ANGLE);
+                mLander.goalWidth = savedState.getInt(KEY_GOAL_WIDTH);
                 mWinsInARow = savedState.getInt(KEY_WINS);
-                mFuel = savedState.getDouble(KEY_FUEL);
+                mLander.fuel = savedState.getDouble(KEY_FUEL);
+                mSeed = savedState.getLong(KEY_SEED);
+                mWideWorld = savedState.getBoolean(KEY_WIDE_WORLD);
+                mMoons = savedState.getBoolean(KEY_MOONS);
+                mWindy = savedState.getBoolean(KEY_WIND);
+                mRewound = savedState.getBoolean(KEY_REWOUND);
+                if (mCanvasWidth > 0) buildTerrain();
+                else mTerrainPending = true;
             }
         }
 
@@ -397,7 +552,10 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                 try {
                     c = mSurfaceHolder.lockCanvas(null);
                     synchronized (mSurfaceHolder) {
-                        if (mMode == STATE_RUNNING) { updatePhysics();
+                        pollSensorPipeline();
+                        if (mNetClient != null) {
+                            updateFromServer();
+                        } else if (mMode == STATE_RUNNING) { updatePhysics();
                             /*if (mTimerTask == null) {
                                 mTimerTask = new TimerTask() {
                                     public void run() {
@@ -430,6 +588,10 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     }
                 }
             }
+            // nothing will draw the world now; keep it for saveState()
+            synchronized (mSurfaceHolder) {
+                if (mWorld != null) mWorld.close();
+            }
         }
 
         /**
@@ -442,20 +604,25 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             synchronized (mSurfaceHolder) {
                 if (map != null) {
                     map.putInt(KEY_DIFFICULTY, Integer.valueOf(mDifficulty));
-                    map.putDouble(KEY_X, Double.valueOf(mX));
-                    map.putDouble(KEY_Y, Double.valueOf(mY));
-                    map.putDouble(KEY_DX, Double.valueOf(mDX));
-                    map.putDouble(KEY_DY, Double.valueOf(mDY));
-                    map.putDouble(KEY_HEADING, Double.valueOf(mHeading));
-                    map.putInt(KEY_LANDER_WIDTH, Integer.valueOf(mLanderWidth));
+                    map.putDouble(KEY_X, Double.valueOf(mLander.x));
+                    map.putDouble(KEY_Y, Double.valueOf(mLander.y));
+                    map.putDouble(KEY_DX, Double.valueOf(mLander.dx));
+                    map.putDouble(KEY_DY, Double.valueOf(mLander.dy));
+                    map.putDouble(KEY_HEADING, Double.valueOf(mLander.heading));
+                    map.putInt(KEY_LANDER_WIDTH, Integer.valueOf(mLander.landerWidth));
                     map.putInt(KEY_LANDER_HEIGHT, Integer
-                            .valueOf(mLanderHeight));
-                    map.putInt(KEY_GOAL_X, Integer.valueOf(mGoalX));
-                    map.putInt(KEY_GOAL_SPEED, Integer.valueOf(mGoalSpeed));
-                    map.putInt(KEY_GOAL_ANGLE, Integer.valueOf(mGoalAngle));
-                    map.putInt(KEY_GOAL_WIDTH, Integer.valueOf(mGoalWidth));
+                            .valueOf(mLander.landerHeight));
+                    map.putInt(KEY_GOAL_X, Integer.valueOf(mLander.goalX));
+                    map.putInt(KEY_GOAL_SPEED, Integer.valueOf(mLander.goalSpeed));
+                    map.putInt(KEY_GOAL_ANGLE, Integer.valueOf(mLander.goalAngle));
+                    map.putInt(KEY_GOAL_WIDTH, Integer.valueOf(mLander.goalWidth));
                     map.putInt(KEY_WINS, Integer.valueOf(mWinsInARow));
-                    map.putDouble(KEY_FUEL, Double.valueOf(mFuel));
+                    map.putDouble(KEY_FUEL, Double.valueOf(mLander.fuel));
+                    map.putLong(KEY_SEED, mSeed);
+                    map.putBoolean(KEY_WIDE_WORLD, mWorld != null);
+                    map.putBoolean(KEY_MOONS, mGravity != null);
+                    map.putBoolean(KEY_WIND, mWind != null);
+                    map.putBoolean(KEY_REWOUND, mRewound);
                 }
             }
             return map;
@@ -477,10 +644,126 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void setFiring(boolean firing) {
             synchronized (mSurfaceHolder) {
-                mEngineFiring = firing;
+                mLander.engineFiring = firing;
+                mLander.throttle = 1.0;
+            }
+        }
+
+        /**
+         * Installs the accelerometer pipeline whose controls are picked up
+         * at the start of every frame.
+         *
+         * @param pipeline the pipeline, or null to stop polling
+         */
+        public void setSensorPipeline(SensorPipeline pipeline) {
+            synchronized (mSurfaceHolder) {
+                mSensorPipeline = pipeline;
+            }
+        }
+
+        /**
+         * Installs the listener told about every flight that ends on the
+         * ground without having been rewound.
+         *
+         * @param listener the listener, or null
+         */
+        public void setFlightListener(FlightListener listener) {
+            synchronized (mSurfaceHolder) {
+                mFlightListener = listener;
+            }
+        }
+
+        /**
+         * Installs the recorder every flight from the next one on is
+         * recorded to.
+         *
+         * @param telemetry the recorder, or null to record nothing
+         */
+        public void setTelemetry(TelemetryRecorder telemetry) {
+            synchronized (mSurfaceHolder) {
+                if (mTelemetry != null) mTelemetry.cancel();
+                mTelemetry = telemetry;
+            }
+        }
+
+        /**
+         * The game's events. Readers may poll from any thread, without the
+         * surface lock.
+         */
+        public GameEvents getEvents() {
+            return mEvents;
+        }
+
+        /**
+         * Sets the ghost raced from the next game on. It is only raced on
+         * its own difficulty.
+         *
+         * @param ghost the track to race, or null to fly alone
+         */
+        public void setGhost(GhostTrack.Player ghost) {
+            synchronized (mSurfaceHolder) {
+                mGhost = ghost;
+                if (ghost == null) mRacing = false;
             }
         }
 
+        /**
+         * Switches between playing alone and flying in a multiplayer game.
+         * In a game the server runs the physics; this thread only sends
+         * the controls and shows the snapshots.
+         *
+         * @param client a connection to a GameServer, or null to play alone
+         */
+        public void setNetClient(NetClient client) {
+            synchronized (mSurfaceHolder) {
+                mNetClient = client;
+                mNetPhase = NetProtocol.PHASE_WAITING;
+                mRacing = false;
+                // flights in a game are not ours to keep as ghosts
+                mRecorder.cancel();
+                if (mTelemetry != null) mTelemetry.cancel();
+                // the server's ground is flat
+                mTerrain = null;
+                mTerrainPath = null;
+                closeWorld();
+                closeGravity();
+                closeWind();
+                mLander.terrain = null;
+                mLander.pads = null;
+                setState(STATE_READY);
+            }
+        }
+
+        /**
+         * The recording of the flight that just ended. Only valid inside
+         * FlightListener.onFlightEnded(); the next game records over it.
+         */
+        public GhostTrack.Recorder getLastTrack() {
+            return mRecorder;
+        }
+
+        public int getDifficulty() {
+            synchronized (mSurfaceHolder) {
+                return mDifficulty;
+            }
+        }
+
+        /**
+         * Applies whatever the accelerometer delivered since the last frame.
+         * Called with the surface lock held.
+         */
+        private void pollSensorPipeline() {
+            if (mSensorPipeline == null
+                    || !mSensorPipeline.pollControls(System.nanoTime()))
+                return;
+            if (mMode != STATE_RUNNING) return;
+
+            mLander.rotating = mSensorPipeline.getRotating();
+            mLander.rotateAmount = mSensorPipeline.getRotateAmount();
+            mLander.engineFiring = mSensorPipeline.isFiring() && mLander.fuel > 0;
+            mLander.throttle = mSensorPipeline.getThrottle();
+        }
+
         /**
          * Used to signal the thread whether it should be running or not.
          * Passing true allows the thread to run; passing false will shut it
@@ -543,8 +826,8 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     msg.setData(b);
                     mHandler.sendMessage(msg);
                 } else {
-                    mRotating = 0;
-                    mEngineFiring = false;
+                    mLander.rotating = 0;
+                    mLander.engineFiring = false;
                     Resources res = mContext.getResources();
                     CharSequence str = "";
                     if (mMode == STATE_READY)
@@ -584,20 +867,225 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                 // don't forget to resize the background image
                 mBackgroundImage = Bitmap.createScaledBitmap(
                         mBackgroundImage, width, height, true);
+                if (mTerrainPending || mTerrain != null || mWorld != null) buildTerrain();
+            }
+        }
+
+        /**
+         * Runs the game on another clock: a SimClocks.Virtual to play
+         * faster than real time, a SimClocks.Scaled for slow motion. The
+         * accelerometer stays on real time, since that's what its samples
+         * are stamped with.
+         */
+        public void setClock(SimClock clock) {
+            synchronized (mSurfaceHolder) {
+                // carry the time to the next step over to the new clock
+                long wait = mLastTime - mClock.nanoTime();
+                mClock = clock;
+                mLastTime = clock.nanoTime() + Math.max(0, wait);
+            }
+        }
+
+        public SimClock getClock() {
+            synchronized (mSurfaceHolder) {
+                return mClock;
+            }
+        }
+
+        /**
+         * Plays the next games on a world many screens wide, or on one
+         * screen.
+         */
+        public void setWideWorld(boolean wide) {
+            synchronized (mSurfaceHolder) {
+                mWideWorld = wide;
+            }
+        }
+
+        public boolean isWideWorld() {
+            synchronized (mSurfaceHolder) {
+                return mWideWorld;
+            }
+        }
+
+        /**
+         * Plays the next single screen games under moons and asteroids
+         * that pull on the lander, or without.
+         */
+        public void setMoons(boolean moons) {
+            synchronized (mSurfaceHolder) {
+                mMoons = moons;
+            }
+        }
+
+        public boolean hasMoons() {
+            synchronized (mSurfaceHolder) {
+                return mMoons;
+            }
+        }
+
+        /**
+         * Plays the next single screen games in gusting wind, or in still
+         * air.
+         */
+        public void setWind(boolean windy) {
+            synchronized (mSurfaceHolder) {
+                mWindy = windy;
+            }
+        }
+
+        public boolean hasWind() {
+            synchronized (mSurfaceHolder) {
+                return mWindy;
+            }
+        }
+
+        /**
+         * The GhostTrack.MODE_* flags the next game is played with. Moons
+         * and wind only come to single screen games.
+         */
+        public int getGhostMode() {
+            synchronized (mSurfaceHolder) {
+                if (mWideWorld) return GhostTrack.MODE_WIDE_WORLD;
+                return (mMoons ? GhostTrack.MODE_MOONS : 0)
+                        | (mWindy ? GhostTrack.MODE_WIND : 0);
             }
         }
 
+        /**
+         * Generates the pads and ground for mSeed, the goal and the canvas,
+         * and the ground's outline for drawing.
+         */
+        private void buildTerrain() {
+            mTerrainPending = false;
+            closeWorld();
+            closeGravity();
+            closeWind();
+            if (mWideWorld) {
+                mTerrain = null;
+                mTerrainPath = null;
+                mWorld = new ChunkedTerrain<Bitmap>(mSeed + 1, WIDE_WORLD_CHUNKS, mCanvasHeight,
+                        mLander.goalX, mLander.goalWidth, mLander.goalWidth,
+                        Terrain.DEFAULT_DETAIL, CHUNK_CACHE_BYTES, mChunkRenderer);
+                mLander.terrain = mWorld;
+                mLander.pads = null;
+                prefetchWorld();
+                return;
+            }
+            // seeded apart from mSeededRandom, so a restored game can
+            // rebuild them
+            mLander.pads = PadIndex.place(mLander, LEVEL_PADS, 0, mCanvasWidth,
+                    new Random(mSeed + 2));
+            mHudPad = -1;
+            mTerrain = new Terrain(mSeed + 1, mCanvasWidth, mCanvasHeight, mLander.pads,
+                    Terrain.DEFAULT_DETAIL);
+            mLander.terrain = mTerrain;
+
+            Path path = new Path();
+            path.moveTo(0, mCanvasHeight);
+            for (int i = 0; i < mTerrain.getPointCount(); i++) {
+                path.lineTo((float) mTerrain.getX(i),
+                        mCanvasHeight - (float) mTerrain.getY(i));
+            }
+            path.lineTo(mCanvasWidth, mCanvasHeight);
+            path.close();
+            mTerrainPath = path;
+
+            if (mMoons) {
+                // a restored game gets the scene as it was at the start
+                mGravity = GravityField.scene(new Random(mSeed + 3), MOONS, ASTEROIDS,
+                        mCanvasWidth, mCanvasHeight, 1);
+                mLander.gravity = mGravity;
+            }
+            if (mWindy) {
+                // likewise the wind starts over from its first keyframe
+                mWind = new WindField(mSeed + 4, mCanvasWidth, mCanvasHeight,
+                        WindField.DEFAULT_PERIOD);
+                mLander.wind = mWind;
+            }
+        }
+
+        private void closeGravity() {
+            mLander.gravity = null;
+            if (mGravity == null) return;
+            mGravity.close();
+            mGravity = null;
+        }
+
+        private void closeWind() {
+            mLander.wind = null;
+            if (mWind == null) return;
+            mWind.close();
+            mWind = null;
+        }
+
+        /**
+         * Asks for the chunks around the lander, ahead of where it drifts.
+         */
+        private void prefetchWorld() {
+            mWorld.prefetch(mLander.x - mCanvasWidth / 2, mLander.x + mCanvasWidth / 2,
+                    mLander.dx);
+        }
+
+        /**
+         * Drops the wide world and recycles its chunks' bitmaps. Holding
+         * mSurfaceHolder keeps doDraw() from drawing them meanwhile.
+         */
+        private void closeWorld() {
+            if (mWorld == null) return;
+            mWorld.close();
+            mWorld = null;
+        }
+
         /**
          * Resumes from a pause.
          */
         public void unpause() {
             // Move the real time clock up to now
             synchronized (mSurfaceHolder) {
-                mLastTime = System.currentTimeMillis() + 100;//change this!
+                mLastTime = mClock.nanoTime() + START_DELAY_NANOS;
+                // a rewound lander shows the controls it had; fly on from
+                // whatever is held now, and drop the steps scrubbed past
+                mLander.rotating = 0;
+                mLander.engineFiring = false;
+                mRewind.truncate();
             }
             setState(STATE_RUNNING);
         }
 
+        /**
+         * Scrubs the flight back (or forward, for negative seconds) while
+         * paused or after a crash, leaving the game paused at the step
+         * reached. Moons and wind stay where they are.
+         *
+         * @return true if the lander moved
+         */
+        public boolean rewind(double seconds) {
+            synchronized (mSurfaceHolder) {
+                if (mNetClient != null || mRewind.size() == 0
+                        || (mMode != STATE_PAUSE && mMode != STATE_LOSE)) return false;
+                double moved = seconds > 0 ? mRewind.rewind(seconds, mLander)
+                        : -mRewind.fastForward(-seconds, mLander);
+                if (moved == 0) return false;
+                mFlightTime = Math.max(0, mFlightTime - moved);
+                // a crash already reported stays the result; whatever the
+                // retry ends in is not one
+                mRewound = true;
+                // the recordings no longer match the flight
+                mRecorder.cancel();
+                if (mTelemetry != null) mTelemetry.cancel();
+                if (mMode == STATE_LOSE) {
+                    // setState() stops the controls, keep those scrubbed to
+                    boolean firing = mLander.engineFiring;
+                    int rotating = mLander.rotating;
+                    setState(STATE_PAUSE);
+                    mLander.engineFiring = firing;
+                    mLander.rotating = rotating;
+                }
+                return true;
+            }
+        }
+
         /**19=up,20=down,21=left,22=right,23=center,45=q,47=s,51=w,62=space
          * Handles a key-down event.
          *
@@ -621,6 +1109,15 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     // paused -> running
                     unpause();
                     return true;
+                } else if (mMode == STATE_PAUSE || mMode == STATE_LOSE) {
+                    // left/q -> rewind, right/w -> forward again
+                    if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT
+                            || keyCode == KeyEvent.KEYCODE_Q) {
+                        return rewind(REWIND_SCRUB_SECONDS);
+                    } else if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT
+                            || keyCode == KeyEvent.KEYCODE_W) {
+                        return rewind(-REWIND_SCRUB_SECONDS);
+                    }
                 } else if (mMode == STATE_RUNNING) {
                     // center/space -> fire
                     if (keyCode == KeyEvent.KEYCODE_DPAD_CENTER
@@ -630,12 +1127,12 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                         // left/q -> left
                     } else if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT
                             || keyCode == KeyEvent.KEYCODE_Q) {
-                        mRotating = -1;
+                        setRotating(-1);
                         return true;
                         // right/w -> right
                     } else if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT
                             || keyCode == KeyEvent.KEYCODE_W) {
-                        mRotating = 1;
+                        setRotating(1);
                         return true;
                         // up -> pause
                     } else if (keyCode == KeyEvent.KEYCODE_DPAD_UP) {
@@ -668,7 +1165,7 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                             || keyCode == KeyEvent.KEYCODE_Q
                             || keyCode == KeyEvent.KEYCODE_DPAD_RIGHT
                             || keyCode == KeyEvent.KEYCODE_W) {
-                        mRotating = 0;
+                        mLander.rotating = 0;
                         handled = true;
                     }
                 }
@@ -712,19 +1209,34 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             // so this is like clearing the screen.
 //            canvas.drawBitmap(mBackgroundImage, 0, 0, null);//change this! offset left top
 
-            int yTop = mCanvasHeight - ((int) mY + mLanderHeight / 2);
-            int xLeft = (int) mX - mLanderWidth / 2;
+            // a wide world scrolls to keep the lander in the middle
+            mScrollX = 0;
+            if (mWorld != null) {
+                mScrollX = Math.max(0, Math.min(mWorld.getWidth() - mCanvasWidth,
+                        (int) mLander.x - mCanvasWidth / 2));
+            }
+            float landerX = (float) mLander.x - mScrollX;
+            int yTop = mCanvasHeight - ((int) mLander.y + mLander.landerHeight / 2);
+            int xLeft = (int) landerX - mLander.landerWidth / 2;
 
             // Draw the fuel gauge
-            int fuelWidth = (int) (UI_BAR * mFuel / PHYS_FUEL_MAX);
+            int fuelWidth = (int) (UI_BAR * mLander.fuel / PHYS_FUEL_MAX);
             mScratchRect.set(4, 4, 4 + fuelWidth, 4 + UI_BAR_HEIGHT);
             canvas.drawRect(mScratchRect, mLinePaint);
 
+            // the pad the lander is headed for sets the speed to beat
+            int target = -1;
+            int goalSpeed = mLander.goalSpeed;
+            if (mLander.pads != null) {
+                target = mLander.pads.nearest(LanderPhysics.predictTouchdownX(mLander));
+                goalSpeed = mLander.pads.getSpeed(target);
+            }
+
             // Draw the speed gauge, with a two-tone effect
-            double speed = Math.sqrt(mDX * mDX + mDY * mDY);
+            double speed = mLander.speed();
             int speedWidth = (int) (UI_BAR * speed / PHYS_SPEED_MAX);
 
-            if (speed <= mGoalSpeed) {
+            if (speed <= goalSpeed) {
                 mScratchRect.set(4 + UI_BAR + 4, 4,
                         4 + UI_BAR + 4 + speedWidth, 4 + UI_BAR_HEIGHT);
                 canvas.drawRect(mScratchRect, mLinePaint);
@@ -734,146 +1246,268 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                 mScratchRect.set(4 + UI_BAR + 4, 4,
                         4 + UI_BAR + 4 + speedWidth, 4 + UI_BAR_HEIGHT);
                 canvas.drawRect(mScratchRect, mLinePaintBad);
-                int goalWidth = (UI_BAR * mGoalSpeed / PHYS_SPEED_MAX);
+                int goalWidth = (UI_BAR * goalSpeed / PHYS_SPEED_MAX);
                 mScratchRect.set(4 + UI_BAR + 4, 4, 4 + UI_BAR + 4 + goalWidth,
                         4 + UI_BAR_HEIGHT);
                 canvas.drawRect(mScratchRect, mLinePaint);
             }
 
-            // Draw the landing pad
-            canvas.drawLine(mGoalX, 1 + mCanvasHeight - TARGET_PAD_HEIGHT,
-                    mGoalX + mGoalWidth, 1 + mCanvasHeight - TARGET_PAD_HEIGHT,
-                    mLinePaint);
+            // Draw the ground and the landing pads
+            if (mWorld != null) {
+                mWorld.releaseEvicted();
+                int last = mWorld.chunkAt(mScrollX + mCanvasWidth);
+                for (int i = mWorld.chunkAt(mScrollX); i <= last; i++) {
+                    // not ready yet: skip it rather than stall the frame
+                    Bitmap image = mWorld.getImage(i);
+                    if (image == null) continue;
+                    canvas.drawBitmap(image, i * ChunkedTerrain.CHUNK_WIDTH - mScrollX,
+                            mCanvasHeight - image.getHeight(), null);
+                }
+            } else if (mTerrain != null) {
+                canvas.drawPath(mTerrainPath, mTerrainPaint);
+                for (int i = 0; i < mTerrain.getPadCount(); i++) {
+                    float y = 1 + mCanvasHeight - (float) mTerrain.getPadHeight(i);
+                    canvas.drawLine(mTerrain.getPadX(i), y,
+                            mTerrain.getPadX(i) + mTerrain.getPadWidth(i), y, mLinePaint);
+                }
+                if (target >= 0 && mMode == STATE_RUNNING) drawTarget(canvas, target);
+                if (mGravity != null) drawBodies(canvas);
+                if (mWind != null) drawWind(canvas, landerX);
+            } else {
+                canvas.drawLine(mLander.goalX, 1 + mCanvasHeight - TARGET_PAD_HEIGHT,
+                        mLander.goalX + mLander.goalWidth, 1 + mCanvasHeight - TARGET_PAD_HEIGHT,
+                        mLinePaint);
+            }
+
 
+            if (mRacing) drawGhost(canvas);
+            if (mNetClient != null) drawOtherPlayers(canvas);
 
             // Draw the ship with its current rotation
             canvas.save();
-            canvas.rotate((float) mHeading, (float) mX, mCanvasHeight
-                    - (float) mY);
+            canvas.rotate((float) mLander.heading, landerX, mCanvasHeight
+                    - (float) mLander.y);
             if (mMode == STATE_LOSE) {
-                mCrashedImage.setBounds(xLeft, yTop, xLeft + mLanderWidth, yTop
-                        + mLanderHeight);
+                mCrashedImage.setBounds(xLeft, yTop, xLeft + mLander.landerWidth, yTop
+                        + mLander.landerHeight);
                 mCrashedImage.draw(canvas);
-            } else if (mEngineFiring) {
-                mFiringImage.setBounds(xLeft, yTop, xLeft + mLanderWidth, yTop
-                        + mLanderHeight);
+            } else if (mLander.engineFiring) {
+                mFiringImage.setBounds(xLeft, yTop, xLeft + mLander.landerWidth, yTop
+                        + mLander.landerHeight);
                 mFiringImage.draw(canvas);
             } else {
-                mLanderImage.setBounds(xLeft, yTop, xLeft + mLanderWidth, yTop
-                        + mLanderHeight);
+                mLanderImage.setBounds(xLeft, yTop, xLeft + mLander.landerWidth, yTop
+                        + mLander.landerHeight);
                 mLanderImage.draw(canvas);
             }
             canvas.restore();
         }
 
         /**
-         * Figures the lander state (x, y, fuel, ...) based on the passage of
-         * realtime. Does not invalidate(). Called at the start of draw().
-         * Detects the end-of-game and sets the UI to the next state.
+         * Draws the moons and asteroids.
          */
-        private void updatePhysics() {///the text has already been cleared
-            long now = System.currentTimeMillis();
-
-            // Do nothing if mLastTime is in the future.
-            // This allows the game-start to delay the start of the physics
-            // by 100ms or whatever.
-            if (mLastTime > now) return;
-
-            double elapsed = (now - mLastTime) / 1000.0;
-
-            // mRotating -- update heading
-            if (mRotating != 0) {
-                mHeading += mRotating * (PHYS_SLEW_SEC * elapsed);
-
-                // Bring things back into the range 0..360
-                if (mHeading < 0)
-                    mHeading += 360;
-                else if (mHeading >= 360) mHeading -= 360;
+        private void drawBodies(Canvas canvas) {
+            for (int i = 0; i < mGravity.getCount(); i++) {
+                canvas.drawCircle((float) mGravity.getX(i),
+                        mCanvasHeight - (float) mGravity.getY(i),
+                        mGravity.isFixed(i) ? MOON_RADIUS : ASTEROID_RADIUS, mBodyPaint);
             }
+        }
 
-            // Base accelerations -- 0 for x, gravity for y
-            double ddx = 0.0;
-            double ddy = -PHYS_DOWN_ACCEL_SEC * elapsed;
-
-            if (mEngineFiring) {
-                // taking 0 as up, 90 as to the right
-                // cos(deg) is ddy component, sin(deg) is ddx component
-                double elapsedFiring = elapsed;
-                double fuelUsed = elapsedFiring * PHYS_FUEL_SEC;
-
-                // tricky case where we run out of fuel partway through the
-                // elapsed
-                if (fuelUsed > mFuel) {
-                    elapsedFiring = mFuel / fuelUsed * elapsed;
-                    fuelUsed = mFuel;
-
-                    // Oddball case where we adjust the "control" from here
-                    mEngineFiring = false;
-                }
+        /**
+         * Draws a streak from the lander showing which way the wind pushes
+         * it, and how hard.
+         */
+        private void drawWind(Canvas canvas, float landerX) {
+            float y = mCanvasHeight - (float) mLander.y;
+            canvas.drawLine(landerX, y,
+                    landerX + WIND_STREAK * (float) mWind.accelX(mLander.x, mLander.y),
+                    y - WIND_STREAK * (float) mWind.accelY(mLander.x, mLander.y), mHudPaint);
+        }
 
-                mFuel -= fuelUsed;
+        /**
+         * Marks the pad the lander is headed for with its multiplier and
+         * limits.
+         */
+        private void drawTarget(Canvas canvas, int pad) {
+            PadIndex pads = mLander.pads;
+            if (pad != mHudPad) {
+                mHudPad = pad;
+                mHudLabel = "x" + pads.getMultiplier(pad) + "  " + pads.getSpeed(pad)
+                        + " px/s  " + pads.getAngle(pad) + "\u00b0";
+            }
+            float left = pads.getX(pad);
+            float right = left + pads.getWidth(pad);
+            float y = mCanvasHeight
+                    - (float) mTerrain.heightUnder(left, right) - 6;
+            canvas.drawLine(left, y, left, y - 8, mHudPaint);
+            canvas.drawLine(right, y, right, y - 8, mHudPaint);
+            canvas.drawText(mHudLabel, left, y - 12, mHudPaint);
+        }
 
-                // have this much acceleration from the engine
-                double accel = PHYS_FIRE_ACCEL_SEC * elapsedFiring;
+        /**
+         * Draws the ghost where it was at the current flight time, scaled
+         * from the canvas it was recorded on.
+         */
+        private void drawGhost(Canvas canvas) {
+            mGhost.seek((long) (mFlightTime * 1000));
+            float x = mGhost.getX() * mCanvasWidth / mGhost.getCanvasWidth() - mScrollX;
+            float y = mCanvasHeight - mGhost.getY() * mCanvasHeight / mGhost.getCanvasHeight();
+            drawFaded(canvas, mGhost.isFiring() ? mFiringImage : mLanderImage,
+                    x, y, mGhost.getHeading());
+        }
 
-                double radians = 2 * Math.PI * mHeading / 360;
-                ddx = Math.sin(radians) * accel;
-                ddy += Math.cos(radians) * accel;
+        /**
+         * Draws everyone else in the multiplayer game.
+         */
+        private void drawOtherPlayers(Canvas canvas) {
+            int me = mNetClient.getPlayerId();
+            float sx = (float) mCanvasWidth / mNetClient.getCanvasWidth();
+            float sy = (float) mCanvasHeight / mNetClient.getCanvasHeight();
+            for (int i = 0; i < NetProtocol.MAX_PLAYERS; i++) {
+                if (i == me || !mNetWorld.present[i]) continue;
+                int[] f = mNetWorld.fields[i];
+                int phase = NetProtocol.phaseOf(f);
+                if (phase == NetProtocol.PHASE_WAITING) continue;
+                NetProtocol.dequantize(f, mNetOther);
+                Drawable image = mLanderImage;
+                if (phase != NetProtocol.PHASE_FLYING && !LanderPhysics.isWin(phase))
+                    image = mCrashedImage;
+                else if (mNetOther.engineFiring)
+                    image = mFiringImage;
+                drawFaded(canvas, image, (float) mNetOther.x * sx,
+                        mCanvasHeight - (float) mNetOther.y * sy, (float) mNetOther.heading);
             }
+        }
 
-            double dxOld = mDX;
-            double dyOld = mDY;
+        /**
+         * Draws a translucent lander sprite centered on a canvas point.
+         */
+        private void drawFaded(Canvas canvas, Drawable image, float x, float y,
+                float heading) {
+            int xLeft = (int) x - mLander.landerWidth / 2;
+            int yTop = (int) y - mLander.landerHeight / 2;
+            canvas.save();
+            canvas.rotate(heading, x, y);
+            image.setBounds(xLeft, yTop, xLeft + mLander.landerWidth,
+                    yTop + mLander.landerHeight);
+            image.setAlpha(GHOST_ALPHA);
+            image.draw(canvas);
+            image.setAlpha(255);
+            canvas.restore();
+        }
 
-            // figure speeds for the end of the period
-            mDX += ddx;
-            mDY += ddy;
+        /**
+         * Figures the lander state (x, y, fuel, ...) based on the passage of
+         * realtime. Does not invalidate(). Called at the start of draw().
+         * Detects the end-of-game and sets the UI to the next state.
+         */
+        private void updatePhysics() {///the text has already been cleared
+            long now = mClock.nanoTime();
 
-            // figure position based on average speed during the period
-            mX += elapsed * (mDX + dxOld) / 2;
-            mY += elapsed * (mDY + dyOld) / 2;
+            // Do nothing if mLastTime is in the future.
+            // This allows the game-start to delay the start of the physics
+            // by START_DELAY_NANOS.
+            if (mLastTime > now) return;
 
+            double elapsed = (now - mLastTime) / 1e9;
             mLastTime = now;
 
-            // Evaluate if we have landed ... stop the game
-            double yLowerBound = TARGET_PAD_HEIGHT + mLanderHeight / 2
-                    - TARGET_BOTTOM_PADDING;
-            if (mY <= yLowerBound) {
-                mY = yLowerBound;
+            if (mGravity != null) mGravity.step(elapsed);
+            if (mWind != null) mWind.advance(elapsed);
+            boolean fueled = mLander.fuel > 0;
+            int outcome = LanderPhysics.step(mLander, elapsed);
+            if (mWorld != null) prefetchWorld();
+            mFlightTime += elapsed;
+            if (fueled && mLander.fuel <= 0) {
+                mEvents.publish(GameEvents.TYPE_OUT_OF_FUEL, mDifficulty, 0, mFlightTime,
+                        mLander);
+            }
+            mRecorder.add(elapsed, mLander);
+            mRewind.capture(elapsed, mLander);
+            if (mTelemetry != null) mTelemetry.add(elapsed, mLander);
+            if (outcome == LanderPhysics.OUTCOME_FLYING) return;
+            mRecorder.finish(outcome, mLander);
+            if (mTelemetry != null) mTelemetry.finish(outcome);
+            endFlight(mDifficulty, outcome);
+        }
 
-                int result = STATE_LOSE;
-                CharSequence message = "";
-                Resources res = mContext.getResources();
-                double speed = Math.sqrt(mDX * mDX + mDY * mDY);
-                boolean onGoal = (mGoalX <= mX - mLanderWidth / 2 && mX
-                        + mLanderWidth / 2 <= mGoalX + mGoalWidth);
+        /**
+         * Sends our controls to the multiplayer server and takes our lander,
+         * the pad and the other players from its newest snapshot, scaled
+         * from the server's playing field to this canvas.
+         */
+        private void updateFromServer() {
+            boolean playing = mMode == STATE_RUNNING;
+            mNetClient.setInput(playing && mLander.engineFiring, playing ? mLander.rotating : 0,
+                    mLander.throttle, mLander.rotateAmount, playing);
+            int id = mNetClient.getPlayerId();
+            if (id < 0 || mNetClient.copyWorld(mNetWorld) < 0 || !mNetWorld.present[id])
+                return;
+
+            double sx = (double) mCanvasWidth / mNetClient.getCanvasWidth();
+            double sy = (double) mCanvasHeight / mNetClient.getCanvasHeight();
+            // keep our own controls, the server's copy is a round trip old
+            boolean firing = mLander.engineFiring;
+            int rotating = mLander.rotating;
+            NetProtocol.dequantize(mNetWorld.fields[id], mLander);
+            mLander.engineFiring = firing;
+            mLander.rotating = rotating;
+            mLander.x *= sx;
+            mLander.y *= sy;
+            mLander.goalX = (int) (mNetWorld.goalX * sx);
+            mLander.goalWidth = (int) (mNetWorld.goalWidth * sx);
+            mLander.goalSpeed = mNetWorld.goalSpeed;
+            mLander.goalAngle = mNetWorld.goalAngle;
+
+            int phase = NetProtocol.phaseOf(mNetWorld.fields[id]);
+            boolean ended = mNetPhase == NetProtocol.PHASE_FLYING
+                    && phase != NetProtocol.PHASE_FLYING && phase != NetProtocol.PHASE_WAITING;
+            mNetPhase = phase;
+            if (ended && playing) endFlight(mNetClient.getDifficulty(), phase);
+        }
 
+        /**
+         * Reports a finished flight, unless it was rewound, and shows its
+         * outcome.
+         *
+         * @param outcome one of the LanderPhysics.OUTCOME_* constants other
+         *        than OUTCOME_FLYING
+         */
+        private void endFlight(int difficulty, int outcome) {
+            if (mFlightListener != null && !mRewound)
+                mFlightListener.onFlightEnded(difficulty, outcome, mLander);
+            mEvents.publish(GameEvents.typeOf(outcome), difficulty,
+                    LanderPhysics.landingScore(mLander, outcome), mFlightTime, mLander);
+
+            // We have landed ... stop the game
+            int result = STATE_LOSE;
+            CharSequence message = "";
+            Resources res = mContext.getResources();
+            if (outcome == LanderPhysics.OUTCOME_HYPERSPACE) {
                 // "Hyperspace" win -- upside down, going fast,
                 // puts you back at the top.
-                if (onGoal && Math.abs(mHeading - 180) < mGoalAngle
-                        && speed > PHYS_SPEED_HYPERSPACE) {
-                    result = STATE_WIN;
-                    mWinsInARow++;
-                    doStart();
-
-                    return;
-                    // Oddball case: this case does a return, all other cases
-                    // fall through to setMode() below.
-                } else if (!onGoal) {
-                	int x =(int) (Math.abs(mHeading) / 120);///add left or right
-                    message = res.getQuantityString(R.plurals.message_off_pad, x, LunarName);
-                } else if (!(mHeading <= mGoalAngle || mHeading >= 360 - mGoalAngle)) {
-                	///add degrees off
-                    message = res.getString(R.string.message_bad_angle, LunarName);
-                } else if (speed > mGoalSpeed) {
-                	///add speeding
-                    message = res.getString(R.string.message_too_fast, LunarName);
-                } else {
-                    result = STATE_WIN;
-                    mWinsInARow++;
-                }
-
-                setState(result, message);
+                mWinsInARow++;
+                doStart();
+
+                return;
+                // Oddball case: this case does a return, all other cases
+                // fall through to setMode() below.
+            } else if (outcome == LanderPhysics.OUTCOME_OFF_PAD) {
+            	int x =(int) (Math.abs(mLander.heading) / 120);///add left or right
+                message = res.getQuantityString(R.plurals.message_off_pad, x, LunarName);
+            } else if (outcome == LanderPhysics.OUTCOME_BAD_ANGLE) {
+            	///add degrees off
+                message = res.getString(R.string.message_bad_angle, LunarName);
+            } else if (outcome == LanderPhysics.OUTCOME_TOO_FAST) {
+            	///add speeding
+                message = res.getString(R.string.message_too_fast, LunarName);
+            } else {
+                result = STATE_WIN;
+                mWinsInARow++;
             }
+
+            setState(result, message);
         }
         
         public SurfaceHolder getSurfaceHolder() {
@@ -885,7 +1519,8 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         }
         
         public void setRotating(int direction) {
-        	mRotating = direction;
+        	mLander.rotating = direction;
+        	mLander.rotateAmount = 1.0;
         }
     }
 
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Client side of the multiplayer game, see NetProtocol.
+ *
+ * Runs its own network thread: it joins the server, sends the latest
+ * controls once per server tick and decodes incoming snapshots against the
+ * ones it already has. The game thread only calls setInput() and
+ * copyWorld(), neither of which does I/O or allocates.
+ */
+final class NetClient {
+    private static final int HELLO_INTERVAL_MS = 500;
+
+    private final String mHost;
+    private final int mPort;
+    private final String mName;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile DatagramSocket mSocket;
+
+    /* set by WELCOME, then fixed */
+    private volatile int mPlayerId = -1;
+    private int mTickHz;
+    private int mCanvasWidth;
+    private int mCanvasHeight;
+    private int mLanderWidth;
+    private int mLanderHeight;
+    private int mDifficulty;
+
+    /* controls, written by the game thread */
+    private volatile int mInputFlags;
+    private volatile int mThrottle = 255;
+    private volatile int mRotateAmount = 255;
+
+    /** Decoded snapshots by tick % HISTORY; network thread only. */
+    private final NetProtocol.World[] mHistory = new NetProtocol.World[NetProtocol.HISTORY];
+    private int mNewestTick = -1;
+
+    /** The newest snapshot, handed to the game thread under its own lock. */
+    private final NetProtocol.World mLatest = new NetProtocol.World();
+
+    /*
+     * Statistics
+     */
+    private volatile long mSnapshots;
+    private volatile long mBadSnapshots;
+    private volatile long mBytesReceived;
+    private volatile String mLastError;
+
+    /**
+     * Starts joining the given server in the background.
+     *
+     * @param name shown to other players
+     */
+    public NetClient(String host, int port, String name) {
+        mHost = host;
+        mPort = port;
+        mName = name;
+        for (int i = 0; i < mHistory.length; i++)
+            mHistory[i] = new NetProtocol.World();
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    loop();
+                } catch (IOException e) {
+                    if (mRunning) mLastError = e.toString();
+                }
+            }
+        }, "NetClient");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Sets the controls sent with the next input.
+     *
+     * @param playing false while the player is not flying, e.g. reading the
+     *        outcome of the last flight
+     */
+    public void setInput(boolean firing, int rotating, double throttle, double rotateAmount,
+            boolean playing) {
+        int flags = 0;
+        if (firing) flags |= NetProtocol.INPUT_FIRING;
+        if (rotating < 0) flags |= NetProtocol.INPUT_LEFT;
+        if (rotating > 0) flags |= NetProtocol.INPUT_RIGHT;
+        if (playing) flags |= NetProtocol.INPUT_PLAYING;
+        mThrottle = (int) Math.round(Math.max(0, Math.min(1, throttle)) * 255);
+        mRotateAmount = (int) Math.round(Math.max(0, Math.min(1, rotateAmount)) * 255);
+        mInputFlags = flags;
+    }
+
+    /**
+     * Copies the newest snapshot.
+     *
+     * @return its tick, or -1 if none has arrived yet
+     */
+    public int copyWorld(NetProtocol.World out) {
+        synchronized (mLatest) {
+            if (mLatest.tick < 0) return -1;
+            out.copyFrom(mLatest);
+            return out.tick;
+        }
+    }
+
+    /** Our player id, or -1 until the server has welcomed us. */
+    public int getPlayerId() {
+        return mPlayerId;
+    }
+
+    /* The server's playing field; valid once getPlayerId() is set. */
+
+    public int getCanvasWidth() {
+        return mCanvasWidth;
+    }
+
+    public int getCanvasHeight() {
+        return mCanvasHeight;
+    }
+
+    public int getLanderWidth() {
+        return mLanderWidth;
+    }
+
+    public int getLanderHeight() {
+        return mLanderHeight;
+    }
+
+    public int getDifficulty() {
+        return mDifficulty;
+    }
+
+    public long getSnapshots() {
+        return mSnapshots;
+    }
+
+    /** Snapshots that could not be decoded or failed their hash. */
+    public long getBadSnapshots() {
+        return mBadSnapshots;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /** Why the network thread stopped, or null. */
+    public String getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Says goodbye to the server and stops the network thread.
+     */
+    public void close() {
+        mRunning = false;
+        DatagramSocket socket = mSocket;
+        if (socket != null) {
+            try {
+                byte[] bye = new byte[8];
+                ByteBuffer out = ByteBuffer.wrap(bye);
+                NetProtocol.putHeader(out, NetProtocol.PACKET_BYE);
+                out.put((byte) mPlayerId);
+                socket.send(new DatagramPacket(bye, out.position()));
+            } catch (IOException e) {
+                // the server times us out instead
+            }
+            socket.close();
+        }
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        mSocket = socket;
+        if (!mRunning) {
+            socket.close();
+            return;
+        }
+        socket.connect(new InetSocketAddress(mHost, mPort));
+        byte[] inBytes = new byte[NetProtocol.MAX_PACKET];
+        ByteBuffer in = ByteBuffer.wrap(inBytes);
+        DatagramPacket inPacket = new DatagramPacket(inBytes, inBytes.length);
+        byte[] outBytes = new byte[NetProtocol.MAX_PACKET];
+        ByteBuffer out = ByteBuffer.wrap(outBytes);
+        DatagramPacket outPacket = new DatagramPacket(outBytes, 0);
+
+        long nextSend = 0;
+        int seq = 0;
+        while (mRunning) {
+            long now = System.nanoTime();
+            if (now >= nextSend) {
+                out.clear();
+                if (mPlayerId < 0) {
+                    NetProtocol.putHeader(out, NetProtocol.PACKET_HELLO);
+                    byte[] name = mName.getBytes("UTF-8");
+                    out.put((byte) Math.min(name.length, 32));
+                    out.put(name, 0, Math.min(name.length, 32));
+                    nextSend = now + HELLO_INTERVAL_MS * 1000000L;
+                } else {
+                    NetProtocol.putHeader(out, NetProtocol.PACKET_INPUT);
+                    out.put((byte) mPlayerId);
+                    out.putInt(seq++);
+                    out.putInt(mNewestTick);
+                    out.put((byte) mInputFlags);
+                    out.put((byte) mThrottle);
+                    out.put((byte) mRotateAmount);
+                    nextSend = now + 1000000000L / mTickHz;
+                }
+                outPacket.setData(outBytes, 0, out.position());
+                socket.send(outPacket);
+            }
+
+            int waitMs = (int) Math.max(1, (nextSend - System.nanoTime()) / 1000000);
+            socket.setSoTimeout(waitMs);
+            try {
+                inPacket.setData(inBytes);
+                socket.receive(inPacket);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            mBytesReceived += inPacket.getLength();
+            in.clear();
+            in.limit(inPacket.getLength());
+            int type = NetProtocol.readHeader(in);
+            if (type == NetProtocol.PACKET_WELCOME && mPlayerId < 0 && in.remaining() >= 12) {
+                int id = in.get() & 0xff;
+                mTickHz = Math.max(1, in.getShort());
+                mCanvasWidth = in.getShort();
+                mCanvasHeight = in.getShort();
+                mLanderWidth = in.getShort();
+                mLanderHeight = in.getShort();
+                mDifficulty = in.get();
+                mPlayerId = id;
+                nextSend = 0;
+            } else if (type == NetProtocol.PACKET_SNAPSHOT && mPlayerId >= 0) {
+                receiveSnapshot(in);
+            }
+        }
+        socket.close();
+    }
+
+    private void receiveSnapshot(ByteBuffer in) {
+        if (in.remaining() < 8) return;
+        int tick = in.getInt(in.position());
+        int baseTick = NetProtocol.peekBase(in);
+        if (tick <= mNewestTick) return; // late or duplicate
+        NetProtocol.World base = null;
+        if (baseTick != NetProtocol.NO_BASE) {
+            if (tick - baseTick >= NetProtocol.HISTORY) return;
+            base = mHistory[baseTick % NetProtocol.HISTORY];
+            if (base.tick != baseTick) {
+                mBadSnapshots++;
+                return;
+            }
+        }
+        NetProtocol.World w = mHistory[tick % NetProtocol.HISTORY];
+        if (!NetProtocol.readSnapshot(in, base, w)) {
+            w.tick = -1;
+            mBadSnapshots++;
+            return;
+        }
+        mNewestTick = tick;
+        mSnapshots++;
+        synchronized (mLatest) {
+            mLatest.copyFrom(w);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the multiplayer game, shared by GameServer and NetClient.
+ *
+ * Every datagram starts with the magic "LL", the protocol version and a
+ * packet type. Clients say HELLO until they get a WELCOME with their player
+ * id, then send INPUT at the tick rate: their controls plus the newest
+ * snapshot they have decoded. The server answers every tick with a
+ * SNAPSHOT of the whole shared game.
+ *
+ * Lander state goes over the wire quantised to integers (see the F_*
+ * fields) and delta-compressed: a snapshot names the acknowledged snapshot
+ * it is relative to, and for every player carries a bit mask of the fields
+ * that changed followed by their differences as zigzag varints. A lander in
+ * free fall typically costs 7 bytes, one sitting on the ground 2. Each
+ * snapshot also carries a hash of the full quantised world, so a client
+ * knows its decoded copy matches the server's.
+ */
+final class NetProtocol {
+    public static final int VERSION = 1;
+    private static final int MAGIC = 0x4c4c; // "LL"
+
+    /*
+     * Packet types
+     */
+    public static final int PACKET_HELLO = 1;
+    public static final int PACKET_WELCOME = 2;
+    public static final int PACKET_INPUT = 3;
+    public static final int PACKET_SNAPSHOT = 4;
+    public static final int PACKET_BYE = 5;
+
+    /** Controls exchanged between peers of a RollbackSession. */
+    public static final int PACKET_ROLLBACK_INPUTS = 6;
+
+    /** Players in one game, at most. */
+    public static final int MAX_PLAYERS = 32;
+
+    /** Largest datagram either side sends. */
+    public static final int MAX_PACKET = 1200;
+
+    /** Snapshots kept as possible delta bases, on both sides. */
+    public static final int HISTORY = 64;
+
+    /** Snapshot base meaning "relative to nothing". */
+    public static final int NO_BASE = -1;
+
+    /*
+     * Quantised lander fields
+     */
+    public static final int F_X = 0; // 1/8 px
+    public static final int F_Y = 1; // 1/8 px
+    public static final int F_DX = 2; // 1/16 px/s
+    public static final int F_DY = 3; // 1/16 px/s
+    public static final int F_HEADING = 4; // 360/65536 degrees
+    public static final int F_FUEL = 5; // 1/64 units
+    public static final int F_STATUS = 6; // see STATUS_*
+    public static final int FIELDS = 7;
+
+    /*
+     * F_STATUS bits: engine, rotation and flight phase. The phase is
+     * PHASE_FLYING or the LanderPhysics.OUTCOME_* the flight ended with.
+     */
+    public static final int STATUS_FIRING = 1;
+    public static final int STATUS_LEFT = 2;
+    public static final int STATUS_RIGHT = 4;
+    private static final int STATUS_PHASE_SHIFT = 4;
+    public static final int PHASE_FLYING = LanderPhysics.OUTCOME_FLYING;
+
+    /** Phase of a player who joined but hasn't flown yet. */
+    public static final int PHASE_WAITING = 7;
+
+    /*
+     * INPUT flags
+     */
+    public static final int INPUT_FIRING = 1;
+    public static final int INPUT_LEFT = 2;
+    public static final int INPUT_RIGHT = 4;
+
+    /** The player wants to fly; a landed lander is restarted. */
+    public static final int INPUT_PLAYING = 8;
+
+    private NetProtocol() {
+    }
+
+    /**
+     * The quantised state of one game at one tick.
+     */
+    static final class World {
+        public int tick = -1;
+        public int goalX;
+        public int goalWidth;
+        public int goalSpeed;
+        public int goalAngle;
+        public final boolean[] present = new boolean[MAX_PLAYERS];
+        public final int[][] fields = new int[MAX_PLAYERS][FIELDS];
+
+        public void copyFrom(World w) {
+            tick = w.tick;
+            goalX = w.goalX;
+            goalWidth = w.goalWidth;
+            goalSpeed = w.goalSpeed;
+            goalAngle = w.goalAngle;
+            for (int i = 0; i < MAX_PLAYERS; i++) {
+                present[i] = w.present[i];
+                System.arraycopy(w.fields[i], 0, fields[i], 0, FIELDS);
+            }
+        }
+
+        /** FNV-1a over everything but the tick. */
+        public int hash() {
+            int h = 0x811c9dc5;
+            h = (h ^ goalX) * 0x01000193;
+            h = (h ^ goalWidth) * 0x01000193;
+            h = (h ^ goalSpeed) * 0x01000193;
+            h = (h ^ goalAngle) * 0x01000193;
+            for (int i = 0; i < MAX_PLAYERS; i++) {
+                if (!present[i]) continue;
+                h = (h ^ i) * 0x01000193;
+                for (int f = 0; f < FIELDS; f++)
+                    h = (h ^ fields[i][f]) * 0x01000193;
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Quantises a lander into a field array.
+     *
+     * @param phase PHASE_FLYING or the outcome its flight ended with
+     */
+    public static void quantize(LanderState s, int phase, int[] out) {
+        out[F_X] = (int) Math.round(s.x * 8);
+        out[F_Y] = (int) Math.round(s.y * 8);
+        out[F_DX] = (int) Math.round(s.dx * 16);
+        out[F_DY] = (int) Math.round(s.dy * 16);
+        out[F_HEADING] = (int) Math.round(s.heading * 65536 / 360) & 0xffff;
+        out[F_FUEL] = (int) Math.round(s.fuel * 64);
+        int status = phase << STATUS_PHASE_SHIFT;
+        if (s.engineFiring) status |= STATUS_FIRING;
+        if (s.rotating < 0) status |= STATUS_LEFT;
+        if (s.rotating > 0) status |= STATUS_RIGHT;
+        out[F_STATUS] = status;
+    }
+
+    /**
+     * Sets a lander's position, motion, fuel and controls from quantised
+     * fields. Leaves its size and goal alone.
+     */
+    public static void dequantize(int[] f, LanderState s) {
+        s.x = f[F_X] / 8.0;
+        s.y = f[F_Y] / 8.0;
+        s.dx = f[F_DX] / 16.0;
+        s.dy = f[F_DY] / 16.0;
+        s.heading = f[F_HEADING] * 360.0 / 65536;
+        s.fuel = f[F_FUEL] / 64.0;
+        s.engineFiring = (f[F_STATUS] & STATUS_FIRING) != 0;
+        s.rotating = (f[F_STATUS] & STATUS_LEFT) != 0 ? -1
+                : ((f[F_STATUS] & STATUS_RIGHT) != 0 ? 1 : 0);
+    }
+
+    public static int phaseOf(int[] f) {
+        return f[F_STATUS] >>> STATUS_PHASE_SHIFT;
+    }
+
+    /**
+     * Starts a packet of the given type.
+     */
+    public static void putHeader(ByteBuffer out, int type) {
+        out.putShort((short) MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) type);
+    }
+
+    /**
+     * Checks a packet's header.
+     *
+     * @return the packet type, or -1 if this is not our packet
+     */
+    public static int readHeader(ByteBuffer in) {
+        if (in.remaining() < 4 || (in.getShort() & 0xffff) != MAGIC || in.get() != VERSION)
+            return -1;
+        return in.get() & 0xff;
+    }
+
+    /**
+     * Writes a snapshot of a world relative to a base.
+     *
+     * @param base an earlier world the client has, or null for a full
+     *        snapshot
+     */
+    public static void putSnapshot(ByteBuffer out, World w, World base) {
+        putHeader(out, PACKET_SNAPSHOT);
+        out.putInt(w.tick);
+        out.putInt(base == null ? NO_BASE : base.tick);
+        out.putInt(w.hash());
+        out.putShort((short) w.goalX);
+        out.putShort((short) w.goalWidth);
+        out.put((byte) w.goalSpeed);
+        out.put((byte) w.goalAngle);
+        int countAt = out.position();
+        out.put((byte) 0);
+        int count = 0;
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            if (!w.present[i]) continue;
+            int[] f = w.fields[i];
+            int[] b = base != null && base.present[i] ? base.fields[i] : null;
+            int mask = 0;
+            for (int k = 0; k < FIELDS; k++) {
+                if (f[k] != (b == null ? 0 : b[k])) mask |= 1 << k;
+            }
+            out.put((byte) i);
+            out.put((byte) (b == null ? mask | 0x80 : mask));
+            for (int k = 0; k < FIELDS; k++) {
+                if ((mask & (1 << k)) != 0) putVarint(out, f[k] - (b == null ? 0 : b[k]));
+            }
+            count++;
+        }
+        out.put(countAt, (byte) count);
+    }
+
+    /**
+     * Reads the tick and base of a snapshot whose header was just read,
+     * without consuming them.
+     */
+    public static int peekBase(ByteBuffer in) {
+        return in.getInt(in.position() + 4);
+    }
+
+    /**
+     * Decodes a snapshot whose header was just read.
+     *
+     * @param base the world named as its base, or null if it has none
+     * @return false if the packet is malformed or the result doesn't match
+     *         the server's hash
+     */
+    public static boolean readSnapshot(ByteBuffer in, World base, World out) {
+        try {
+            int tick = in.getInt();
+            int baseTick = in.getInt();
+            if ((baseTick == NO_BASE) != (base == null)
+                    || (base != null && base.tick != baseTick))
+                return false;
+            int hash = in.getInt();
+            out.tick = tick;
+            out.goalX = in.getShort();
+            out.goalWidth = in.getShort();
+            out.goalSpeed = in.get() & 0xff;
+            out.goalAngle = in.get() & 0xff;
+            for (int i = 0; i < MAX_PLAYERS; i++)
+                out.present[i] = false;
+            for (int count = in.get() & 0xff; count > 0; count--) {
+                int id = in.get() & 0xff;
+                int mask = in.get() & 0xff;
+                if (id >= MAX_PLAYERS) return false;
+                boolean full = (mask & 0x80) != 0;
+                int[] b = !full && base != null && base.present[id] ? base.fields[id] : null;
+                if (!full && b == null) return false;
+                int[] f = out.fields[id];
+                for (int k = 0; k < FIELDS; k++) {
+                    int prev = b == null ? 0 : b[k];
+                    f[k] = (mask & (1 << k)) != 0 ? prev + getVarint(in) : prev;
+                }
+                out.present[id] = true;
+            }
+            return out.hash() == hash;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /** Zigzag varint: small differences of either sign take one byte. */
+    public static void putVarint(ByteBuffer out, int v) {
+        int z = (v << 1) ^ (v >> 31);
+        while ((z & ~0x7f) != 0) {
+            out.put((byte) ((z & 0x7f) | 0x80));
+            z >>>= 7;
+        }
+        out.put((byte) z);
+    }
+
+    public static int getVarint(ByteBuffer in) {
+        int z = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            z |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return (z >>> 1) ^ -(z & 1);
+        }
+        throw new BufferUnderflowException();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * The landing pads of a level, each with its own speed and angle limits and
+ * score multiplier, sorted by x in parallel arrays. Pads never overlap, so
+ * the pad under a lander and the pad nearest a point are found by binary
+ * search, in time logarithmic in the number of pads. Immutable, so states
+ * may share it freely.
+ */
+final class PadIndex {
+    /** Sampling attempts per pad before place() settles for fewer pads. */
+    private static final int TRIES_PER_PAD = 8;
+
+    /* pads, sorted by x */
+    private final int[] mX;
+    private final int[] mWidth;
+    private final int[] mSpeed;
+    private final int[] mAngle;
+    private final float[] mMultiplier;
+
+    /** Index of the level's goal pad. */
+    private final int mGoal;
+
+    private PadIndex(int[] x, int[] width, int[] speed, int[] angle, float[] multiplier,
+            int count, int goal) {
+        // insertion sort by x; levels have tens of pads, not thousands
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        for (int i = 1; i < count; i++) {
+            for (int j = i; j > 0 && x[order[j]] < x[order[j - 1]]; j--) {
+                int t = order[j];
+                order[j] = order[j - 1];
+                order[j - 1] = t;
+            }
+        }
+        mX = new int[count];
+        mWidth = new int[count];
+        mSpeed = new int[count];
+        mAngle = new int[count];
+        mMultiplier = new float[count];
+        int goalAt = -1;
+        for (int i = 0; i < count; i++) {
+            int p = order[i];
+            mX[i] = x[p];
+            mWidth[i] = width[p];
+            mSpeed[i] = speed[p];
+            mAngle[i] = angle[p];
+            mMultiplier[i] = multiplier[p];
+            if (p == goal) goalAt = i;
+            if (i > 0 && mX[i - 1] + mWidth[i - 1] > mX[i])
+                throw new IllegalArgumentException("Pads overlap at " + mX[i]);
+        }
+        mGoal = goalAt;
+    }
+
+    /**
+     * Places a level's pads around the goal the state already has, by
+     * seeded sampling with a bounded number of draws: at most
+     * TRIES_PER_PAD per pad wanted, after which the level simply has fewer
+     * pads. The goal keeps the state's limits and a multiplier of 1; every
+     * other pad gets a random difficulty that makes it narrower and
+     * stricter and multiplies its score by up to 3.
+     *
+     * @param s a state set up by LanderPhysics.start()
+     * @param count pads wanted, the goal included
+     * @param left left edge of the field pads may use
+     * @param right right edge of the field
+     * @param random the game's seeded source
+     */
+    public static PadIndex place(LanderState s, int count, int left, int right,
+            Random random) {
+        int[] x = new int[count];
+        int[] width = new int[count];
+        int[] speed = new int[count];
+        int[] angle = new int[count];
+        float[] multiplier = new float[count];
+        x[0] = s.goalX;
+        width[0] = s.goalWidth;
+        speed[0] = s.goalSpeed;
+        angle[0] = s.goalAngle;
+        multiplier[0] = 1;
+        int n = 1;
+        // room for a lander between any two pads
+        int gap = s.landerWidth / 2;
+        for (int tries = 0; tries < count * TRIES_PER_PAD && n < count; tries++) {
+            double difficulty = random.nextDouble();
+            int w = Math.max(s.landerWidth + 2, (int) (s.goalWidth * (1 - 0.3 * difficulty)));
+            int px = left + (int) (random.nextDouble() * (right - left - w));
+            if (px < left || px + w > right) continue;
+            boolean clear = true;
+            for (int i = 0; i < n && clear; i++)
+                clear = px + w + gap <= x[i] || x[i] + width[i] + gap <= px;
+            if (!clear) continue;
+            x[n] = px;
+            width[n] = w;
+            speed[n] = Math.max(1, (int) Math.round(s.goalSpeed * (1 - 0.4 * difficulty)));
+            angle[n] = Math.max(1, (int) Math.round(s.goalAngle * (1 - 0.4 * difficulty)));
+            // 1, 1.5, 2, 2.5 or 3
+            multiplier[n] = 1 + (float) Math.floor(difficulty * 5) / 2;
+            n++;
+        }
+        return new PadIndex(x, width, speed, angle, multiplier, n, 0);
+    }
+
+    /**
+     * @return the pad wholly under the span, or -1 if there is none
+     */
+    public int find(double left, double right) {
+        int i = lastAtOrBefore(left);
+        if (i < 0 || right > mX[i] + mWidth[i]) return -1;
+        return i;
+    }
+
+    /**
+     * @return the pad whose nearest edge is closest to x, or -1 if there
+     *         are no pads
+     */
+    public int nearest(double x) {
+        if (mX.length == 0) return -1;
+        int i = lastAtOrBefore(x);
+        if (i < 0) return 0;
+        if (x <= mX[i] + mWidth[i] || i + 1 == mX.length) return i;
+        return x - (mX[i] + mWidth[i]) <= mX[i + 1] - x ? i : i + 1;
+    }
+
+    public int size() {
+        return mX.length;
+    }
+
+    /** Index of the goal pad. */
+    public int getGoal() {
+        return mGoal;
+    }
+
+    public int getX(int i) {
+        return mX[i];
+    }
+
+    public int getWidth(int i) {
+        return mWidth[i];
+    }
+
+    /** Allowed touchdown speed on pad i. */
+    public int getSpeed(int i) {
+        return mSpeed[i];
+    }
+
+    /** Allowed touchdown angle on pad i. */
+    public int getAngle(int i) {
+        return mAngle[i];
+    }
+
+    /** What a landing on pad i multiplies its score by. */
+    public float getMultiplier(int i) {
+        return mMultiplier[i];
+    }
+
+    /**
+     * @return the last pad starting at or before x, or -1
+     */
+    private int lastAtOrBefore(double x) {
+        int lo = 0;
+        int hi = mX.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mX[mid] <= x) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * What we remember about one pilot across games: totals, win streaks and
+ * the best landing per difficulty. Keyed by account, see ProfileStore.
+ */
+final class PilotProfile {
+    /** Number of difficulties, indexed by LanderPhysics.DIFFICULTY_*. */
+    public static final int DIFFICULTIES = 3;
+
+    private final String mKey;
+    private int mFlights;
+    private int mWins;
+    private int mStreak;
+    private int mBestStreak;
+    private final int[] mBestScore = new int[DIFFICULTIES];
+    private final float[] mBestFuel = new float[DIFFICULTIES];
+
+    public PilotProfile(String key) {
+        mKey = key;
+    }
+
+    public PilotProfile(PilotProfile other) {
+        mKey = other.mKey;
+        mFlights = other.mFlights;
+        mWins = other.mWins;
+        mStreak = other.mStreak;
+        mBestStreak = other.mBestStreak;
+        System.arraycopy(other.mBestScore, 0, mBestScore, 0, DIFFICULTIES);
+        System.arraycopy(other.mBestFuel, 0, mBestFuel, 0, DIFFICULTIES);
+    }
+
+    /**
+     * Folds one finished flight into the profile.
+     *
+     * @param difficulty one of the LanderPhysics.DIFFICULTY_* constants
+     * @param outcome one of the LanderPhysics.OUTCOME_* constants
+     * @param score see LanderPhysics.landingScore()
+     * @param fuel fuel left at touchdown, as a fraction of PHYS_FUEL_MAX
+     */
+    public void addFlight(int difficulty, int outcome, int score, float fuel) {
+        mFlights++;
+        if (!LanderPhysics.isWin(outcome)) {
+            mStreak = 0;
+            return;
+        }
+        mWins++;
+        mStreak++;
+        if (mStreak > mBestStreak) mBestStreak = mStreak;
+        if (score > mBestScore[difficulty]) mBestScore[difficulty] = score;
+        if (fuel > mBestFuel[difficulty]) mBestFuel[difficulty] = fuel;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public int getFlights() {
+        return mFlights;
+    }
+
+    public int getWins() {
+        return mWins;
+    }
+
+    /** Wins in a row, up to the last flight. */
+    public int getStreak() {
+        return mStreak;
+    }
+
+    public int getBestStreak() {
+        return mBestStreak;
+    }
+
+    public int getBestScore(int difficulty) {
+        return mBestScore[difficulty];
+    }
+
+    /** Most fuel left at a successful touchdown, 0..1. */
+    public float getBestFuel(int difficulty) {
+        return mBestFuel[difficulty];
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(mKey);
+        out.writeInt(mFlights);
+        out.writeInt(mWins);
+        out.writeInt(mStreak);
+        out.writeInt(mBestStreak);
+        for (int i = 0; i < DIFFICULTIES; i++) {
+            out.writeInt(mBestScore[i]);
+            out.writeFloat(mBestFuel[i]);
+        }
+    }
+
+    static PilotProfile read(DataInput in) throws IOException {
+        PilotProfile p = new PilotProfile(in.readUTF());
+        p.mFlights = in.readInt();
+        p.mWins = in.readInt();
+        p.mStreak = in.readInt();
+        p.mBestStreak = in.readInt();
+        for (int i = 0; i < DIFFICULTIES; i++) {
+            p.mBestScore[i] = in.readInt();
+            p.mBestFuel[i] = in.readFloat();
+        }
+        return p;
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Persistent PilotProfiles, one per account.
+ *
+ * Profiles are kept in an append-only log: every update appends the whole
+ * profile as a length- and CRC-prefixed record. A memory-mapped, open
+ * addressing hash index maps each key to its latest record, so a lookup is
+ * one probe and one read. On open, records written after the index was last
+ * updated are replayed into it and a torn record at the end of the log is
+ * cut off; if the index does not belong to the log it is rebuilt from a
+ * full scan. Once the log is mostly superseded records it is compacted
+ * into a new generation.
+ *
+ * All file work happens on a single background thread. recordFlight() only
+ * queues the update, so it is safe to call from the game thread.
+ */
+final class ProfileStore {
+    private static final String TAG = "ProfileStore";
+
+    private static final int LOG_MAGIC = 0x4c4c504c; // "LLPL"
+    private static final int INDEX_MAGIC = 0x4c4c5049; // "LLPI"
+
+    /** Log header: magic, generation. */
+    private static final int LOG_HEADER = 12;
+
+    /** Index header: magic, capacity, generation, indexed log length, count. */
+    private static final int INDEX_HEADER = 32;
+    private static final int INDEX_CAPACITY = 4;
+    private static final int INDEX_GENERATION = 8;
+    private static final int INDEX_LOG_LENGTH = 16;
+    private static final int INDEX_COUNT = 24;
+
+    /** Index slot: key hash (0 = empty), record offset. */
+    private static final int SLOT = 16;
+    private static final int INITIAL_SLOTS = 256;
+
+    /** Record header: payload length, payload CRC. */
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 4096;
+
+    /** Don't bother compacting logs smaller than this. */
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+    private final File mLogFile;
+    private final File mIndexFile;
+
+    /** The latest version of every profile read or written so far. */
+    private final ConcurrentHashMap<String, PilotProfile> mCache =
+            new ConcurrentHashMap<String, PilotProfile>();
+
+    private final ExecutorService mWriter;
+    private final CountDownLatch mOpened = new CountDownLatch(1);
+
+    /*
+     * File state, guarded by mFileLock
+     */
+    private final Object mFileLock = new Object();
+    private RandomAccessFile mLog;
+    private FileChannel mLogChannel;
+    private long mLogLength;
+    private long mGeneration;
+    private RandomAccessFile mIndex;
+    private MappedByteBuffer mSlots;
+    private int mCapacity;
+    private int mCount;
+
+    /** Bytes of the log taken by the latest record of each key. */
+    private long mLiveBytes;
+
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(RECORD_HEADER);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Opens, or creates, the store in the given directory. Recovery runs in
+     * the background; the first get() waits for it.
+     */
+    public ProfileStore(File dir) {
+        mLogFile = new File(dir, "profiles.log");
+        mIndexFile = new File(dir, "profiles.idx");
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mWriter.execute(new Runnable() {
+            public void run() {
+                synchronized (mFileLock) {
+                    try {
+                        openLocked();
+                    } catch (IOException e) {
+                        Log.w(TAG, "cannot open profiles", e);
+                        closeLocked();
+                    }
+                }
+                mOpened.countDown();
+            }
+        });
+    }
+
+    /**
+     * Looks up a profile. Cached profiles cost a hash lookup; others one
+     * index probe and one read. Not for the game thread.
+     *
+     * @return a copy of the profile, or null if the account never flew
+     */
+    public PilotProfile get(String key) {
+        PilotProfile profile = mCache.get(key);
+        if (profile == null) {
+            awaitOpen();
+            synchronized (mFileLock) {
+                profile = loadLocked(key);
+            }
+            if (profile == null) return null;
+        }
+        synchronized (profile) {
+            return new PilotProfile(profile);
+        }
+    }
+
+    /**
+     * Queues a finished flight for the given account. Never blocks.
+     */
+    public void recordFlight(final String key, final int difficulty,
+            final int outcome, final int score, final float fuel) {
+        mWriter.execute(new Runnable() {
+            public void run() {
+                synchronized (mFileLock) {
+                    if (mLog == null) return;
+                    PilotProfile profile = loadLocked(key);
+                    if (profile == null) {
+                        profile = new PilotProfile(key);
+                        mCache.put(key, profile);
+                    }
+                    synchronized (profile) {
+                        profile.addFlight(difficulty, outcome, score, fuel);
+                    }
+                    try {
+                        appendLocked(profile);
+                        if (mLogLength > COMPACT_MIN_BYTES
+                                && mLogLength - LOG_HEADER > 2 * mLiveBytes)
+                            compactLocked();
+                    } catch (IOException e) {
+                        Log.w(TAG, "cannot write profile " + key, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a compaction of the log regardless of how much of it is dead.
+     */
+    public void compact() {
+        mWriter.execute(new Runnable() {
+            public void run() {
+                synchronized (mFileLock) {
+                    if (mLog == null) return;
+                    try {
+                        compactLocked();
+                    } catch (IOException e) {
+                        Log.w(TAG, "compaction failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Finishes queued writes and closes the files.
+     */
+    public void close() {
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mFileLock) {
+            closeLocked();
+        }
+    }
+
+    private void awaitOpen() {
+        try {
+            mOpened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void openLocked() throws IOException {
+        mLogFile.getParentFile().mkdirs();
+        mLog = new RandomAccessFile(mLogFile, "rw");
+        mLogChannel = mLog.getChannel();
+        if (mLog.length() < LOG_HEADER) {
+            mGeneration = 1;
+            mLog.setLength(0);
+            mLog.writeInt(LOG_MAGIC);
+            mLog.writeLong(mGeneration);
+        } else {
+            mLog.seek(0);
+            if (mLog.readInt() != LOG_MAGIC)
+                throw new IOException("Not a profile log: " + mLogFile);
+            mGeneration = mLog.readLong();
+        }
+        mLogLength = mLog.length();
+
+        if (!mapIndexLocked()) {
+            // no index, or one left over from another generation
+            createIndexLocked(mIndexFile, INITIAL_SLOTS, mGeneration);
+            mapIndexLocked();
+            scanLocked(LOG_HEADER);
+        } else {
+            long indexed = mSlots.getLong(INDEX_LOG_LENGTH);
+            if (indexed > mLogLength) {
+                // the log lost data the index had seen; trust the log
+                createIndexLocked(mIndexFile, mCapacity, mGeneration);
+                mapIndexLocked();
+                scanLocked(LOG_HEADER);
+            } else {
+                mLiveBytes = sumLiveBytesLocked();
+                scanLocked(indexed);
+            }
+        }
+    }
+
+    private void closeLocked() {
+        try {
+            if (mSlots != null) mSlots.force();
+            if (mIndex != null) mIndex.close();
+            if (mLog != null) {
+                mLogChannel.force(true);
+                mLog.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+        mSlots = null;
+        mIndex = null;
+        mLog = null;
+        mLogChannel = null;
+    }
+
+    /**
+     * Maps the index file if it exists and matches the current log.
+     *
+     * @return false if there is no usable index
+     */
+    private boolean mapIndexLocked() throws IOException {
+        if (mIndex != null) mIndex.close();
+        mIndex = null;
+        mSlots = null;
+        if (mIndexFile.length() < INDEX_HEADER) return false;
+
+        RandomAccessFile index = new RandomAccessFile(mIndexFile, "rw");
+        MappedByteBuffer slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, index.length());
+        int capacity = slots.getInt(INDEX_CAPACITY);
+        if (slots.getInt(0) != INDEX_MAGIC
+                || slots.getLong(INDEX_GENERATION) != mGeneration
+                || capacity <= 0 || (capacity & (capacity - 1)) != 0
+                || index.length() != INDEX_HEADER + (long) capacity * SLOT) {
+            index.close();
+            return false;
+        }
+        mIndex = index;
+        mSlots = slots;
+        mCapacity = capacity;
+        mCount = slots.getInt(INDEX_COUNT);
+        return true;
+    }
+
+    private static void createIndexLocked(File file, int capacity, long generation)
+            throws IOException {
+        RandomAccessFile index = new RandomAccessFile(file, "rw");
+        try {
+            index.setLength(0);
+            index.setLength(INDEX_HEADER + (long) capacity * SLOT);
+            index.writeInt(INDEX_MAGIC);
+            index.writeInt(capacity);
+            index.writeLong(generation);
+            index.writeLong(LOG_HEADER);
+            index.writeInt(0);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Replays log records from the given offset into the index, then cuts
+     * the log off after the last intact record.
+     */
+    private void scanLocked(long from) throws IOException {
+        long pos = from;
+        long length = mLog.length();
+        while (true) {
+            int size = readRecordSize(pos, length);
+            if (size < 0) break;
+            PilotProfile profile = readRecord(pos);
+            if (profile == null) break;
+            indexLocked(profile.getKey(), pos, size);
+            pos += RECORD_HEADER + size;
+        }
+        if (pos < length) {
+            Log.w(TAG, "dropping " + (length - pos) + " torn bytes");
+            mLog.setLength(pos);
+        }
+        mLogLength = pos;
+        mSlots.putLong(INDEX_LOG_LENGTH, pos);
+    }
+
+    private long sumLiveBytesLocked() throws IOException {
+        long live = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            if (slotHash(i) == 0) continue;
+            int size = readRecordSize(slotOffset(i), mLogLength);
+            if (size > 0) live += RECORD_HEADER + size;
+        }
+        return live;
+    }
+
+    private PilotProfile loadLocked(String key) {
+        PilotProfile profile = mCache.get(key);
+        if (profile != null || mSlots == null) return profile;
+        try {
+            int slot = findSlotLocked(key, hash(key));
+            if (slot < 0) return null;
+            profile = readRecord(slotOffset(slot));
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read profile " + key, e);
+        }
+        if (profile == null) return null;
+        PilotProfile raced = mCache.putIfAbsent(key, profile);
+        return raced != null ? raced : profile;
+    }
+
+    private void appendLocked(PilotProfile profile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (profile) {
+            profile.write(out);
+        }
+        byte[] payload = bytes.toByteArray();
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) mCrc.getValue());
+        record.put(payload);
+        record.flip();
+        long pos = mLogLength;
+        while (record.hasRemaining())
+            mLogChannel.write(record, pos + record.position());
+
+        indexLocked(profile.getKey(), pos, payload.length);
+        mLogLength = pos + RECORD_HEADER + payload.length;
+        mSlots.putLong(INDEX_LOG_LENGTH, mLogLength);
+    }
+
+    /**
+     * Points the key's index slot at the record at the given offset.
+     */
+    private void indexLocked(String key, long offset, int size) throws IOException {
+        long hash = hash(key);
+        int slot = findSlotLocked(key, hash);
+        if (slot >= 0) {
+            int oldSize = readRecordSize(slotOffset(slot), mLog.length());
+            if (oldSize > 0) mLiveBytes -= RECORD_HEADER + oldSize;
+        } else {
+            if (2 * (mCount + 1) > mCapacity) {
+                growIndexLocked();
+                slot = findSlotLocked(key, hash);
+            }
+            slot = -slot - 1;
+            mCount++;
+            mSlots.putInt(INDEX_COUNT, mCount);
+        }
+        int at = INDEX_HEADER + slot * SLOT;
+        mSlots.putLong(at, hash);
+        mSlots.putLong(at + 8, offset);
+        mLiveBytes += RECORD_HEADER + size;
+    }
+
+    /**
+     * @return the slot holding the key, or -(free slot + 1) if absent
+     */
+    private int findSlotLocked(String key, long hash) throws IOException {
+        int mask = mCapacity - 1;
+        for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+            long h = slotHash(i);
+            if (h == 0) return -i - 1;
+            if (h == hash) {
+                // same hash; only a full compare tells keys apart
+                PilotProfile p = readRecord(slotOffset(i));
+                if (p != null && p.getKey().equals(key)) return i;
+            }
+        }
+    }
+
+    private void growIndexLocked() throws IOException {
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        int capacity = mCapacity * 2;
+        createIndexLocked(tmp, capacity, mGeneration);
+        RandomAccessFile index = new RandomAccessFile(tmp, "rw");
+        MappedByteBuffer slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, index.length());
+        copySlots(mSlots, mCapacity, slots, capacity, null);
+        slots.putInt(INDEX_COUNT, mCount);
+        slots.putLong(INDEX_LOG_LENGTH, mSlots.getLong(INDEX_LOG_LENGTH));
+        slots.force();
+        index.close();
+        mIndex.close();
+        if (!tmp.renameTo(mIndexFile))
+            throw new IOException("cannot replace " + mIndexFile);
+        mapIndexLocked();
+    }
+
+    /**
+     * Rewrites the log with only the latest record of each key, as a new
+     * generation. A crash between the two renames leaves an index of the
+     * old generation next to the new log, which openLocked() rebuilds.
+     */
+    private void compactLocked() throws IOException {
+        long generation = mGeneration + 1;
+        File logTmp = new File(mLogFile.getPath() + ".tmp");
+        File indexTmp = new File(mIndexFile.getPath() + ".tmp");
+
+        RandomAccessFile log = new RandomAccessFile(logTmp, "rw");
+        long pos = LOG_HEADER;
+        long[] offsets = new long[mCapacity];
+        try {
+            log.setLength(0);
+            log.writeInt(LOG_MAGIC);
+            log.writeLong(generation);
+            FileChannel channel = log.getChannel();
+            for (int i = 0; i < mCapacity; i++) {
+                if (slotHash(i) == 0) continue;
+                long offset = slotOffset(i);
+                int size = readRecordSize(offset, mLogLength);
+                if (size < 0) continue;
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + size);
+                while (record.hasRemaining()) {
+                    if (mLogChannel.read(record, offset + record.position()) < 0)
+                        throw new IOException("log shrank during compaction");
+                }
+                record.flip();
+                while (record.hasRemaining())
+                    channel.write(record, pos + record.position());
+                offsets[i] = pos;
+                pos += RECORD_HEADER + size;
+            }
+            channel.force(true);
+        } finally {
+            log.close();
+        }
+
+        createIndexLocked(indexTmp, mCapacity, generation);
+        RandomAccessFile index = new RandomAccessFile(indexTmp, "rw");
+        try {
+            MappedByteBuffer slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, index.length());
+            copySlots(mSlots, mCapacity, slots, mCapacity, offsets);
+            slots.putInt(INDEX_COUNT, mCount);
+            slots.putLong(INDEX_LOG_LENGTH, pos);
+            slots.force();
+        } finally {
+            index.close();
+        }
+
+        closeLocked();
+        if (!logTmp.renameTo(mLogFile) || !indexTmp.renameTo(mIndexFile))
+            throw new IOException("cannot replace " + mLogFile);
+        openLocked();
+    }
+
+    /**
+     * Reinserts every occupied slot into another table, optionally moving
+     * the records to new offsets.
+     */
+    private static void copySlots(ByteBuffer from, int fromCapacity, ByteBuffer to,
+            int toCapacity, long[] newOffsets) {
+        int mask = toCapacity - 1;
+        for (int i = 0; i < fromCapacity; i++) {
+            long hash = from.getLong(INDEX_HEADER + i * SLOT);
+            if (hash == 0) continue;
+            long offset = newOffsets != null ? newOffsets[i]
+                    : from.getLong(INDEX_HEADER + i * SLOT + 8);
+            int j = (int) hash & mask;
+            while (to.getLong(INDEX_HEADER + j * SLOT) != 0)
+                j = (j + 1) & mask;
+            to.putLong(INDEX_HEADER + j * SLOT, hash);
+            to.putLong(INDEX_HEADER + j * SLOT + 8, offset);
+        }
+    }
+
+    private long slotHash(int slot) {
+        return mSlots.getLong(INDEX_HEADER + slot * SLOT);
+    }
+
+    private long slotOffset(int slot) {
+        return mSlots.getLong(INDEX_HEADER + slot * SLOT + 8);
+    }
+
+    /**
+     * @return the payload size of the record at pos, or -1 if there is no
+     *         complete record there
+     */
+    private int readRecordSize(long pos, long length) throws IOException {
+        if (pos + RECORD_HEADER > length) return -1;
+        mHeaderBuffer.clear();
+        while (mHeaderBuffer.hasRemaining()) {
+            if (mLogChannel.read(mHeaderBuffer, pos + mHeaderBuffer.position()) < 0)
+                return -1;
+        }
+        int size = mHeaderBuffer.getInt(0);
+        if (size <= 0 || size > MAX_RECORD || pos + RECORD_HEADER + size > length)
+            return -1;
+        return size;
+    }
+
+    /**
+     * @return the profile in the record at pos, or null if the record is
+     *         incomplete or fails its CRC
+     */
+    private PilotProfile readRecord(long pos) throws IOException {
+        int size = readRecordSize(pos, mLog.length());
+        if (size < 0) return null;
+        int crc = mHeaderBuffer.getInt(4);
+
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        while (payload.hasRemaining()) {
+            if (mLogChannel.read(payload, pos + RECORD_HEADER + payload.position()) < 0)
+                return null;
+        }
+        mCrc.reset();
+        mCrc.update(payload.array(), 0, size);
+        if ((int) mCrc.getValue() != crc) return null;
+        return PilotProfile.read(new DataInputStream(
+                new ByteArrayInputStream(payload.array())));
+    }
+
+    /** 64-bit FNV-1a, never 0 since 0 marks an empty slot. */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Replays recorded accelerometer traces through SensorPipeline and
+ * LanderPhysics on a SimClocks.Virtual, as fast as the machine allows.
+ * Runs on a desktop JVM; nothing here touches the Android framework.
+ *
+ * Usage: ReplayHarness [options] trace...
+ * <ul>
+ * <li>--alpha A, --rotate T, --thrust T, --hysteresis H: pipeline tuning
+ * <li>--proportional S: proportional control, saturating at S m/s^2
+ * <li>--frame-ms F: simulated frame time, default 16.667
+ * <li>--difficulty easy|medium|hard, --seed N
+ * <li>--max-latency-ms L, --max-toggles T: fail (exit 1) if the mean
+ * sample-to-physics latency or control toggles per second exceed these
+ * <li>--generate S: first write S seconds of synthetic trace to each named
+ * trace file, overwriting it, so the harness runs without a device
+ * </ul>
+ */
+public class ReplayHarness {
+    /*
+     * Synthetic traces: a hand slowly tilting the phone both ways, with
+     * sensor noise and jittery sample times, turned sideways now and then
+     */
+    private static final long GENERATE_INTERVAL_NANOS = 10000000L; // 100 Hz
+    private static final long GENERATE_JITTER_NANOS = 2000000L;
+    private static final double GENERATE_ROTATE_AMPLITUDE = 4; // m/s^2
+    private static final double GENERATE_ROTATE_PERIOD = 7; // s
+    private static final double GENERATE_THRUST_AMPLITUDE = 3;
+    private static final double GENERATE_THRUST_PERIOD = 3.1;
+    private static final double GENERATE_NOISE = 0.6;
+    private static final double GENERATE_TURN_PERIOD = 120;
+
+    private float mAlpha = SensorPipeline.DEFAULT_FILTER_ALPHA;
+    private float mRotateThreshold = SensorPipeline.DEFAULT_ROTATE_THRESHOLD;
+    private float mThrustThreshold = SensorPipeline.DEFAULT_THRUST_THRESHOLD;
+    private float mHysteresis = SensorPipeline.DEFAULT_HYSTERESIS;
+    private float mFullScale = SensorPipeline.DEFAULT_FULL_SCALE;
+    private boolean mProportional;
+    private long mFrameNanos = 16666667L;
+    private int mDifficulty = LanderPhysics.DIFFICULTY_MEDIUM;
+    private long mSeed = 1;
+    private double mMaxLatencyMs = Double.MAX_VALUE;
+    private double mMaxToggles = Double.MAX_VALUE;
+
+    /**
+     * What one trace replay produced.
+     */
+    static final class Result {
+        public long frames;
+        public double simulatedSeconds;
+        public long wallNanos;
+        public int[] outcomes = new int[LanderPhysics.OUTCOME_TOO_FAST + 1];
+        public long toggles;
+        public long meanLatencyNanos;
+        public long maxLatencyNanos;
+        public double meanBatchSize;
+
+        public double speedup() {
+            return wallNanos == 0 ? 0 : simulatedSeconds * 1e9 / wallNanos;
+        }
+
+        public double togglesPerSecond() {
+            return simulatedSeconds == 0 ? 0 : toggles / simulatedSeconds;
+        }
+    }
+
+    /**
+     * Replays one trace. Samples are fed to the pipeline at their recorded
+     * times; the pipeline is polled and the lander stepped once per frame.
+     * Each finished flight immediately starts another one.
+     */
+    public Result replay(File trace) throws IOException {
+        SensorPipeline pipeline = new SensorPipeline();
+        pipeline.setFilterAlpha(mAlpha);
+        pipeline.setThresholds(mRotateThreshold, mThrustThreshold, mHysteresis);
+        pipeline.setProportional(mProportional, mFullScale);
+
+        Random random = new Random(mSeed);
+        LanderState lander = new LanderState();
+        lander.landerWidth = Headless.LANDER_WIDTH;
+        lander.landerHeight = Headless.LANDER_HEIGHT;
+        LanderPhysics.start(lander, mDifficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                random);
+
+        Result result = new Result();
+        // the trace's times start at 0
+        SimClocks.Virtual clock = new SimClocks.Virtual(0);
+        int lastRotating = 0;
+        boolean lastFiring = false;
+
+        AccelTrace.Reader reader = new AccelTrace.Reader(trace);
+        long start = System.nanoTime();
+        try {
+            boolean more = reader.next();
+            long lastTime = clock.nanoTime();
+            while (more) {
+                clock.advance(mFrameNanos);
+                long frameTime = clock.nanoTime();
+                double elapsed = (frameTime - lastTime) / 1e9;
+                lastTime = frameTime;
+
+                while (more && reader.getTime() <= frameTime) {
+                    if (reader.getTag() == AccelTrace.RECORD_SAMPLE) {
+                        pipeline.onSample(reader.getX(), reader.getY(), reader.getTime());
+                    } else {
+                        pipeline.setDisplayRotation(reader.getRotation());
+                    }
+                    more = reader.next();
+                }
+
+                if (pipeline.pollControls(frameTime)) {
+                    lander.rotating = pipeline.getRotating();
+                    lander.rotateAmount = pipeline.getRotateAmount();
+                    lander.engineFiring = pipeline.isFiring() && lander.fuel > 0;
+                    lander.throttle = pipeline.getThrottle();
+                    if (lander.rotating != lastRotating) result.toggles++;
+                    if (pipeline.isFiring() != lastFiring) result.toggles++;
+                    lastRotating = lander.rotating;
+                    lastFiring = pipeline.isFiring();
+                }
+
+                int outcome = LanderPhysics.step(lander, elapsed);
+                if (outcome != LanderPhysics.OUTCOME_FLYING) {
+                    result.outcomes[outcome]++;
+                    LanderPhysics.start(lander, mDifficulty, Headless.CANVAS_WIDTH,
+                            Headless.CANVAS_HEIGHT, random);
+                }
+
+                result.frames++;
+            }
+        } finally {
+            result.wallNanos = System.nanoTime() - start;
+            reader.close();
+        }
+
+        result.simulatedSeconds = clock.nanoTime() / 1e9;
+        result.meanLatencyNanos = pipeline.getMeanLatencyNanos();
+        result.maxLatencyNanos = pipeline.getMaxLatencyNanos();
+        result.meanBatchSize = pipeline.getMeanBatchSize();
+        return result;
+    }
+
+    /**
+     * Writes a synthetic trace of the given length, the same for the same
+     * seed.
+     */
+    public static void generate(File trace, double seconds, long seed) throws IOException {
+        Random random = new Random(seed);
+        AccelTrace.Writer writer = new AccelTrace.Writer(trace);
+        try {
+            long end = (long) (seconds * 1e9);
+            int rotation = SensorPipeline.ROTATION_0;
+            writer.writeRotation(0, rotation);
+            for (long now = 0; now < end; now += GENERATE_INTERVAL_NANOS
+                    + (long) ((random.nextDouble() - 0.5) * 2 * GENERATE_JITTER_NANOS)) {
+                double t = now / 1e9;
+                int turn = ((int) (t / GENERATE_TURN_PERIOD)) % 2 == 0
+                        ? SensorPipeline.ROTATION_0 : SensorPipeline.ROTATION_90;
+                if (turn != rotation) {
+                    rotation = turn;
+                    writer.writeRotation(now, rotation);
+                }
+                double rotate = GENERATE_ROTATE_AMPLITUDE
+                        * Math.sin(2 * Math.PI * t / GENERATE_ROTATE_PERIOD)
+                        + random.nextGaussian() * GENERATE_NOISE;
+                double thrust = GENERATE_THRUST_AMPLITUDE
+                        * Math.sin(2 * Math.PI * t / GENERATE_THRUST_PERIOD)
+                        + random.nextGaussian() * GENERATE_NOISE;
+                // device axes, as SensorPipeline maps them back
+                if (rotation == SensorPipeline.ROTATION_0) {
+                    writer.writeSample(now, (float) rotate, (float) thrust);
+                } else {
+                    writer.writeSample(now, (float) thrust, (float) rotate);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return true if the result is within the configured limits
+     */
+    public boolean check(Result r) {
+        return r.meanLatencyNanos / 1e6 <= mMaxLatencyMs
+                && r.togglesPerSecond() <= mMaxToggles;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ReplayHarness harness = new ReplayHarness();
+        double generate = 0;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--alpha".equals(opt)) harness.mAlpha = Float.parseFloat(val);
+            else if ("--rotate".equals(opt)) harness.mRotateThreshold = Float.parseFloat(val);
+            else if ("--thrust".equals(opt)) harness.mThrustThreshold = Float.parseFloat(val);
+            else if ("--hysteresis".equals(opt)) harness.mHysteresis = Float.parseFloat(val);
+            else if ("--proportional".equals(opt)) {
+                harness.mProportional = true;
+                harness.mFullScale = Float.parseFloat(val);
+            } else if ("--frame-ms".equals(opt))
+                harness.mFrameNanos = (long) (Double.parseDouble(val) * 1e6);
+            else if ("--difficulty".equals(opt)) harness.mDifficulty = Headless.parseDifficulty(
+                    val);
+            else if ("--seed".equals(opt)) harness.mSeed = Long.parseLong(val);
+            else if ("--max-latency-ms".equals(opt)) harness.mMaxLatencyMs = Double.parseDouble(val);
+            else if ("--max-toggles".equals(opt)) harness.mMaxToggles = Double.parseDouble(val);
+            else if ("--generate".equals(opt)) generate = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (i == args.length) {
+            System.err.println("usage: ReplayHarness [options] trace...");
+            System.exit(2);
+        }
+
+        if (generate > 0) {
+            for (int t = i; t < args.length; t++)
+                generate(new File(args[t]), generate, harness.mSeed + t - i);
+        }
+
+        boolean ok = true;
+        for (; i < args.length; i++) {
+            Result r = harness.replay(new File(args[i]));
+            boolean pass = harness.check(r);
+            ok &= pass;
+            System.out.printf("%s: %.1fs in %.1fms (%.0fx), landed %d, hyperspace %d, "
+                    + "off pad %d, bad angle %d, too fast %d%n",
+                    args[i], r.simulatedSeconds, r.wallNanos / 1e6, r.speedup(),
+                    r.outcomes[LanderPhysics.OUTCOME_LANDED],
+                    r.outcomes[LanderPhysics.OUTCOME_HYPERSPACE],
+                    r.outcomes[LanderPhysics.OUTCOME_OFF_PAD],
+                    r.outcomes[LanderPhysics.OUTCOME_BAD_ANGLE],
+                    r.outcomes[LanderPhysics.OUTCOME_TOO_FAST]);
+            System.out.printf("  latency mean %.2fms max %.2fms, %.2f samples/frame, "
+                    + "%.2f toggles/s%s%n",
+                    r.meanLatencyNanos / 1e6, r.maxLatencyNanos / 1e6, r.meanBatchSize,
+                    r.togglesPerSecond(), pass ? "" : "  FAIL");
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
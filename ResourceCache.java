@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.HashMap;
+
+/**
+ * Caches resources of other packages, keyed by package name and resource
+ * id. Every account of one type shares its authenticator's label and icon,
+ * so each is looked up once rather than once per account. Lookups that
+ * found nothing are remembered as well.
+ *
+ * Safe to use from several threads; a value may occasionally be loaded
+ * twice, but only one is kept.
+ */
+final class ResourceCache<V> {
+    /**
+     * Does the actual, expensive lookup.
+     */
+    interface Loader<V> {
+        /** @return the resource, or null if there is none */
+        V load(String packageName, int resId) throws Exception;
+    }
+
+    private static final Object MISSING = new Object();
+
+    private final HashMap<String, Object> mCache = new HashMap<String, Object>();
+    private final Loader<V> mLoader;
+
+    public ResourceCache(Loader<V> loader) {
+        mLoader = loader;
+    }
+
+    /**
+     * @return the cached or freshly loaded resource, or null if the package
+     *         does not have it
+     * @throws Exception if loading failed; failures are not cached
+     */
+    @SuppressWarnings("unchecked")
+    public V get(String packageName, int resId) throws Exception {
+        String key = packageName + ':' + resId;
+        Object value;
+        synchronized (mCache) {
+            value = mCache.get(key);
+        }
+        if (value == null) {
+            V loaded = mLoader.load(packageName, resId);
+            value = loaded == null ? MISSING : loaded;
+            synchronized (mCache) {
+                Object raced = mCache.get(key);
+                if (raced != null) value = raced;
+                else mCache.put(key, value);
+            }
+        }
+        return value == MISSING ? null : (V) value;
+    }
+
+    public int size() {
+        synchronized (mCache) {
+            return mCache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+}
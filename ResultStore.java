@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcomes of simulated flights, far more than fit on the heap, stored by
+ * column in memory mapped files.
+ *
+ * A store is a directory of partitions, one per writing thread, and a
+ * partition is a file per column: seed, difficulty, outcome, touchdown
+ * speed, angle and fuel, each a plain array of fixed size values in native
+ * byte order. Rows are written and read through mapped windows of
+ * WINDOW_ROWS rows, so the heap holds nothing but the windows' handles
+ * however many rows there are; the data lives in the page cache.
+ *
+ * A query is an Aggregate. scan() hands every window of every partition to
+ * one of a pool of threads, each with its own copy of the aggregate, which
+ * reads the mapped columns in place; the copies are merged at the end.
+ */
+final class ResultStore {
+    /** Rows per mapped window. */
+    public static final int WINDOW_ROWS = 1 << 20;
+
+    /*
+     * Columns, and their value sizes in bytes
+     */
+    public static final int SEED = 0;
+    public static final int DIFFICULTY = 1;
+    public static final int OUTCOME = 2;
+    public static final int SPEED = 3;
+    public static final int ANGLE = 4;
+    public static final int FUEL = 5;
+    public static final int COLUMNS = 6;
+
+    private static final String[] NAMES = {
+            "seed", "difficulty", "outcome", "speed", "angle", "fuel"
+    };
+    private static final int[] SIZES = { 8, 1, 1, 4, 4, 4 };
+
+    private static final String PARTITION_PREFIX = "part-";
+
+    /**
+     * Rows of one partition, mapped read only, one buffer per column. Read
+     * row i of a column with getLong(i * 8), get(i) or getFloat(i * 4).
+     */
+    static final class Window {
+        public final MappedByteBuffer[] columns = new MappedByteBuffer[COLUMNS];
+        public int rows;
+
+        public long seed(int row) {
+            return columns[SEED].getLong(row << 3);
+        }
+
+        public int difficulty(int row) {
+            return columns[DIFFICULTY].get(row);
+        }
+
+        public int outcome(int row) {
+            return columns[OUTCOME].get(row);
+        }
+
+        public float speed(int row) {
+            return columns[SPEED].getFloat(row << 2);
+        }
+
+        public float angle(int row) {
+            return columns[ANGLE].getFloat(row << 2);
+        }
+
+        public float fuel(int row) {
+            return columns[FUEL].getFloat(row << 2);
+        }
+    }
+
+    /**
+     * A query. Each scanning thread works on its own copy, from
+     * newInstance(), so an aggregate needs no locking.
+     */
+    abstract static class Aggregate {
+        /** A fresh, empty aggregate of the same query. */
+        public abstract Aggregate newInstance();
+
+        /** Takes in every row of a window. */
+        public abstract void scan(Window w);
+
+        /** Takes in what another copy has found. */
+        public abstract void merge(Aggregate other);
+    }
+
+    /**
+     * Appends rows to one partition. Not thread safe; give every writing
+     * thread a partition of its own.
+     */
+    static final class Writer {
+        private final RandomAccessFile[] mFiles = new RandomAccessFile[COLUMNS];
+        private final MappedByteBuffer[] mWindows = new MappedByteBuffer[COLUMNS];
+        private long mRows;
+        private int mInWindow = WINDOW_ROWS;
+
+        private Writer(File dir) throws IOException {
+            if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("cannot create " + dir);
+            for (int c = 0; c < COLUMNS; c++) {
+                mFiles[c] = new RandomAccessFile(new File(dir, NAMES[c]), "rw");
+                mFiles[c].setLength(0);
+            }
+        }
+
+        /**
+         * Appends the outcome of a flight.
+         *
+         * @param outcome one of the LanderPhysics.OUTCOME_* constants
+         * @param speed px/s at touchdown
+         * @param angle degrees off upright at touchdown, 0..180
+         */
+        public void append(long seed, int difficulty, int outcome, float speed, float angle,
+                float fuel) throws IOException {
+            if (mInWindow == WINDOW_ROWS) nextWindow();
+            int i = mInWindow++;
+            mWindows[SEED].putLong(i << 3, seed);
+            mWindows[DIFFICULTY].put(i, (byte) difficulty);
+            mWindows[OUTCOME].put(i, (byte) outcome);
+            mWindows[SPEED].putFloat(i << 2, speed);
+            mWindows[ANGLE].putFloat(i << 2, angle);
+            mWindows[FUEL].putFloat(i << 2, fuel);
+            mRows++;
+        }
+
+        public long getRows() {
+            return mRows;
+        }
+
+        /**
+         * Cuts the files to the rows written and closes them.
+         */
+        public void close() throws IOException {
+            for (int c = 0; c < COLUMNS; c++) {
+                mWindows[c] = null;
+                mFiles[c].setLength(mRows * SIZES[c]);
+                mFiles[c].close();
+            }
+        }
+
+        private void nextWindow() throws IOException {
+            for (int c = 0; c < COLUMNS; c++) {
+                // mapping past the end grows the file
+                mWindows[c] = mFiles[c].getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        mRows * SIZES[c], (long) WINDOW_ROWS * SIZES[c]);
+                mWindows[c].order(ByteOrder.nativeOrder());
+            }
+            mInWindow = 0;
+        }
+    }
+
+    private final File mDir;
+    private final File[] mPartitions;
+    private final long[] mRows;
+
+    /**
+     * Opens a store for reading.
+     */
+    public ResultStore(File dir) throws IOException {
+        mDir = dir;
+        File[] found = dir.listFiles();
+        if (found == null) throw new IOException("not a directory: " + dir);
+        List<File> partitions = new ArrayList<File>();
+        for (File f : found)
+            if (f.isDirectory() && f.getName().startsWith(PARTITION_PREFIX)) partitions.add(f);
+        mPartitions = partitions.toArray(new File[partitions.size()]);
+        Arrays.sort(mPartitions);
+        mRows = new long[mPartitions.length];
+        for (int p = 0; p < mPartitions.length; p++) {
+            // a writer that never closed leaves whole windows; trust the
+            // shortest column
+            long rows = Long.MAX_VALUE;
+            for (int c = 0; c < COLUMNS; c++)
+                rows = Math.min(rows, new File(mPartitions[p], NAMES[c]).length() / SIZES[c]);
+            mRows[p] = rows;
+        }
+    }
+
+    /**
+     * Empties a store directory and opens writers for it.
+     *
+     * @param partitions writers to open, one per writing thread
+     */
+    public static Writer[] create(File dir, int partitions) throws IOException {
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                if (!f.isDirectory() || !f.getName().startsWith(PARTITION_PREFIX)) continue;
+                for (int c = 0; c < COLUMNS; c++)
+                    new File(f, NAMES[c]).delete();
+                f.delete();
+            }
+        }
+        Writer[] writers = new Writer[partitions];
+        for (int p = 0; p < partitions; p++)
+            writers[p] = new Writer(new File(dir, String.format("%s%04d", PARTITION_PREFIX, p)));
+        return writers;
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    /** Rows in every partition together. */
+    public long getRows() {
+        long rows = 0;
+        for (long r : mRows)
+            rows += r;
+        return rows;
+    }
+
+    /**
+     * Runs a query over every row.
+     *
+     * @param threads copies of the aggregate to scan with, each a task on
+     *        the pool
+     * @return the merged aggregate, a copy of query
+     */
+    public Aggregate scan(ExecutorService pool, int threads, Aggregate query)
+            throws IOException, InterruptedException {
+        // every window of every partition, as (partition, first row)
+        final List<long[]> windows = new ArrayList<long[]>();
+        for (int p = 0; p < mPartitions.length; p++) {
+            for (long row = 0; row < mRows[p]; row += WINDOW_ROWS)
+                windows.add(new long[] { p, row });
+        }
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<Aggregate>> parts = new ArrayList<Future<Aggregate>>();
+        for (int t = 0; t < threads; t++) {
+            final Aggregate part = query.newInstance();
+            parts.add(pool.submit(new Callable<Aggregate>() {
+                public Aggregate call() throws IOException {
+                    Window w = new Window();
+                    RandomAccessFile[] files = new RandomAccessFile[COLUMNS];
+                    int open = -1;
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < windows.size()) {
+                            int p = (int) windows.get(i)[0];
+                            long row = windows.get(i)[1];
+                            if (p != open) {
+                                close(files);
+                                for (int c = 0; c < COLUMNS; c++) {
+                                    files[c] = new RandomAccessFile(
+                                            new File(mPartitions[p], NAMES[c]), "r");
+                                }
+                                open = p;
+                            }
+                            w.rows = (int) Math.min(WINDOW_ROWS, mRows[p] - row);
+                            for (int c = 0; c < COLUMNS; c++) {
+                                w.columns[c] = files[c].getChannel().map(
+                                        FileChannel.MapMode.READ_ONLY, row * SIZES[c],
+                                        (long) w.rows * SIZES[c]);
+                                w.columns[c].order(ByteOrder.nativeOrder());
+                            }
+                            part.scan(w);
+                        }
+                    } finally {
+                        close(files);
+                    }
+                    return part;
+                }
+            }));
+        }
+        Aggregate result = query.newInstance();
+        for (Future<Aggregate> part : parts) {
+            try {
+                result.merge(part.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private static void close(RandomAccessFile[] files) throws IOException {
+        for (int c = 0; c < files.length; c++) {
+            if (files[c] != null) files[c].close();
+            files[c] = null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * Flies random flights into a RewindBuffer, as the game does, and reports
+ * what a capture costs and how many bytes a step takes. Then scrubs each
+ * flight back step by step to the oldest state held and forward again,
+ * checking every state against the one flown to within the buffer's
+ * rounding. Runs on a desktop JVM.
+ *
+ * Usage: RewindBenchmark [options]
+ * <ul>
+ * <li>--flights N: default 500
+ * <li>--frame-ms F: frame time, default 16.667
+ * <li>--seconds S: buffer length, default 30; shorter exercises dropping
+ * the oldest steps
+ * <li>--seed N
+ * <li>--max-ns N: fail (exit 1) if a capture takes longer than this on
+ * average, default 2000
+ * </ul>
+ */
+public class RewindBenchmark {
+    /** Longest flight, in frames, before it is cut short. */
+    private static final int MAX_FRAMES = 60 * 60;
+
+    /** Chance per frame that the pilot changes the controls. */
+    private static final double CHANGE_CHANCE = 0.08;
+
+    /** Half a unit of the buffer, and a little for the double rounding. */
+    private static final double TOLERANCE = 0.6 / RewindBuffer.UNITS;
+
+    public static void main(String[] args) {
+        int flights = 500;
+        double frameMs = 1000 / 60.0;
+        double seconds = 30;
+        long seed = 1;
+        double maxNanos = 2000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--flights".equals(opt)) flights = Integer.parseInt(val);
+            else if ("--frame-ms".equals(opt)) frameMs = Double.parseDouble(val);
+            else if ("--seconds".equals(opt)) seconds = Double.parseDouble(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-ns".equals(opt)) maxNanos = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || flights < 1 || frameMs <= 0 || seconds <= 0) {
+            System.err.println("usage: RewindBenchmark [--flights N] [--frame-ms F] "
+                    + "[--seconds S] [--seed N] [--max-ns N]");
+            System.exit(2);
+        }
+        double elapsed = frameMs / 1000;
+        int stepsPerSecond = (int) Math.ceil(1 / elapsed);
+
+        RewindBuffer rewind = new RewindBuffer(seconds, stepsPerSecond);
+        LanderState s = new LanderState();
+        s.landerWidth = Headless.LANDER_WIDTH;
+        s.landerHeight = Headless.LANDER_HEIGHT;
+        LanderState check = new LanderState();
+        // every state of a flight, to check scrubbing against
+        double[] xs = new double[MAX_FRAMES + 1];
+        double[] ys = new double[MAX_FRAMES + 1];
+        double[] fuels = new double[MAX_FRAMES + 1];
+        Random random = new Random(seed);
+
+        long steps = 0;
+        long nanos = 0;
+        int mismatches = 0;
+        double held = 0;
+        for (int flight = 0; flight < flights; flight++) {
+            LanderPhysics.start(s, LanderPhysics.DIFFICULTY_MEDIUM, Headless.CANVAS_WIDTH,
+                    Headless.CANVAS_HEIGHT, random);
+            rewind.clear();
+            rewind.capture(0, s);
+            xs[0] = s.x;
+            ys[0] = s.y;
+            fuels[0] = s.fuel;
+            int frames = 0;
+            int c = 0;
+            int outcome = LanderPhysics.OUTCOME_FLYING;
+            while (outcome == LanderPhysics.OUTCOME_FLYING && frames < MAX_FRAMES) {
+                if (random.nextDouble() < CHANGE_CHANCE) c = random.nextInt(6);
+                s.engineFiring = c % 2 == 1 && s.fuel > 0;
+                s.rotating = c / 2 - 1;
+                outcome = LanderPhysics.step(s, elapsed);
+                long t0 = System.nanoTime();
+                rewind.capture(elapsed, s);
+                nanos += System.nanoTime() - t0;
+                frames++;
+                xs[frames] = s.x;
+                ys[frames] = s.y;
+                fuels[frames] = s.fuel;
+            }
+            steps += frames;
+            held = Math.max(held, rewind.getSeconds());
+
+            // back one step at a time to the oldest held, then forward
+            int oldest = frames + 1 - rewind.size();
+            for (int i = frames - 1; i >= oldest; i--) {
+                rewind.rewind(elapsed / 2, check);
+                if (!near(check, xs[i], ys[i], fuels[i])) mismatches++;
+            }
+            if (rewind.canRewind()) mismatches++;
+            for (int i = oldest + 1; i <= frames; i++) {
+                rewind.fastForward(elapsed / 2, check);
+                if (!near(check, xs[i], ys[i], fuels[i])) mismatches++;
+            }
+        }
+        // a full buffer, from a long hover
+        rewind.clear();
+        s.x = Headless.CANVAS_WIDTH / 2;
+        s.y = Headless.CANVAS_HEIGHT / 2;
+        s.dx = 0;
+        s.dy = 0;
+        s.fuel = LanderPhysics.PHYS_FUEL_MAX;
+        for (int i = 0; i < MAX_FRAMES * 4; i++) {
+            s.engineFiring = s.dy < 0;
+            s.rotating = 0;
+            LanderPhysics.step(s, elapsed);
+            rewind.capture(elapsed, s);
+        }
+
+        double perCapture = (double) nanos / steps;
+        System.out.printf("%d flights, %d steps: %.1f ns per capture, %d mismatches%n",
+                flights, steps, perCapture, mismatches);
+        System.out.printf("buffer %d bytes, full holds %.1f s at %.2f ms frames in %d bytes, "
+                + "%.1f per step%n", rewind.getBytes(), rewind.getSeconds(), frameMs,
+                rewind.getUsedBytes(), (double) rewind.getUsedBytes() / rewind.size());
+        System.out.printf("longest flight held %.1f s%n", held);
+        boolean ok = mismatches == 0 && perCapture <= maxNanos
+                && rewind.getSeconds() >= seconds - elapsed;
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean near(LanderState s, double x, double y, double fuel) {
+        return Math.abs(s.x - x) <= TOLERANCE && Math.abs(s.y - y) <= TOLERANCE
+                && Math.abs(s.fuel - fuel) <= TOLERANCE;
+    }
+}
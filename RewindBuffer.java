@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * The last stretch of a flight, a state per physics step, for rewinding.
+ *
+ * Each step is stored as the difference from the step before: x, y, dx,
+ * dy, heading and fuel in units of 1/UNITS, as zigzag varints, after a
+ * byte of controls and the step's length in microseconds. A step at 60 Hz
+ * usually takes about 10 bytes. Differences of integers undo exactly, so the
+ * newest state, kept whole, can be walked back one step at a time, and
+ * forward again, in constant time per step.
+ *
+ * Records go into a byte ring and their offsets into an int ring, both
+ * allocated up front for the worst case of the given seconds at the given
+ * step rate; the oldest steps are dropped as new ones come. Memory is
+ * getBytes() from the start and never grows. Not thread safe; owned by the
+ * game thread.
+ */
+final class RewindBuffer {
+    /** Units per px, px/s, degree and unit of fuel. */
+    public static final int UNITS = 4096;
+
+    /* fields of a state, in the order they are coded */
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int DX = 2;
+    private static final int DY = 3;
+    private static final int HEADING = 4;
+    private static final int FUEL = 5;
+    private static final int FIELDS = 6;
+
+    /** Longest record: the controls, then seven varints of up to 5 bytes. */
+    private static final int MAX_RECORD = 1 + 5 * (FIELDS + 1);
+
+    /* controls byte */
+    private static final int FIRING = 1;
+    private static final int LEFT = 2;
+    private static final int RIGHT = 4;
+
+    private final byte[] mBytes;
+    private final int[] mOffsets;
+
+    /** Steps held, and the index in mOffsets of the oldest. */
+    private int mCount;
+    private int mFirst;
+
+    /** Next free byte in mBytes. */
+    private int mEnd;
+
+    /** The newest state, whole. */
+    private final int[] mHead = new int[FIELDS];
+    private int mHeadControls;
+
+    /*
+     * The scrubbing cursor: the state after step mCursor, counted from the
+     * oldest, and its controls
+     */
+    private int mCursor = -1;
+    private final int[] mAt = new int[FIELDS];
+    private int mAtControls;
+
+    /** Microseconds held. */
+    private long mMicros;
+
+    /* scratch for decoding */
+    private final int[] mDelta = new int[FIELDS];
+    private int mDeltaMicros;
+    private int mDeltaControls;
+
+    /**
+     * @param seconds flight time to keep at least
+     * @param stepsPerSecond highest step rate expected; faster steps keep
+     *        proportionally less time
+     */
+    public RewindBuffer(double seconds, int stepsPerSecond) {
+        int steps = (int) Math.ceil(seconds * stepsPerSecond) + 1;
+        mOffsets = new int[steps];
+        mBytes = new byte[steps * MAX_RECORD];
+    }
+
+    /** Memory held, fixed at construction. */
+    public int getBytes() {
+        return mBytes.length + 4 * mOffsets.length;
+    }
+
+    /** Bytes of records held. */
+    public int getUsedBytes() {
+        return mBytes.length - free();
+    }
+
+    /** Steps held. */
+    public int size() {
+        return mCount;
+    }
+
+    /** Flight time held, in seconds. */
+    public double getSeconds() {
+        return mMicros / 1e6;
+    }
+
+    /**
+     * Forgets everything, as at the start of a flight.
+     */
+    public void clear() {
+        mCount = 0;
+        mFirst = 0;
+        mEnd = 0;
+        mMicros = 0;
+        mCursor = -1;
+        for (int i = 0; i < FIELDS; i++)
+            mHead[i] = 0;
+        mHeadControls = 0;
+    }
+
+    /**
+     * Records the state after a step. If the buffer was rewound, the steps
+     * after the cursor are dropped first: the flight goes on from there.
+     *
+     * @param elapsed length of the step, in seconds
+     */
+    public void capture(double elapsed, LanderState s) {
+        truncate();
+        int controls = controls(s);
+        int micros = (int) Math.round(elapsed * 1e6);
+        // make room in both rings
+        while (mCount > 0 && (mCount == mOffsets.length || free() < MAX_RECORD))
+            dropOldest();
+        int p = mEnd;
+        mOffsets[(mFirst + mCount) % mOffsets.length] = p;
+        mBytes[p] = (byte) controls;
+        p = next(p);
+        p = putVarint(p, micros);
+        for (int i = 0; i < FIELDS; i++) {
+            int v = quantize(s, i);
+            p = putVarint(p, zigzag(v - mHead[i]));
+            mHead[i] = v;
+        }
+        mHeadControls = controls;
+        mEnd = p;
+        mCount++;
+        mMicros += micros;
+    }
+
+    /**
+     * Is there a step to rewind to before the cursor?
+     */
+    public boolean canRewind() {
+        return mCount > 1 && cursor() > 0;
+    }
+
+    /**
+     * Moves the cursor back by at least the given flight time, or to the
+     * oldest step held, and writes the state there into s.
+     *
+     * @return seconds actually moved back
+     */
+    public double rewind(double seconds, LanderState s) {
+        startScrub();
+        long want = (long) (seconds * 1e6);
+        long moved = 0;
+        while (moved < want && mCursor > 0) {
+            // undo the step that led here
+            decode(mCursor);
+            for (int i = 0; i < FIELDS; i++)
+                mAt[i] -= mDelta[i];
+            moved += mDeltaMicros;
+            mCursor--;
+            decode(mCursor);
+            mAtControls = mDeltaControls;
+        }
+        write(s);
+        return moved / 1e6;
+    }
+
+    /**
+     * Moves the cursor forward by at least the given flight time, or to
+     * the newest step, and writes the state there into s.
+     *
+     * @return seconds actually moved forward
+     */
+    public double fastForward(double seconds, LanderState s) {
+        startScrub();
+        long want = (long) (seconds * 1e6);
+        long moved = 0;
+        while (moved < want && mCursor < mCount - 1) {
+            mCursor++;
+            decode(mCursor);
+            for (int i = 0; i < FIELDS; i++)
+                mAt[i] += mDelta[i];
+            mAtControls = mDeltaControls;
+            moved += mDeltaMicros;
+        }
+        write(s);
+        return moved / 1e6;
+    }
+
+    /**
+     * Drops the steps after the cursor, so the cursor's state is the
+     * newest. Does nothing if the buffer hasn't been rewound.
+     */
+    public void truncate() {
+        if (mCursor < 0) return;
+        while (mCount - 1 > mCursor) {
+            decode(mCount - 1);
+            mMicros -= mDeltaMicros;
+            mEnd = mOffsets[(mFirst + mCount - 1) % mOffsets.length];
+            mCount--;
+        }
+        System.arraycopy(mAt, 0, mHead, 0, FIELDS);
+        mHeadControls = mAtControls;
+        mCursor = -1;
+    }
+
+    private int cursor() {
+        return mCursor >= 0 ? mCursor : mCount - 1;
+    }
+
+    private void startScrub() {
+        if (mCursor >= 0) return;
+        mCursor = mCount - 1;
+        System.arraycopy(mHead, 0, mAt, 0, FIELDS);
+        mAtControls = mHeadControls;
+    }
+
+    private void write(LanderState s) {
+        s.x = (double) mAt[X] / UNITS;
+        s.y = (double) mAt[Y] / UNITS;
+        s.dx = (double) mAt[DX] / UNITS;
+        s.dy = (double) mAt[DY] / UNITS;
+        s.heading = (double) mAt[HEADING] / UNITS;
+        s.fuel = (double) mAt[FUEL] / UNITS;
+        s.engineFiring = (mAtControls & FIRING) != 0;
+        s.rotating = (mAtControls & LEFT) != 0 ? -1 : ((mAtControls & RIGHT) != 0 ? 1 : 0);
+    }
+
+    /**
+     * Reads record k, counted from the oldest, into mDelta, mDeltaMicros
+     * and mDeltaControls.
+     */
+    private void decode(int k) {
+        int p = mOffsets[(mFirst + k) % mOffsets.length];
+        mDeltaControls = mBytes[p];
+        p = next(p);
+        p = getVarint(p);
+        mDeltaMicros = mVarint;
+        for (int i = 0; i < FIELDS; i++) {
+            p = getVarint(p);
+            mDelta[i] = unzigzag(mVarint);
+        }
+    }
+
+    private void dropOldest() {
+        decode(0);
+        mMicros -= mDeltaMicros;
+        mFirst = (mFirst + 1) % mOffsets.length;
+        mCount--;
+    }
+
+    /** Bytes free between the newest record and the oldest. */
+    private int free() {
+        if (mCount == 0) return mBytes.length;
+        int start = mOffsets[mFirst];
+        int used = mEnd - start;
+        if (used <= 0) used += mBytes.length;
+        return mBytes.length - used;
+    }
+
+    private int next(int p) {
+        return p + 1 == mBytes.length ? 0 : p + 1;
+    }
+
+    private int putVarint(int p, int v) {
+        while ((v & ~0x7f) != 0) {
+            mBytes[p] = (byte) (v | 0x80);
+            p = next(p);
+            v >>>= 7;
+        }
+        mBytes[p] = (byte) v;
+        return next(p);
+    }
+
+    /* result of getVarint() */
+    private int mVarint;
+
+    private int getVarint(int p) {
+        int v = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = mBytes[p];
+            p = next(p);
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        mVarint = v;
+        return p;
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int quantize(LanderState s, int field) {
+        double v;
+        switch (field) {
+            case X: v = s.x; break;
+            case Y: v = s.y; break;
+            case DX: v = s.dx; break;
+            case DY: v = s.dy; break;
+            case HEADING: v = s.heading; break;
+            default: v = s.fuel; break;
+        }
+        return (int) Math.round(v * UNITS);
+    }
+
+    private static int controls(LanderState s) {
+        return (s.engineFiring ? FIRING : 0) | (s.rotating < 0 ? LEFT : 0)
+                | (s.rotating > 0 ? RIGHT : 0);
+    }
+}
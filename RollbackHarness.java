@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a rollback game between several peers in one process, over
+ * loopback UDP with simulated latency and packet loss, then checks that
+ * every peer ended up with the same game. Runs on a desktop JVM.
+ *
+ * Each peer flies its lander with a simple autopilot on its own thread and
+ * records a checksum of the game every CHECK_INTERVAL frames once the
+ * frame is final. The run passes if the peers agree on every checksum.
+ *
+ * Usage: RollbackHarness [options]
+ * <ul>
+ * <li>--players N: peers, default 2
+ * <li>--latency-ms L: one-way delay, default 50
+ * <li>--jitter-ms J: further random delay up to J, default 20
+ * <li>--loss F: fraction of datagrams dropped, default 0.05
+ * <li>--input-delay D: frames of local input delay, default 2
+ * <li>--frame-hz H: frames per second, default 60
+ * <li>--seconds S: how long to play, default 15
+ * <li>--difficulty easy|medium|hard, --seed N
+ * </ul>
+ */
+public class RollbackHarness {
+    private static final int CHECK_INTERVAL = 30;
+
+    /** Frames run back to back at most when catching up after a stall. */
+    private static final int MAX_CATCH_UP = 4;
+
+    /**
+     * One peer and the thread running its game loop.
+     */
+    private static final class Peer implements Runnable {
+        final RollbackSession session;
+        final RollbackPeer net;
+        final Random random;
+        final long frameNanos;
+        final ConcurrentHashMap<Integer, Long> checksums = new ConcurrentHashMap<Integer, Long>();
+        volatile boolean running = true;
+        volatile IOException error;
+        long frameNanosSum;
+        int lastChecked = -1;
+        int flags;
+
+        Peer(RollbackSession session, int frameHz) throws IOException {
+            this.session = session;
+            net = new RollbackPeer(session, 0);
+            random = new Random(session.getLocalPlayer() * 7919L);
+            frameNanos = 1000000000L / frameHz;
+        }
+
+        public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        private void loop() throws IOException {
+            long next = System.nanoTime();
+            while (running) {
+                net.poll();
+                long now = System.nanoTime();
+                for (int n = 0; n < MAX_CATCH_UP && now >= next; n++) {
+                    long start = System.nanoTime();
+                    boolean advanced = session.advanceFrame(decide());
+                    frameNanosSum += System.nanoTime() - start;
+                    next += frameNanos;
+                    // keep sending while stalled, the others may be waiting on us
+                    net.sendInputs();
+                    if (!advanced) break;
+                }
+                if (now - next > MAX_CATCH_UP * frameNanos) next = now;
+                recordChecksums();
+                LockSupport.parkNanos(500000);
+            }
+        }
+
+        /**
+         * Autopilot for the local lander: stay upright, brake near the
+         * ground, now and then give a random nudge so predictions miss.
+         */
+        private int decide() {
+            LanderState s = session.getLander(session.getLocalPlayer());
+            if (random.nextInt(10) != 0) return flags;
+            int f = 0;
+            double limit = s.y < 80 ? s.goalSpeed * 0.7 : (s.y < 250 ? 45 : 100);
+            if (s.dy < -limit) f |= RollbackSession.INPUT_FIRING;
+            if (s.heading > 5 && s.heading < 180) f |= RollbackSession.INPUT_LEFT;
+            else if (s.heading < 355 && s.heading >= 180) f |= RollbackSession.INPUT_RIGHT;
+            else if (random.nextInt(4) == 0)
+                f |= random.nextBoolean() ? RollbackSession.INPUT_LEFT : RollbackSession.INPUT_RIGHT;
+            flags = f;
+            return f;
+        }
+
+        private void recordChecksums() {
+            int last = session.getFinalFrame();
+            for (int f = lastChecked + 1; f <= last; f++) {
+                if (f % CHECK_INTERVAL == 0) checksums.put(f, session.checksum(f));
+            }
+            lastChecked = Math.max(lastChecked, last);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = 2;
+        double latencyMs = 50;
+        double jitterMs = 20;
+        double loss = 0.05;
+        int inputDelay = 2;
+        int frameHz = 60;
+        double seconds = 15;
+        int difficulty = LanderPhysics.DIFFICULTY_MEDIUM;
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--players".equals(opt)) players = Integer.parseInt(val);
+            else if ("--latency-ms".equals(opt)) latencyMs = Double.parseDouble(val);
+            else if ("--jitter-ms".equals(opt)) jitterMs = Double.parseDouble(val);
+            else if ("--loss".equals(opt)) loss = Double.parseDouble(val);
+            else if ("--input-delay".equals(opt)) inputDelay = Integer.parseInt(val);
+            else if ("--frame-hz".equals(opt)) frameHz = Integer.parseInt(val);
+            else if ("--seconds".equals(opt)) seconds = Double.parseDouble(val);
+            else if ("--difficulty".equals(opt)) difficulty = Headless.parseDifficulty(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || players < 1 || players > NetProtocol.MAX_PLAYERS) {
+            System.err.println("usage: RollbackHarness [--players N] [--latency-ms L] "
+                    + "[--jitter-ms J] [--loss F] [--input-delay D] [--frame-hz H] "
+                    + "[--seconds S] [--difficulty D] [--seed N]");
+            System.exit(2);
+        }
+
+        Peer[] peers = new Peer[players];
+        for (int p = 0; p < players; p++) {
+            RollbackSession session = new RollbackSession(players, p, inputDelay, seed,
+                    difficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                    Headless.LANDER_WIDTH, Headless.LANDER_HEIGHT, 1.0 / frameHz);
+            peers[p] = new Peer(session, frameHz);
+            peers[p].net.setConditions(latencyMs, jitterMs, loss);
+        }
+        for (Peer a : peers) {
+            for (int p = 0; p < players; p++) {
+                if (p != a.session.getLocalPlayer())
+                    a.net.setRemote(p, new InetSocketAddress("127.0.0.1", peers[p].net.getPort()));
+            }
+        }
+        Thread[] threads = new Thread[players];
+        for (int p = 0; p < players; p++) {
+            threads[p] = new Thread(peers[p], "peer" + p);
+            threads[p].start();
+        }
+        Thread.sleep((long) (seconds * 1000));
+        for (int p = 0; p < players; p++) {
+            peers[p].running = false;
+            threads[p].join();
+            peers[p].net.close();
+        }
+
+        boolean ok = true;
+        int compared = 0;
+        for (Peer a : peers) {
+            RollbackSession s = a.session;
+            int frames = s.getFrame();
+            System.out.printf("peer %d: %d frames (%.1f/s), %d rollbacks, mean depth %.1f, "
+                    + "max %d, %.1f us per rollback, %.1f us per frame, %d stalls%n",
+                    s.getLocalPlayer(), frames, frames / seconds, s.getRollbacks(),
+                    (double) s.getResimulatedFrames() / Math.max(1, s.getRollbacks()),
+                    s.getMaxRollback(), s.getResimNanos() / 1000.0 / Math.max(1, s.getRollbacks()),
+                    a.frameNanosSum / 1000.0 / Math.max(1, frames), s.getStalls());
+            System.out.printf("  sent %d datagrams (%d dropped), %.0f B/s, %d stale inputs%s%n",
+                    a.net.getSent(), a.net.getDropped(), a.net.getBytesSent() / seconds,
+                    a.net.getStaleInputs(), a.error == null ? "" : ", " + a.error);
+            ok &= a.error == null && a.net.getStaleInputs() == 0;
+        }
+        for (Integer frame : peers[0].checksums.keySet()) {
+            Long expected = peers[0].checksums.get(frame);
+            for (int p = 1; p < players; p++) {
+                Long got = peers[p].checksums.get(frame);
+                if (got == null) continue;
+                compared++;
+                if (!got.equals(expected)) {
+                    if (ok) System.out.printf("peer %d disagrees with peer 0 at frame %d%n", p, frame);
+                    ok = false;
+                }
+            }
+        }
+        System.out.println(ok ? "PASS: peers agree on " + compared + " checksums"
+                : "FAIL: peers diverged");
+        System.exit(ok ? 0 : 1);
+    }
+}
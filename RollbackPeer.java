@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Carries a RollbackSession's inputs between peers over UDP.
+ *
+ * Every frame each peer sends every other peer all of its own inputs the
+ * other hasn't acknowledged yet, so a lost datagram costs nothing but a
+ * little delay: the next one repeats its contents. Each datagram also
+ * acknowledges the newest frame up to which the receiver's inputs have
+ * arrived.
+ *
+ * For testing, outgoing datagrams can be delayed by a fixed latency plus
+ * random jitter and dropped at random, see setConditions(). Not thread
+ * safe; owned by the game loop, which calls poll() often and sendInputs()
+ * once a frame.
+ */
+final class RollbackPeer {
+    /** Most inputs in one datagram. */
+    private static final int MAX_INPUTS = RollbackSession.HISTORY;
+
+    private final RollbackSession mSession;
+    private final DatagramChannel mChannel;
+    private final SocketAddress[] mRemotes;
+
+    /** Per player, the newest frame of our input they have confirmed. */
+    private final int[] mAcked;
+
+    private final ByteBuffer mIn = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+    private final ByteBuffer mOut = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+
+    /*
+     * Simulated network conditions
+     */
+    private long mLatencyNanos;
+    private long mJitterNanos;
+    private double mLoss;
+    private final Random mRandom;
+    private final PriorityQueue<Pending> mPending = new PriorityQueue<Pending>();
+
+    /*
+     * Statistics
+     */
+    private long mSent;
+    private long mDropped;
+    private long mBytesSent;
+    private long mStale;
+
+    /**
+     * A datagram held back to simulate latency.
+     */
+    private static final class Pending implements Comparable<Pending> {
+        final long due;
+        final SocketAddress to;
+        final ByteBuffer data;
+
+        Pending(long due, SocketAddress to, ByteBuffer data) {
+            this.due = due;
+            this.to = to;
+            this.data = data;
+        }
+
+        public int compareTo(Pending other) {
+            return due < other.due ? -1 : (due > other.due ? 1 : 0);
+        }
+    }
+
+    /**
+     * @param port local UDP port, 0 for any
+     */
+    public RollbackPeer(RollbackSession session, int port) throws IOException {
+        mSession = session;
+        mRemotes = new SocketAddress[session.getPlayers()];
+        mAcked = new int[session.getPlayers()];
+        for (int p = 0; p < mAcked.length; p++)
+            mAcked[p] = -1;
+        mRandom = new Random(session.getLocalPlayer());
+        mChannel = DatagramChannel.open();
+        mChannel.socket().bind(new InetSocketAddress(port));
+        mChannel.configureBlocking(false);
+    }
+
+    public int getPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Sets where another player's peer listens.
+     */
+    public void setRemote(int player, SocketAddress address) {
+        mRemotes[player] = address;
+    }
+
+    /**
+     * Makes outgoing datagrams arrive late or not at all.
+     *
+     * @param latencyMs one-way delay added to every datagram
+     * @param jitterMs further random delay, up to this much
+     * @param loss fraction of datagrams dropped
+     */
+    public void setConditions(double latencyMs, double jitterMs, double loss) {
+        mLatencyNanos = (long) (latencyMs * 1e6);
+        mJitterNanos = (long) (jitterMs * 1e6);
+        mLoss = loss;
+    }
+
+    /**
+     * Hands every datagram received to the session, and sends held-back
+     * datagrams that are due.
+     */
+    public void poll() throws IOException {
+        long now = System.nanoTime();
+        while (!mPending.isEmpty() && mPending.peek().due <= now) {
+            Pending p = mPending.poll();
+            mChannel.send(p.data, p.to);
+        }
+        while (true) {
+            mIn.clear();
+            if (mChannel.receive(mIn) == null) break;
+            mIn.flip();
+            if (NetProtocol.readHeader(mIn) != NetProtocol.PACKET_ROLLBACK_INPUTS
+                    || mIn.remaining() < 10)
+                continue;
+            int player = mIn.get() & 0xff;
+            int ack = mIn.getInt();
+            int first = mIn.getInt();
+            int count = mIn.get() & 0xff;
+            if (player >= mAcked.length || player == mSession.getLocalPlayer()
+                    || mIn.remaining() < count)
+                continue;
+            mAcked[player] = Math.max(mAcked[player], ack);
+            for (int i = 0; i < count; i++) {
+                if (!mSession.addRemoteInput(player, first + i, mIn.get() & 0xff))
+                    mStale++;
+            }
+        }
+    }
+
+    /**
+     * Sends every other peer our inputs they haven't acknowledged.
+     */
+    public void sendInputs() throws IOException {
+        int local = mSession.getLocalPlayer();
+        int newest = mSession.getConfirmedFrame(local);
+        for (int p = 0; p < mRemotes.length; p++) {
+            if (mRemotes[p] == null) continue;
+            int first = Math.max(mAcked[p] + 1, newest - MAX_INPUTS + 1);
+            int count = newest - first + 1;
+            if (count <= 0) {
+                // nothing new, but they may be waiting on our ack
+                first = newest + 1;
+                count = 0;
+            }
+            mOut.clear();
+            NetProtocol.putHeader(mOut, NetProtocol.PACKET_ROLLBACK_INPUTS);
+            mOut.put((byte) local);
+            mOut.putInt(mSession.getConfirmedFrame(p));
+            mOut.putInt(first);
+            mOut.put((byte) count);
+            for (int i = 0; i < count; i++)
+                mOut.put((byte) mSession.getInput(local, first + i));
+            mOut.flip();
+            send(p, mOut);
+        }
+    }
+
+    public long getSent() {
+        return mSent;
+    }
+
+    public long getDropped() {
+        return mDropped;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /** Inputs that arrived too late to be applied. */
+    public long getStaleInputs() {
+        return mStale;
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void send(int player, ByteBuffer data) throws IOException {
+        mSent++;
+        mBytesSent += data.remaining();
+        if (mLoss > 0 && mRandom.nextDouble() < mLoss) {
+            mDropped++;
+            return;
+        }
+        if (mLatencyNanos == 0 && mJitterNanos == 0) {
+            mChannel.send(data, mRemotes[player]);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        long delay = mLatencyNanos + (long) (mRandom.nextDouble() * mJitterNanos);
+        mPending.add(new Pending(System.nanoTime() + delay, mRemotes[player], copy));
+    }
+}
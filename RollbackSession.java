@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * Rollback simulation of a shared-pad game: every peer runs the whole game
+ * itself, in lockstep frames of fixed length, exchanging only controls.
+ *
+ * Remote controls arrive late. Rather than wait for them, a frame is
+ * simulated with a prediction (the player's last known controls), and the
+ * state before every frame is kept in a ring buffer. When a real input
+ * turns out to differ from what was predicted, the state before that frame
+ * is restored and the frames since are simulated again with what is now
+ * known. A frame costs a microsecond or two per lander, so even a rollback
+ * over the whole window fits easily into one display frame.
+ *
+ * The simulation is deterministic: LanderPhysics with a fixed step, inputs
+ * as bit flags, and new flights started from a Random seeded by the game
+ * seed, player and flight number rather than from shared random state. Peers
+ * that have seen the same inputs therefore hold bit-identical states, which
+ * checksum() lets them compare.
+ *
+ * A peer may run at most MAX_PREDICTION frames ahead of the last input it
+ * has from every other player; past that advanceFrame() refuses, and the
+ * caller waits. Not thread safe; owned by the game loop.
+ */
+final class RollbackSession {
+    /** Frames of state kept, and so the deepest possible rollback. */
+    public static final int HISTORY = 64;
+
+    /** Frames a peer may simulate on predicted input before it stalls. */
+    public static final int MAX_PREDICTION = HISTORY - 8;
+
+    /*
+     * Frames of input kept: enough for the oldest frame that may still be
+     * rolled back to and for peers running up to MAX_PREDICTION ahead.
+     */
+    private static final int INPUT_HISTORY = 2 * HISTORY;
+
+    /*
+     * Input flags, as in NetProtocol
+     */
+    public static final int INPUT_FIRING = NetProtocol.INPUT_FIRING;
+    public static final int INPUT_LEFT = NetProtocol.INPUT_LEFT;
+    public static final int INPUT_RIGHT = NetProtocol.INPUT_RIGHT;
+
+    /** Time a lander rests on the ground before its next flight. */
+    public static final int RESPAWN_FRAMES = 60;
+
+    private final int mPlayers;
+    private final int mLocal;
+    private final int mInputDelay;
+    private final long mSeed;
+    private final int mDifficulty;
+    private final int mCanvasWidth;
+    private final int mCanvasHeight;
+    private final double mFrameSeconds;
+
+    /** Pad shared by every player. */
+    private final int mPadX;
+
+    /*
+     * The game state before frame f is at index f % HISTORY: landers,
+     * their phase (OUTCOME_FLYING or the outcome of the last flight), the
+     * frame they touched down at, and flights flown.
+     */
+    private final LanderState[][] mStates;
+    private final int[][] mPhase;
+    private final int[][] mLandedAt;
+    private final int[][] mFlights;
+
+    /** The live state, after mFrame frames. */
+    private final LanderState[] mLanders;
+    private final int[] mLivePhase;
+    private final int[] mLiveLandedAt;
+    private final int[] mLiveFlights;
+
+    /*
+     * Inputs: what is known and which frame it is for, by frame %
+     * INPUT_HISTORY, and what the last simulation of a frame actually
+     * used, by frame % HISTORY.
+     */
+    private final int[][] mInputs;
+    private final int[][] mInputFrame;
+    private final int[][] mUsed;
+
+    /** Per player, the last frame up to which every input is known. */
+    private final int[] mConfirmed;
+
+    /** Frames simulated so far; the next frame to simulate. */
+    private int mFrame;
+
+    /** Earliest frame simulated on a wrong prediction, or MAX_VALUE. */
+    private int mRollbackTo = Integer.MAX_VALUE;
+
+    /*
+     * Statistics
+     */
+    private long mRollbacks;
+    private long mResimulated;
+    private int mMaxRollback;
+    private long mStalls;
+    private long mResimNanos;
+
+    /**
+     * @param players number of players, 1 to NetProtocol.MAX_PLAYERS
+     * @param local the player this peer controls
+     * @param inputDelay frames local input is held back, trading a little
+     *        responsiveness for fewer rollbacks
+     * @param seed shared by all peers
+     * @param frameSeconds length of one frame
+     */
+    public RollbackSession(int players, int local, int inputDelay, long seed, int difficulty,
+            int canvasWidth, int canvasHeight, int landerWidth, int landerHeight,
+            double frameSeconds) {
+        if (inputDelay < 0 || inputDelay >= MAX_PREDICTION)
+            throw new IllegalArgumentException("input delay " + inputDelay);
+        mPlayers = players;
+        mLocal = local;
+        mInputDelay = inputDelay;
+        mSeed = seed;
+        mDifficulty = difficulty;
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mFrameSeconds = frameSeconds;
+
+        mStates = new LanderState[HISTORY][players];
+        mPhase = new int[HISTORY][players];
+        mLandedAt = new int[HISTORY][players];
+        mFlights = new int[HISTORY][players];
+        mInputs = new int[INPUT_HISTORY][players];
+        mInputFrame = new int[INPUT_HISTORY][players];
+        mUsed = new int[HISTORY][players];
+        for (int f = 0; f < HISTORY; f++) {
+            for (int p = 0; p < players; p++)
+                mStates[f][p] = new LanderState();
+        }
+        for (int f = 0; f < INPUT_HISTORY; f++) {
+            for (int p = 0; p < players; p++)
+                mInputFrame[f][p] = -1;
+        }
+        mLanders = new LanderState[players];
+        mLivePhase = new int[players];
+        mLiveLandedAt = new int[players];
+        mLiveFlights = new int[players];
+        mConfirmed = new int[players];
+
+        LanderState probe = new LanderState();
+        probe.landerWidth = landerWidth;
+        probe.landerHeight = landerHeight;
+        LanderPhysics.start(probe, difficulty, canvasWidth, canvasHeight, new Random(seed));
+        mPadX = probe.goalX;
+        for (int p = 0; p < players; p++) {
+            mLanders[p] = new LanderState();
+            mLanders[p].landerWidth = landerWidth;
+            mLanders[p].landerHeight = landerHeight;
+            startFlight(p);
+            mConfirmed[p] = -1;
+        }
+        // the held-back frames at the start have no controls
+        for (int f = 0; f < inputDelay; f++)
+            putInput(local, f, 0);
+    }
+
+    public int getFrame() {
+        return mFrame;
+    }
+
+    public int getPlayers() {
+        return mPlayers;
+    }
+
+    public int getLocalPlayer() {
+        return mLocal;
+    }
+
+    /** A player's lander as of the latest frame, predictions included. */
+    public LanderState getLander(int player) {
+        return mLanders[player];
+    }
+
+    /**
+     * @return LanderPhysics.OUTCOME_FLYING while the player is in flight,
+     *         otherwise the outcome of their last flight
+     */
+    public int getPhase(int player) {
+        return mLivePhase[player];
+    }
+
+    /**
+     * @return the last frame up to which all of a player's inputs are known
+     */
+    public int getConfirmedFrame(int player) {
+        return mConfirmed[player];
+    }
+
+    /**
+     * @return the last frame whose inputs are known for every player; the
+     *         state after it can no longer change
+     */
+    public int getFinalFrame() {
+        int min = Integer.MAX_VALUE;
+        for (int p = 0; p < mPlayers; p++)
+            min = Math.min(min, mConfirmed[p]);
+        // states from a pending rollback on are still wrong
+        return Math.min(min, Math.min(mFrame, mRollbackTo) - 1);
+    }
+
+    /**
+     * A known input, for sending to other peers.
+     *
+     * @return the input flags, or -1 if the frame is unknown or too old
+     */
+    public int getInput(int player, int frame) {
+        if (frame < 0) return -1;
+        int i = frame % INPUT_HISTORY;
+        return mInputFrame[i][player] == frame ? mInputs[i][player] : -1;
+    }
+
+    /**
+     * Takes another player's input. Inputs may come in any order and more
+     * than once.
+     *
+     * @return false if the frame is too old to be applied; it was then
+     *         already simulated with a prediction that can't be corrected,
+     *         which the stall limit prevents
+     */
+    public boolean addRemoteInput(int player, int frame, int flags) {
+        if (player == mLocal || frame <= mConfirmed[player]) return true;
+        if (frame <= mFrame - HISTORY) return false;
+        // too far ahead to store yet; the sender repeats it
+        if (frame >= mFrame + INPUT_HISTORY - MAX_PREDICTION) return true;
+        putInput(player, frame, flags);
+        if (frame < mFrame && mUsed[frame % HISTORY][player] != flags)
+            mRollbackTo = Math.min(mRollbackTo, frame);
+        return true;
+    }
+
+    /**
+     * Applies any rollback due, then simulates one more frame.
+     *
+     * @param localFlags this peer's controls, applied mInputDelay frames
+     *        from now
+     * @return false if the peer is too far ahead of the others; nothing
+     *         was simulated and the same input should be offered again
+     */
+    public boolean advanceFrame(int localFlags) {
+        for (int p = 0; p < mPlayers; p++) {
+            if (p != mLocal && mFrame - mConfirmed[p] > MAX_PREDICTION) {
+                mStalls++;
+                rollback();
+                return false;
+            }
+        }
+        putInput(mLocal, mFrame + mInputDelay, localFlags);
+        rollback();
+        simulate(mFrame);
+        mFrame++;
+        return true;
+    }
+
+    /**
+     * Hash of the state after a frame, for comparing peers. Only
+     * meaningful for frames up to getFinalFrame().
+     *
+     * @return the hash, or 0 if the frame is no longer kept
+     */
+    public long checksum(int frame) {
+        int f = frame + 1;
+        if (f > mFrame || f <= mFrame - HISTORY) return 0;
+        long h = 0xcbf29ce484222325L;
+        for (int p = 0; p < mPlayers; p++) {
+            LanderState s = f == mFrame ? mLanders[p] : mStates[f % HISTORY][p];
+            int phase = f == mFrame ? mLivePhase[p] : mPhase[f % HISTORY][p];
+            h = mix(h, Double.doubleToLongBits(s.x));
+            h = mix(h, Double.doubleToLongBits(s.y));
+            h = mix(h, Double.doubleToLongBits(s.dx));
+            h = mix(h, Double.doubleToLongBits(s.dy));
+            h = mix(h, Double.doubleToLongBits(s.heading));
+            h = mix(h, Double.doubleToLongBits(s.fuel));
+            h = mix(h, phase);
+        }
+        return h;
+    }
+
+    public long getRollbacks() {
+        return mRollbacks;
+    }
+
+    /** Frames simulated again because of rollbacks. */
+    public long getResimulatedFrames() {
+        return mResimulated;
+    }
+
+    public int getMaxRollback() {
+        return mMaxRollback;
+    }
+
+    /** Times advanceFrame() refused to run ahead. */
+    public long getStalls() {
+        return mStalls;
+    }
+
+    /** Time spent restoring and resimulating, in ns. */
+    public long getResimNanos() {
+        return mResimNanos;
+    }
+
+    /**
+     * Restores the state before the earliest mispredicted frame and
+     * simulates up to the present again.
+     */
+    private void rollback() {
+        if (mRollbackTo >= mFrame) {
+            mRollbackTo = Integer.MAX_VALUE;
+            return;
+        }
+        long start = System.nanoTime();
+        int from = mRollbackTo;
+        mRollbackTo = Integer.MAX_VALUE;
+        int i = from % HISTORY;
+        for (int p = 0; p < mPlayers; p++) {
+            mLanders[p].set(mStates[i][p]);
+            mLivePhase[p] = mPhase[i][p];
+            mLiveLandedAt[p] = mLandedAt[i][p];
+            mLiveFlights[p] = mFlights[i][p];
+        }
+        for (int f = from; f < mFrame; f++)
+            simulate(f);
+        int depth = mFrame - from;
+        mRollbacks++;
+        mResimulated += depth;
+        mMaxRollback = Math.max(mMaxRollback, depth);
+        mResimNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Saves the live state as the state before frame f, then advances it
+     * by that frame.
+     */
+    private void simulate(int f) {
+        int i = f % HISTORY;
+        for (int p = 0; p < mPlayers; p++) {
+            mStates[i][p].set(mLanders[p]);
+            mPhase[i][p] = mLivePhase[p];
+            mLandedAt[i][p] = mLiveLandedAt[p];
+            mFlights[i][p] = mLiveFlights[p];
+        }
+        for (int p = 0; p < mPlayers; p++) {
+            int flags = inputFor(p, f);
+            mUsed[i][p] = flags;
+            LanderState s = mLanders[p];
+            if (mLivePhase[p] != LanderPhysics.OUTCOME_FLYING) {
+                if (f - mLiveLandedAt[p] >= RESPAWN_FRAMES) startFlight(p);
+                continue;
+            }
+            s.engineFiring = (flags & INPUT_FIRING) != 0;
+            s.rotating = (flags & INPUT_LEFT) != 0 ? -1 : ((flags & INPUT_RIGHT) != 0 ? 1 : 0);
+            int outcome = LanderPhysics.step(s, mFrameSeconds);
+            if (outcome != LanderPhysics.OUTCOME_FLYING) {
+                mLivePhase[p] = outcome;
+                mLiveLandedAt[p] = f;
+            }
+        }
+    }
+
+    /**
+     * @return the player's input for a frame, or the prediction of it
+     */
+    private int inputFor(int player, int frame) {
+        int known = getInput(player, frame);
+        if (known >= 0) return known;
+        // players mostly hold their controls, so repeat the last known
+        return mConfirmed[player] >= 0 ? getInput(player, mConfirmed[player]) : 0;
+    }
+
+    private void putInput(int player, int frame, int flags) {
+        int i = frame % INPUT_HISTORY;
+        mInputs[i][player] = flags;
+        mInputFrame[i][player] = frame;
+        int c = mConfirmed[player];
+        while (getInput(player, c + 1) >= 0)
+            c++;
+        mConfirmed[player] = c;
+    }
+
+    /**
+     * Starts a player's next flight from the shared start position. The
+     * random start motion depends only on the seed, player and flight.
+     */
+    private void startFlight(int p) {
+        Random random = new Random(mSeed * 31 + p * 1000003L + mLiveFlights[p]);
+        LanderPhysics.start(mLanders[p], mDifficulty, mCanvasWidth, mCanvasHeight, random);
+        mLanders[p].goalX = mPadX;
+        mLivePhase[p] = LanderPhysics.OUTCOME_FLYING;
+        mLiveFlights[p]++;
+    }
+
+    private static long mix(long h, long v) {
+        return (h ^ v) * 0x100000001b3L;
+    }
+}
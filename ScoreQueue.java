@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Durable FIFO of flight results waiting to be uploaded, see ScoreSync.
+ *
+ * Results are appended to one file as length- and CRC-prefixed records.
+ * The header holds the offset of the oldest result not yet acknowledged
+ * and its sequence number; results are numbered consecutively from there,
+ * so a sequence number names one result forever, across restarts. Removing
+ * results only moves the head. The file is truncated once it is empty and
+ * compacted when the dead space before the head dominates it.
+ *
+ * Not thread safe; ScoreSync only touches it from its own thread.
+ */
+final class ScoreQueue {
+    private static final int MAGIC = 0x4c4c5351; // "LLSQ"
+
+    /** Header: magic, unused, client id, head offset, head sequence number. */
+    private static final int HEADER = 32;
+    private static final int HEADER_CLIENT = 8;
+    private static final int HEADER_HEAD = 16;
+
+    /** Record header: payload length, payload CRC. */
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 1024;
+
+    /** Don't bother compacting files smaller than this. */
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+    /**
+     * One finished flight.
+     */
+    static final class Result {
+        public final String key;
+        public final int difficulty;
+        public final int outcome;
+        public final int score;
+        public final float fuel;
+
+        /** Wall clock time of the landing, in ms since the epoch. */
+        public final long time;
+
+        public Result(String key, int difficulty, int outcome, int score, float fuel,
+                long time) {
+            this.key = key;
+            this.difficulty = difficulty;
+            this.outcome = outcome;
+            this.score = score;
+            this.fuel = fuel;
+            this.time = time;
+        }
+
+        /** Writes everything but the key. */
+        void writeFlight(DataOutput out) throws IOException {
+            out.writeByte(difficulty);
+            out.writeByte(outcome);
+            out.writeInt(score);
+            out.writeFloat(fuel);
+            out.writeLong(time);
+        }
+
+        static Result readFlight(String key, DataInput in) throws IOException {
+            return new Result(key, in.readByte(), in.readByte(), in.readInt(),
+                    in.readFloat(), in.readLong());
+        }
+    }
+
+    /**
+     * Consecutive results from the head of the queue, see peek().
+     */
+    static final class Batch {
+        public final long firstSeq;
+        public final ArrayList<Result> results;
+
+        /** File offset just past the last result. */
+        final long end;
+
+        Batch(long firstSeq, ArrayList<Result> results, long end) {
+            this.firstSeq = firstSeq;
+            this.results = results;
+            this.end = end;
+        }
+    }
+
+    private final File mFile;
+    private final long mMaxBytes;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private long mClientId;
+    private long mHead;
+    private long mHeadSeq;
+    private long mTail;
+    private int mCount;
+
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(RECORD_HEADER);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Opens, or creates, the queue file. A record torn by a crash at the
+     * end of the file is dropped.
+     *
+     * @param maxBytes append() refuses results beyond this file size
+     */
+    public ScoreQueue(File file, long maxBytes) throws IOException {
+        mFile = file;
+        mMaxBytes = maxBytes;
+        open();
+    }
+
+    /** Random id of this queue, lets a server tell installs apart. */
+    public long getClientId() {
+        return mClientId;
+    }
+
+    /** Sequence number of the oldest queued result. */
+    public long getHeadSeq() {
+        return mHeadSeq;
+    }
+
+    /** Number of queued results. */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Appends a result.
+     *
+     * @return false if the queue is full
+     */
+    public boolean append(Result r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(r.key);
+        r.writeFlight(out);
+        byte[] payload = bytes.toByteArray();
+        if (payload.length > MAX_RECORD || mTail + RECORD_HEADER + payload.length > mMaxBytes)
+            return false;
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) mCrc.getValue());
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining())
+            mChannel.write(record, mTail + record.position());
+        mTail += RECORD_HEADER + payload.length;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Makes sure appended results survive a crash.
+     */
+    public void sync() throws IOException {
+        mChannel.force(false);
+    }
+
+    /**
+     * Reads up to max results from the head without removing them.
+     */
+    public Batch peek(int max) throws IOException {
+        ArrayList<Result> results = new ArrayList<Result>(Math.min(max, mCount));
+        long pos = mHead;
+        while (results.size() < max) {
+            Result r = readRecord(pos, mTail);
+            if (r == null) break;
+            results.add(r);
+            pos += RECORD_HEADER + mHeaderBuffer.getInt(0);
+        }
+        return new Batch(mHeadSeq, results, pos);
+    }
+
+    /**
+     * Removes a batch returned by peek(). The batch must still be at the
+     * head of the queue.
+     */
+    public void remove(Batch batch) throws IOException {
+        if (batch.firstSeq != mHeadSeq)
+            throw new IllegalStateException("batch " + batch.firstSeq + " is not at the head");
+        mCount -= batch.results.size();
+        mHeadSeq += batch.results.size();
+        mHead = batch.end;
+        if (mCount == 0) {
+            mHead = mTail = HEADER;
+            writeHeader();
+            mRaf.setLength(HEADER);
+        } else if (mHead > COMPACT_MIN_BYTES && mHead - HEADER > mTail - mHead) {
+            compact();
+        } else {
+            writeHeader();
+        }
+    }
+
+    public void close() throws IOException {
+        if (mRaf == null) return;
+        mChannel.force(true);
+        mRaf.close();
+        mRaf = null;
+        mChannel = null;
+    }
+
+    private void open() throws IOException {
+        mFile.getParentFile().mkdirs();
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        if (mRaf.length() < HEADER) {
+            mClientId = new Random().nextLong();
+            mHead = HEADER;
+            mHeadSeq = 0;
+            mRaf.setLength(HEADER);
+            writeHeader();
+        } else {
+            mRaf.seek(0);
+            if (mRaf.readInt() != MAGIC)
+                throw new IOException("Not a score queue: " + mFile);
+            mRaf.seek(HEADER_CLIENT);
+            mClientId = mRaf.readLong();
+            mHead = mRaf.readLong();
+            mHeadSeq = mRaf.readLong();
+        }
+
+        long length = mRaf.length();
+        long pos = mHead;
+        mCount = 0;
+        while (readRecord(pos, length) != null) {
+            pos += RECORD_HEADER + mHeaderBuffer.getInt(0);
+            mCount++;
+        }
+        if (pos < length) mRaf.setLength(pos);
+        mTail = pos;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC);
+        header.putInt(0);
+        header.putLong(mClientId);
+        header.putLong(mHead);
+        header.putLong(mHeadSeq);
+        header.flip();
+        while (header.hasRemaining())
+            mChannel.write(header, header.position());
+        mChannel.force(false);
+    }
+
+    /**
+     * Copies the live results to the front of a new file and swaps it in.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            channel.position(HEADER);
+            long n = mTail - mHead;
+            for (long done = 0; done < n;)
+                done += mChannel.transferTo(mHead + done, n - done, channel);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC);
+            header.putInt(0);
+            header.putLong(mClientId);
+            header.putLong(HEADER);
+            header.putLong(mHeadSeq);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        mRaf.close();
+        if (!tmp.renameTo(mFile))
+            throw new IOException("cannot replace " + mFile);
+        open();
+    }
+
+    /**
+     * @return the result in the record at pos, or null if there is no
+     *         intact record there. Leaves the record header in
+     *         mHeaderBuffer.
+     */
+    private Result readRecord(long pos, long length) throws IOException {
+        if (pos + RECORD_HEADER > length) return null;
+        mHeaderBuffer.clear();
+        while (mHeaderBuffer.hasRemaining()) {
+            if (mChannel.read(mHeaderBuffer, pos + mHeaderBuffer.position()) < 0)
+                return null;
+        }
+        int size = mHeaderBuffer.getInt(0);
+        if (size <= 0 || size > MAX_RECORD || pos + RECORD_HEADER + size > length)
+            return null;
+
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        while (payload.hasRemaining()) {
+            if (mChannel.read(payload, pos + RECORD_HEADER + payload.position()) < 0)
+                return null;
+        }
+        mCrc.reset();
+        mCrc.update(payload.array(), 0, size);
+        if ((int) mCrc.getValue() != mHeaderBuffer.getInt(4)) return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+        return Result.readFlight(in.readUTF(), in);
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads finished flights to a score server.
+ *
+ * submit() only puts the result in a small in-memory queue, so it is safe
+ * on the game thread. A single background thread moves results into a
+ * ScoreQueue on disk, where they survive restarts, and after a short delay
+ * uploads everything queued as one batch: the results grouped by account,
+ * gzipped, POSTed to the endpoint. A 2xx reply removes the batch from the
+ * queue; network errors and 5xx replies are retried with exponential
+ * backoff and jitter. Other 4xx replies mean the server will never take
+ * the batch, so it is dropped.
+ *
+ * Every result carries its queue sequence number, so a server can discard
+ * results it already has when a reply was lost and the batch is resent.
+ * Memory stays bounded: at most MAX_PENDING results wait in memory, at most
+ * MAX_BATCH go into one upload, and the disk queue is capped at
+ * MAX_QUEUE_BYTES. Results that don't fit are dropped and counted.
+ */
+final class ScoreSync {
+    /** Results waiting to be written to disk, at most. */
+    public static final int MAX_PENDING = 256;
+
+    /** Results in one upload, at most. */
+    public static final int MAX_BATCH = 500;
+
+    /** Size of the disk queue, at most. */
+    public static final long MAX_QUEUE_BYTES = 1024 * 1024;
+
+    public static final long DEFAULT_BATCH_DELAY_MS = 5000;
+    public static final long DEFAULT_BACKOFF_MS = 2000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    /** MIME type of an upload, before Content-Encoding. */
+    public static final String CONTENT_TYPE = "application/x-lunar-scores";
+
+    private static final int BATCH_MAGIC = 0x4c4c5342; // "LLSB"
+    private static final int BATCH_VERSION = 1;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    /** Longest close() waits for the queue to reach the disk. */
+    private static final int CLOSE_WAIT_MS = 2000;
+
+    private final File mQueueFile;
+    private final ScheduledExecutorService mExecutor;
+    private final ArrayBlockingQueue<ScoreQueue.Result> mPending =
+            new ArrayBlockingQueue<ScoreQueue.Result>(MAX_PENDING);
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    private volatile URL mEndpoint;
+    private volatile long mBatchDelayMs = DEFAULT_BATCH_DELAY_MS;
+    private volatile long mBackoffMs = DEFAULT_BACKOFF_MS;
+    private volatile long mMaxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+    /*
+     * Statistics
+     */
+    private volatile int mQueued;
+    private volatile long mUploaded;
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile String mLastError;
+
+    /*
+     * State of the sync thread
+     */
+    private ScoreQueue mQueue;
+    private boolean mUploadScheduled;
+    private volatile HttpURLConnection mConnection;
+    private int mFailures;
+    private final Random mRandom = new Random();
+
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            mDrainScheduled.set(false);
+            drain();
+            scheduleUpload(mBatchDelayMs);
+        }
+    };
+
+    private final Runnable mUpload = new Runnable() {
+        public void run() {
+            mUploadScheduled = false;
+            upload();
+        }
+    };
+
+    /**
+     * @param dir directory for the queue file
+     * @param endpoint where to POST batches; null holds them until
+     *        setEndpoint() is called
+     */
+    public ScoreSync(File dir, URL endpoint) {
+        mQueueFile = new File(dir, "scores.queue");
+        mEndpoint = endpoint;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ScoreSync");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        // batching and backoff delays would otherwise hold up close()
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    mQueue = new ScoreQueue(mQueueFile, MAX_QUEUE_BYTES);
+                    mQueued = mQueue.size();
+                } catch (IOException e) {
+                    mLastError = "cannot open " + mQueueFile + ": " + e;
+                    return;
+                }
+                scheduleUpload(0);
+            }
+        });
+    }
+
+    public void setEndpoint(URL endpoint) {
+        mEndpoint = endpoint;
+        flush();
+    }
+
+    /**
+     * @param batchDelayMs how long to collect results before an upload
+     * @param backoffMs delay before the first retry, doubled per failure
+     * @param maxBackoffMs longest delay between retries
+     */
+    public void setTiming(long batchDelayMs, long backoffMs, long maxBackoffMs) {
+        mBatchDelayMs = batchDelayMs;
+        mBackoffMs = backoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Queues a finished flight for upload. Never blocks.
+     *
+     * @return false if the result was dropped because the memory queue is
+     *         full
+     */
+    public boolean submit(String key, int difficulty, int outcome, int score, float fuel) {
+        boolean queued = mPending.offer(new ScoreQueue.Result(key, difficulty, outcome,
+                score, fuel, System.currentTimeMillis()));
+        if (!queued) mDropped.incrementAndGet();
+        if (mDrainScheduled.compareAndSet(false, true)) mExecutor.execute(mDrain);
+        return queued;
+    }
+
+    /**
+     * Uploads queued results now, cutting short any backoff; call it when
+     * the network comes back.
+     */
+    public void flush() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                mFailures = 0;
+                drain();
+                upload();
+            }
+        });
+    }
+
+    /** Results not yet accepted by the server. */
+    public int getQueued() {
+        return mQueued + mPending.size();
+    }
+
+    /** Results accepted by the server since this object was created. */
+    public long getUploaded() {
+        return mUploaded;
+    }
+
+    /** Results lost to full queues, I/O errors or rejected batches. */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /** The most recent failure, or null. */
+    public String getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Writes pending results to disk and stops the sync thread. Uploads
+     * waiting on a delay, or in flight, are abandoned and resent next time.
+     */
+    public void close() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                drain();
+                try {
+                    if (mQueue != null) mQueue.close();
+                } catch (IOException e) {
+                    mLastError = "close failed: " + e;
+                }
+                mQueue = null;
+            }
+        });
+        mExecutor.shutdown();
+        HttpURLConnection conn = mConnection;
+        if (conn != null) conn.disconnect();
+        try {
+            mExecutor.awaitTermination(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Moves results from memory to the disk queue. */
+    private void drain() {
+        if (mQueue == null) return;
+        ScoreQueue.Result r;
+        int appended = 0;
+        try {
+            while ((r = mPending.poll()) != null) {
+                if (mQueue.append(r)) {
+                    appended++;
+                } else {
+                    mDropped.incrementAndGet();
+                }
+            }
+            if (appended > 0) mQueue.sync();
+        } catch (IOException e) {
+            mLastError = "cannot queue results: " + e;
+            mDropped.incrementAndGet();
+        }
+        mQueued = mQueue.size();
+    }
+
+    private void scheduleUpload(long delayMs) {
+        if (mUploadScheduled || mQueue == null || mQueue.size() == 0
+                || mExecutor.isShutdown()) return;
+        mUploadScheduled = true;
+        mExecutor.schedule(mUpload, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void upload() {
+        URL endpoint = mEndpoint;
+        if (endpoint == null || mQueue == null || mQueue.size() == 0) return;
+        ScoreQueue.Batch batch;
+        byte[] body;
+        try {
+            batch = mQueue.peek(MAX_BATCH);
+            body = encode(mQueue.getClientId(), batch.firstSeq, batch.results);
+        } catch (IOException e) {
+            mLastError = "cannot read queue: " + e;
+            return;
+        }
+
+        int status;
+        try {
+            status = post(endpoint, body);
+        } catch (IOException e) {
+            status = -1;
+            mLastError = "upload failed: " + e;
+        }
+
+        if (status >= 200 && status < 300) {
+            mFailures = 0;
+            mUploaded += batch.results.size();
+            removeBatch(batch);
+            scheduleUpload(0);
+        } else if (status >= 400 && status < 500 && status != 408 && status != 429) {
+            mLastError = "server rejected batch " + batch.firstSeq + ": HTTP " + status;
+            mDropped.addAndGet(batch.results.size());
+            removeBatch(batch);
+            scheduleUpload(0);
+        } else {
+            if (status > 0) mLastError = "server error: HTTP " + status;
+            mFailures++;
+            long delay = mBackoffMs << Math.min(mFailures - 1, 20);
+            if (delay <= 0 || delay > mMaxBackoffMs) delay = mMaxBackoffMs;
+            // full jitter on the upper half keeps clients from retrying in step
+            delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+            scheduleUpload(delay);
+        }
+    }
+
+    private void removeBatch(ScoreQueue.Batch batch) {
+        try {
+            mQueue.remove(batch);
+        } catch (IOException e) {
+            mLastError = "cannot trim queue: " + e;
+        }
+        mQueued = mQueue.size();
+    }
+
+    /**
+     * @return the HTTP status
+     */
+    private int post(URL endpoint, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
+        // close() disconnects it to cut the upload short
+        mConnection = conn;
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setFixedLengthStreamingMode(body.length);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", CONTENT_TYPE);
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int status = conn.getResponseCode();
+            // read the reply to the end so the connection can be reused
+            InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+                try {
+                    byte[] buf = new byte[512];
+                    while (in.read(buf) >= 0) {
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } finally {
+            mConnection = null;
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * A decoded upload.
+     */
+    static final class Upload {
+        public long clientId;
+        public long firstSeq;
+
+        /** Results in queue order; results[i] has sequence firstSeq + i. */
+        public ScoreQueue.Result[] results;
+    }
+
+    /**
+     * Encodes consecutive queue results as a gzipped upload: magic,
+     * version, client id, first sequence number, result count, then the
+     * results grouped by account, each with its offset from the first.
+     */
+    static byte[] encode(long clientId, long firstSeq, List<ScoreQueue.Result> results)
+            throws IOException {
+        LinkedHashMap<String, ArrayList<Integer>> byKey =
+                new LinkedHashMap<String, ArrayList<Integer>>();
+        for (int i = 0; i < results.size(); i++) {
+            String key = results.get(i).key;
+            ArrayList<Integer> list = byKey.get(key);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                byKey.put(key, list);
+            }
+            list.add(i);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + results.size() * 8);
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(BATCH_MAGIC);
+        out.writeInt(BATCH_VERSION);
+        out.writeLong(clientId);
+        out.writeLong(firstSeq);
+        out.writeInt(results.size());
+        out.writeInt(byKey.size());
+        for (Map.Entry<String, ArrayList<Integer>> e : byKey.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().size());
+            for (int i : e.getValue()) {
+                out.writeInt(i);
+                results.get(i).writeFlight(out);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a gzipped upload made by encode().
+     */
+    static Upload decode(InputStream gzipped) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(gzipped));
+        if (in.readInt() != BATCH_MAGIC || in.readInt() != BATCH_VERSION)
+            throw new IOException("not a score batch");
+        Upload upload = new Upload();
+        upload.clientId = in.readLong();
+        upload.firstSeq = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > MAX_BATCH) throw new IOException("bad batch size " + count);
+        upload.results = new ScoreQueue.Result[count];
+        for (int accounts = in.readInt(); accounts > 0; accounts--) {
+            String key = in.readUTF();
+            for (int n = in.readInt(); n > 0; n--) {
+                int i = in.readInt();
+                if (i < 0 || i >= count || upload.results[i] != null)
+                    throw new IOException("bad result offset " + i);
+                upload.results[i] = ScoreQueue.Result.readFlight(key, in);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (upload.results[i] == null) throw new IOException("missing result " + i);
+        }
+        return upload;
+    }
+}
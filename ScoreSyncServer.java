@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Stand-in score server for ScoreSync on a desktop JVM. Speaks just enough
+ * HTTP/1.1 to take POSTed batches, keeps what it receives in memory and
+ * drops duplicates by sequence number. It can be told to fail a share of
+ * requests, either with a 503 or, worse, by taking the batch and closing
+ * the connection without a reply.
+ *
+ * Usage: ScoreSyncServer [options]
+ * <ul>
+ * <li>--port P: port to listen on, default 8080
+ * <li>--fail-rate F: share of requests answered with 503
+ * <li>--lose-rate F: share of requests accepted without a reply
+ * <li>--selftest N: start on a free port and push N results through a real
+ * ScoreSync, restarting the client halfway; exit 1 unless every result
+ * arrives exactly once. Fail and lose rates default to 0.2 and 0.1 here
+ * </ul>
+ */
+public class ScoreSyncServer {
+    private static final int MAX_BODY = 1024 * 1024;
+
+    private final ServerSocket mSocket;
+    private final Random mRandom = new Random(1);
+    private double mFailRate;
+    private double mLoseRate;
+
+    /** Results received per client, in sequence order. */
+    private final HashMap<Long, ArrayList<ScoreQueue.Result>> mResults =
+            new HashMap<Long, ArrayList<ScoreQueue.Result>>();
+
+    private long mRequests;
+    private long mDuplicates;
+
+    public ScoreSyncServer(int port) throws IOException {
+        mSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + mSocket.getLocalPort() + "/scores");
+    }
+
+    public void setFailures(double failRate, double loseRate) {
+        mFailRate = failRate;
+        mLoseRate = loseRate;
+    }
+
+    /**
+     * Serves requests on a daemon thread until close().
+     */
+    public void start() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (!mSocket.isClosed()) {
+                    try {
+                        Socket s = mSocket.accept();
+                        try {
+                            serve(s);
+                        } finally {
+                            s.close();
+                        }
+                    } catch (IOException e) {
+                        if (!mSocket.isClosed()) System.err.println("request failed: " + e);
+                    }
+                }
+            }
+        }, "ScoreSyncServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    public synchronized ArrayList<ScoreQueue.Result> getResults(long clientId) {
+        ArrayList<ScoreQueue.Result> list = mResults.get(clientId);
+        return list == null ? new ArrayList<ScoreQueue.Result>()
+                : new ArrayList<ScoreQueue.Result>(list);
+    }
+
+    public synchronized int getResultCount() {
+        int n = 0;
+        for (ArrayList<ScoreQueue.Result> list : mResults.values())
+            n += list.size();
+        return n;
+    }
+
+    public synchronized long getRequests() {
+        return mRequests;
+    }
+
+    public synchronized long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Handles the requests on one connection until the client closes it.
+     */
+    private void serve(Socket s) throws IOException {
+        s.setSoTimeout(10000);
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        OutputStream out = s.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.length() == 0) return;
+            long length = -1;
+            boolean gzip = false;
+            boolean close = false;
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("content-length")) length = Long.parseLong(value);
+                else if (name.equals("content-encoding")) gzip = value.equalsIgnoreCase("gzip");
+                else if (name.equals("connection")) close = value.equalsIgnoreCase("close");
+            }
+
+            if (!requestLine.startsWith("POST ")) {
+                reply(out, 405, "Method Not Allowed");
+                return;
+            }
+            if (length < 0 || length > MAX_BODY) {
+                reply(out, 411, "Length Required");
+                return;
+            }
+            byte[] body = new byte[(int) length];
+            new DataInputStream(in).readFully(body);
+
+            int status = handle(body, gzip);
+            if (status < 0) return; // lose the reply
+            reply(out, status, status == 204 ? "No Content" : "Error");
+            if (close) return;
+        }
+    }
+
+    /**
+     * @return the HTTP status to reply with, or -1 to reply nothing
+     */
+    private synchronized int handle(byte[] body, boolean gzip) {
+        mRequests++;
+        double dice = mRandom.nextDouble();
+        if (dice < mFailRate) return 503;
+        if (!gzip) return 415;
+        ScoreSync.Upload upload;
+        try {
+            upload = ScoreSync.decode(new ByteArrayInputStream(body));
+        } catch (IOException e) {
+            return 400;
+        }
+
+        ArrayList<ScoreQueue.Result> list = mResults.get(upload.clientId);
+        if (list == null) {
+            list = new ArrayList<ScoreQueue.Result>();
+            mResults.put(upload.clientId, list);
+        }
+        // results from firstSeq on; anything below what we have is a resend
+        long have = list.size();
+        if (upload.firstSeq > have) return 409;
+        for (int i = 0; i < upload.results.length; i++) {
+            if (upload.firstSeq + i < have) {
+                mDuplicates++;
+            } else {
+                list.add(upload.results[i]);
+            }
+        }
+        return dice < mFailRate + mLoseRate ? -1 : 204;
+    }
+
+    private static void reply(OutputStream out, int status, String reason) throws IOException {
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: 0\r\n\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') line.write(c);
+        }
+        if (c < 0 && line.size() == 0) return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    private static boolean selfTest(int count, double failRate, double loseRate)
+            throws IOException, InterruptedException {
+        ScoreSyncServer server = new ScoreSyncServer(0);
+        server.setFailures(failRate, loseRate);
+        server.start();
+
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "scoresync" + System.nanoTime());
+        String[] accounts = { "com.google/ann", "com.google/bob", "com.example/cy",
+                "com.example/dee", "com.example/eve" };
+        Random random = new Random(7);
+        ScoreQueue.Result[] sent = new ScoreQueue.Result[count];
+        long t0 = System.nanoTime();
+
+        ScoreSync sync = null;
+        long rejected = 0;
+        long dropped = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || i == count / 2) {
+                // the second half runs as a fresh process would, on the same queue
+                if (sync != null) {
+                    dropped += sync.getDropped();
+                    sync.close();
+                }
+                sync = new ScoreSync(dir, server.getUrl());
+                sync.setTiming(20, 10, 200);
+            }
+            String key = accounts[random.nextInt(accounts.length)];
+            int outcome = random.nextInt(LanderPhysics.OUTCOME_TOO_FAST + 1);
+            int score = random.nextInt(1001);
+            float fuel = random.nextFloat();
+            while (!sync.submit(key, LanderPhysics.DIFFICULTY_MEDIUM, outcome, score, fuel)) {
+                // the stand-in game outran the disk; try again like a slower one would
+                rejected++;
+                Thread.sleep(1);
+            }
+            sent[i] = new ScoreQueue.Result(key, LanderPhysics.DIFFICULTY_MEDIUM, outcome,
+                    score, fuel, 0);
+            if (i % 100 == 0) Thread.sleep(1);
+        }
+
+        long deadline = System.currentTimeMillis() + 60000;
+        while (sync.getQueued() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        long t1 = System.nanoTime();
+        String error = sync.getLastError();
+        dropped += sync.getDropped() - rejected;
+        sync.close();
+        server.close();
+
+        ArrayList<ScoreQueue.Result> got = server.mResults.size() == 1
+                ? server.mResults.values().iterator().next()
+                : new ArrayList<ScoreQueue.Result>();
+        boolean ok = dropped == 0 && got.size() == count;
+        for (int i = 0; ok && i < count; i++) {
+            ScoreQueue.Result a = sent[i];
+            ScoreQueue.Result b = got.get(i);
+            ok = a.key.equals(b.key) && a.outcome == b.outcome && a.score == b.score
+                    && a.fuel == b.fuel;
+            if (!ok) System.out.println("result " + i + " differs");
+        }
+        System.out.printf("%d results in %.0fms: %d received, %d requests, "
+                + "%d duplicates dropped, %d lost by client%n",
+                count, (t1 - t0) / 1e6, got.size(), server.getRequests(),
+                server.getDuplicates(), dropped);
+        if (error != null) System.out.println("last client error: " + error);
+        System.out.println(ok ? "PASS" : "FAIL");
+
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        return ok;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        double failRate = -1;
+        double loseRate = -1;
+        int selfTest = 0;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (a.equals("--fail-rate") && i + 1 < args.length) {
+                failRate = Double.parseDouble(args[++i]);
+            } else if (a.equals("--lose-rate") && i + 1 < args.length) {
+                loseRate = Double.parseDouble(args[++i]);
+            } else if (a.equals("--selftest") && i + 1 < args.length) {
+                selfTest = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("usage: ScoreSyncServer [--port P] [--fail-rate F] "
+                        + "[--lose-rate F] [--selftest N]");
+                System.exit(2);
+            }
+        }
+        if (selfTest > 0) {
+            System.exit(selfTest(selfTest, failRate < 0 ? 0.2 : failRate,
+                    loseRate < 0 ? 0.1 : loseRate) ? 0 : 1);
+        }
+
+        ScoreSyncServer server = new ScoreSyncServer(port);
+        server.setFailures(Math.max(0, failRate), Math.max(0, loseRate));
+        System.out.println("listening on " + server.getUrl());
+        server.start();
+        long reported = 0;
+        while (true) {
+            Thread.sleep(1000);
+            int n = server.getResultCount();
+            if (n != reported) {
+                System.out.printf("%d results, %d requests, %d duplicates%n", n,
+                        server.getRequests(), server.getDuplicates());
+                reported = n;
+            }
+        }
+    }
+}
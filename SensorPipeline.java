@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Turns raw accelerometer samples into lander controls.
+ *
+ * Each sample is mapped onto a rotate axis and a thrust axis by a matrix
+ * picked from the display rotation, smoothed by a low-pass filter and then
+ * latched by a hysteresis stage. The result is held here until the game
+ * thread picks it up with pollControls(), so the sensor callback never has
+ * to wait on the surface lock and several samples arriving within one frame
+ * are delivered as one batch.
+ *
+ * Nothing in here depends on the Android framework, which keeps the control
+ * logic usable outside of the activity.
+ */
+class SensorPipeline {
+    /*
+     * Display rotations, same values as android.view.Surface.ROTATION_*
+     */
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    /*
+     * Default tuning, in m/s^2 unless noted
+     */
+    public static final float DEFAULT_FILTER_ALPHA = 0.5f; // 1 = unfiltered
+    public static final float DEFAULT_FULL_SCALE = 6f; // proportional max
+    public static final float DEFAULT_HYSTERESIS = 0.5f;
+    public static final float DEFAULT_ROTATE_THRESHOLD = 2f;
+    public static final float DEFAULT_THRUST_THRESHOLD = 0f;
+
+    /**
+     * Rows of {rotate from x, rotate from y, thrust from x, thrust from y},
+     * indexed by display rotation. Matches the per-rotation switch this
+     * replaces, including 180 sharing the mapping of 0.
+     */
+    private static final float[][] AXES = {
+            { 1, 0, 0, 1 }, // ROTATION_0
+            { 0, 1, 1, 0 }, // ROTATION_90
+            { 1, 0, 0, 1 }, // ROTATION_180
+            { 0, 1, -1, 0 }, // ROTATION_270
+    };
+
+    private final Object mLock = new Object();
+
+    /** Matrix row for the current display rotation. */
+    private float[] mAxes = AXES[ROTATION_0];
+
+    private float mFilterAlpha = DEFAULT_FILTER_ALPHA;
+    private float mFullScale = DEFAULT_FULL_SCALE;
+    private float mHysteresis = DEFAULT_HYSTERESIS;
+    private float mRotateThreshold = DEFAULT_ROTATE_THRESHOLD;
+    private float mThrustThreshold = DEFAULT_THRUST_THRESHOLD;
+
+    /** Scale rotation and thrust with tilt instead of switching them. */
+    private boolean mProportional;
+
+    /*
+     * Filter and latch state, written by the sensor thread
+     */
+    private boolean mPrimed;
+    private float mRotateAxis;
+    private float mThrustAxis;
+    private int mRotating;
+    private boolean mFiring;
+    private double mRotateAmount = 1.0;
+    private double mThrottle = 1.0;
+
+    /** Is there a sample the game thread has not picked up yet? */
+    private boolean mPending;
+
+    /** Arrival time of the oldest sample in the pending batch. */
+    private long mPendingSince;
+
+    private int mPendingSamples;
+
+    /*
+     * Controls as last delivered to the game thread
+     */
+    private int mOutRotating;
+    private boolean mOutFiring;
+    private double mOutRotateAmount = 1.0;
+    private double mOutThrottle = 1.0;
+
+    /*
+     * Sample-to-physics latency statistics
+     */
+    private long mBatches;
+    private long mSamples;
+    private long mLatencyTotal;
+    private long mLatencyMax;
+
+    /**
+     * Selects the axis mapping for the given display rotation. Cheap to
+     * call, but only needs to happen when the rotation actually changes.
+     *
+     * @param rotation one of the ROTATION_* constants
+     */
+    public void setDisplayRotation(int rotation) {
+        synchronized (mLock) {
+            mAxes = AXES[rotation & 3];
+            mPrimed = false;
+        }
+    }
+
+    /**
+     * Sets the low-pass filter weight given to each new sample.
+     *
+     * @param alpha 0 < alpha <= 1, where 1 disables filtering
+     */
+    public void setFilterAlpha(float alpha) {
+        if (!(alpha > 0 && alpha <= 1))
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        synchronized (mLock) {
+            mFilterAlpha = alpha;
+        }
+    }
+
+    /**
+     * Sets the thresholds at which rotation and thrust switch on, and how
+     * far the filtered value has to fall back before they switch off again.
+     */
+    public void setThresholds(float rotate, float thrust, float hysteresis) {
+        if (hysteresis < 0)
+            throw new IllegalArgumentException("hysteresis must be >= 0");
+        synchronized (mLock) {
+            mRotateThreshold = rotate;
+            mThrustThreshold = thrust;
+            mHysteresis = hysteresis;
+        }
+    }
+
+    /**
+     * Turns proportional control on or off. When on, rotation rate and
+     * throttle grow with the tilt until fullScale is reached.
+     */
+    public void setProportional(boolean proportional, float fullScale) {
+        if (!(fullScale > 0))
+            throw new IllegalArgumentException("fullScale must be > 0");
+        synchronized (mLock) {
+            mProportional = proportional;
+            mFullScale = fullScale;
+        }
+    }
+
+    /**
+     * Feeds one accelerometer sample through the pipeline. Called from the
+     * sensor callback; never blocks on the game.
+     *
+     * @param x device x acceleration
+     * @param y device y acceleration
+     * @param now arrival time in System.nanoTime() units
+     */
+    public void onSample(float x, float y, long now) {
+        synchronized (mLock) {
+            float[] m = mAxes;
+            float rotate = m[0] * x + m[1] * y;
+            float thrust = m[2] * x + m[3] * y;
+
+            if (mPrimed) {
+                mRotateAxis += mFilterAlpha * (rotate - mRotateAxis);
+                mThrustAxis += mFilterAlpha * (thrust - mThrustAxis);
+            } else {
+                mRotateAxis = rotate;
+                mThrustAxis = thrust;
+                mPrimed = true;
+            }
+
+            // rotation latches at the threshold, releases below it
+            float release = mRotateThreshold - mHysteresis;
+            if (mRotating == 0) {
+                if (mRotateAxis < -mRotateThreshold)
+                    mRotating = -1;
+                else if (mRotateAxis > mRotateThreshold)
+                    mRotating = 1;
+            } else if (mRotating * mRotateAxis < release) {
+                mRotating = 0;
+                if (mRotateAxis < -mRotateThreshold)
+                    mRotating = -1;
+                else if (mRotateAxis > mRotateThreshold)
+                    mRotating = 1;
+            }
+
+            if (mFiring) {
+                if (mThrustAxis < mThrustThreshold - mHysteresis)
+                    mFiring = false;
+            } else if (mThrustAxis > mThrustThreshold) {
+                mFiring = true;
+            }
+
+            if (mProportional) {
+                mRotateAmount = clamp(Math.abs(mRotateAxis) / mFullScale);
+                mThrottle = clamp(mThrustAxis / mFullScale);
+            } else {
+                mRotateAmount = 1.0;
+                mThrottle = 1.0;
+            }
+
+            if (!mPending) {
+                mPending = true;
+                mPendingSince = now;
+            }
+            mPendingSamples++;
+        }
+    }
+
+    /**
+     * Picks up the controls produced since the last call. Called once per
+     * frame by the game thread; the get* accessors then return the batch.
+     *
+     * @param now current time in System.nanoTime() units
+     * @return true if new controls arrived
+     */
+    public boolean pollControls(long now) {
+        synchronized (mLock) {
+            if (!mPending) return false;
+
+            mOutRotating = mRotating;
+            mOutFiring = mFiring;
+            mOutRotateAmount = mRotateAmount;
+            mOutThrottle = mThrottle;
+
+            long latency = now - mPendingSince;
+            mLatencyTotal += latency;
+            if (latency > mLatencyMax) mLatencyMax = latency;
+            mBatches++;
+            mSamples += mPendingSamples;
+
+            mPending = false;
+            mPendingSamples = 0;
+            return true;
+        }
+    }
+
+    /** Currently rotating, -1 left, 0 none, 1 right. */
+    public int getRotating() {
+        return mOutRotating;
+    }
+
+    /** Fraction of the full slew rate, 0..1. */
+    public double getRotateAmount() {
+        return mOutRotateAmount;
+    }
+
+    /** Is the engine burning? */
+    public boolean isFiring() {
+        return mOutFiring;
+    }
+
+    /** Fraction of full thrust, 0..1. */
+    public double getThrottle() {
+        return mOutThrottle;
+    }
+
+    /** Mean time from a sample arriving to the game thread picking it up. */
+    public long getMeanLatencyNanos() {
+        synchronized (mLock) {
+            return mBatches == 0 ? 0 : mLatencyTotal / mBatches;
+        }
+    }
+
+    /** Worst time from a sample arriving to the game thread picking it up. */
+    public long getMaxLatencyNanos() {
+        synchronized (mLock) {
+            return mLatencyMax;
+        }
+    }
+
+    /** Average number of samples delivered per poll. */
+    public double getMeanBatchSize() {
+        synchronized (mLock) {
+            return mBatches == 0 ? 0 : (double) mSamples / mBatches;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mBatches = 0;
+            mSamples = 0;
+            mLatencyTotal = 0;
+            mLatencyMax = 0;
+        }
+    }
+
+    private static double clamp(double v) {
+        return v < 0 ? 0 : (v > 1 ? 1 : v);
+    }
+}
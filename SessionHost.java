@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hosts thousands of independent headless lander games in one process,
+ * for bot tournaments and server-side validation. Runs on a desktop JVM.
+ *
+ * On a phone every game gets its own LunarThread. Here a game is only a
+ * Session: a LanderState, an autopilot and the time its next tick is due.
+ * A fixed number of worker threads, which caps the CPU the host can use,
+ * take whichever session is due next from a shared DelayQueue, advance it
+ * by one fixed physics step and put it back. Sessions cost no thread and
+ * no stack of their own, so their number is bounded only by memory.
+ *
+ * Deadlines: a tick that starts more than --max-lag ticks late is not
+ * caught up; the session skips to the present instead, so an overloaded
+ * host slows its games down rather than falling further and further
+ * behind. A session whose tick runs over --budget-us three times in a row
+ * is evicted.
+ *
+ * Usage: SessionHost [options]
+ * <ul>
+ * <li>--sessions N: games to run, default 2000
+ * <li>--threads T: worker threads, default one per core
+ * <li>--tick-hz H: physics steps per second per game, default 30
+ * <li>--seconds S: how long to run, default 20
+ * <li>--max-lag L: ticks a session may fall behind, default 3
+ * <li>--budget-us B: CPU allowed per tick, default 2000
+ * <li>--difficulty easy|medium|hard, --seed N
+ * <li>--max-jitter-ms J: fail (exit 1) if the 99th percentile tick
+ * lateness exceeds J
+ * </ul>
+ * Every few seconds it prints ticks per second, tick lateness and worker
+ * utilisation, and at the end sessions per core.
+ */
+public class SessionHost {
+    private static final long REPORT_INTERVAL_MS = 2000;
+    private static final int EVICT_AFTER_OVERRUNS = 3;
+
+    /** Lateness histogram: 100us buckets up to 100ms, then one overflow. */
+    private static final int JITTER_BUCKET_NANOS = 100000;
+    private static final int JITTER_BUCKETS = 1001;
+
+    private final int mThreads;
+    private final long mPeriodNanos;
+    private final int mMaxLag;
+    private final long mBudgetNanos;
+    private final int mDifficulty;
+    private final long mSeed;
+
+    private final DelayQueue<Session> mQueue = new DelayQueue<Session>();
+    private final Worker[] mWorkers;
+    private volatile boolean mRunning = true;
+
+    /**
+     * One game: the lander, the autopilot flying it and its schedule.
+     * Only ever touched by the worker that took it from the queue.
+     */
+    private final class Session implements Delayed {
+        final int id;
+        final LanderState lander = new LanderState();
+        final Random random;
+        long due;
+        int overruns;
+        long flights;
+        long wins;
+
+        Session(int id, long due) {
+            this.id = id;
+            this.due = due;
+            random = new Random(mSeed + id);
+            lander.landerWidth = Headless.LANDER_WIDTH;
+            lander.landerHeight = Headless.LANDER_HEIGHT;
+            LanderPhysics.start(lander, mDifficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                    random);
+        }
+
+        /**
+         * Advances the game by one physics step, starting a new flight
+         * once the last one is over.
+         */
+        void tick(double elapsed) {
+            LanderState s = lander;
+            // steer upright, fall fast, brake near the ground
+            s.rotating = s.heading > 2 && s.heading < 180 ? -1
+                    : (s.heading < 358 && s.heading >= 180 ? 1 : 0);
+            double limit = s.y < 80 ? s.goalSpeed * 0.7 : (s.y < 250 ? 45 : 100);
+            s.engineFiring = s.fuel > 0 && s.dy < -limit + random.nextInt(8);
+            int outcome = LanderPhysics.step(s, elapsed);
+            if (outcome != LanderPhysics.OUTCOME_FLYING) {
+                flights++;
+                if (LanderPhysics.isWin(outcome)) wins++;
+                LanderPhysics.start(s, mDifficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                        random);
+            }
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            long d = due - ((Session) other).due;
+            return d < 0 ? -1 : (d > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * A worker thread and its statistics. Counters are written only by
+     * the worker and read by the reporter.
+     */
+    private final class Worker extends Thread {
+        final AtomicLongArray jitter = new AtomicLongArray(JITTER_BUCKETS);
+        volatile long ticks;
+        volatile long skipped;
+        volatile long evicted;
+        volatile long flights;
+        volatile long wins;
+
+        Worker(int n) {
+            super("SessionHost-" + n);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            double elapsed = mPeriodNanos / 1e9;
+            long maxLagNanos = mMaxLag * mPeriodNanos;
+            while (mRunning) {
+                Session s;
+                try {
+                    s = mQueue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (s == null) continue;
+
+                long start = System.nanoTime();
+                long late = start - s.due;
+                jitter.incrementAndGet((int) Math.min(JITTER_BUCKETS - 1,
+                        Math.max(0, late) / JITTER_BUCKET_NANOS));
+                if (late > maxLagNanos) {
+                    // give up on the missed ticks rather than run them back to back
+                    long missed = late / mPeriodNanos;
+                    s.due += missed * mPeriodNanos;
+                    skipped += missed;
+                }
+
+                long flightsBefore = s.flights;
+                long winsBefore = s.wins;
+                s.tick(elapsed);
+                ticks++;
+                flights += s.flights - flightsBefore;
+                wins += s.wins - winsBefore;
+
+                if (System.nanoTime() - start > mBudgetNanos) {
+                    if (++s.overruns >= EVICT_AFTER_OVERRUNS) {
+                        evicted++;
+                        continue;
+                    }
+                } else {
+                    s.overruns = 0;
+                }
+                s.due += mPeriodNanos;
+                mQueue.put(s);
+            }
+        }
+    }
+
+    public SessionHost(int threads, int tickHz, int maxLag, long budgetNanos,
+            int difficulty, long seed) {
+        mThreads = threads;
+        mPeriodNanos = 1000000000L / tickHz;
+        mMaxLag = maxLag;
+        mBudgetNanos = budgetNanos;
+        mDifficulty = difficulty;
+        mSeed = seed;
+        mWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+            mWorkers[i] = new Worker(i);
+    }
+
+    /**
+     * Adds sessions, spreading their first ticks evenly over one period
+     * so they don't all fall due at once.
+     */
+    public void addSessions(int count) {
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            mQueue.put(new Session(i, now + i * mPeriodNanos / count));
+    }
+
+    /**
+     * Runs the sessions for the given time, reporting as it goes.
+     *
+     * @return the 99th percentile tick lateness over the whole run, in ms
+     */
+    public double run(double seconds) throws InterruptedException {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = mx.isThreadCpuTimeSupported();
+        if (cpuTime) mx.setThreadCpuTimeEnabled(true);
+
+        for (Worker w : mWorkers)
+            w.start();
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long[] total = new long[JITTER_BUCKETS];
+        long lastTicks = 0;
+        long lastCpu = 0;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(REPORT_INTERVAL_MS,
+                    Math.max(1, (end - System.nanoTime()) / 1000000)));
+            long now = System.nanoTime();
+            long[] interval = new long[JITTER_BUCKETS];
+            long ticks = 0;
+            long cpu = 0;
+            for (Worker w : mWorkers) {
+                for (int b = 0; b < JITTER_BUCKETS; b++) {
+                    long n = w.jitter.getAndSet(b, 0);
+                    interval[b] += n;
+                    total[b] += n;
+                }
+                ticks += w.ticks;
+                if (cpuTime) cpu += Math.max(0, mx.getThreadCpuTime(w.getId()));
+            }
+            double wall = (now - lastReport) / 1e9;
+            System.out.printf("%6.1fs: %,.0f ticks/s, %d sessions, late p50 %.2fms p99 %.2fms"
+                    + " max %.2fms, workers %.0f%% busy%n",
+                    (now - start) / 1e9, (ticks - lastTicks) / wall, sessions(),
+                    percentile(interval, 0.50), percentile(interval, 0.99),
+                    percentile(interval, 1.0),
+                    cpuTime ? 100.0 * (cpu - lastCpu) / ((now - lastReport) * (double) mThreads)
+                            : Double.NaN);
+            lastTicks = ticks;
+            lastCpu = cpu;
+            lastReport = now;
+        }
+        mRunning = false;
+        for (Worker w : mWorkers)
+            w.join();
+
+        long ticks = 0, skipped = 0, evicted = 0, flights = 0, wins = 0;
+        for (Worker w : mWorkers) {
+            ticks += w.ticks;
+            skipped += w.skipped;
+            evicted += w.evicted;
+            flights += w.flights;
+            wins += w.wins;
+        }
+        double wall = (System.nanoTime() - start) / 1e9;
+        double busy = cpuTime && lastReport > start
+                ? (double) lastCpu / ((lastReport - start) * (double) mThreads) : 1;
+        int sessions = sessions();
+        System.out.printf("%d sessions on %d threads: %,.0f ticks/s, %,.1f us/tick, "
+                + "%d ticks skipped, %d sessions evicted%n",
+                sessions, mThreads, ticks / wall, lastCpu / 1000.0 / Math.max(1, ticks),
+                skipped, evicted);
+        System.out.printf("%.0f sessions per core at %.0f%% busy (~%.0f at 100%%), "
+                + "%d flights, %d landed%n",
+                (double) sessions / mThreads, busy * 100,
+                (double) sessions / mThreads / Math.max(busy, 1e-3), flights, wins);
+        double p99 = percentile(total, 0.99);
+        System.out.printf("tick lateness p50 %.2fms p99 %.2fms p99.9 %.2fms max %.2fms%n",
+                percentile(total, 0.50), p99, percentile(total, 0.999), percentile(total, 1.0));
+        return p99;
+    }
+
+    private int sessions() {
+        // sessions being ticked right now are briefly out of the queue
+        return mQueue.size();
+    }
+
+    /**
+     * @return the upper edge of the bucket holding the given fraction of
+     *         the histogram, in ms
+     */
+    private static double percentile(long[] hist, double fraction) {
+        long count = 0;
+        for (long n : hist)
+            count += n;
+        if (count == 0) return 0;
+        long want = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int b = 0; b < hist.length; b++) {
+            seen += hist[b];
+            if (seen >= want && hist[b] > 0)
+                return (b + 1) * (JITTER_BUCKET_NANOS / 1e6);
+        }
+        return hist.length * (JITTER_BUCKET_NANOS / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 2000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int tickHz = 30;
+        double seconds = 20;
+        int maxLag = 3;
+        long budgetUs = 2000;
+        int difficulty = LanderPhysics.DIFFICULTY_MEDIUM;
+        long seed = 1;
+        double maxJitterMs = Double.MAX_VALUE;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--sessions".equals(opt)) sessions = Integer.parseInt(val);
+            else if ("--threads".equals(opt)) threads = Integer.parseInt(val);
+            else if ("--tick-hz".equals(opt)) tickHz = Integer.parseInt(val);
+            else if ("--seconds".equals(opt)) seconds = Double.parseDouble(val);
+            else if ("--max-lag".equals(opt)) maxLag = Integer.parseInt(val);
+            else if ("--budget-us".equals(opt)) budgetUs = Long.parseLong(val);
+            else if ("--difficulty".equals(opt)) difficulty = Headless.parseDifficulty(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-jitter-ms".equals(opt)) maxJitterMs = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || threads < 1 || tickHz < 1 || sessions < 1) {
+            System.err.println("usage: SessionHost [--sessions N] [--threads T] [--tick-hz H] "
+                    + "[--seconds S] [--max-lag L] [--budget-us B] [--difficulty D] [--seed N] "
+                    + "[--max-jitter-ms J]");
+            System.exit(2);
+        }
+
+        SessionHost host = new SessionHost(threads, tickHz, maxLag, budgetUs * 1000,
+                difficulty, seed);
+        host.addSessions(sessions);
+        double p99 = host.run(seconds);
+        System.exit(p99 <= maxJitterMs ? 0 : 1);
+    }
+}
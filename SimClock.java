@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Where the game loop gets the time from. Implementations are in
+ * SimClocks: the real clock, one advanced by hand, and one running faster
+ * or slower than another.
+ */
+interface SimClock {
+    /**
+     * @return the time in nanoseconds from some fixed but arbitrary
+     *         origin, as System.nanoTime(); never goes backwards
+     */
+    long nanoTime();
+}
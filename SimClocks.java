@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * The clocks a game loop can run on.
+ */
+final class SimClocks {
+    /**
+     * Real time, from System.nanoTime(): monotonic, so setting the
+     * system clock doesn't jump the game.
+     */
+    public static final SimClock REAL = new SimClock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * A clock that only moves when told to, so tests, bots and replays can
+     * run the game loop as fast as the machine allows. Thread safe.
+     */
+    static final class Virtual implements SimClock {
+        private long mNow;
+        private long mTick;
+
+        /**
+         * @param start the time to start at
+         */
+        public Virtual(long start) {
+            mNow = start;
+        }
+
+        public synchronized long nanoTime() {
+            long now = mNow;
+            mNow += mTick;
+            return now;
+        }
+
+        /** Moves the clock on. */
+        public synchronized void advance(long nanos) {
+            if (nanos < 0) throw new IllegalArgumentException("Clocks don't go back");
+            mNow += nanos;
+        }
+
+        /**
+         * Has every read move the clock on by the given time afterwards,
+         * so a loop that reads it once per frame runs frames of that
+         * length back to back; 0 to stop.
+         */
+        public synchronized void setTick(long nanos) {
+            if (nanos < 0) throw new IllegalArgumentException("Clocks don't go back");
+            mTick = nanos;
+        }
+    }
+
+    /**
+     * Another clock, sped up or slowed down: slow motion below 1, fast
+     * forward above. Changing the scale doesn't jump the time. Thread
+     * safe.
+     */
+    static final class Scaled implements SimClock {
+        private final SimClock mSource;
+        private double mScale;
+
+        /* this clock read mBase when the source read mSourceBase */
+        private long mSourceBase;
+        private long mBase;
+
+        public Scaled(SimClock source, double scale) {
+            if (scale < 0) throw new IllegalArgumentException("Clocks don't go back");
+            mSource = source;
+            mScale = scale;
+            mSourceBase = source.nanoTime();
+            mBase = mSourceBase;
+        }
+
+        public synchronized long nanoTime() {
+            return mBase + (long) ((mSource.nanoTime() - mSourceBase) * mScale);
+        }
+
+        public synchronized double getScale() {
+            return mScale;
+        }
+
+        /**
+         * @param scale this clock's seconds per second of the source; 0
+         *        stops it
+         */
+        public synchronized void setScale(double scale) {
+            if (scale < 0) throw new IllegalArgumentException("Clocks don't go back");
+            long source = mSource.nanoTime();
+            mBase += (long) ((source - mSourceBase) * mScale);
+            mSourceBase = source;
+            mScale = scale;
+        }
+    }
+
+    private SimClocks() {
+    }
+}
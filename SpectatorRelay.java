@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streams a GameServer's game to any number of spectators over TCP.
+ *
+ * The server calls publish() once a tick. That encodes the tick once, as a
+ * delta against the previous tick and as a full keyframe, into two
+ * read-only buffers, and hands them to the relay thread. The relay thread
+ * gives every spectator a duplicate() of the same buffer, sharing its
+ * bytes, and writes it without blocking. Encoding cost does not grow with
+ * the audience; only the writes do.
+ *
+ * On the stream every packet is a NetProtocol packet preceded by its
+ * length as an unsigned short. The first is a WELCOME with player id 255;
+ * then comes one SNAPSHOT per tick, each relative to the one before it. A
+ * spectator that can't keep up does not get an ever longer queue: once
+ * more than MAX_QUEUED_BYTES are waiting for it, everything not yet
+ * started is dropped and it gets the next tick as a keyframe instead; its
+ * WELCOME is never dropped. Ticks published while the relay thread was
+ * busy are all queued at its next wakeup and go out to each spectator in
+ * one gathering write. Only when it falls more than MAX_BEHIND ticks
+ * behind does it skip to the newest tick and send that to everyone as a
+ * keyframe.
+ */
+final class SpectatorRelay {
+    /** Unsent bytes allowed per spectator before it is skipped ahead. */
+    private static final int MAX_QUEUED_BYTES = 8 * 1024;
+
+    /** Ticks the relay thread may fall behind before it skips ahead. */
+    private static final int MAX_BEHIND = 8;
+
+    /** Most queued packets handed to one gathering write. */
+    private static final int MAX_GATHER = 16;
+
+    /** Kernel send buffer per spectator. */
+    private static final int SEND_BUFFER = 4 * 1024;
+
+    /** Player id spectators are welcomed with. */
+    public static final int SPECTATOR_ID = 255;
+
+    /**
+     * One tick, encoded. Both buffers are read-only and shared by every
+     * spectator.
+     */
+    private static final class Frame {
+        final ByteBuffer delta;
+        final ByteBuffer key;
+
+        Frame(ByteBuffer delta, ByteBuffer key) {
+            this.delta = delta;
+            this.key = key;
+        }
+    }
+
+    /**
+     * One connected spectator. Relay thread only.
+     */
+    private static final class Spectator {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        int queuedBytes;
+        boolean needKeyframe = true;
+        /** The WELCOME, until it is written. */
+        ByteBuffer welcome;
+
+        Spectator(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final ByteBuffer mWelcome;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Frame> mFrames = new ConcurrentLinkedQueue<Frame>();
+    private final ArrayList<Spectator> mSpectators = new ArrayList<Spectator>();
+    private final ByteBuffer mDiscard = ByteBuffer.allocate(256);
+    private final ArrayList<Frame> mPending = new ArrayList<Frame>();
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+    private volatile boolean mRunning = true;
+
+    /*
+     * Statistics, written by the relay thread
+     */
+    private volatile int mCount;
+    private volatile long mBytesOut;
+    private volatile long mFramesOut;
+    private volatile long mCatchUps;
+    private volatile long mRelayCatchUps;
+    private volatile long mRelayNanos;
+
+    /**
+     * Starts listening for spectators.
+     *
+     * @param port TCP port, 0 for any
+     * @param welcome the WELCOME packet sent to every spectator first
+     */
+    public SpectatorRelay(int port, ByteBuffer welcome) throws IOException {
+        mWelcome = frame(welcome);
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(port), 1024);
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    loop();
+                } catch (IOException e) {
+                    System.err.println("spectator relay stopped: " + e);
+                }
+            }
+        }, "SpectatorRelay");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Encodes a tick and queues it for every spectator. Called by the game
+     * loop; does no I/O.
+     *
+     * @param w the new tick
+     * @param previous the tick before it, or null if there is none
+     */
+    public void publish(NetProtocol.World w, NetProtocol.World previous) {
+        ByteBuffer scratch = ByteBuffer.allocate(NetProtocol.MAX_PACKET);
+        NetProtocol.putSnapshot(scratch, w, null);
+        scratch.flip();
+        ByteBuffer key = frame(scratch);
+        ByteBuffer delta = key;
+        if (previous != null && previous.tick == w.tick - 1) {
+            scratch.clear();
+            NetProtocol.putSnapshot(scratch, w, previous);
+            scratch.flip();
+            delta = frame(scratch);
+        }
+        mFrames.add(new Frame(delta, key));
+        mSelector.wakeup();
+    }
+
+    public int getSpectators() {
+        return mCount;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    /** Frames handed to spectators, counting one per spectator. */
+    public long getFramesOut() {
+        return mFramesOut;
+    }
+
+    /** Times a spectator fell behind and was sent a keyframe. */
+    public long getCatchUps() {
+        return mCatchUps;
+    }
+
+    /** Times the relay itself fell behind and skipped ticks. */
+    public long getRelayCatchUps() {
+        return mRelayCatchUps;
+    }
+
+    /** Time the relay thread spent fanning frames out, in ns. */
+    public long getRelayNanos() {
+        return mRelayNanos;
+    }
+
+    public void close() {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a read-only copy of the packet with its length in front
+     */
+    private static ByteBuffer frame(ByteBuffer packet) {
+        ByteBuffer out = ByteBuffer.allocate(2 + packet.remaining());
+        out.putShort((short) packet.remaining());
+        out.put(packet.duplicate());
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    private void loop() throws IOException {
+        while (mRunning) {
+            mSelector.select();
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey k = keys.next();
+                keys.remove();
+                if (!k.isValid()) continue;
+                if (k.isAcceptable()) {
+                    accept();
+                } else {
+                    Spectator s = (Spectator) k.attachment();
+                    if (k.isReadable()) drain(s);
+                    if (k.isValid() && k.isWritable()) flush(s);
+                }
+            }
+
+            long start = System.nanoTime();
+            Frame f;
+            while ((f = mFrames.poll()) != null)
+                mPending.add(f);
+            boolean behind = mPending.size() > MAX_BEHIND;
+            if (behind) {
+                // fell far behind the game: skip everyone to the newest tick
+                mRelayCatchUps++;
+                f = mPending.get(mPending.size() - 1);
+                mPending.clear();
+                mPending.add(f);
+            }
+            if (!mPending.isEmpty()) {
+                for (int i = 0; i < mSpectators.size(); i++) {
+                    Spectator s = mSpectators.get(i);
+                    if (!s.key.isValid()) continue;
+                    if (behind) s.needKeyframe = true;
+                    for (int j = 0; j < mPending.size(); j++)
+                        send(s, mPending.get(j));
+                    flush(s);
+                }
+                mPending.clear();
+            }
+            for (int i = mSpectators.size() - 1; i >= 0; i--) {
+                if (!mSpectators.get(i).key.isValid()) {
+                    // swap-remove, order doesn't matter
+                    Spectator last = mSpectators.remove(mSpectators.size() - 1);
+                    if (i < mSpectators.size()) mSpectators.set(i, last);
+                }
+            }
+            mCount = mSpectators.size();
+            mRelayNanos += System.nanoTime() - start;
+        }
+        for (Spectator s : mSpectators)
+            s.channel.close();
+        mServer.close();
+        mSelector.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = mServer.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            // bound what the kernel holds per spectator too, or slow ones
+            // hide in socket buffers instead of being caught up
+            ch.socket().setSendBufferSize(SEND_BUFFER);
+            SelectionKey k = ch.register(mSelector, SelectionKey.OP_READ);
+            Spectator s = new Spectator(ch, k);
+            k.attach(s);
+            mSpectators.add(s);
+            s.welcome = mWelcome.duplicate();
+            enqueue(s, s.welcome);
+            flush(s);
+        }
+    }
+
+    /**
+     * Spectators have nothing to say; reads only notice them leaving.
+     */
+    private void drain(Spectator s) {
+        try {
+            mDiscard.clear();
+            if (s.channel.read(mDiscard) < 0) drop(s);
+        } catch (IOException e) {
+            drop(s);
+        }
+    }
+
+    /**
+     * Queues a tick for a spectator; flush() writes it.
+     */
+    private void send(Spectator s, Frame f) {
+        if (s.queuedBytes > MAX_QUEUED_BYTES) {
+            // keep a packet that is half written, the stream must stay
+            // whole, and the WELCOME, or the spectator can't follow it
+            ByteBuffer head = s.queue.peekFirst();
+            boolean keep = head != null && (head.position() > 0 || head == s.welcome);
+            s.queue.clear();
+            s.queuedBytes = 0;
+            if (keep) enqueue(s, head);
+            s.needKeyframe = true;
+            mCatchUps++;
+        }
+        enqueue(s, (s.needKeyframe ? f.key : f.delta).duplicate());
+        s.needKeyframe = false;
+        mFramesOut++;
+    }
+
+    private void enqueue(Spectator s, ByteBuffer b) {
+        s.queue.addLast(b);
+        s.queuedBytes += b.remaining();
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, several packets a
+     * write, and asks to be told when it takes more.
+     */
+    private void flush(Spectator s) {
+        try {
+            while (!s.queue.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer b : s.queue) {
+                    mGather[count++] = b;
+                    if (count == MAX_GATHER) break;
+                }
+                long n = s.channel.write(mGather, 0, count);
+                s.queuedBytes -= n;
+                mBytesOut += n;
+                while (!s.queue.isEmpty() && !s.queue.peekFirst().hasRemaining())
+                    s.queue.pollFirst();
+                // the socket is full
+                if (mGather[count - 1].hasRemaining()) break;
+            }
+            if (s.welcome != null && !s.welcome.hasRemaining()) s.welcome = null;
+            int ops = s.queue.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (s.key.interestOps() != ops) s.key.interestOps(ops);
+        } catch (IOException e) {
+            drop(s);
+        }
+    }
+
+    private void drop(Spectator s) {
+        s.key.cancel();
+        try {
+            s.channel.close();
+        } catch (IOException e) {
+            // gone either way
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A difficulty tuning sweep: what SweepCoordinator hands out and
+ * SweepWorker flies.
+ *
+ * A sweep is a grid of cells. Each cell is a difficulty, a multiplier on
+ * that difficulty's landing tolerances, multipliers on the physics
+ * constants that enter through the lander's state, and a pilot. Those
+ * constants are PHYS_FUEL_INIT, as the fuel at the start; PHYS_SPEED_INIT,
+ * as the initial motion; and PHYS_FIRE_ACCEL_SEC, as the throttle, which
+ * scales the fuel burn with it. The rest are compiled into the physics.
+ * Every cell flies the same seeds, so cells differ only by their settings.
+ *
+ * Results come back as a Partial per range of seeds: outcome counts, the
+ * score total, and histograms of touchdown speed and fuel left, which add
+ * up from any number of ranges in any order.
+ */
+final class Sweep {
+    /*
+     * Pilots
+     */
+    /** Holds a descent speed picked at random per flight, steers to the pad. */
+    public static final int PILOT_DESCENT = 0;
+    /** Falls freely, then brakes as late as full thrust allows; steers too. */
+    public static final int PILOT_BURN = 1;
+    /** Random controls, changed now and then. */
+    public static final int PILOT_RANDOM = 2;
+    private static final String[] PILOTS = { "descent", "burn", "random" };
+
+    /*
+     * Protocol between coordinator and workers: a worker sends READY, then
+     * RESULT for every TASK it gets, until it gets DONE
+     */
+    public static final int MSG_READY = 1;
+    public static final int MSG_TASK = 2;
+    public static final int MSG_RESULT = 3;
+    public static final int MSG_DONE = 4;
+
+    public static final int OUTCOMES = LanderPhysics.OUTCOME_TOO_FAST + 1;
+
+    /** Touchdown speed histogram: 1 px/s bins. */
+    public static final int SPEED_BINS = 400;
+
+    /** Fuel left histogram: one unit bins. */
+    public static final int FUEL_BINS = LanderPhysics.PHYS_FUEL_MAX * 2;
+
+    private static final double FRAME = 1 / 60.0;
+
+    /** Longest flight, in frames, before it is given up on. */
+    private static final int MAX_FRAMES = 60 * 60;
+
+    /*
+     * Pilot tuning
+     */
+    private static final double RANDOM_CHANGE_CHANCE = 0.08;
+
+    /**
+     * One point of the grid.
+     */
+    static final class Cell {
+        public int difficulty;
+        /** Scales the pad width, the safe speed and the safe angle. */
+        public double tolerance = 1;
+        /** Scales the fuel at the start. */
+        public double fuel = 1;
+        /** Scales the initial motion. */
+        public double speed = 1;
+        /** Scales the thrust, and the fuel burn with it. */
+        public double thrust = 1;
+        public int pilot;
+
+        void write(DataOutput out) throws IOException {
+            out.writeByte(difficulty);
+            out.writeDouble(tolerance);
+            out.writeDouble(fuel);
+            out.writeDouble(speed);
+            out.writeDouble(thrust);
+            out.writeByte(pilot);
+        }
+
+        static Cell read(DataInput in) throws IOException {
+            Cell c = new Cell();
+            c.difficulty = in.readByte();
+            c.tolerance = in.readDouble();
+            c.fuel = in.readDouble();
+            c.speed = in.readDouble();
+            c.thrust = in.readDouble();
+            c.pilot = in.readByte();
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s tol %.2f fuel %.2f speed %.2f thrust %.2f %-7s",
+                    Headless.difficultyName(difficulty), tolerance, fuel, speed, thrust,
+                    PILOTS[pilot]);
+        }
+    }
+
+    /**
+     * What some flights of one cell came to.
+     */
+    static final class Partial {
+        public long games;
+        public long scoreTotal;
+        public final long[] outcomes = new long[OUTCOMES];
+        public final long[] speed = new long[SPEED_BINS];
+        public final long[] fuel = new long[FUEL_BINS];
+
+        public void add(Partial other) {
+            games += other.games;
+            scoreTotal += other.scoreTotal;
+            add(outcomes, other.outcomes);
+            add(speed, other.speed);
+            add(fuel, other.fuel);
+        }
+
+        /** Hash of every count, to compare runs with. */
+        public long checksum(long h) {
+            h = mix(h, games);
+            h = mix(h, scoreTotal);
+            for (long n : outcomes)
+                h = mix(h, n);
+            for (long n : speed)
+                h = mix(h, n);
+            for (long n : fuel)
+                h = mix(h, n);
+            return h;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeLong(games);
+            out.writeLong(scoreTotal);
+            write(out, outcomes);
+            write(out, speed);
+            write(out, fuel);
+        }
+
+        static Partial read(DataInput in) throws IOException {
+            Partial p = new Partial();
+            p.games = in.readLong();
+            p.scoreTotal = in.readLong();
+            read(in, p.outcomes);
+            read(in, p.speed);
+            read(in, p.fuel);
+            return p;
+        }
+
+        private static void add(long[] into, long[] from) {
+            for (int i = 0; i < into.length; i++)
+                into[i] += from[i];
+        }
+
+        /** Histograms are mostly empty: runs of zeros go as a count. */
+        private static void write(DataOutput out, long[] counts) throws IOException {
+            int i = 0;
+            while (i < counts.length) {
+                int zeros = 0;
+                while (i + zeros < counts.length && counts[i + zeros] == 0)
+                    zeros++;
+                if (zeros > 0) {
+                    out.writeLong(-zeros);
+                    i += zeros;
+                } else {
+                    out.writeLong(counts[i++]);
+                }
+            }
+        }
+
+        private static void read(DataInput in, long[] counts) throws IOException {
+            int i = 0;
+            while (i < counts.length) {
+                long v = in.readLong();
+                if (v >= 0) {
+                    counts[i++] = v;
+                } else {
+                    if (i - v > counts.length) throw new IOException("corrupt histogram");
+                    i -= v;
+                }
+            }
+        }
+
+        private static long mix(long h, long v) {
+            return (h ^ v) * 0x100000001b3L;
+        }
+    }
+
+    private Sweep() {
+    }
+
+    /**
+     * Flies seeds from (inclusive) to to (exclusive) of a cell.
+     */
+    public static Partial fly(Cell cell, long from, long to) {
+        Partial p = new Partial();
+        LanderState s = new LanderState();
+        s.landerWidth = Headless.LANDER_WIDTH;
+        s.landerHeight = Headless.LANDER_HEIGHT;
+        Random random = new Random();
+        for (long seed = from; seed < to; seed++) {
+            random.setSeed(seed);
+            LanderPhysics.start(s, cell.difficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                    random);
+            // widen the pad about its center
+            double center = s.goalX + s.goalWidth / 2.0;
+            s.goalWidth = (int) Math.round(s.goalWidth * cell.tolerance);
+            s.goalX = (int) Math.round(center - s.goalWidth / 2.0);
+            s.goalSpeed = (int) Math.round(s.goalSpeed * cell.tolerance);
+            s.goalAngle = (int) Math.round(s.goalAngle * cell.tolerance);
+            s.fuel *= cell.fuel;
+            s.dx *= cell.speed;
+            s.dy *= cell.speed;
+            s.throttle = cell.thrust;
+            s.rotateAmount = 1;
+            s.rotating = 0;
+            double descent = -s.goalSpeed * (0.3 + 0.6 * random.nextDouble());
+            int c = 0;
+
+            int outcome = LanderPhysics.OUTCOME_FLYING;
+            for (int frame = 0; frame < MAX_FRAMES && outcome == LanderPhysics.OUTCOME_FLYING;
+                    frame++) {
+                switch (cell.pilot) {
+                    case PILOT_DESCENT:
+                        Headless.steer(s);
+                        s.engineFiring = s.dy < descent;
+                        break;
+                    case PILOT_BURN:
+                        Headless.steer(s);
+                        s.engineFiring = s.dy < descent && Headless.mustBrake(s, descent, FRAME);
+                        break;
+                    default:
+                        if (random.nextDouble() < RANDOM_CHANGE_CHANCE) c = random.nextInt(6);
+                        s.engineFiring = c % 2 == 1;
+                        s.rotating = c / 2 - 1;
+                        break;
+                }
+                s.engineFiring &= s.fuel > 0;
+                outcome = LanderPhysics.step(s, FRAME);
+            }
+            if (outcome == LanderPhysics.OUTCOME_FLYING) continue;
+            p.games++;
+            p.outcomes[outcome]++;
+            p.scoreTotal += LanderPhysics.landingScore(s, outcome);
+            p.speed[(int) Math.min(SPEED_BINS - 1, Math.hypot(s.dx, s.dy))]++;
+            p.fuel[(int) Math.max(0, Math.min(FUEL_BINS - 1, s.fuel))]++;
+        }
+        return p;
+    }
+
+    public static int parsePilot(String name) {
+        for (int i = 0; i < PILOTS.length; i++)
+            if (PILOTS[i].equals(name)) return i;
+        throw new IllegalArgumentException("Unknown pilot " + name);
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a difficulty tuning Sweep across several worker processes on this
+ * machine and prints what every cell of it came to. Runs on a desktop JVM.
+ *
+ * Every cell's seeds are cut into ranges, and the ranges dealt out in
+ * equal runs, one run per worker, in its own queue. A worker is sent the
+ * front of its own queue each time it reports back; once that is empty it
+ * steals from the back of the longest other queue, so workers that run
+ * fast, or get the cheap cells, take over from slow ones. A range a
+ * worker held when its connection dropped goes back on its queue for the
+ * others to steal. The workers' partial histograms are merged per cell.
+ *
+ * Workers are SweepWorker processes, started here with this JVM and class
+ * path, talking to the coordinator over loopback sockets.
+ *
+ * Usage: SweepCoordinator [options]
+ * <ul>
+ * <li>--difficulties LIST: default easy,medium,hard
+ * <li>--tolerance LIST: multipliers on the pad width, safe speed and safe
+ * angle, default 1
+ * <li>--fuel LIST, --speed LIST, --thrust LIST: multipliers on
+ * PHYS_FUEL_INIT, PHYS_SPEED_INIT and PHYS_FIRE_ACCEL_SEC, default 1
+ * <li>--pilots LIST: from descent, burn, random; default all three
+ * <li>--seeds N: games per cell, default 20000
+ * <li>--range N: seeds per range handed out, default 500
+ * <li>--seed N: first seed, default 1
+ * <li>--workers LIST: worker processes, default the number of
+ * processors. Several counts run the sweep once with each and compare
+ * their speed and results
+ * <li>--spawn yes|no: no prints the port and waits for workers started by
+ * hand, default yes
+ * <li>--port P: default any free port
+ * <li>--expect HASH: fail (exit 1) if the results' checksum isn't this
+ * </ul>
+ * LISTs are comma separated. Also fails if runs with different worker
+ * counts disagree.
+ */
+public class SweepCoordinator {
+    /** Milliseconds to wait for every worker to connect. */
+    private static final int ACCEPT_TIMEOUT_MS = 30000;
+
+    /**
+     * A range of seeds of one cell.
+     */
+    private static final class Unit {
+        final int id;
+        final int cell;
+        final long from;
+        final long to;
+
+        Unit(int id, int cell, long from, long to) {
+            this.id = id;
+            this.cell = cell;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /*
+     * The sweep, shared by the connection threads under mLock
+     */
+    private final Object mLock = new Object();
+    private final Sweep.Cell[] mCells;
+    private final Sweep.Partial[] mTotals;
+    private final Unit[] mUnits;
+    private final List<ArrayDeque<Unit>> mQueues;
+    private final int[] mRun;
+    private final int[] mStolen;
+    private int mDone;
+
+    private SweepCoordinator(List<Sweep.Cell> cells, long firstSeed, long seeds, long range,
+            int workers) {
+        mCells = cells.toArray(new Sweep.Cell[cells.size()]);
+        mTotals = new Sweep.Partial[mCells.length];
+        List<Unit> units = new ArrayList<Unit>();
+        for (int c = 0; c < mCells.length; c++) {
+            mTotals[c] = new Sweep.Partial();
+            for (long from = firstSeed; from < firstSeed + seeds; from += range) {
+                units.add(new Unit(units.size(), c, from,
+                        Math.min(firstSeed + seeds, from + range)));
+            }
+        }
+        mUnits = units.toArray(new Unit[units.size()]);
+        mQueues = new ArrayList<ArrayDeque<Unit>>(workers);
+        mRun = new int[workers];
+        mStolen = new int[workers];
+        for (int w = 0; w < workers; w++) {
+            mQueues.add(new ArrayDeque<Unit>());
+            int from = (int) ((long) mUnits.length * w / workers);
+            int to = (int) ((long) mUnits.length * (w + 1) / workers);
+            for (int i = from; i < to; i++)
+                mQueues.get(w).add(mUnits[i]);
+        }
+    }
+
+    /**
+     * The next range for a worker: its own, or stolen. Waits while ranges
+     * out with other workers might yet come back.
+     *
+     * @return null when the sweep is done
+     */
+    private Unit next(int worker) throws InterruptedException {
+        synchronized (mLock) {
+            while (true) {
+                Unit u = mQueues.get(worker).pollFirst();
+                if (u != null) return u;
+                int victim = -1;
+                for (int w = 0; w < mQueues.size(); w++) {
+                    if (!mQueues.get(w).isEmpty()
+                            && (victim < 0 || mQueues.get(w).size() > mQueues.get(victim).size()))
+                        victim = w;
+                }
+                if (victim >= 0) {
+                    mStolen[worker]++;
+                    return mQueues.get(victim).pollLast();
+                }
+                if (mDone == mUnits.length) return null;
+                mLock.wait();
+            }
+        }
+    }
+
+    private void finish(int worker, Unit u, Sweep.Partial result) {
+        synchronized (mLock) {
+            mTotals[u.cell].add(result);
+            mRun[worker]++;
+            mDone++;
+            if (mDone == mUnits.length) mLock.notifyAll();
+        }
+    }
+
+    private void giveBack(int worker, Unit u) {
+        synchronized (mLock) {
+            mQueues.get(worker).addFirst(u);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Feeds one worker until the sweep is done or the connection drops.
+     */
+    private void serve(int worker, Socket socket) {
+        Unit out = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            if (in.readByte() != Sweep.MSG_READY) throw new IOException("no greeting");
+            while (true) {
+                Unit u = next(worker);
+                if (u == null) {
+                    os.writeByte(Sweep.MSG_DONE);
+                    os.flush();
+                    return;
+                }
+                out = u;
+                os.writeByte(Sweep.MSG_TASK);
+                os.writeInt(u.id);
+                mCells[u.cell].write(os);
+                os.writeLong(u.from);
+                os.writeLong(u.to);
+                os.flush();
+                if (in.readByte() != Sweep.MSG_RESULT || in.readInt() != u.id)
+                    throw new IOException("unexpected reply");
+                Sweep.Partial result = Sweep.Partial.read(in);
+                out = null;
+                finish(worker, u, result);
+            }
+        } catch (IOException e) {
+            System.err.println("worker " + worker + " lost: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (out != null) giveBack(worker, out);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to say to it
+            }
+        }
+    }
+
+    /**
+     * Runs the sweep on the given number of workers.
+     *
+     * @return false if it couldn't be finished
+     */
+    private boolean run(int workers, boolean spawn, int port) throws IOException,
+            InterruptedException {
+        ServerSocket server = new ServerSocket(port, workers, InetAddress.getByName("127.0.0.1"));
+        List<Process> processes = new ArrayList<Process>();
+        try {
+            server.setSoTimeout(ACCEPT_TIMEOUT_MS);
+            if (spawn) {
+                String java = System.getProperty("java.home") + File.separator + "bin"
+                        + File.separator + "java";
+                for (int w = 0; w < workers; w++) {
+                    ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+                            System.getProperty("java.class.path"), SweepWorker.class.getName(),
+                            "--port", Integer.toString(server.getLocalPort()));
+                    pb.redirectErrorStream(true);
+                    pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                    processes.add(pb.start());
+                }
+            } else {
+                System.out.println("waiting for " + workers + " workers on port "
+                        + server.getLocalPort());
+            }
+
+            Thread[] threads = new Thread[workers];
+            Socket[] sockets = new Socket[workers];
+            for (int w = 0; w < workers; w++) {
+                final int worker = w;
+                try {
+                    sockets[w] = server.accept();
+                } catch (SocketTimeoutException e) {
+                    System.err.println("only " + w + " of " + workers + " workers connected");
+                    // stop the ones that did; their threads then give up
+                    for (Process p : processes)
+                        p.destroy();
+                    for (int i = 0; i < w; i++) {
+                        try {
+                            sockets[i].close();
+                        } catch (IOException e2) {
+                            // gone either way
+                        }
+                    }
+                    for (int i = 0; i < w; i++)
+                        threads[i].join();
+                    return false;
+                }
+                final Socket socket = sockets[w];
+                threads[w] = new Thread(new Runnable() {
+                    public void run() {
+                        serve(worker, socket);
+                    }
+                }, "Sweep-" + w);
+                threads[w].start();
+            }
+            for (Thread t : threads)
+                t.join();
+        } finally {
+            server.close();
+            for (Process p : processes) {
+                p.getOutputStream().close();
+                p.waitFor();
+            }
+        }
+        synchronized (mLock) {
+            return mDone == mUnits.length;
+        }
+    }
+
+    private long checksum() {
+        long h = 0xcbf29ce484222325L;
+        for (Sweep.Partial p : mTotals)
+            h = p.checksum(h);
+        return h;
+    }
+
+    /**
+     * The value below which the given fraction of a histogram of unit
+     * bins lies, to within a bin.
+     */
+    private static double percentile(long[] histogram, double fraction) {
+        long total = 0;
+        for (long n : histogram)
+            total += n;
+        long want = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= want && seen > 0) return i + 1;
+        }
+        return Double.NaN;
+    }
+
+    private void print() {
+        System.out.printf("%-66s %7s %6s %6s %6s %6s %6s %6s %5s %5s %5s%n", "cell", "games",
+                "land%", "hyper%", "pad%", "angle%", "fast%", "score", "p50v", "p90v", "p50f");
+        for (int c = 0; c < mCells.length; c++) {
+            Sweep.Partial p = mTotals[c];
+            double g = Math.max(1, p.games) / 100.0;
+            System.out.printf("%-66s %7d %6.1f %6.1f %6.1f %6.1f %6.1f %6.0f %5.0f %5.0f %5.0f%n",
+                    mCells[c],
+                    p.games, p.outcomes[LanderPhysics.OUTCOME_LANDED] / g,
+                    p.outcomes[LanderPhysics.OUTCOME_HYPERSPACE] / g,
+                    p.outcomes[LanderPhysics.OUTCOME_OFF_PAD] / g,
+                    p.outcomes[LanderPhysics.OUTCOME_BAD_ANGLE] / g,
+                    p.outcomes[LanderPhysics.OUTCOME_TOO_FAST] / g,
+                    (double) p.scoreTotal / Math.max(1, p.games),
+                    percentile(p.speed, 0.5), percentile(p.speed, 0.9),
+                    percentile(p.fuel, 0.5));
+        }
+    }
+
+    private static double[] parseDoubles(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Double.parseDouble(parts[i].trim());
+        return values;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String[] difficulties = { "easy", "medium", "hard" };
+        double[] tolerance = { 1 };
+        double[] fuel = { 1 };
+        double[] speed = { 1 };
+        double[] thrust = { 1 };
+        String[] pilots = { "descent", "burn", "random" };
+        long seeds = 20000;
+        long range = 500;
+        long firstSeed = 1;
+        String[] workerCounts = { Integer.toString(Runtime.getRuntime().availableProcessors()) };
+        boolean spawn = true;
+        int port = 0;
+        String expect = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--difficulties".equals(opt)) difficulties = val.split(",");
+            else if ("--tolerance".equals(opt)) tolerance = parseDoubles(val);
+            else if ("--fuel".equals(opt)) fuel = parseDoubles(val);
+            else if ("--speed".equals(opt)) speed = parseDoubles(val);
+            else if ("--thrust".equals(opt)) thrust = parseDoubles(val);
+            else if ("--pilots".equals(opt)) pilots = val.split(",");
+            else if ("--seeds".equals(opt)) seeds = Long.parseLong(val);
+            else if ("--range".equals(opt)) range = Long.parseLong(val);
+            else if ("--seed".equals(opt)) firstSeed = Long.parseLong(val);
+            else if ("--workers".equals(opt)) workerCounts = val.split(",");
+            else if ("--spawn".equals(opt)) spawn = !"no".equals(val);
+            else if ("--port".equals(opt)) port = Integer.parseInt(val);
+            else if ("--expect".equals(opt)) expect = val;
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        int[] counts = new int[workerCounts.length];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = Integer.parseInt(workerCounts[i].trim());
+        boolean usable = args.length % 2 == 0 && seeds > 0 && range > 0;
+        for (int n : counts)
+            usable &= n > 0;
+        if (!usable) {
+            System.err.println("usage: SweepCoordinator [--difficulties LIST] [--tolerance LIST] "
+                    + "[--fuel LIST] [--speed LIST] [--thrust LIST] [--pilots LIST] "
+                    + "[--seeds N] [--range N] [--seed N] [--workers LIST] [--spawn yes|no] "
+                    + "[--port P] [--expect HASH]");
+            System.exit(2);
+        }
+
+        List<Sweep.Cell> cells = new ArrayList<Sweep.Cell>();
+        for (String d : difficulties)
+            for (double t : tolerance)
+                for (double f : fuel)
+                    for (double s : speed)
+                        for (double th : thrust)
+                            for (String p : pilots) {
+                                Sweep.Cell c = new Sweep.Cell();
+                                c.difficulty = Headless.parseDifficulty(d.trim());
+                                c.tolerance = t;
+                                c.fuel = f;
+                                c.speed = s;
+                                c.thrust = th;
+                                c.pilot = Sweep.parsePilot(p.trim());
+                                cells.add(c);
+                            }
+
+        boolean ok = true;
+        String checksum = null;
+        double baseRate = 0;
+        SweepCoordinator last = null;
+        for (int workers : counts) {
+            SweepCoordinator sweep = new SweepCoordinator(cells, firstSeed, seeds, range,
+                    workers);
+            long start = System.nanoTime();
+            if (!sweep.run(workers, spawn, port)) {
+                System.out.println("sweep on " + workers + " workers didn't finish");
+                ok = false;
+                continue;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double rate = cells.size() * seeds / seconds;
+            if (baseRate == 0) baseRate = rate / workers;
+            String sum = Long.toHexString(sweep.checksum());
+            StringBuilder per = new StringBuilder();
+            for (int w = 0; w < workers; w++)
+                per.append(String.format(" %d/%d", sweep.mRun[w], sweep.mStolen[w]));
+            System.out.printf("%d workers: %.1f s, %.0f games/s, %.2fx one worker's rate; "
+                    + "ranges run/stolen:%s; checksum %s%n", workers, seconds, rate,
+                    rate / baseRate, per, sum);
+            if (checksum != null && !checksum.equals(sum)) ok = false;
+            checksum = sum;
+            last = sweep;
+        }
+        if (last != null) last.print();
+        if (expect != null) ok &= expect.equalsIgnoreCase(checksum);
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * One worker process of a sweep: connects to a SweepCoordinator, flies the
+ * seed ranges it is given and sends back what they came to, until it is
+ * told there is no more. SweepCoordinator starts these itself; start them
+ * by hand only with its --spawn no. Runs on a desktop JVM.
+ *
+ * Usage: SweepWorker --port P [--host H]
+ * <ul>
+ * <li>--port P: the coordinator's port
+ * <li>--host H: the coordinator's address, default 127.0.0.1
+ * </ul>
+ */
+public class SweepWorker {
+    public static void main(String[] args) throws IOException {
+        String host = "127.0.0.1";
+        int port = -1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--port".equals(opt)) port = Integer.parseInt(val);
+            else if ("--host".equals(opt)) host = val;
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || port <= 0) {
+            System.err.println("usage: SweepWorker --port P [--host H]");
+            System.exit(2);
+        }
+
+        Socket socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            out.writeByte(Sweep.MSG_READY);
+            out.flush();
+            while (true) {
+                int type = in.readByte();
+                if (type == Sweep.MSG_DONE) break;
+                if (type != Sweep.MSG_TASK) throw new IOException("unexpected message " + type);
+                int unit = in.readInt();
+                Sweep.Cell cell = Sweep.Cell.read(in);
+                long from = in.readLong();
+                long to = in.readLong();
+                Sweep.Partial result = Sweep.fly(cell, from, to);
+                out.writeByte(Sweep.MSG_RESULT);
+                out.writeInt(unit);
+                result.write(out);
+                out.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The file format of one recorded flight, see TelemetryRecorder.
+ *
+ * A flight is stored by column rather than by step: every step's value of
+ * one quantity, then every step's value of the next. Each column holds the
+ * differences between consecutive values as zigzag varints, which stay
+ * small because each quantity changes smoothly, and a reader that only
+ * wants some columns skips the others without decoding them.
+ *
+ * Layout, big endian:
+ * <pre>
+ * int magic, int version, long wall clock ms at the start, long seed,
+ * byte difficulty, byte outcome, int steps, byte columns,
+ * int byte length of each column,
+ * the columns
+ * </pre>
+ */
+final class TelemetryFile {
+    public static final int MAGIC = 0x4c4c5446; // "LLTF"
+    public static final int VERSION = 1;
+
+    /** File name suffix. */
+    public static final String SUFFIX = ".llt";
+
+    /** Units per px, px/s, degree and unit of fuel. */
+    public static final int UNITS = 256;
+
+    /*
+     * Columns
+     */
+    /** Length of the step, in microseconds; 0 for the first. */
+    public static final int MICROS = 0;
+    public static final int X = 1;
+    public static final int Y = 2;
+    public static final int DX = 3;
+    public static final int DY = 4;
+    public static final int HEADING = 5;
+    public static final int FUEL = 6;
+    /** See controls(). */
+    public static final int CONTROLS = 7;
+    public static final int COLUMNS = 8;
+
+    /*
+     * Controls column: bit 0 firing, bits 1-2 rotating + 1, then the
+     * throttle in percent
+     */
+    public static final int CONTROL_FIRING = 1;
+    private static final int CONTROL_ROTATING_SHIFT = 1;
+    private static final int CONTROL_THROTTLE_SHIFT = 3;
+
+    /** Longest zigzag varint of an int. */
+    public static final int MAX_VARINT = 5;
+
+    /**
+     * A flight as read back. Columns not asked for are null.
+     */
+    static final class Flight {
+        public long startTime;
+        public long seed;
+        public int difficulty;
+        /** One of the LanderPhysics.OUTCOME_* constants. */
+        public int outcome;
+        public int steps;
+        public final int[][] columns = new int[COLUMNS][];
+
+        /** Value of a column at the given step, in its natural units. */
+        public double value(int column, int step) {
+            return (double) columns[column][step] / UNITS;
+        }
+    }
+
+    private TelemetryFile() {
+    }
+
+    /**
+     * Packs a lander's controls into the controls column's form.
+     */
+    public static int controls(LanderState s) {
+        return (s.engineFiring ? CONTROL_FIRING : 0)
+                | (s.rotating + 1) << CONTROL_ROTATING_SHIFT
+                | (int) Math.round(s.throttle * 100) << CONTROL_THROTTLE_SHIFT;
+    }
+
+    public static boolean isFiring(int controls) {
+        return (controls & CONTROL_FIRING) != 0;
+    }
+
+    public static int rotating(int controls) {
+        return (controls >> CONTROL_ROTATING_SHIFT & 3) - 1;
+    }
+
+    public static double throttle(int controls) {
+        return (controls >> CONTROL_THROTTLE_SHIFT) / 100.0;
+    }
+
+    /**
+     * A value in the file's units.
+     */
+    public static int quantize(double v) {
+        return (int) Math.round(v * UNITS);
+    }
+
+    /**
+     * Writes a flight whose columns are already encoded.
+     *
+     * @param columns encoded columns, each columnLengths[i] bytes long
+     */
+    public static void write(DataOutputStream out, long startTime, long seed, int difficulty,
+            int outcome, int steps, byte[][] columns, int[] columnLengths) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(startTime);
+        out.writeLong(seed);
+        out.writeByte(difficulty);
+        out.writeByte(outcome);
+        out.writeInt(steps);
+        out.writeByte(COLUMNS);
+        for (int i = 0; i < COLUMNS; i++)
+            out.writeInt(columnLengths[i]);
+        for (int i = 0; i < COLUMNS; i++)
+            out.write(columns[i], 0, columnLengths[i]);
+    }
+
+    /**
+     * Reads a flight, decoding only the columns in the mask.
+     *
+     * @param columnMask bit (1 << column) set for every column wanted
+     * @param scratch reused for decoding, or null; see the return value
+     * @return the flight, in scratch if given
+     */
+    public static Flight read(File file, int columnMask, Flight scratch) throws IOException {
+        Flight f = scratch != null ? scratch : new Flight();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a telemetry file: " + file);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unknown telemetry version " + version + ": " + file);
+            f.startTime = in.readLong();
+            f.seed = in.readLong();
+            f.difficulty = in.readByte();
+            f.outcome = in.readByte();
+            f.steps = in.readInt();
+            int columns = in.readUnsignedByte();
+            if (f.steps < 0 || columns != COLUMNS)
+                throw new IOException("Corrupt telemetry file: " + file);
+            int[] lengths = new int[columns];
+            for (int i = 0; i < columns; i++)
+                lengths[i] = in.readInt();
+            byte[] bytes = null;
+            for (int i = 0; i < columns; i++) {
+                if ((columnMask & 1 << i) == 0) {
+                    int skip = lengths[i];
+                    while (skip > 0) {
+                        int n = in.skipBytes(skip);
+                        if (n <= 0) throw new IOException("Truncated telemetry file: " + file);
+                        skip -= n;
+                    }
+                    f.columns[i] = null;
+                    continue;
+                }
+                if (bytes == null || bytes.length < lengths[i]) bytes = new byte[lengths[i]];
+                in.readFully(bytes, 0, lengths[i]);
+                int[] column = f.columns[i];
+                if (column == null || column.length < f.steps) column = new int[f.steps];
+                if (decode(bytes, lengths[i], column, f.steps) != lengths[i])
+                    throw new IOException("Corrupt telemetry column " + i + ": " + file);
+                f.columns[i] = column;
+            }
+            return f;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends the zigzag varint of delta to buf at pos.
+     *
+     * @return the position after it; buf needs MAX_VARINT bytes free
+     */
+    public static int putDelta(byte[] buf, int pos, int delta) {
+        int v = (delta << 1) ^ (delta >> 31);
+        while ((v & ~0x7f) != 0) {
+            buf[pos++] = (byte) (v | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    /**
+     * Decodes steps deltas into running values.
+     *
+     * @return bytes consumed
+     */
+    private static int decode(byte[] buf, int length, int[] out, int steps) {
+        int pos = 0;
+        int value = 0;
+        for (int i = 0; i < steps; i++) {
+            int v = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (pos >= length || shift > 28) return -1;
+                b = buf[pos++];
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            value += (v >>> 1) ^ -(v & 1);
+            out[i] = value;
+        }
+        return pos;
+    }
+}
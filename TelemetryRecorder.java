@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Records every step of every flight to a TelemetryFile, one file per
+ * flight, keeping the newest maxFlights of them.
+ *
+ * The game thread only copies each step's state, quantized, into a block
+ * of a fixed pool and hands full blocks to a background thread through a
+ * bounded queue. That thread encodes the columns and writes the file when
+ * the flight ends. If the writer falls so far behind that the pool runs
+ * dry, the rest of the flight is dropped rather than waited for, and the
+ * flight is not written.
+ *
+ * begin(), add(), finish() and cancel() belong to the game thread.
+ */
+final class TelemetryRecorder {
+    private static final String TAG = "TelemetryRecorder";
+
+    /** Steps per block; 256 is about 4 s at 60 Hz. */
+    private static final int BLOCK_STEPS = 256;
+
+    /** Blocks in the pool. */
+    private static final int BLOCKS = 16;
+
+    /** Outcome of a flight given up on. */
+    private static final int CANCELLED = -1;
+
+    /** Longest close() waits for the writer, in milliseconds. */
+    private static final int CLOSE_WAIT_MS = 500;
+
+    /**
+     * Steps of part of a flight, column by column.
+     */
+    private static final class Block {
+        final int[] values = new int[TelemetryFile.COLUMNS * BLOCK_STEPS];
+        int steps;
+
+        /** First block of a flight: the header fields are set. */
+        boolean first;
+        long startTime;
+        long seed;
+        int difficulty;
+
+        /** Last block of a flight: outcome is set. */
+        boolean last;
+        int outcome;
+
+        void reset() {
+            steps = 0;
+            first = false;
+            last = false;
+        }
+    }
+
+    private final File mDir;
+    private final int mMaxFlights;
+    private final ArrayBlockingQueue<Block> mFree = new ArrayBlockingQueue<Block>(BLOCKS);
+    private final ArrayBlockingQueue<Block> mFull = new ArrayBlockingQueue<Block>(BLOCKS);
+    private final Thread mWriter;
+    private volatile boolean mClosed;
+
+    /*
+     * Game thread state
+     */
+    private Block mBlock;
+    private boolean mRecording;
+
+    /** Flights dropped because the pool ran dry. */
+    private volatile int mDropped;
+
+    /*
+     * Writer thread state: the flight being put together
+     */
+    private final byte[][] mColumns = new byte[TelemetryFile.COLUMNS][];
+    private final int[] mLengths = new int[TelemetryFile.COLUMNS];
+    private final int[] mPrevious = new int[TelemetryFile.COLUMNS];
+    private boolean mAssembling;
+    private long mStartTime;
+    private long mSeed;
+    private int mDifficulty;
+    private int mSteps;
+    private long mSerial;
+    private final LinkedList<File> mFiles = new LinkedList<File>();
+
+    /** Flights written. */
+    private volatile int mWritten;
+
+    /**
+     * @param maxFlights the oldest flight files beyond this many are
+     *        deleted
+     */
+    public TelemetryRecorder(File dir, int maxFlights) {
+        mDir = dir;
+        mMaxFlights = maxFlights;
+        for (int i = 0; i < BLOCKS; i++)
+            mFree.add(new Block());
+        for (int i = 0; i < TelemetryFile.COLUMNS; i++)
+            mColumns[i] = new byte[BLOCK_STEPS * TelemetryFile.MAX_VARINT];
+        mWriter = new Thread(new Runnable() {
+            public void run() {
+                runWriter();
+            }
+        }, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Starts recording a flight from the lander's state.
+     */
+    public void begin(long seed, int difficulty, LanderState s) {
+        if (mRecording) cancel();
+        mBlock = mFree.poll();
+        mRecording = mBlock != null;
+        if (!mRecording) {
+            mDropped++;
+            return;
+        }
+        mBlock.first = true;
+        mBlock.startTime = System.currentTimeMillis();
+        mBlock.seed = seed;
+        mBlock.difficulty = difficulty;
+        put(0, s);
+    }
+
+    /**
+     * Records the state after a step.
+     *
+     * @param elapsed length of the step, in seconds
+     */
+    public void add(double elapsed, LanderState s) {
+        if (!mRecording) return;
+        if (mBlock.steps == BLOCK_STEPS) {
+            mFull.offer(mBlock);
+            mBlock = mFree.poll();
+            if (mBlock == null) {
+                // the writer's half of the flight is thrown away when the
+                // next one begins
+                mRecording = false;
+                mDropped++;
+                return;
+            }
+        }
+        put(elapsed, s);
+    }
+
+    /**
+     * Ends the flight and has it written.
+     *
+     * @param outcome one of the LanderPhysics.OUTCOME_* constants
+     */
+    public void finish(int outcome) {
+        if (!mRecording) return;
+        mBlock.last = true;
+        mBlock.outcome = outcome;
+        mFull.offer(mBlock);
+        mBlock = null;
+        mRecording = false;
+    }
+
+    /**
+     * Gives up on the flight; nothing of it is written.
+     */
+    public void cancel() {
+        finish(CANCELLED);
+    }
+
+    public int getDropped() {
+        return mDropped;
+    }
+
+    public int getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * Writes the flights already finished and stops the writer. Called on
+     * the UI thread, so it waits only briefly; a writer still busy after
+     * that finishes on its own.
+     */
+    public void close() {
+        mClosed = true;
+        try {
+            mWriter.join(CLOSE_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(double elapsed, LanderState s) {
+        Block b = mBlock;
+        int i = b.steps++;
+        int[] v = b.values;
+        v[TelemetryFile.MICROS * BLOCK_STEPS + i] = (int) Math.round(elapsed * 1e6);
+        v[TelemetryFile.X * BLOCK_STEPS + i] = TelemetryFile.quantize(s.x);
+        v[TelemetryFile.Y * BLOCK_STEPS + i] = TelemetryFile.quantize(s.y);
+        v[TelemetryFile.DX * BLOCK_STEPS + i] = TelemetryFile.quantize(s.dx);
+        v[TelemetryFile.DY * BLOCK_STEPS + i] = TelemetryFile.quantize(s.dy);
+        v[TelemetryFile.HEADING * BLOCK_STEPS + i] = TelemetryFile.quantize(s.heading);
+        v[TelemetryFile.FUEL * BLOCK_STEPS + i] = TelemetryFile.quantize(s.fuel);
+        v[TelemetryFile.CONTROLS * BLOCK_STEPS + i] = TelemetryFile.controls(s);
+    }
+
+    private void runWriter() {
+        listFiles();
+        while (true) {
+            Block b;
+            try {
+                b = mFull.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (b == null) {
+                if (mClosed) return;
+                continue;
+            }
+            try {
+                take(b);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot save flight", e);
+            }
+            b.reset();
+            mFree.offer(b);
+        }
+    }
+
+    /**
+     * Adds a block to the flight being put together, and writes the
+     * flight if the block ends it.
+     */
+    private void take(Block b) throws IOException {
+        if (b.first) {
+            // a flight whose end never came was cut short by a dry pool
+            mAssembling = true;
+            mStartTime = b.startTime;
+            mSeed = b.seed;
+            mDifficulty = b.difficulty;
+            mSteps = 0;
+            Arrays.fill(mLengths, 0);
+            Arrays.fill(mPrevious, 0);
+        }
+        if (!mAssembling) return;
+        for (int c = 0; c < TelemetryFile.COLUMNS; c++) {
+            int need = mLengths[c] + b.steps * TelemetryFile.MAX_VARINT;
+            if (mColumns[c].length < need)
+                mColumns[c] = copyOf(mColumns[c], Math.max(need, mColumns[c].length * 2));
+            byte[] out = mColumns[c];
+            int pos = mLengths[c];
+            int previous = mPrevious[c];
+            int base = c * BLOCK_STEPS;
+            for (int i = 0; i < b.steps; i++) {
+                int v = b.values[base + i];
+                pos = TelemetryFile.putDelta(out, pos, v - previous);
+                previous = v;
+            }
+            mLengths[c] = pos;
+            mPrevious[c] = previous;
+        }
+        mSteps += b.steps;
+        if (!b.last) return;
+        mAssembling = false;
+        if (b.outcome == CANCELLED) return;
+        write(b.outcome);
+    }
+
+    private void write(int outcome) throws IOException {
+        mDir.mkdirs();
+        File file = new File(mDir, String.format("flight-%013d-%06d%s", mStartTime,
+                mSerial++ % 1000000, TelemetryFile.SUFFIX));
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            TelemetryFile.write(out, mStartTime, mSeed, mDifficulty, outcome, mSteps, mColumns,
+                    mLengths);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot write " + file);
+        }
+        mWritten++;
+        mFiles.add(file);
+        while (mFiles.size() > mMaxFlights)
+            mFiles.poll().delete();
+    }
+
+    private static byte[] copyOf(byte[] a, int n) {
+        byte[] b = new byte[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    /** Finds the flights already on disk, oldest first. */
+    private void listFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.getName().endsWith(TelemetryFile.SUFFIX)) mFiles.add(f);
+            else if (f.getName().endsWith(".tmp")) f.delete();
+        }
+    }
+}
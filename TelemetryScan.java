@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scans a directory of TelemetryFile flights, as pulled off a device, and
+ * prints how the flights ended: outcomes, fuel left at touchdown and the
+ * angle of approach, each as a distribution. Files are split among a pool
+ * of threads, each reading only the columns it needs. Runs on a desktop
+ * JVM.
+ *
+ * Can also fly random flights through a TelemetryRecorder first, to have
+ * something to scan, and time what recording costs the game thread.
+ *
+ * Usage: TelemetryScan --dir DIR [options]
+ * <ul>
+ * <li>--threads N: default the number of processors
+ * <li>--generate N: record N random flights into DIR first
+ * <li>--difficulty easy|medium|hard, --seed N: of the generated flights
+ * <li>--max-percent P: fail (exit 1) if recording a step takes more than
+ * P percent of a 60 Hz frame, default 1
+ * </ul>
+ */
+public class TelemetryScan {
+    /** Longest generated flight, in frames. */
+    private static final int MAX_FRAMES = 60 * 60;
+
+    /** Chance per frame that the generated pilot changes the controls. */
+    private static final double CHANGE_CHANCE = 0.08;
+
+    private static final double FRAME = 1 / 60.0;
+
+    /** Fuel histogram buckets, each a tenth of a full tank. */
+    private static final int FUEL_BUCKETS = 10;
+
+    /** Approach angle histogram buckets, each this many degrees. */
+    private static final int ANGLE_STEP = 10;
+    private static final int ANGLE_BUCKETS = 180 / ANGLE_STEP;
+
+    /** Columns a scan reads. */
+    private static final int COLUMNS = 1 << TelemetryFile.DX | 1 << TelemetryFile.DY
+            | 1 << TelemetryFile.FUEL;
+
+    /**
+     * What a thread found in its share of the files.
+     */
+    private static final class Stats {
+        int flights;
+        int bad;
+        long steps;
+        long bytes;
+        final int[] outcomes = new int[LanderPhysics.OUTCOME_TOO_FAST + 1];
+        final int[] fuel = new int[FUEL_BUCKETS];
+        final int[] angle = new int[ANGLE_BUCKETS];
+
+        void add(Stats other) {
+            flights += other.flights;
+            bad += other.bad;
+            steps += other.steps;
+            bytes += other.bytes;
+            for (int i = 0; i < outcomes.length; i++)
+                outcomes[i] += other.outcomes[i];
+            for (int i = 0; i < fuel.length; i++)
+                fuel[i] += other.fuel[i];
+            for (int i = 0; i < angle.length; i++)
+                angle[i] += other.angle[i];
+        }
+    }
+
+    private static Stats scan(List<File> files) {
+        Stats stats = new Stats();
+        TelemetryFile.Flight f = new TelemetryFile.Flight();
+        for (File file : files) {
+            try {
+                TelemetryFile.read(file, COLUMNS, f);
+            } catch (IOException e) {
+                stats.bad++;
+                continue;
+            }
+            if (f.steps == 0 || f.outcome < 0 || f.outcome >= stats.outcomes.length) {
+                stats.bad++;
+                continue;
+            }
+            stats.flights++;
+            stats.steps += f.steps;
+            stats.bytes += file.length();
+            stats.outcomes[f.outcome]++;
+            int last = f.steps - 1;
+            double fuel = f.value(TelemetryFile.FUEL, last) / LanderPhysics.PHYS_FUEL_MAX;
+            stats.fuel[(int) Math.max(0, Math.min(FUEL_BUCKETS - 1, fuel * FUEL_BUCKETS))]++;
+            // direction of travel: 0 straight down, 90 sideways, 180 up
+            double angle = Math.toDegrees(Math.atan2(Math.abs(f.value(TelemetryFile.DX, last)),
+                    -f.value(TelemetryFile.DY, last)));
+            stats.angle[Math.min(ANGLE_BUCKETS - 1, (int) (angle / ANGLE_STEP))]++;
+        }
+        return stats;
+    }
+
+    /**
+     * Flies random flights into a recorder writing to dir.
+     *
+     * @return nanoseconds the recorder took per step
+     */
+    private static double generate(File dir, int flights, int difficulty, long seed)
+            throws InterruptedException {
+        TelemetryRecorder recorder = new TelemetryRecorder(dir, Integer.MAX_VALUE);
+        Random random = new Random(seed);
+        LanderState s = new LanderState();
+        s.landerWidth = Headless.LANDER_WIDTH;
+        s.landerHeight = Headless.LANDER_HEIGHT;
+        long nanos = 0;
+        long steps = 0;
+        int finished = 0;
+        for (int flight = 0; flight < flights; flight++) {
+            LanderPhysics.start(s, difficulty, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                    random);
+            long t0 = System.nanoTime();
+            recorder.begin(seed + flight, difficulty, s);
+            nanos += System.nanoTime() - t0;
+            int c = 0;
+            int outcome = LanderPhysics.OUTCOME_FLYING;
+            int frames = 0;
+            while (outcome == LanderPhysics.OUTCOME_FLYING && frames < MAX_FRAMES) {
+                if (random.nextDouble() < CHANGE_CHANCE) c = random.nextInt(6);
+                s.engineFiring = c % 2 == 1 && s.fuel > 0;
+                s.rotating = c / 2 - 1;
+                outcome = LanderPhysics.step(s, FRAME);
+                t0 = System.nanoTime();
+                recorder.add(FRAME, s);
+                nanos += System.nanoTime() - t0;
+                frames++;
+            }
+            t0 = System.nanoTime();
+            if (outcome == LanderPhysics.OUTCOME_FLYING) recorder.cancel();
+            else recorder.finish(outcome);
+            nanos += System.nanoTime() - t0;
+            steps += frames;
+            // a real flight takes seconds, time enough for the writer to
+            // keep up; don't outrun it here
+            if (outcome != LanderPhysics.OUTCOME_FLYING) finished++;
+            while (recorder.getWritten() + recorder.getDropped() < finished)
+                Thread.sleep(1);
+        }
+        recorder.close();
+        System.out.printf("recorded %d flights, %d written, %d dropped%n", flights,
+                recorder.getWritten(), recorder.getDropped());
+        return (double) nanos / steps;
+    }
+
+    private static void printHistogram(String title, int[] counts, int total, double from,
+            double step, String unit) {
+        System.out.println(title);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            System.out.printf("  %6.1f-%-6.1f%s %6d %5.1f%% ", from + i * step,
+                    from + (i + 1) * step, unit, counts[i], 100.0 * counts[i] / total);
+            for (int j = 0; j < 50 * counts[i] / total; j++)
+                System.out.print('#');
+            System.out.println();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        File dir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int generate = 0;
+        int difficulty = LanderPhysics.DIFFICULTY_MEDIUM;
+        long seed = 1;
+        double maxPercent = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--dir".equals(opt)) dir = new File(val);
+            else if ("--threads".equals(opt)) threads = Integer.parseInt(val);
+            else if ("--generate".equals(opt)) generate = Integer.parseInt(val);
+            else if ("--difficulty".equals(opt)) difficulty = Headless.parseDifficulty(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-percent".equals(opt)) maxPercent = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || dir == null || threads < 1 || generate < 0) {
+            System.err.println("usage: TelemetryScan --dir DIR [--threads N] [--generate N] "
+                    + "[--difficulty easy|medium|hard] [--seed N] [--max-percent P]");
+            System.exit(2);
+        }
+
+        boolean ok = true;
+        if (generate > 0) {
+            double nanos = generate(dir, generate, difficulty, seed);
+            double percent = nanos / (FRAME * 1e9) * 100;
+            System.out.printf("recording: %.1f ns per step, %.4f%% of a 60 Hz frame%n", nanos,
+                    percent);
+            ok &= percent <= maxPercent;
+        }
+
+        File[] found = dir.listFiles();
+        List<File> files = new ArrayList<File>();
+        if (found != null) {
+            Arrays.sort(found);
+            for (File f : found)
+                if (f.getName().endsWith(TelemetryFile.SUFFIX)) files.add(f);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Stats>> parts = new ArrayList<Future<Stats>>();
+        int share = (files.size() + threads - 1) / threads;
+        for (int from = 0; from < files.size(); from += share) {
+            final List<File> part = files.subList(from, Math.min(files.size(), from + share));
+            parts.add(pool.submit(new Callable<Stats>() {
+                public Stats call() {
+                    return scan(part);
+                }
+            }));
+        }
+        Stats stats = new Stats();
+        for (Future<Stats> part : parts)
+            stats.add(part.get());
+        pool.shutdown();
+        double ms = (System.nanoTime() - start) / 1e6;
+
+        System.out.printf("scanned %d flights (%d unreadable) in %.0f ms on %d threads%n",
+                stats.flights, stats.bad, ms, threads);
+        if (stats.flights > 0) {
+            System.out.printf("%d steps, %.2f bytes per step on disk%n", stats.steps,
+                    (double) stats.bytes / stats.steps);
+            System.out.printf("outcomes: landed %d, off pad %d, bad angle %d, too fast %d, "
+                    + "hyperspace %d%n", stats.outcomes[LanderPhysics.OUTCOME_LANDED],
+                    stats.outcomes[LanderPhysics.OUTCOME_OFF_PAD],
+                    stats.outcomes[LanderPhysics.OUTCOME_BAD_ANGLE],
+                    stats.outcomes[LanderPhysics.OUTCOME_TOO_FAST],
+                    stats.outcomes[LanderPhysics.OUTCOME_HYPERSPACE]);
+            printHistogram("fuel at touchdown, % of a full tank", stats.fuel, stats.flights, 0,
+                    100.0 / FUEL_BUCKETS, "%");
+            printHistogram("approach angle from straight down", stats.angle, stats.flights, 0,
+                    ANGLE_STEP, "deg");
+        }
+        ok &= stats.bad == 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * Seeded procedural ground: a height polyline across the canvas with a flat
+ * segment for every landing pad of the level. Heights are measured like
+ * LanderState y, from the bottom of the canvas up, and never drop below
+ * LanderPhysics.TARGET_PAD_HEIGHT, the height of the old flat ground.
+ *
+ * Collision queries take constant time however fine the polyline is. A
+ * uniform grid of columns as wide as the narrowest segment maps any x to
+ * its segment in a step or two, and a sparse table of range maxima gives
+ * the highest vertex between any two segments in one lookup. Immutable
+ * once built, so states may share it freely.
+ *
+ * The same generator also makes the chunks of a ChunkedTerrain, see
+ * chunk().
+ */
+final class Terrain implements Ground {
+    /** Default narrowest segment, in px. */
+    public static final int DEFAULT_DETAIL = 6;
+
+    /** One chunk in this many gets a pad of its own. */
+    private static final int CHUNK_PAD_ODDS = 3;
+
+    /**
+     * A generated polyline and its pads, before indexing.
+     */
+    private static final class Shape {
+        double[] x;
+        double[] y;
+        int n;
+        int[] padX;
+        int[] padWidth;
+        double[] padHeight;
+        /** For every pad, the vertex at its left end. */
+        int[] padPoint;
+    }
+
+    private final int mWidth;
+    private final int mCell;
+
+    /* the polyline, x increasing */
+    private final double[] mX;
+    private final double[] mY;
+
+    /** For every grid cell, the segment holding the cell's left edge. */
+    private final int[] mCellSegment;
+
+    /** mMax[k][i] is the highest of vertices i .. i + 2^k - 1. */
+    private final double[][] mMax;
+
+    /* pads, in the order they were given */
+    private final int[] mPadX;
+    private final int[] mPadWidth;
+    private final double[] mPadHeight;
+
+    /**
+     * Generates terrain around a level's pads, which become flat segments
+     * in the same order. The same arguments always give the same terrain.
+     *
+     * @param seed picks the heights
+     * @param pads the level's pads, see PadIndex.place()
+     * @param detail narrowest segment in px; the widest is twice that
+     */
+    public Terrain(long seed, int canvasWidth, int canvasHeight, PadIndex pads, int detail) {
+        this(screen(seed, canvasWidth, canvasHeight, pads, Math.max(1, detail)),
+                canvasWidth, Math.max(1, detail));
+    }
+
+    private Terrain(Shape shape, int width, int cell) {
+        mWidth = width;
+        mCell = cell;
+        int n = shape.n;
+        mX = new double[n];
+        mY = new double[n];
+        System.arraycopy(shape.x, 0, mX, 0, n);
+        System.arraycopy(shape.y, 0, mY, 0, n);
+        mPadX = shape.padX;
+        mPadWidth = shape.padWidth;
+        mPadHeight = shape.padHeight;
+
+        mCellSegment = new int[width / mCell + 1];
+        int seg = 0;
+        for (int c = 0; c < mCellSegment.length; c++) {
+            double left = c * mCell;
+            while (seg < n - 2 && mX[seg + 1] <= left)
+                seg++;
+            mCellSegment[c] = seg;
+        }
+
+        int levels = 1;
+        while ((1 << levels) <= n)
+            levels++;
+        mMax = new double[levels][];
+        mMax[0] = mY.clone();
+        for (int k = 1; k < levels; k++) {
+            int len = n - (1 << k) + 1;
+            mMax[k] = new double[len];
+            for (int i = 0; i < len; i++)
+                mMax[k][i] = Math.max(mMax[k - 1][i], mMax[k - 1][i + (1 << (k - 1))]);
+        }
+    }
+
+    /**
+     * Generates one chunk of a wide world, in coordinates local to the
+     * chunk. Its ends are at edgeHeight() of its two edges, so neighbouring
+     * chunks meet without either knowing the other, and the same arguments
+     * always give the same chunk.
+     *
+     * @param seed the world's seed
+     * @param index which chunk, counting from the left of the world
+     * @param goalX left edge of the goal pad relative to this chunk; the
+     *        part of the pad inside the chunk, if any, is made flat
+     * @param padWidth width of the pad some chunks get besides the goal
+     */
+    public static Terrain chunk(long seed, int index, int chunkWidth, int canvasHeight,
+            int goalX, int goalWidth, int padWidth, int detail) {
+        int cell = Math.max(1, detail);
+        double low = LanderPhysics.TARGET_PAD_HEIGHT;
+        double high = highest(canvasHeight);
+        double startY = edgeHeight(seed, index, canvasHeight);
+        double endY = edgeHeight(seed, index + 1, canvasHeight);
+        Random random = new Random(mix(seed, 2L * index));
+
+        int[] padX = new int[1];
+        int[] padW = new int[1];
+        int pads = 0;
+        int left = Math.max(0, goalX);
+        int right = Math.min(chunkWidth, goalX + goalWidth);
+        if (left < right) {
+            padX[0] = left;
+            padW[0] = right - left;
+            pads = 1;
+        } else if (random.nextInt(CHUNK_PAD_ODDS) == 0 && padWidth + 4 * cell < chunkWidth) {
+            padX[0] = 2 * cell + (int) (random.nextDouble() * (chunkWidth - padWidth - 4 * cell));
+            padW[0] = padWidth;
+            pads = 1;
+        }
+        Shape shape = walk(random, chunkWidth, cell, low, high, startY, padX, padW, pads);
+
+        // bend the walk to end at endY: spread the error over the slopes
+        // only, so the pads stay flat
+        double total = 0;
+        for (int i = 1; i < shape.n; i++) {
+            if (!isPad(shape, i - 1)) total += shape.x[i] - shape.x[i - 1];
+        }
+        double error = endY - shape.y[shape.n - 1];
+        double done = 0;
+        for (int i = 1; i < shape.n; i++) {
+            if (!isPad(shape, i - 1)) done += shape.x[i] - shape.x[i - 1];
+            double y = shape.y[i] + (total > 0 ? error * done / total : 0);
+            shape.y[i] = Math.max(low, Math.min(high, y));
+        }
+        shape.y[shape.n - 1] = endY;
+        for (int p = 0; p < pads; p++)
+            shape.padHeight[p] = shape.y[shape.padPoint[p]];
+        return new Terrain(shape, chunkWidth, cell);
+    }
+
+    /**
+     * Height of the ground at the edge between two chunks of a wide world.
+     *
+     * @param edge the edge left of chunk edge
+     */
+    public static double edgeHeight(long seed, int edge, int canvasHeight) {
+        double low = LanderPhysics.TARGET_PAD_HEIGHT;
+        double top = Math.max(low, highest(canvasHeight) * 0.6);
+        return low + new Random(mix(seed, 2L * edge + 1)).nextDouble() * (top - low);
+    }
+
+    private static double highest(int canvasHeight) {
+        return Math.max(LanderPhysics.TARGET_PAD_HEIGHT + 1, canvasHeight / 5);
+    }
+
+    /**
+     * Spreads a seed and a count over all 64 bits, so that neighbouring
+     * chunks get unrelated Randoms.
+     */
+    private static long mix(long seed, long n) {
+        long z = seed + n * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Is vertex i the left end of a pad, so that the segment after it is
+     * flat?
+     */
+    private static boolean isPad(Shape shape, int i) {
+        for (int p = 0; p < shape.padPoint.length; p++) {
+            if (shape.padPoint[p] == i) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The single screen terrain: the level's pads with hills between them.
+     */
+    private static Shape screen(long seed, int canvasWidth, int canvasHeight, PadIndex pads,
+            int cell) {
+        Random random = new Random(seed);
+        double low = LanderPhysics.TARGET_PAD_HEIGHT;
+        double high = highest(canvasHeight);
+
+        // pads off the canvas can't be flattened
+        int[] padX = new int[pads.size()];
+        int[] padW = new int[pads.size()];
+        int n = 0;
+        for (int i = 0; i < pads.size(); i++) {
+            int left = Math.max(0, pads.getX(i));
+            int right = Math.min(canvasWidth, pads.getX(i) + pads.getWidth(i));
+            if (left >= right) continue;
+            padX[n] = left;
+            padW[n] = right - left;
+            n++;
+        }
+        double y = low + random.nextDouble() * (high - low) / 2;
+        return walk(random, canvasWidth, cell, low, high, y, padX, padW, n);
+    }
+
+    /**
+     * Walks from x 0 to width; every pad becomes one flat segment.
+     */
+    private static Shape walk(Random random, int width, int cell, double low, double high,
+            double y, int[] padX, int[] padW, int pads) {
+        Shape shape = new Shape();
+        shape.padX = new int[pads];
+        shape.padWidth = new int[pads];
+        shape.padHeight = new double[pads];
+        shape.padPoint = new int[pads];
+        System.arraycopy(padX, 0, shape.padX, 0, pads);
+        System.arraycopy(padW, 0, shape.padWidth, 0, pads);
+        int[] order = new int[pads];
+        for (int i = 0; i < pads; i++)
+            order[i] = i;
+        for (int i = 1; i < pads; i++) {
+            for (int j = i; j > 0 && padX[order[j]] < padX[order[j - 1]]; j--) {
+                int t = order[j];
+                order[j] = order[j - 1];
+                order[j - 1] = t;
+            }
+        }
+
+        int max = width / cell + 3 * pads + 2;
+        double[] xs = new double[max];
+        double[] ys = new double[max];
+        int n = 0;
+        double x = 0;
+        double slope = 0;
+        int next = 0;
+        xs[n] = x;
+        ys[n++] = y;
+        while (x < width) {
+            int pad = next < pads ? order[next] : -1;
+            double left = pad >= 0 ? padX[pad] : width;
+            double step;
+            if (left - x <= 2 * cell) {
+                step = left - x;
+            } else {
+                step = cell + random.nextDouble() * cell;
+                // never leave a gap too narrow for a segment
+                if (left - x - step < cell) step = left - x - cell;
+            }
+            // rough hills: a slope that drifts, kept within the band
+            slope += (random.nextDouble() - 0.5) * 1.2;
+            slope = Math.max(-1.5, Math.min(1.5, slope));
+            y += slope * step;
+            if (y < low || y > high) {
+                slope = -slope * 0.5;
+                y = Math.max(low, Math.min(high, y));
+            }
+            x += step;
+            if (pad >= 0 && x >= left) {
+                // the pad, flat at the height the hills reached
+                x = left;
+                y = Math.min(high * 0.6, y);
+                shape.padHeight[pad] = y;
+                if (xs[n - 1] == x) n--;
+                shape.padPoint[pad] = n;
+                xs[n] = x;
+                ys[n++] = y;
+                x += padW[pad];
+                next++;
+            }
+            xs[n] = x;
+            ys[n++] = y;
+        }
+        shape.x = xs;
+        shape.y = ys;
+        shape.n = n;
+        return shape;
+    }
+
+    /**
+     * Height of the ground at x.
+     */
+    public double heightAt(double x) {
+        int s = segmentAt(x);
+        double x0 = mX[s];
+        double x1 = mX[s + 1];
+        double f = x1 > x0 ? (clampX(x) - x0) / (x1 - x0) : 0;
+        return mY[s] + (mY[s + 1] - mY[s]) * f;
+    }
+
+    public double heightUnder(double left, double right) {
+        int a = segmentAt(left);
+        int b = segmentAt(right);
+        double h = Math.max(heightAt(left), heightAt(right));
+        // vertices a+1 .. b lie strictly between the two ends
+        if (b > a) h = Math.max(h, rangeMax(a + 1, b));
+        return h;
+    }
+
+    /**
+     * @return the pad wholly under the span, or -1 if there is none
+     */
+    public int padUnder(double left, double right) {
+        for (int i = 0; i < mPadX.length; i++) {
+            if (mPadX[i] <= left && right <= mPadX[i] + mPadWidth[i]) return i;
+        }
+        return -1;
+    }
+
+    public boolean hasPadUnder(double left, double right) {
+        return padUnder(left, right) >= 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Rough memory held by this terrain, in bytes.
+     */
+    public int estimateBytes() {
+        int bytes = 16 * mX.length + 4 * mCellSegment.length + 16 * mPadX.length;
+        for (int k = 0; k < mMax.length; k++)
+            bytes += 8 * mMax[k].length;
+        return bytes;
+    }
+
+    public int getPointCount() {
+        return mX.length;
+    }
+
+    public double getX(int i) {
+        return mX[i];
+    }
+
+    public double getY(int i) {
+        return mY[i];
+    }
+
+    /** Pads, the goal first. */
+    public int getPadCount() {
+        return mPadX.length;
+    }
+
+    public int getPadX(int i) {
+        return mPadX[i];
+    }
+
+    public int getPadWidth(int i) {
+        return mPadWidth[i];
+    }
+
+    public double getPadHeight(int i) {
+        return mPadHeight[i];
+    }
+
+    private double clampX(double x) {
+        return x < 0 ? 0 : (x > mWidth ? mWidth : x);
+    }
+
+    private int segmentAt(double x) {
+        x = clampX(x);
+        int s = mCellSegment[Math.min(mCellSegment.length - 1, (int) (x / mCell))];
+        // segments are about as wide as cells, so this runs a step or two
+        while (s < mX.length - 2 && mX[s + 1] < x)
+            s++;
+        return s;
+    }
+
+    private double rangeMax(int from, int to) {
+        int k = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+        return Math.max(mMax[k][from], mMax[k][to - (1 << k) + 1]);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Flies many landers at once through a changing WindField, split across
+ * threads that share the one field, and checks the grid against the noise
+ * it was made from. Runs on a desktop JVM.
+ *
+ * Usage: WindBenchmark [options]
+ * <ul>
+ * <li>--landers N: landers flown at once, default 10000
+ * <li>--threads T: threads stepping them, default one per core
+ * <li>--seconds S: simulated time, default 20
+ * <li>--period P: seconds between keyframes, default
+ * WindField.DEFAULT_PERIOD
+ * <li>--seed N
+ * <li>--max-error F: fail (exit 1) if the grid's RMS error, as a fraction
+ * of the RMS push, exceeds F, default 0.05
+ * </ul>
+ */
+public class WindBenchmark {
+    private static final double STEP_SECONDS = 1 / 60.0;
+
+    /** Points sampled to check the grid, and again to time it. */
+    private static final int CHECKED = 20000;
+
+    /** Keeps the timed samples from being optimized away. */
+    static volatile double sSink;
+
+    /**
+     * Sets a lander off from a random point in the top half of the field.
+     */
+    private static void launch(LanderState s, Random random) {
+        LanderPhysics.start(s, LanderPhysics.DIFFICULTY_MEDIUM, Headless.CANVAS_WIDTH,
+                Headless.CANVAS_HEIGHT, random);
+        s.x = Headless.LANDER_WIDTH / 2
+                + random.nextDouble() * (Headless.CANVAS_WIDTH - Headless.LANDER_WIDTH);
+        s.y = Headless.CANVAS_HEIGHT / 2
+                + random.nextDouble() * (Headless.CANVAS_HEIGHT / 2 - Headless.LANDER_HEIGHT);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int landers = 10000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double seconds = 20;
+        double period = WindField.DEFAULT_PERIOD;
+        long seed = 1;
+        double maxError = 0.05;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String opt = args[i];
+            String val = args[i + 1];
+            if ("--landers".equals(opt)) landers = Integer.parseInt(val);
+            else if ("--threads".equals(opt)) threads = Integer.parseInt(val);
+            else if ("--seconds".equals(opt)) seconds = Double.parseDouble(val);
+            else if ("--period".equals(opt)) period = Double.parseDouble(val);
+            else if ("--seed".equals(opt)) seed = Long.parseLong(val);
+            else if ("--max-error".equals(opt)) maxError = Double.parseDouble(val);
+            else throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (args.length % 2 != 0 || landers < 1 || threads < 1 || seconds <= 0 || period <= 0) {
+            System.err.println("usage: WindBenchmark [--landers N] [--threads T] [--seconds S] "
+                    + "[--period P] [--seed N] [--max-error F]");
+            System.exit(2);
+        }
+
+        final WindField wind = new WindField(seed, Headless.CANVAS_WIDTH, Headless.CANVAS_HEIGHT,
+                period);
+        final LanderState[] fleet = new LanderState[landers];
+        Random random = new Random(seed);
+        for (int i = 0; i < landers; i++) {
+            fleet[i] = new LanderState();
+            fleet[i].landerWidth = Headless.LANDER_WIDTH;
+            fleet[i].landerHeight = Headless.LANDER_HEIGHT;
+            launch(fleet[i], random);
+            fleet[i].wind = wind;
+        }
+
+        // each thread steps its own slice of the fleet, and relaunches
+        // landers that came down from its own Random
+        final int[] outcomes = new int[threads];
+        final int steps = (int) Math.ceil(seconds / STEP_SECONDS);
+        final int slices = threads;
+        final CyclicBarrier stepped = new CyclicBarrier(threads, new Runnable() {
+            public void run() {
+                // every lander has sampled this step; move the wind on
+                wind.advance(STEP_SECONDS);
+            }
+        });
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int slice = t;
+            final Random own = new Random(seed + 1 + t);
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    int from = (int) ((long) fleet.length * slice / slices);
+                    int to = (int) ((long) fleet.length * (slice + 1) / slices);
+                    try {
+                        for (int step = 0; step < steps; step++) {
+                            for (int i = from; i < to; i++) {
+                                if (LanderPhysics.step(fleet[i], STEP_SECONDS)
+                                        != LanderPhysics.OUTCOME_FLYING) {
+                                    outcomes[slice]++;
+                                    launch(fleet[i], own);
+                                }
+                            }
+                            stepped.await();
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "Fleet" + t);
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        long nanos = System.nanoTime() - start;
+        int landed = 0;
+        for (int n : outcomes)
+            landed += n;
+
+        // the grid against the noise, then the cost of each, warmed up
+        double sumSquares = 0;
+        double sumPush = 0;
+        for (int k = 0; k < CHECKED; k++) {
+            double x = random.nextDouble() * Headless.CANVAS_WIDTH;
+            double y = random.nextDouble() * Headless.CANVAS_HEIGHT;
+            double ex = wind.accelX(x, y) - wind.accelXDirect(x, y);
+            double ey = wind.accelY(x, y) - wind.accelYDirect(x, y);
+            sumSquares += ex * ex + ey * ey;
+            double px = wind.accelXDirect(x, y);
+            double py = wind.accelYDirect(x, y);
+            sumPush += px * px + py * py;
+        }
+        double sink = 0;
+        long gridStart = System.nanoTime();
+        for (int k = 0; k < CHECKED; k++) {
+            double x = random.nextDouble() * Headless.CANVAS_WIDTH;
+            double y = random.nextDouble() * Headless.CANVAS_HEIGHT;
+            sink += wind.accelX(x, y) + wind.accelY(x, y);
+        }
+        long gridNanos = System.nanoTime() - gridStart;
+        long directStart = System.nanoTime();
+        for (int k = 0; k < CHECKED; k++) {
+            double x = random.nextDouble() * Headless.CANVAS_WIDTH;
+            double y = random.nextDouble() * Headless.CANVAS_HEIGHT;
+            sink += wind.accelXDirect(x, y) + wind.accelYDirect(x, y);
+        }
+        long directNanos = System.nanoTime() - directStart;
+        sSink = sink;
+        double error = sumPush > 0 ? Math.sqrt(sumSquares / sumPush) : 0;
+        wind.close();
+
+        double simulated = steps * STEP_SECONDS;
+        System.out.printf("%d landers, %d threads: %.1f s simulated in %.2f s (%.0fx), "
+                + "%.0f ns per lander step, %d came down%n", landers, threads, simulated,
+                nanos / 1e9, simulated * 1e9 / nanos, (double) nanos / steps / landers, landed);
+        System.out.printf("grid %.1f ns per sample, noise %.1f ns, error rms %.4f, "
+                + "%d KB of grids%n", gridNanos / 2.0 / CHECKED, directNanos / 2.0 / CHECKED,
+                error, wind.estimateBytes() / 1024);
+        boolean ok = error <= maxError;
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Wind and turbulence over the playing field, as an acceleration pushing
+ * on landers. Coordinates are those of LanderState, in px.
+ *
+ * The field is seeded value noise: broad gusts sideways, growing with
+ * altitude so the ground stays calm enough to land on, and finer
+ * turbulence up and down. Noise is costly to evaluate, so it is evaluated
+ * once per node of a grid CELL px apart, into a float array, and landers
+ * read the grid with bilinear interpolation: a handful of multiplies
+ * however many landers there are. The noise itself, accelXDirect() and
+ * accelYDirect(), is kept as the reference to check the grid against.
+ *
+ * A field made with a period changes with time. It keeps two keyframes of
+ * the grid, period seconds apart, and blends between them; a background
+ * thread fills in the keyframe after next while the game plays through the
+ * current pair. The three grids are reused in turn, so advance() allocates
+ * nothing, and it only waits for the background thread if it fell a whole
+ * period behind, so the wind a lander sees depends on the seed and the
+ * time alone.
+ *
+ * accelX() and accelY() only read, so any number of threads may sample at
+ * once, but not while the owner calls advance().
+ */
+final class WindField {
+    /** Distance between grid nodes, in px. */
+    public static final int CELL = 16;
+
+    /** Default seconds between keyframes of a changing field. */
+    public static final double DEFAULT_PERIOD = 2;
+
+    /** Strongest sideways push, in px/s^2, at the top of the field. */
+    private static final double GUST_ACCEL = 24;
+
+    /** Strongest turbulence, in px/s^2. */
+    private static final double TURBULENCE_ACCEL = 10;
+
+    /** Size of the broadest gusts and of the turbulence, in px. */
+    private static final double GUST_SCALE = 240;
+    private static final double TURBULENCE_SCALE = 120;
+
+    /** Noise octaves summed, each half the size and strength. */
+    private static final int OCTAVES = 3;
+
+    /** How far through the noise's time axis one keyframe moves. */
+    private static final double KEYFRAME_DRIFT = 0.35;
+
+    private final long mSeed;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mColumns;
+    private final int mRows;
+    private final double mPeriod;
+
+    /*
+     * Keyframes: x and y push interleaved per node, rows from the bottom.
+     * mFrom and mTo are being played; mSpare is the one being built.
+     */
+    private float[] mFrom;
+    private float[] mTo;
+    private float[] mSpare;
+
+    /** Keyframe mFrom shows. */
+    private long mKeyframe;
+
+    /** Seconds since mFrom, and how far to mTo, 0..1. */
+    private double mTime;
+    private float mBlend;
+
+    /*
+     * The background thread, for a changing field. Guarded by mLock.
+     */
+    private final Object mLock = new Object();
+    private final Thread mBuilder;
+    private long mWanted = -1;
+    private long mBuilt = -1;
+    private boolean mClosed;
+
+    /** Closed, and advance() has reached the last keyframe built. */
+    private boolean mFrozen;
+
+    /**
+     * A field that never changes.
+     *
+     * @param seed picks the gusts
+     */
+    public WindField(long seed, int canvasWidth, int canvasHeight) {
+        this(seed, canvasWidth, canvasHeight, 0);
+    }
+
+    /**
+     * @param seed picks the gusts
+     * @param period seconds between keyframes, or 0 for a field that
+     *        never changes and needs no background thread
+     */
+    public WindField(long seed, int canvasWidth, int canvasHeight, double period) {
+        mSeed = seed;
+        mWidth = canvasWidth;
+        mHeight = canvasHeight;
+        mColumns = canvasWidth / CELL + 2;
+        mRows = canvasHeight / CELL + 2;
+        mPeriod = period;
+        mFrom = new float[2 * mColumns * mRows];
+        fill(mFrom, 0);
+        if (period <= 0) {
+            mTo = mFrom;
+            mBuilder = null;
+            return;
+        }
+        mTo = new float[mFrom.length];
+        mSpare = new float[mFrom.length];
+        fill(mTo, 1);
+        mWanted = 2;
+        mBuilder = new Thread(new Runnable() {
+            public void run() {
+                build();
+            }
+        }, "Wind");
+        mBuilder.setDaemon(true);
+        mBuilder.setPriority(Thread.MIN_PRIORITY);
+        mBuilder.start();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Bytes held by the grids. */
+    public int estimateBytes() {
+        return 4 * mFrom.length * (mBuilder != null ? 3 : 1);
+    }
+
+    /**
+     * Moves a changing field on in time; does nothing to one that never
+     * changes. Call it once per step, before the landers sample it.
+     */
+    public void advance(double elapsed) {
+        if (mBuilder == null || mFrozen) return;
+        mTime += elapsed;
+        while (mTime >= mPeriod) {
+            synchronized (mLock) {
+                // mSpare holds keyframe mKeyframe + 2 once it's built
+                while (mBuilt < mKeyframe + 2 && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (mBuilt < mKeyframe + 2) {
+                    // closed before it was built: stay on mTo
+                    mFrozen = true;
+                    mBlend = 1;
+                    return;
+                }
+                float[] old = mFrom;
+                mFrom = mTo;
+                mTo = mSpare;
+                mSpare = old;
+                mKeyframe++;
+                mWanted = mKeyframe + 2;
+                mLock.notifyAll();
+            }
+            mTime -= mPeriod;
+        }
+        mBlend = (float) (mTime / mPeriod);
+    }
+
+    /**
+     * Sideways push at a point, from the grid.
+     */
+    public double accelX(double x, double y) {
+        return interpolate(x, y, 0);
+    }
+
+    /**
+     * Up and down push at a point, from the grid.
+     */
+    public double accelY(double x, double y) {
+        return interpolate(x, y, 1);
+    }
+
+    /**
+     * The reference for accelX(): the noise evaluated at the point, for
+     * both keyframes, blended the same way.
+     */
+    public double accelXDirect(double x, double y) {
+        x = clamp(x, mWidth);
+        y = clamp(y, mHeight);
+        double a = gust(x, y, mKeyframe);
+        if (mBuilder == null) return a;
+        return a + (gust(x, y, mKeyframe + 1) - a) * mBlend;
+    }
+
+    /**
+     * The reference for accelY().
+     */
+    public double accelYDirect(double x, double y) {
+        x = clamp(x, mWidth);
+        y = clamp(y, mHeight);
+        double a = turbulence(x, y, mKeyframe);
+        if (mBuilder == null) return a;
+        return a + (turbulence(x, y, mKeyframe + 1) - a) * mBlend;
+    }
+
+    /**
+     * Stops the background thread. The field keeps the keyframes it has
+     * and stops changing.
+     */
+    public void close() {
+        if (mBuilder == null) return;
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private double interpolate(double x, double y, int channel) {
+        double gx = clamp(x, mWidth) / CELL;
+        double gy = clamp(y, mHeight) / CELL;
+        int c = (int) gx;
+        int r = (int) gy;
+        float fx = (float) (gx - c);
+        float fy = (float) (gy - r);
+        int i = 2 * (r * mColumns + c) + channel;
+        int up = 2 * mColumns;
+        float[] a = mFrom;
+        float lower = a[i] + (a[i + 2] - a[i]) * fx;
+        float upper = a[i + up] + (a[i + up + 2] - a[i + up]) * fx;
+        float v = lower + (upper - lower) * fy;
+        if (a == mTo) return v;
+        float[] b = mTo;
+        lower = b[i] + (b[i + 2] - b[i]) * fx;
+        upper = b[i + up] + (b[i + up + 2] - b[i + up]) * fx;
+        return v + (lower + (upper - lower) * fy - v) * mBlend;
+    }
+
+    /**
+     * Background thread: builds each keyframe asked for into mSpare.
+     */
+    private void build() {
+        while (true) {
+            long keyframe;
+            float[] grid;
+            synchronized (mLock) {
+                while (mBuilt >= mWanted && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) return;
+                keyframe = mWanted;
+                grid = mSpare;
+            }
+            // mSpare is ours until mBuilt says it's done
+            fill(grid, keyframe);
+            synchronized (mLock) {
+                mBuilt = keyframe;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Evaluates the noise for a keyframe at every node of a grid.
+     */
+    private void fill(float[] grid, long keyframe) {
+        int i = 0;
+        for (int r = 0; r < mRows; r++) {
+            // the last row and column may lie past the field, so that
+            // every point in it has four nodes around it
+            double y = r * CELL;
+            for (int c = 0; c < mColumns; c++) {
+                double x = c * CELL;
+                grid[i++] = (float) gust(x, y, keyframe);
+                grid[i++] = (float) turbulence(x, y, keyframe);
+            }
+        }
+    }
+
+    private double gust(double x, double y, long keyframe) {
+        double altitude = 0.3 + 0.7 * Math.min(1, Math.max(0, y / mHeight));
+        return GUST_ACCEL * altitude
+                * fractal(mSeed, x / GUST_SCALE, y / GUST_SCALE, keyframe * KEYFRAME_DRIFT);
+    }
+
+    private double turbulence(double x, double y, long keyframe) {
+        return TURBULENCE_ACCEL * fractal(mSeed + 1, x / TURBULENCE_SCALE, y / TURBULENCE_SCALE,
+                keyframe * KEYFRAME_DRIFT * 2);
+    }
+
+    /**
+     * Value noise summed over OCTAVES, in -1..1.
+     */
+    private static double fractal(long seed, double x, double y, double z) {
+        double sum = 0;
+        double amplitude = 1;
+        double total = 0;
+        for (int o = 0; o < OCTAVES; o++) {
+            sum += amplitude * noise(seed + o, x, y, z);
+            total += amplitude;
+            amplitude /= 2;
+            x *= 2;
+            y *= 2;
+        }
+        return sum / total;
+    }
+
+    /**
+     * Smoothly interpolated random values at the corners of a unit
+     * lattice, in -1..1.
+     */
+    private static double noise(long seed, double x, double y, double z) {
+        long x0 = (long) Math.floor(x);
+        long y0 = (long) Math.floor(y);
+        long z0 = (long) Math.floor(z);
+        double fx = smooth(x - x0);
+        double fy = smooth(y - y0);
+        double fz = smooth(z - z0);
+        double c00 = lerp(lattice(seed, x0, y0, z0), lattice(seed, x0 + 1, y0, z0), fx);
+        double c10 = lerp(lattice(seed, x0, y0 + 1, z0), lattice(seed, x0 + 1, y0 + 1, z0), fx);
+        double c01 = lerp(lattice(seed, x0, y0, z0 + 1), lattice(seed, x0 + 1, y0, z0 + 1), fx);
+        double c11 = lerp(lattice(seed, x0, y0 + 1, z0 + 1),
+                lattice(seed, x0 + 1, y0 + 1, z0 + 1), fx);
+        return lerp(lerp(c00, c10, fy), lerp(c01, c11, fy), fz);
+    }
+
+    private static double lattice(long seed, long x, long y, long z) {
+        long h = mix(mix(mix(seed, x), y), z);
+        // top 53 bits, to -1..1
+        return (h >>> 11) * (2.0 / (1L << 53)) - 1;
+    }
+
+    /**
+     * Spreads a seed and a count over all 64 bits, as Terrain does.
+     */
+    private static long mix(long seed, long n) {
+        long z = seed + n * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double smooth(double t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    private static double clamp(double v, double max) {
+        return v < 0 ? 0 : (v > max ? max : v);
+    }
+}